@@ -70,7 +70,6 @@ import javax.inject.Inject
 import javax.inject.Singleton
 import kotlin.coroutines.CoroutineContext
 import kotlin.coroutines.EmptyCoroutineContext
-import kotlin.math.ceil
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.Duration.Companion.seconds
@@ -868,16 +867,8 @@ class AirohaDeviceManager @Inject constructor(
                 java.time.Duration.ofMillis(durationMillis.toLong())
             )
         }
-        val eegSamplingRate = getEegSamplingRate()
-        val numberOfSamples = Math.round(
-            ceil(
-                (durationMillis.toFloat() / Math.round(
-                    1000f / eegSamplingRate
-                )).toDouble()
-            )
-        ).toInt()
-        return _budzService?.getMemoryCache()?.getLastEegChannelData(
-            channelName, numberOfSamples)
+        return _budzService?.getMemoryCache()?.getLastRange(
+            channelName, java.time.Duration.ofMillis(durationMillis.toLong()))?.valueList
     }
 
     private fun twsConnectStatusFlow() = callbackFlow<Boolean?> {
@@ -76,6 +76,8 @@ public class BudzService extends Service {
   private static final String CHANNEL_NAME = "NextSense";
   private static final int UI_INTENT_REQUEST_CODE = 1;
   private static final int NOTIFICATION_ID = 1;
+  // Memory for the recent data of all the channels, split by sampling rate.
+  private static final long MEMORY_CACHE_BUDGET_BYTES = 16L * 1024 * 1024;
 
   @Inject AirohaDeviceManager airohaDeviceManager;
   @Inject AuthRepository authRepository;
@@ -205,7 +207,7 @@ public class BudzService extends Service {
     localSessionManager = LocalSessionManager.create(objectBoxDatabase, csvSink);
     budzDeviceManager = NextSenseDeviceManager.create(localSessionManager,
         NextSenseDeviceManager.DeviceGroup.CONSUMER);
-    memoryCache = MemoryCache.create();
+    memoryCache = MemoryCache.create(MEMORY_CACHE_BUDGET_BYTES);
     deviceScanner = DeviceScanner.create(
         budzDeviceManager, centralManagerProxy, bluetoothStateManager, memoryCache, csvSink);
     deviceManager = DeviceManager.create(
@@ -2,14 +2,13 @@ package io.nextsense.android.algo.tflite;
 
 import android.content.Context;
 
-import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Floats;
 
 import org.tensorflow.lite.Interpreter;
 
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.time.Duration;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -68,16 +67,21 @@ public class SleepTransformerModel extends BaseModel {
 
   public Map<Integer, Object> doInference(List<Float> data, float samplingRate) throws
       IllegalArgumentException {
+    return doInference(Floats.toArray(data), samplingRate);
+  }
+
+  public Map<Integer, Object> doInference(float[] data, float samplingRate) throws
+      IllegalArgumentException {
     int numEpochs = (int)Math.round(Math.floor(
-        (data.size() / samplingRate) / (int) EPOCH_LENGTH.getSeconds()));
+        (data.length / samplingRate) / (int) EPOCH_LENGTH.getSeconds()));
     if (numEpochs > INPUT_EPOCHS_SIZE) {
       RotatingFileLogger.get().logw(TAG,
           "Input data is too long. Max input length is " + INPUT_EPOCHS_SIZE + " epochs." +
           "Ignoring the rest of the data.");
     }
     int inputSize = INPUT_EPOCHS_SIZE * (int) EPOCH_LENGTH.getSeconds() * (int) samplingRate;
-    if (data.size() < inputSize) {
-      String errorText = "Input data of " + data.size() + " is too short. Min input length is " +
+    if (data.length < inputSize) {
+      String errorText = "Input data of " + data.length + " is too short. Min input length is " +
           inputSize + " samples.";
       RotatingFileLogger.get().logw(TAG, errorText);
       return new HashMap<>();
@@ -85,9 +89,10 @@ public class SleepTransformerModel extends BaseModel {
 
     // Copy the data into an array sized to the the model input size.
     double[] preprocessingData = new double[inputSize];
-    int srcPos = Math.max(0, data.size() - inputSize);
-    Arrays.fill(preprocessingData, 0.0);
-    System.arraycopy(Doubles.toArray(data), srcPos, preprocessingData, 0, inputSize);
+    int srcPos = Math.max(0, data.length - inputSize);
+    for (int i = 0; i < inputSize; ++i) {
+      preprocessingData[i] = data[srcPos + i];
+    }
 
     // Filter the signal and resample to the model input frequency.
     double[] resampledData = Sampling.resample(preprocessingData, samplingRate, FILTER_ORDER,
@@ -11,12 +11,14 @@ import java.util.HashSet;
 import java.util.Set;
 
 import io.nextsense.android.base.data.EegSample;
+import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.db.IngestionPipeline;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 
 /**
  * Listens to the samples and calculate the sample rate.
  */
-public class SampleRateCalculator {
+public class SampleRateCalculator implements IngestionPipeline.SamplesConsumer {
 
   public interface RateUpdateListener {
     void onRateUpdated(String formattedSampleRate, int skippedSamples);
@@ -46,12 +48,22 @@ public class SampleRateCalculator {
 
   public void startListening() {
     EventBus.getDefault().register(this);
+    IngestionPipeline.get().addConsumer(TAG, this);
   }
 
   public void stopListening() {
+    IngestionPipeline.get().removeConsumer(this);
     EventBus.getDefault().unregister(this);
   }
 
+  @Override
+  public void onSamples(String device, Samples samples) {
+    for (EegSample eegSample : samples.getEegSamples()) {
+      onEegSample(eegSample);
+    }
+  }
+
+  // Devices that send samples one by one post them on the EventBus.
   @Subscribe(threadMode = ThreadMode.BACKGROUND)
   public void onEegSample(EegSample eegSample) {
     ++samplesReceived;
@@ -323,7 +323,8 @@ public class BleDevice extends Device {
             disconnectionStatus == DisconnectionStatus.HARD).get();
         deviceSettings = new DeviceSettings(nextSenseDevice.loadDeviceSettings().get());
         memoryCache.init(nextSenseDevice.getEegChannelNames(),
-            nextSenseDevice.getAccChannelNames());
+            nextSenseDevice.getAccChannelNames(), deviceSettings.getEegStreamingRate(),
+            deviceSettings.getImuStreamingRate());
         deviceState = DeviceState.READY;
         deviceConnectionFuture.set(deviceState);
         notifyDeviceStateChangeListeners(DeviceState.READY);
@@ -17,12 +17,14 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import io.nextsense.android.Config;
+import io.nextsense.android.base.communication.upload.UploadTransport;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 
 /**
- * Firebase functions interface.
+ * Firebase functions interface. Also the transport used to upload data samples when no other
+ * {@link UploadTransport} is configured, or when it fails.
  */
-public class CloudFunctions {
+public class CloudFunctions implements UploadTransport {
     private static final String TAG = CloudFunctions.class.getSimpleName();
     private static final String UPLOAD_FUNCTION_DISPLAY_NAME = "enqueue upload data samples";
     private static final Duration UPLOAD_FUNCTION_TIMEOUT = Duration.ofMillis(10000);
@@ -37,13 +39,14 @@ public class CloudFunctions {
         return new CloudFunctions();
     }
 
-    public boolean uploadDataSamples(ByteArrayOutputStream data) {
-        return runTask(data, Config.UPLOAD_FUNCTION_NAME, UPLOAD_FUNCTION_TIMEOUT,
+    @Override
+    public boolean uploadDataSamples(byte[] data, int length) {
+        return runTask(data, length, Config.UPLOAD_FUNCTION_NAME, UPLOAD_FUNCTION_TIMEOUT,
             DATA_SAMPLES_PARAM_NAME, UPLOAD_FUNCTION_DISPLAY_NAME);
     }
 
     public boolean completeSession(ByteArrayOutputStream data) {
-        return runTask(data, Config.COMPLETE_SESSION_FUNCTION_NAME,
+        return runTask(data.toByteArray(), data.size(), Config.COMPLETE_SESSION_FUNCTION_NAME,
             COMPLETE_SESSION_FUNCTION_TIMEOUT, SESSION_PARAM_NAME,
             COMPLETE_SESSION_FUNCTION_DISPLAY_NAME);
     }
@@ -71,13 +74,13 @@ public class CloudFunctions {
     }
 
     private boolean runTask(
-            ByteArrayOutputStream dataOutputStream, String functionName, @Nullable Duration timeout,
+            byte[] dataBytes, int length, String functionName, @Nullable Duration timeout,
             String dataParamName, String functionDisplayName) {
         boolean success = false;
         try {
             Map<String, Object> data = new HashMap<>();
             data.put(dataParamName,
-                    Base64.encodeToString(dataOutputStream.toByteArray(), Base64.DEFAULT));
+                    Base64.encodeToString(dataBytes, /*offset=*/0, length, Base64.DEFAULT));
             // Block on the task until successful or the timeout duration is reached, then time out.
             Task<Map<String, Object>> task = runFunction(data, functionName, functionDisplayName);
             if (timeout != null) {
@@ -0,0 +1,69 @@
+package io.nextsense.android.base.communication.upload;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Uploads with a primary transport, and with a fallback transport when the primary one fails.
+ *
+ * After {@link #MAX_PRIMARY_FAILURES} failures of the primary transport in a row, only the fallback
+ * is used for {@link #PRIMARY_RETRY_DELAY} before trying the primary transport again, so that a
+ * broken endpoint does not cost a timeout on every upload.
+ */
+public class FallbackUploadTransport implements UploadTransport {
+
+  private static final String TAG = FallbackUploadTransport.class.getSimpleName();
+  private static final int MAX_PRIMARY_FAILURES = 3;
+  private static final Duration PRIMARY_RETRY_DELAY = Duration.ofMinutes(5);
+
+  private final UploadTransport primaryTransport;
+  private final UploadTransport fallbackTransport;
+  private final Duration primaryRetryDelay;
+  private int primaryFailures = 0;
+  private Instant primaryDisabledUntil = Instant.MIN;
+
+  FallbackUploadTransport(UploadTransport primaryTransport, UploadTransport fallbackTransport,
+                          Duration primaryRetryDelay) {
+    this.primaryTransport = primaryTransport;
+    this.fallbackTransport = fallbackTransport;
+    this.primaryRetryDelay = primaryRetryDelay;
+  }
+
+  public static FallbackUploadTransport create(
+      UploadTransport primaryTransport, UploadTransport fallbackTransport) {
+    return new FallbackUploadTransport(primaryTransport, fallbackTransport, PRIMARY_RETRY_DELAY);
+  }
+
+  @Override
+  public boolean uploadDataSamples(byte[] data, int length) {
+    if (isPrimaryEnabled()) {
+      if (primaryTransport.uploadDataSamples(data, length)) {
+        onPrimaryUploaded();
+        return true;
+      }
+      onPrimaryFailed();
+    }
+    return fallbackTransport.uploadDataSamples(data, length);
+  }
+
+  public synchronized boolean isPrimaryEnabled() {
+    return !Instant.now().isBefore(primaryDisabledUntil);
+  }
+
+  private synchronized void onPrimaryUploaded() {
+    primaryFailures = 0;
+  }
+
+  private synchronized void onPrimaryFailed() {
+    primaryFailures++;
+    if (primaryFailures >= MAX_PRIMARY_FAILURES) {
+      primaryFailures = 0;
+      primaryDisabledUntil = Instant.now().plus(primaryRetryDelay);
+      RotatingFileLogger.get().logw(TAG, "Primary transport failed " + MAX_PRIMARY_FAILURES +
+          " times in a row, using the fallback for the next " + primaryRetryDelay.getSeconds() +
+          " seconds.");
+    }
+  }
+}
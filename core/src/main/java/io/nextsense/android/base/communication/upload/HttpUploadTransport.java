@@ -0,0 +1,155 @@
+package io.nextsense.android.base.communication.upload;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Uploads the data samples as the binary body of an HTTP POST request.
+ *
+ * The bytes are streamed from the caller's buffer to the connection, optionally through gzip,
+ * without the Base64 encoding and JSON wrapping of a callable function. The server acknowledges
+ * the data with a 2xx status code.
+ */
+public class HttpUploadTransport implements UploadTransport {
+
+  // Provides the token sent in the Authorization header.
+  public interface AuthTokenProvider {
+    /**
+     * Returns the bearer token of the current user, null if there is none.
+     */
+    @Nullable String getToken();
+  }
+
+  public static final String CONTENT_TYPE = "application/x-protobuf";
+  public static final String GZIP_ENCODING = "gzip";
+  private static final String TAG = HttpUploadTransport.class.getSimpleName();
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+  private static final Duration READ_TIMEOUT = Duration.ofSeconds(10);
+  private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+  // Longest part of the body of an error response that is logged.
+  static final int MAX_ERROR_BODY_BYTES = 1024;
+
+  private final URL url;
+  private final boolean gzip;
+  @Nullable
+  private final AuthTokenProvider authTokenProvider;
+  private final AtomicLong uploads = new AtomicLong(0);
+  private final AtomicLong bytesUploaded = new AtomicLong(0);
+  private final AtomicLong bytesSent = new AtomicLong(0);
+
+  private HttpUploadTransport(
+      URL url, boolean gzip, @Nullable AuthTokenProvider authTokenProvider) {
+    this.url = url;
+    this.gzip = gzip;
+    this.authTokenProvider = authTokenProvider;
+  }
+
+  public static HttpUploadTransport create(
+      URL url, boolean gzip, @Nullable AuthTokenProvider authTokenProvider) {
+    return new HttpUploadTransport(url, gzip, authTokenProvider);
+  }
+
+  @Override
+  public boolean uploadDataSamples(byte[] data, int length) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout((int) CONNECT_TIMEOUT.toMillis());
+      connection.setReadTimeout((int) READ_TIMEOUT.toMillis());
+      connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+      String token = authTokenProvider != null ? authTokenProvider.getToken() : null;
+      if (token != null) {
+        connection.setRequestProperty("Authorization", "Bearer " + token);
+      }
+      long sent;
+      if (gzip) {
+        // The compressed size is not known in advance.
+        connection.setRequestProperty("Content-Encoding", GZIP_ENCODING);
+        connection.setChunkedStreamingMode(/*chunkLength=*/0);
+        try (CountingOutputStream countingStream =
+                 new CountingOutputStream(connection.getOutputStream());
+             GZIPOutputStream gzipStream = new GZIPOutputStream(countingStream, GZIP_BUFFER_SIZE)) {
+          gzipStream.write(data, 0, length);
+          gzipStream.finish();
+          sent = countingStream.getCount();
+        }
+      } else {
+        connection.setFixedLengthStreamingMode(length);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+          outputStream.write(data, 0, length);
+        }
+        sent = length;
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode < 200 || responseCode >= 300) {
+        String errorBody = readErrorBody(connection);
+        RotatingFileLogger.get().loge(TAG, "Upload refused with HTTP " + responseCode +
+            (errorBody.isEmpty() ? "." : ": " + errorBody));
+        connection.disconnect();
+        return false;
+      }
+      // Read the response so that the connection can be kept alive for the next upload.
+      try (InputStream inputStream = connection.getInputStream()) {
+        byte[] discarded = new byte[256];
+        while (inputStream.read(discarded) != -1) {
+          // Nothing to do with the response body.
+        }
+      }
+      uploads.incrementAndGet();
+      bytesUploaded.addAndGet(length);
+      bytesSent.addAndGet(sent);
+      return true;
+    } catch (IOException e) {
+      RotatingFileLogger.get().loge(TAG, "Failed to upload: " + e.getMessage());
+      if (connection != null) {
+        connection.disconnect();
+      }
+      return false;
+    }
+  }
+
+  // Returns the start of the body of an error response, which tells why it failed, and closes it.
+  static String readErrorBody(HttpURLConnection connection) {
+    try (InputStream errorStream = connection.getErrorStream()) {
+      if (errorStream == null) {
+        return "";
+      }
+      return new String(
+          ByteStreams.toByteArray(ByteStreams.limit(errorStream, MAX_ERROR_BODY_BYTES)),
+          StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return "failed to read the response: " + e.getMessage();
+    }
+  }
+
+  // Number of successful uploads.
+  public long getUploads() {
+    return uploads.get();
+  }
+
+  // Bytes of data in the successful uploads, before compression.
+  public long getBytesUploaded() {
+    return bytesUploaded.get();
+  }
+
+  // Bytes of request bodies sent for the successful uploads, after compression.
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+}
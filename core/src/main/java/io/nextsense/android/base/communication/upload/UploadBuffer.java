@@ -0,0 +1,38 @@
+package io.nextsense.android.base.communication.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Output stream to serialize the data samples into before uploading them, that gives access to its
+ * array instead of copying it. It keeps its array when reset, so it can be reused for each upload
+ * without growing it again.
+ */
+public class UploadBuffer extends ByteArrayOutputStream {
+
+  public UploadBuffer(int initialCapacity) {
+    super(initialCapacity);
+  }
+
+  /**
+   * Returns the array that holds the data, which is valid for the first {@link #size()} bytes
+   * until the next write or reset.
+   */
+  public synchronized byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Appends the remaining bytes of the source, like a record of a memory-mapped file, without an
+   * intermediate array.
+   */
+  public synchronized void write(ByteBuffer source) {
+    int length = source.remaining();
+    if (count + length > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+    }
+    source.get(buf, count, length);
+    count += length;
+  }
+}
@@ -0,0 +1,16 @@
+package io.nextsense.android.base.communication.upload;
+
+/**
+ * Sends the serialized data samples of the {@link io.nextsense.android.base.data.Uploader} to the
+ * cloud. Implementations need to support being called from several threads at the same time.
+ */
+public interface UploadTransport {
+
+  /**
+   * Uploads the first {@code length} bytes of {@code data}, which is a serialized
+   * {@code DataSamples} proto. The array can be reused by the caller once this returns.
+   *
+   * @return true if the server acknowledged the data, false otherwise.
+   */
+  boolean uploadDataSamples(byte[] data, int length);
+}
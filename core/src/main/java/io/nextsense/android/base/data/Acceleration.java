@@ -211,6 +211,24 @@ public class Acceleration extends BaseRecord implements TimestampedDataSample {
     }
   }
 
+  /**
+   * Returns the value of the channel, or null if it is not part of this sample. Unlike
+   * {@link #getChannels()}, this does not allocate.
+   */
+  public @Nullable Integer getValue(Channels channel) {
+    return switch (channel) {
+      case ACC_X -> x;
+      case ACC_Y -> y;
+      case ACC_Z -> z;
+      case ACC_R_X -> rightX;
+      case ACC_R_Y -> rightY;
+      case ACC_R_Z -> rightZ;
+      case ACC_L_X -> leftX;
+      case ACC_L_Y -> leftY;
+      case ACC_L_Z -> leftZ;
+    };
+  }
+
   public Map<Channels, Integer> getChannels() {
     Map<Channels, Integer> channels = Map.of();
     switch (getDeviceLocation()) {
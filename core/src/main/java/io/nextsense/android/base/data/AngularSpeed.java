@@ -204,6 +204,24 @@ public class AngularSpeed extends BaseRecord implements TimestampedDataSample {
     }
   }
 
+  /**
+   * Returns the value of the channel, or null if it is not part of this sample. Unlike
+   * {@link #getChannels()}, this does not allocate.
+   */
+  public @Nullable Integer getValue(Channels channel) {
+    return switch (channel) {
+      case GYRO_X -> x;
+      case GYRO_Y -> y;
+      case GYRO_Z -> z;
+      case GYRO_R_X -> rightX;
+      case GYRO_R_Y -> rightY;
+      case GYRO_R_Z -> rightZ;
+      case GYRO_L_X -> leftX;
+      case GYRO_L_Y -> leftY;
+      case GYRO_L_Z -> leftZ;
+    };
+  }
+
   public Map<AngularSpeed.Channels, Integer> getChannels() {
     return switch (getDeviceLocation()) {
       case BOX, CASE, UNKNOWN -> Map.of(
@@ -0,0 +1,121 @@
+package io.nextsense.android.base.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the channels of a device or session to dense indexes, computed once so that the consumers
+ * of {@link Samples} can keep their per-channel state in arrays instead of looking up maps keyed by
+ * channel names or boxed channel numbers for each sample.
+ *
+ * EEG channels are identified by their number, as in the keys of {@link EegSample#getEegSamples()},
+ * and IMU channels by their {@link Acceleration.Channels} or {@link AngularSpeed.Channels} value.
+ * Channels keep the order of the lists they were created from.
+ *
+ * This class is immutable.
+ */
+public final class ChannelLayout {
+
+  // Returned when a channel is not part of the layout.
+  public static final int NO_INDEX = -1;
+
+  private static final Acceleration.Channels[] ACCELERATION_CHANNELS =
+      Acceleration.Channels.values();
+  private static final AngularSpeed.Channels[] ANGULAR_SPEED_CHANNELS =
+      AngularSpeed.Channels.values();
+
+  private final String[] eegChannelNames;
+  // Channel number of each EEG index, NO_INDEX if the name is not a number.
+  private final int[] eegChannelNumbers;
+  // EEG index of each channel number.
+  private final int[] eegIndexes;
+  private final String[] imuChannelNames;
+  // IMU index of each Acceleration.Channels and AngularSpeed.Channels, by ordinal.
+  private final int[] accelerationIndexes;
+  private final int[] angularSpeedIndexes;
+
+  private ChannelLayout(List<String> eegChannelNames, List<String> imuChannelNames) {
+    this.eegChannelNames = eegChannelNames.toArray(new String[0]);
+    eegChannelNumbers = new int[this.eegChannelNames.length];
+    int maxChannelNumber = -1;
+    for (int i = 0; i < eegChannelNumbers.length; ++i) {
+      eegChannelNumbers[i] = parseChannelNumber(this.eegChannelNames[i]);
+      maxChannelNumber = Math.max(maxChannelNumber, eegChannelNumbers[i]);
+    }
+    eegIndexes = new int[maxChannelNumber + 1];
+    Arrays.fill(eegIndexes, NO_INDEX);
+    for (int i = 0; i < eegChannelNumbers.length; ++i) {
+      if (eegChannelNumbers[i] != NO_INDEX) {
+        eegIndexes[eegChannelNumbers[i]] = i;
+      }
+    }
+
+    this.imuChannelNames = imuChannelNames.toArray(new String[0]);
+    accelerationIndexes = new int[ACCELERATION_CHANNELS.length];
+    Arrays.fill(accelerationIndexes, NO_INDEX);
+    angularSpeedIndexes = new int[ANGULAR_SPEED_CHANNELS.length];
+    Arrays.fill(angularSpeedIndexes, NO_INDEX);
+    for (int i = 0; i < this.imuChannelNames.length; ++i) {
+      for (Acceleration.Channels channel : ACCELERATION_CHANNELS) {
+        if (channel.getName().equals(this.imuChannelNames[i])) {
+          accelerationIndexes[channel.ordinal()] = i;
+        }
+      }
+      for (AngularSpeed.Channels channel : ANGULAR_SPEED_CHANNELS) {
+        if (channel.getName().equals(this.imuChannelNames[i])) {
+          angularSpeedIndexes[channel.ordinal()] = i;
+        }
+      }
+    }
+  }
+
+  public static ChannelLayout create(List<String> eegChannelNames, List<String> imuChannelNames) {
+    return new ChannelLayout(eegChannelNames, imuChannelNames);
+  }
+
+  public int getEegChannelCount() {
+    return eegChannelNames.length;
+  }
+
+  public String getEegChannelName(int index) {
+    return eegChannelNames[index];
+  }
+
+  /**
+   * Returns the channel number of the EEG index, or {@link #NO_INDEX} if the channel name is not a
+   * number, in which case the channel never receives samples.
+   */
+  public int getEegChannelNumber(int index) {
+    return eegChannelNumbers[index];
+  }
+
+  public int getEegIndex(int channelNumber) {
+    return channelNumber >= 0 && channelNumber < eegIndexes.length ?
+        eegIndexes[channelNumber] : NO_INDEX;
+  }
+
+  public int getImuChannelCount() {
+    return imuChannelNames.length;
+  }
+
+  public String getImuChannelName(int index) {
+    return imuChannelNames[index];
+  }
+
+  public int getImuIndex(Acceleration.Channels channel) {
+    return accelerationIndexes[channel.ordinal()];
+  }
+
+  public int getImuIndex(AngularSpeed.Channels channel) {
+    return angularSpeedIndexes[channel.ordinal()];
+  }
+
+  private static int parseChannelNumber(String channelName) {
+    try {
+      int channelNumber = Integer.parseInt(channelName);
+      return channelNumber >= 0 ? channelNumber : NO_INDEX;
+    } catch (NumberFormatException e) {
+      return NO_INDEX;
+    }
+  }
+}
@@ -0,0 +1,571 @@
+package io.nextsense.android.base.data;
+
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the DataSamples message of data_samples.proto from primitive arrays, without the builders
+ * of the generated classes.
+ *
+ * The samples of each modality are added to a {@link ModalityColumns}, where each channel keeps its
+ * values in a float array. The sizes of the nested messages are computed first, then everything is
+ * written with a {@link CodedOutputStream} into a byte array that is kept from one message to the
+ * next, so a chunk of data costs no allocation per sample. The fields are written in field number
+ * order, like the generated classes do, so the bytes are the same as with the builders.
+ *
+ * This class and the columns are not thread-safe, they are meant to be reused by the thread that
+ * serializes the chunks.
+ */
+public class DataSamplesWriter {
+
+  // DataSamples fields.
+  private static final int DATA_SESSION_ID_FIELD = 1;
+  private static final int USER_ID_FIELD = 2;
+  private static final int MODALITY_DATA_SAMPLES_FIELD = 3;
+  private static final int DEVICE_INTERNAL_STATES_FIELD = 4;
+  // ModalityDataSamples fields.
+  private static final int MODALITY_FIELD = 3;
+  private static final int SAMPLING_RATE_FIELD = 4;
+  private static final int EXPECTED_START_TIMESTAMP_FIELD = 5;
+  private static final int EXPECTED_SAMPLES_COUNT_FIELD = 6;
+  private static final int SAMPLING_TIMESTAMP_FIELD = 7;
+  private static final int CHANNEL_FIELD = 8;
+  // Sync, trig out, trig in, z mod, marker and button follow each other.
+  private static final int FIRST_FLAG_FIELD = 9;
+  private static final int EARBUDS_CONFIG_FIELD = 15;
+  private static final int IMPLICIT_SAMPLING_TIMESTAMP_FIELD = 16;
+  // Channel fields.
+  private static final int NAME_FIELD = 1;
+  private static final int SAMPLE_FIELD = 2;
+  private static final int SCALE_FIELD = 3;
+  private static final int RAW_DELTA_FIELD = 4;
+  // ImplicitTimestamps fields.
+  private static final int START_FIELD = 1;
+  private static final int PERIOD_NANOS_FIELD = 2;
+  private static final int COUNT_FIELD = 3;
+  private static final int EXCEPTION_INDEX_FIELD = 4;
+  private static final int EXCEPTION_OFFSET_NANOS_FIELD = 5;
+  // Timestamp fields.
+  private static final int SECONDS_FIELD = 1;
+  private static final int NANOS_FIELD = 2;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  /**
+   * Values of one channel in a chunk.
+   */
+  static final class ChannelColumn {
+    private final String name;
+    private float[] samples = new float[0];
+    private int samplesCount;
+    private int[] rawDeltas = new int[0];
+    private boolean raw;
+    private float scale;
+    private int serializedSize;
+
+    private ChannelColumn(String name) {
+      this.name = name;
+    }
+
+    void addSample(float value) {
+      if (samplesCount == samples.length) {
+        samples = Arrays.copyOf(samples, Math.max(16, samplesCount * 2));
+      }
+      samples[samplesCount++] = value;
+    }
+
+    /**
+     * Replaces the samples by their raw counts when they can all be recovered exactly.
+     */
+    void encodeRawCounts(RawEegCounts rawEegCounts) {
+      if (rawDeltas.length < samplesCount) {
+        rawDeltas = new int[samples.length];
+      }
+      raw = rawEegCounts.encodeDeltas(samples, samplesCount, rawDeltas);
+      scale = raw ? rawEegCounts.getScale() : 0;
+    }
+
+    private void clear() {
+      samplesCount = 0;
+      raw = false;
+      scale = 0;
+    }
+  }
+
+  /**
+   * Samples of one modality in a chunk, written as a ModalityDataSamples message. It is reused for
+   * each chunk after {@link #clear()}.
+   */
+  public static final class ModalityColumns {
+    static final int SYNC = 0;
+    static final int TRIG_OUT = 1;
+    static final int TRIG_IN = 2;
+    static final int Z_MOD = 3;
+    static final int MARKER = 4;
+    static final int BUTTON = 5;
+    private static final int FLAGS = 6;
+
+    // Names of the channels by index, the index is the name when there is none.
+    private final String[] channelNames;
+    private ChannelColumn[] channels = new ChannelColumn[0];
+    private final boolean[][] flags = new boolean[FLAGS][0];
+    private final int[] flagsCounts = new int[FLAGS];
+    private long[] timestampsNanos = new long[0];
+    private int timestampsCount;
+    private boolean empty = true;
+    private int modality;
+    private int samplingRate;
+    private String earbudsConfig = "";
+    private boolean hasExpectedStart;
+    private long expectedStartNanos;
+    private int expectedSamplesCount;
+    @Nullable
+    private ImplicitTimestamps implicitTimestamps;
+    private int serializedSize;
+
+    /**
+     * @param channelNames names of the channels by index, like the IMU axes. Channels without a
+     *     name are named by their index, like EEG channels.
+     */
+    public ModalityColumns(String[] channelNames) {
+      this.channelNames = channelNames;
+    }
+
+    /**
+     * Starts a new chunk of the modality, given as a Modality enum number.
+     */
+    public void clear(int modality) {
+      for (ChannelColumn channel : channels) {
+        if (channel != null) {
+          channel.clear();
+        }
+      }
+      Arrays.fill(flagsCounts, 0);
+      timestampsCount = 0;
+      empty = true;
+      this.modality = modality;
+      samplingRate = 0;
+      earbudsConfig = "";
+      hasExpectedStart = false;
+      expectedSamplesCount = 0;
+      implicitTimestamps = null;
+    }
+
+    public void setSamplingRate(int samplingRate) {
+      this.samplingRate = samplingRate;
+    }
+
+    public void setEarbudsConfig(String earbudsConfig) {
+      this.earbudsConfig = earbudsConfig;
+    }
+
+    public void setExpectedStartNanos(long expectedStartNanos) {
+      this.expectedStartNanos = expectedStartNanos;
+      hasExpectedStart = true;
+    }
+
+    public void setExpectedSamplesCount(int expectedSamplesCount) {
+      this.expectedSamplesCount = expectedSamplesCount;
+    }
+
+    /**
+     * Adds the sampling timestamp of the next sample, in nanoseconds since the epoch. Adding a
+     * sample is what makes the modality written with its fields instead of empty.
+     */
+    public void addTimestamp(long epochNanos) {
+      if (timestampsCount == timestampsNanos.length) {
+        timestampsNanos = Arrays.copyOf(timestampsNanos, Math.max(16, timestampsCount * 2));
+      }
+      timestampsNanos[timestampsCount++] = epochNanos;
+      empty = false;
+    }
+
+    public void addSample(int channelIndex, float value) {
+      getChannel(channelIndex).addSample(value);
+    }
+
+    public void addFlag(int flag, boolean value) {
+      int count = flagsCounts[flag];
+      if (count == flags[flag].length) {
+        flags[flag] = Arrays.copyOf(flags[flag], Math.max(16, count * 2));
+      }
+      flags[flag][count] = value;
+      flagsCounts[flag] = count + 1;
+    }
+
+    /**
+     * Sorts and deduplicates the sampling timestamps, see
+     * {@link ImplicitTimestamps#sortAndDeduplicate(long[], int, long)}.
+     */
+    public void deduplicateTimestamps(long minTimeDifferenceMs) {
+      timestampsCount = ImplicitTimestamps.sortAndDeduplicate(
+          timestampsNanos, timestampsCount, minTimeDifferenceMs);
+    }
+
+    /**
+     * Writes the sampling timestamps as an ImplicitTimestamps message instead of one Timestamp per
+     * sample.
+     */
+    public void encodeImplicitTimestamps(long periodNanos) {
+      implicitTimestamps = ImplicitTimestamps.encode(timestampsNanos, timestampsCount, periodNanos);
+    }
+
+    /**
+     * Writes each channel as raw counts when it can, see {@link RawEegCounts}.
+     */
+    public void encodeRawCounts(RawEegCounts rawEegCounts) {
+      for (ChannelColumn channel : channels) {
+        if (channel != null && channel.samplesCount > 0) {
+          channel.encodeRawCounts(rawEegCounts);
+        }
+      }
+    }
+
+    // The channel columns are kept from one chunk to the next, with their name and arrays.
+    private ChannelColumn getChannel(int channelIndex) {
+      if (channelIndex >= channels.length) {
+        channels = Arrays.copyOf(channels, channelIndex + 1);
+      }
+      ChannelColumn channel = channels[channelIndex];
+      if (channel == null) {
+        channel = new ChannelColumn(channelIndex < channelNames.length ?
+            channelNames[channelIndex] : String.valueOf(channelIndex));
+        channels[channelIndex] = channel;
+      }
+      return channel;
+    }
+  }
+
+  private byte[] buffer = new byte[0];
+  private int size;
+
+  /**
+   * Writes a DataSamples message, replacing the previous one.
+   *
+   * @param dataSessionId not written if null.
+   * @param userId not written if null.
+   * @param modalities written in this order in modality_data_samples.
+   * @param deviceInternalStates DeviceInternalState messages, written as they are.
+   */
+  public void write(@Nullable String dataSessionId, @Nullable String userId,
+                    List<ModalityColumns> modalities,
+                    List<? extends MessageLite> deviceInternalStates) {
+    int totalSize = 0;
+    if (dataSessionId != null && !dataSessionId.isEmpty()) {
+      totalSize += CodedOutputStream.computeStringSize(DATA_SESSION_ID_FIELD, dataSessionId);
+    }
+    if (userId != null && !userId.isEmpty()) {
+      totalSize += CodedOutputStream.computeStringSize(USER_ID_FIELD, userId);
+    }
+    for (ModalityColumns modality : modalities) {
+      modality.serializedSize = computeModalitySize(modality);
+      totalSize += computeLengthDelimitedSize(MODALITY_DATA_SAMPLES_FIELD, modality.serializedSize);
+    }
+    for (MessageLite deviceInternalState : deviceInternalStates) {
+      totalSize += CodedOutputStream.computeMessageSize(
+          DEVICE_INTERNAL_STATES_FIELD, deviceInternalState);
+    }
+    if (buffer.length < totalSize) {
+      buffer = new byte[Math.max(totalSize, buffer.length * 2)];
+    }
+    CodedOutputStream output = CodedOutputStream.newInstance(buffer, 0, totalSize);
+    try {
+      if (dataSessionId != null && !dataSessionId.isEmpty()) {
+        output.writeString(DATA_SESSION_ID_FIELD, dataSessionId);
+      }
+      if (userId != null && !userId.isEmpty()) {
+        output.writeString(USER_ID_FIELD, userId);
+      }
+      for (ModalityColumns modality : modalities) {
+        output.writeTag(MODALITY_DATA_SAMPLES_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(modality.serializedSize);
+        writeModality(output, modality);
+      }
+      for (MessageLite deviceInternalState : deviceInternalStates) {
+        output.writeMessage(DEVICE_INTERNAL_STATES_FIELD, deviceInternalState);
+      }
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // The array is sized for the message, so this would be a bug in the size computation.
+      throw new IllegalStateException("Failed to write the data samples.", e);
+    }
+    size = totalSize;
+  }
+
+  /**
+   * Returns the array that holds the last message, which is valid for the first {@link #size()}
+   * bytes until the next write.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the size of the data_session_id and user_id fields at the start of a message written
+   * by {@link #write}. Messages of the same session can be concatenated into a single one by
+   * skipping that many bytes of all of them except the first, as the other fields are repeated.
+   *
+   * @param message from its position to its limit, which are not changed.
+   */
+  public static int getSessionHeaderSize(ByteBuffer message) {
+    CodedInputStream input = CodedInputStream.newInstance(message.duplicate());
+    int headerSize = 0;
+    try {
+      while (!input.isAtEnd()) {
+        int tag = input.readTag();
+        int field = WireFormat.getTagFieldNumber(tag);
+        if (field != DATA_SESSION_ID_FIELD && field != USER_ID_FIELD) {
+          break;
+        }
+        input.skipField(tag);
+        headerSize = input.getTotalBytesRead();
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid data samples message.", e);
+    }
+    return headerSize;
+  }
+
+  private static int computeLengthDelimitedSize(int field, int length) {
+    return CodedOutputStream.computeTagSize(field) +
+        CodedOutputStream.computeUInt32SizeNoTag(length) + length;
+  }
+
+  private static int computeTimestampSize(long epochNanos) {
+    long seconds = epochNanos / NANOS_PER_SECOND;
+    int nanos = (int) (epochNanos % NANOS_PER_SECOND);
+    return (seconds != 0 ? CodedOutputStream.computeInt64Size(SECONDS_FIELD, seconds) : 0) +
+        (nanos != 0 ? CodedOutputStream.computeInt32Size(NANOS_FIELD, nanos) : 0);
+  }
+
+  private static int computeTimestampFieldSize(int field, long epochNanos) {
+    return computeLengthDelimitedSize(field, computeTimestampSize(epochNanos));
+  }
+
+  private static void writeTimestampField(CodedOutputStream output, int field, long epochNanos)
+      throws IOException {
+    output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(computeTimestampSize(epochNanos));
+    long seconds = epochNanos / NANOS_PER_SECOND;
+    int nanos = (int) (epochNanos % NANOS_PER_SECOND);
+    if (seconds != 0) {
+      output.writeInt64(SECONDS_FIELD, seconds);
+    }
+    if (nanos != 0) {
+      output.writeInt32(NANOS_FIELD, nanos);
+    }
+  }
+
+  // Like the generated code, fields with the default value are not written.
+  private static int computeModalitySize(ModalityColumns modality) {
+    if (modality.empty) {
+      return 0;
+    }
+    int size = 0;
+    if (modality.modality != 0) {
+      size += CodedOutputStream.computeEnumSize(MODALITY_FIELD, modality.modality);
+    }
+    if (modality.samplingRate != 0) {
+      size += CodedOutputStream.computeInt32Size(SAMPLING_RATE_FIELD, modality.samplingRate);
+    }
+    if (modality.hasExpectedStart) {
+      size += computeTimestampFieldSize(
+          EXPECTED_START_TIMESTAMP_FIELD, modality.expectedStartNanos);
+    }
+    if (modality.expectedSamplesCount != 0) {
+      size += CodedOutputStream.computeInt32Size(
+          EXPECTED_SAMPLES_COUNT_FIELD, modality.expectedSamplesCount);
+    }
+    if (modality.implicitTimestamps == null) {
+      for (int i = 0; i < modality.timestampsCount; ++i) {
+        size += computeTimestampFieldSize(SAMPLING_TIMESTAMP_FIELD, modality.timestampsNanos[i]);
+      }
+    }
+    for (ChannelColumn channel : modality.channels) {
+      if (channel != null && channel.samplesCount > 0) {
+        channel.serializedSize = computeChannelSize(channel);
+        size += computeLengthDelimitedSize(CHANNEL_FIELD, channel.serializedSize);
+      }
+    }
+    for (int flag = 0; flag < ModalityColumns.FLAGS; ++flag) {
+      if (modality.flagsCounts[flag] > 0) {
+        size += computeLengthDelimitedSize(FIRST_FLAG_FIELD + flag, modality.flagsCounts[flag]);
+      }
+    }
+    if (!modality.earbudsConfig.isEmpty()) {
+      size += CodedOutputStream.computeStringSize(EARBUDS_CONFIG_FIELD, modality.earbudsConfig);
+    }
+    if (modality.implicitTimestamps != null) {
+      size += computeLengthDelimitedSize(IMPLICIT_SAMPLING_TIMESTAMP_FIELD,
+          computeImplicitTimestampsSize(modality.implicitTimestamps));
+    }
+    return size;
+  }
+
+  private static void writeModality(CodedOutputStream output, ModalityColumns modality)
+      throws IOException {
+    if (modality.empty) {
+      return;
+    }
+    if (modality.modality != 0) {
+      output.writeEnum(MODALITY_FIELD, modality.modality);
+    }
+    if (modality.samplingRate != 0) {
+      output.writeInt32(SAMPLING_RATE_FIELD, modality.samplingRate);
+    }
+    if (modality.hasExpectedStart) {
+      writeTimestampField(output, EXPECTED_START_TIMESTAMP_FIELD, modality.expectedStartNanos);
+    }
+    if (modality.expectedSamplesCount != 0) {
+      output.writeInt32(EXPECTED_SAMPLES_COUNT_FIELD, modality.expectedSamplesCount);
+    }
+    if (modality.implicitTimestamps == null) {
+      for (int i = 0; i < modality.timestampsCount; ++i) {
+        writeTimestampField(output, SAMPLING_TIMESTAMP_FIELD, modality.timestampsNanos[i]);
+      }
+    }
+    for (ChannelColumn channel : modality.channels) {
+      if (channel != null && channel.samplesCount > 0) {
+        output.writeTag(CHANNEL_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(channel.serializedSize);
+        writeChannel(output, channel);
+      }
+    }
+    for (int flag = 0; flag < ModalityColumns.FLAGS; ++flag) {
+      int count = modality.flagsCounts[flag];
+      if (count > 0) {
+        output.writeTag(FIRST_FLAG_FIELD + flag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(count);
+        boolean[] values = modality.flags[flag];
+        for (int i = 0; i < count; ++i) {
+          output.writeBoolNoTag(values[i]);
+        }
+      }
+    }
+    if (!modality.earbudsConfig.isEmpty()) {
+      output.writeString(EARBUDS_CONFIG_FIELD, modality.earbudsConfig);
+    }
+    if (modality.implicitTimestamps != null) {
+      writeImplicitTimestamps(output, modality.implicitTimestamps);
+    }
+  }
+
+  private static int computeRawDeltasSize(ChannelColumn channel) {
+    int size = 0;
+    for (int i = 0; i < channel.samplesCount; ++i) {
+      size += CodedOutputStream.computeSInt32SizeNoTag(channel.rawDeltas[i]);
+    }
+    return size;
+  }
+
+  private static int computeChannelSize(ChannelColumn channel) {
+    int size = channel.name.isEmpty() ? 0 :
+        CodedOutputStream.computeStringSize(NAME_FIELD, channel.name);
+    if (channel.raw) {
+      size += computeLengthDelimitedSize(RAW_DELTA_FIELD, computeRawDeltasSize(channel));
+    } else {
+      size += computeLengthDelimitedSize(SAMPLE_FIELD, channel.samplesCount * Float.BYTES);
+    }
+    if (Float.floatToRawIntBits(channel.scale) != 0) {
+      size += CodedOutputStream.computeFloatSize(SCALE_FIELD, channel.scale);
+    }
+    return size;
+  }
+
+  private static void writeChannel(CodedOutputStream output, ChannelColumn channel)
+      throws IOException {
+    if (!channel.name.isEmpty()) {
+      output.writeString(NAME_FIELD, channel.name);
+    }
+    if (!channel.raw) {
+      output.writeTag(SAMPLE_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(channel.samplesCount * Float.BYTES);
+      for (int i = 0; i < channel.samplesCount; ++i) {
+        output.writeFloatNoTag(channel.samples[i]);
+      }
+    }
+    if (Float.floatToRawIntBits(channel.scale) != 0) {
+      output.writeFloat(SCALE_FIELD, channel.scale);
+    }
+    if (channel.raw) {
+      output.writeTag(RAW_DELTA_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(computeRawDeltasSize(channel));
+      for (int i = 0; i < channel.samplesCount; ++i) {
+        output.writeSInt32NoTag(channel.rawDeltas[i]);
+      }
+    }
+  }
+
+  private static int computeImplicitTimestampsSize(ImplicitTimestamps implicitTimestamps) {
+    int size = computeTimestampFieldSize(START_FIELD, implicitTimestamps.getStartNanos());
+    if (implicitTimestamps.getPeriodNanos() != 0) {
+      size += CodedOutputStream.computeInt64Size(
+          PERIOD_NANOS_FIELD, implicitTimestamps.getPeriodNanos());
+    }
+    if (implicitTimestamps.getCount() != 0) {
+      size += CodedOutputStream.computeInt32Size(COUNT_FIELD, implicitTimestamps.getCount());
+    }
+    if (implicitTimestamps.getExceptionCount() > 0) {
+      size += computeLengthDelimitedSize(
+          EXCEPTION_INDEX_FIELD, computeExceptionIndexesSize(implicitTimestamps));
+      size += computeLengthDelimitedSize(
+          EXCEPTION_OFFSET_NANOS_FIELD, computeExceptionOffsetsSize(implicitTimestamps));
+    }
+    return size;
+  }
+
+  private static int computeExceptionIndexesSize(ImplicitTimestamps implicitTimestamps) {
+    int size = 0;
+    for (int i = 0; i < implicitTimestamps.getExceptionCount(); ++i) {
+      size += CodedOutputStream.computeInt32SizeNoTag(implicitTimestamps.getExceptionIndex(i));
+    }
+    return size;
+  }
+
+  private static int computeExceptionOffsetsSize(ImplicitTimestamps implicitTimestamps) {
+    int size = 0;
+    for (int i = 0; i < implicitTimestamps.getExceptionCount(); ++i) {
+      size += CodedOutputStream.computeSInt64SizeNoTag(
+          implicitTimestamps.getExceptionOffsetNanos(i));
+    }
+    return size;
+  }
+
+  private static void writeImplicitTimestamps(
+      CodedOutputStream output, ImplicitTimestamps implicitTimestamps) throws IOException {
+    output.writeTag(IMPLICIT_SAMPLING_TIMESTAMP_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(computeImplicitTimestampsSize(implicitTimestamps));
+    writeTimestampField(output, START_FIELD, implicitTimestamps.getStartNanos());
+    if (implicitTimestamps.getPeriodNanos() != 0) {
+      output.writeInt64(PERIOD_NANOS_FIELD, implicitTimestamps.getPeriodNanos());
+    }
+    if (implicitTimestamps.getCount() != 0) {
+      output.writeInt32(COUNT_FIELD, implicitTimestamps.getCount());
+    }
+    int exceptionCount = implicitTimestamps.getExceptionCount();
+    if (exceptionCount > 0) {
+      output.writeTag(EXCEPTION_INDEX_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(computeExceptionIndexesSize(implicitTimestamps));
+      for (int i = 0; i < exceptionCount; ++i) {
+        output.writeInt32NoTag(implicitTimestamps.getExceptionIndex(i));
+      }
+      output.writeTag(EXCEPTION_OFFSET_NANOS_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(computeExceptionOffsetsSize(implicitTimestamps));
+      for (int i = 0; i < exceptionCount; ++i) {
+        output.writeSInt64NoTag(implicitTimestamps.getExceptionOffsetNanos(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,391 @@
+package io.nextsense.android.base.data;
+
+import androidx.annotation.Nullable;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import io.nextsense.android.base.db.objectbox.Converters;
+import io.nextsense.android.base.devices.SampleFlags;
+import io.objectbox.annotation.Convert;
+import io.objectbox.annotation.Entity;
+import io.objectbox.annotation.Index;
+import io.objectbox.relation.ToOne;
+
+/**
+ * Consecutive EEG samples of a session stored column-wise in a single record, usually the samples
+ * of one packet.
+ *
+ * Values are packed by channel, and sampling timestamps are stored as the timestamp of the first
+ * sample and a sampling period, with explicit offsets only when the samples are not evenly spaced.
+ * Samples are numbered in the session so that a range of samples can be found without reading the
+ * blocks before it.
+ *
+ * A session stores its EEG data either as blocks or as {@link EegSample} records, see
+ * {@link LocalSession#isEegBlocks()}. Blocks can be read back as {@link EegSample} objects for the
+ * code that works with individual samples.
+ */
+@Entity
+public class EegBlock extends BaseRecord {
+  // Flags in the order of their bit in the flags of a sample. The same bit shifted by
+  // FLAG_PRESENT_SHIFT is set when the flag has a value.
+  private static final int FLAG_SYNC = 0;
+  private static final int FLAG_TRIG_OUT = 1;
+  private static final int FLAG_TRIG_IN = 2;
+  private static final int FLAG_Z_MOD = 3;
+  private static final int FLAG_MARKER = 4;
+  private static final int FLAG_BUTTON = 5;
+  private static final int FLAG_HDMI_PRESENT = 6;
+  private static final int FLAG_PRESENT_SHIFT = 8;
+
+  public ToOne<LocalSession> localSession;
+
+  // Index in the session of the first sample of the block.
+  @Index
+  private long firstSampleIndex;
+  // Index in the session after the last sample of the block.
+  private long endSampleIndex;
+  private boolean absoluteTimestamps;
+  // Sampling timestamp of the first and last samples, in milliseconds since the epoch when
+  // absoluteTimestamps is true, or relative device timestamps otherwise.
+  @Index
+  private long startTimestamp;
+  private long endTimestamp;
+  private float samplePeriodMillis;
+  // Offset of each sample from startTimestamp, only when they are not evenly spaced.
+  @Nullable
+  private int[] timestampOffsets;
+  // When the Android application received the packet of the first sample.
+  @Convert(converter = Converters.InstantConverter.class, dbType = Long.class)
+  private Instant receptionTimestamp;
+  private int[] channelNumbers;
+  // Values of each channel in the order of channelNumbers, one channel after the other. Channels
+  // that are missing in a sample have a NaN value.
+  private float[] values;
+  // Flags of each sample, null if no sample had flags.
+  @Nullable
+  private int[] flags;
+
+  private EegBlock(long localSessionId, long firstSampleIndex, List<EegSample> eegSamples) {
+    this.localSession = new ToOne<>(this, EegBlock_.localSession);
+    this.localSession.setTargetId(localSessionId);
+    int sampleCount = eegSamples.size();
+    this.firstSampleIndex = firstSampleIndex;
+    this.endSampleIndex = firstSampleIndex + sampleCount;
+    EegSample firstSample = eegSamples.get(0);
+    this.absoluteTimestamps = firstSample.isSamplingTimestampAbsolute();
+    this.receptionTimestamp = firstSample.getReceptionTimestamp();
+    setTimestamps(eegSamples);
+
+    TreeSet<Integer> channels = new TreeSet<>();
+    for (EegSample eegSample : eegSamples) {
+      channels.addAll(eegSample.getEegSamples().keySet());
+    }
+    this.channelNumbers = new int[channels.size()];
+    int channelIndex = 0;
+    for (int channelNumber : channels) {
+      channelNumbers[channelIndex++] = channelNumber;
+    }
+    this.values = new float[channelNumbers.length * sampleCount];
+    for (int i = 0; i < sampleCount; ++i) {
+      HashMap<Integer, Float> eegData = eegSamples.get(i).getEegSamples();
+      for (int c = 0; c < channelNumbers.length; ++c) {
+        Float value = eegData.get(channelNumbers[c]);
+        values[c * sampleCount + i] = value != null ? value : Float.NaN;
+      }
+    }
+
+    int[] sampleFlags = new int[sampleCount];
+    boolean hasFlags = false;
+    for (int i = 0; i < sampleCount; ++i) {
+      sampleFlags[i] = encodeFlags(eegSamples.get(i));
+      hasFlags |= sampleFlags[i] != 0;
+    }
+    this.flags = hasFlags ? sampleFlags : null;
+  }
+
+  /**
+   * Creates a block from consecutive samples of a session.
+   *
+   * @param firstSampleIndex index of the first sample in the session, the next block should start
+   *     at {@link #getEndSampleIndex()}.
+   */
+  public static EegBlock create(long localSessionId, long firstSampleIndex,
+                                List<EegSample> eegSamples) {
+    if (eegSamples.isEmpty()) {
+      throw new IllegalArgumentException("eegSamples needs to contain at least 1 element");
+    }
+    boolean absoluteTimestamps = eegSamples.get(0).isSamplingTimestampAbsolute();
+    for (EegSample eegSample : eegSamples) {
+      if (eegSample.isSamplingTimestampAbsolute() != absoluteTimestamps) {
+        throw new IllegalArgumentException(
+            "All the samples need to have the same type of sampling timestamp");
+      }
+    }
+    return new EegBlock(localSessionId, firstSampleIndex, eegSamples);
+  }
+
+  // Needs to be public for ObjectBox performance.
+  public EegBlock(
+      long id, long localSessionId, long firstSampleIndex, long endSampleIndex,
+      boolean absoluteTimestamps, long startTimestamp, long endTimestamp, float samplePeriodMillis,
+      @Nullable int[] timestampOffsets, Instant receptionTimestamp, int[] channelNumbers,
+      float[] values, @Nullable int[] flags) {
+    super(id);
+    this.localSession = new ToOne<>(this, EegBlock_.localSession);
+    this.localSession.setTargetId(localSessionId);
+    this.firstSampleIndex = firstSampleIndex;
+    this.endSampleIndex = endSampleIndex;
+    this.absoluteTimestamps = absoluteTimestamps;
+    this.startTimestamp = startTimestamp;
+    this.endTimestamp = endTimestamp;
+    this.samplePeriodMillis = samplePeriodMillis;
+    this.timestampOffsets = timestampOffsets;
+    this.receptionTimestamp = receptionTimestamp;
+    this.channelNumbers = channelNumbers;
+    this.values = values;
+    this.flags = flags;
+  }
+
+  public EegBlock() {}
+
+  private void setTimestamps(List<EegSample> eegSamples) {
+    int sampleCount = eegSamples.size();
+    startTimestamp = getSamplingTimestamp(eegSamples.get(0));
+    endTimestamp = getSamplingTimestamp(eegSamples.get(sampleCount - 1));
+    samplePeriodMillis = sampleCount > 1 ? (float) (endTimestamp - startTimestamp) /
+        (sampleCount - 1) : 0;
+    int[] offsets = new int[sampleCount];
+    boolean evenlySpaced = true;
+    for (int i = 0; i < sampleCount; ++i) {
+      offsets[i] = (int) (getSamplingTimestamp(eegSamples.get(i)) - startTimestamp);
+      evenlySpaced &= offsets[i] == Math.round(i * samplePeriodMillis);
+    }
+    timestampOffsets = evenlySpaced ? null : offsets;
+  }
+
+  private long getSamplingTimestamp(EegSample eegSample) {
+    return absoluteTimestamps ? eegSample.getAbsoluteSamplingTimestamp().toEpochMilli() :
+        eegSample.getRelativeSamplingTimestamp();
+  }
+
+  private static int encodeFlags(EegSample eegSample) {
+    return encodeFlag(eegSample.getSync(), FLAG_SYNC) |
+        encodeFlag(eegSample.getTrigOut(), FLAG_TRIG_OUT) |
+        encodeFlag(eegSample.getTrigIn(), FLAG_TRIG_IN) |
+        encodeFlag(eegSample.getZMod(), FLAG_Z_MOD) |
+        encodeFlag(eegSample.getMarker(), FLAG_MARKER) |
+        encodeFlag(eegSample.getButton(), FLAG_BUTTON) |
+        encodeFlag(eegSample.getHdmiPresent(), FLAG_HDMI_PRESENT);
+  }
+
+  private static int encodeFlag(@Nullable Boolean flag, int bit) {
+    if (flag == null) {
+      return 0;
+    }
+    return (1 << (bit + FLAG_PRESENT_SHIFT)) | (flag ? 1 << bit : 0);
+  }
+
+  public long getFirstSampleIndex() {
+    return firstSampleIndex;
+  }
+
+  public long getEndSampleIndex() {
+    return endSampleIndex;
+  }
+
+  public int getSampleCount() {
+    return (int) (endSampleIndex - firstSampleIndex);
+  }
+
+  public boolean isAbsoluteTimestamps() {
+    return absoluteTimestamps;
+  }
+
+  public long getStartTimestamp() {
+    return startTimestamp;
+  }
+
+  public long getEndTimestamp() {
+    return endTimestamp;
+  }
+
+  public float getSamplePeriodMillis() {
+    return samplePeriodMillis;
+  }
+
+  @Nullable
+  public int[] getTimestampOffsets() {
+    return timestampOffsets;
+  }
+
+  public Instant getReceptionTimestamp() {
+    return receptionTimestamp;
+  }
+
+  public int[] getChannelNumbers() {
+    return channelNumbers;
+  }
+
+  public float[] getValues() {
+    return values;
+  }
+
+  @Nullable
+  public int[] getFlags() {
+    return flags;
+  }
+
+  /**
+   * Returns the sampling timestamp of a sample of the block, with the same origin as
+   * {@link #getStartTimestamp()}.
+   */
+  public long getSamplingTimestamp(int sampleOffset) {
+    return startTimestamp + (timestampOffsets != null ? timestampOffsets[sampleOffset] :
+        Math.round(sampleOffset * samplePeriodMillis));
+  }
+
+  /**
+   * Returns the session sample index of the first sample of the block whose sampling timestamp is
+   * not before the timestamp, or the end sample index if there is none.
+   */
+  public long getSampleIndex(long samplingTimestamp) {
+    // Sampling timestamps are increasing within a block.
+    int low = 0;
+    int high = getSampleCount();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (getSamplingTimestamp(middle) < samplingTimestamp) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return firstSampleIndex + low;
+  }
+
+  /**
+   * Returns the number of samples of the block that are between the session sample indexes.
+   *
+   * @param fromSampleIndex inclusive.
+   * @param toSampleIndex exclusive.
+   */
+  public int getSampleCount(long fromSampleIndex, long toSampleIndex) {
+    return (int) Math.max(0,
+        Math.min(endSampleIndex, toSampleIndex) - Math.max(firstSampleIndex, fromSampleIndex));
+  }
+
+  /**
+   * Copies the values of a channel for the samples of the block that are between the session
+   * sample indexes to the array. Values are NaN for samples that do not have the channel.
+   *
+   * @param fromSampleIndex inclusive.
+   * @param toSampleIndex exclusive.
+   * @return the number of values copied.
+   */
+  public int copyChannelValues(int channelNumber, long fromSampleIndex, long toSampleIndex,
+                               float[] destination, int destinationPosition) {
+    int count = getSampleCount(fromSampleIndex, toSampleIndex);
+    if (count == 0) {
+      return 0;
+    }
+    int from = (int) (Math.max(firstSampleIndex, fromSampleIndex) - firstSampleIndex);
+    for (int c = 0; c < channelNumbers.length; ++c) {
+      if (channelNumbers[c] == channelNumber) {
+        System.arraycopy(values, c * getSampleCount() + from, destination, destinationPosition,
+            count);
+        return count;
+      }
+    }
+    Arrays.fill(destination, destinationPosition, destinationPosition + count, Float.NaN);
+    return count;
+  }
+
+  /**
+   * Adds the samples of the block that are between the session sample indexes to the list, as
+   * {@link EegSample} objects that are not stored in the database.
+   *
+   * @param fromSampleIndex inclusive.
+   * @param toSampleIndex exclusive.
+   */
+  public void addEegSamples(long fromSampleIndex, long toSampleIndex, List<EegSample> eegSamples) {
+    int sampleCount = getSampleCount();
+    int from = (int) Math.max(0, fromSampleIndex - firstSampleIndex);
+    int to = (int) Math.min(sampleCount, Math.max(0, toSampleIndex - firstSampleIndex));
+    for (int i = from; i < to; ++i) {
+      HashMap<Integer, Float> eegData = new HashMap<>();
+      for (int c = 0; c < channelNumbers.length; ++c) {
+        float value = values[c * sampleCount + i];
+        if (!Float.isNaN(value)) {
+          eegData.put(channelNumbers[c], value);
+        }
+      }
+      long samplingTimestamp = getSamplingTimestamp(i);
+      eegSamples.add(EegSample.create(localSession.getTargetId(), eegData, receptionTimestamp,
+          absoluteTimestamps ? null : (int) samplingTimestamp,
+          absoluteTimestamps ? Instant.ofEpochMilli(samplingTimestamp) : null,
+          flags != null ? new BlockSampleFlags(flags[i]) : null));
+    }
+  }
+
+  private static class BlockSampleFlags implements SampleFlags {
+    private final int flags;
+
+    BlockSampleFlags(int flags) {
+      this.flags = flags;
+    }
+
+    @Nullable
+    private Boolean getFlag(int bit) {
+      if ((flags & (1 << (bit + FLAG_PRESENT_SHIFT))) == 0) {
+        return null;
+      }
+      return (flags & (1 << bit)) != 0;
+    }
+
+    @Nullable
+    @Override
+    public Boolean isSync() {
+      return getFlag(FLAG_SYNC);
+    }
+
+    @Nullable
+    @Override
+    public Boolean isTrigOut() {
+      return getFlag(FLAG_TRIG_OUT);
+    }
+
+    @Nullable
+    @Override
+    public Boolean isTrigIn() {
+      return getFlag(FLAG_TRIG_IN);
+    }
+
+    @Nullable
+    @Override
+    public Boolean isButton() {
+      return getFlag(FLAG_BUTTON);
+    }
+
+    @Nullable
+    @Override
+    public Boolean isHdmiPresent() {
+      return getFlag(FLAG_HDMI_PRESENT);
+    }
+
+    @Nullable
+    @Override
+    public Boolean iszMod() {
+      return getFlag(FLAG_Z_MOD);
+    }
+
+    @Nullable
+    @Override
+    public Boolean isMarker() {
+      return getFlag(FLAG_MARKER);
+    }
+  }
+}
@@ -24,7 +24,7 @@ public class EegSample extends BaseRecord implements TimestampedDataSample {
   public ToOne<LocalSession> localSession;
 
   // Key is the channel number, value is the voltage im microVolts.
-  @Convert(converter = Converters.SerializableConverter.class, dbType = byte[].class)
+  @Convert(converter = Converters.EegChannelsConverter.class, dbType = byte[].class)
   private HashMap<Integer, Float> eegSamples;
   // When the Android application received the packet from the device.
   @Convert(converter = Converters.InstantConverter.class, dbType = Long.class)
@@ -0,0 +1,143 @@
+package io.nextsense.android.base.data;
+
+import java.util.Arrays;
+
+/**
+ * Sampling timestamps of regularly sampled data, stored as the first timestamp, the nominal period
+ * and the exceptions where a timestamp is not one period after the previous one, after a gap or
+ * with jitter. A chunk without gaps has no exceptions, however many samples it has.
+ *
+ * The timestamps are in nanoseconds since the epoch. They are uploaded as the ImplicitTimestamps
+ * message of data_samples.proto, and {@link #decode()} is how they are read back.
+ */
+public class ImplicitTimestamps {
+
+  private static final int INITIAL_EXCEPTIONS_CAPACITY = 8;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+  private static final long NANOS_PER_MILLI = 1_000_000L;
+
+  private final long startNanos;
+  private final long periodNanos;
+  private final int count;
+  private int[] exceptionIndexes = new int[INITIAL_EXCEPTIONS_CAPACITY];
+  private long[] exceptionOffsetsNanos = new long[INITIAL_EXCEPTIONS_CAPACITY];
+  private int exceptionCount = 0;
+
+  private ImplicitTimestamps(long startNanos, long periodNanos, int count) {
+    this.startNanos = startNanos;
+    this.periodNanos = periodNanos;
+    this.count = count;
+  }
+
+  /**
+   * Encodes the first length timestamps, which need to be sorted, in one pass.
+   */
+  public static ImplicitTimestamps encode(long[] epochNanos, int length, long periodNanos) {
+    ImplicitTimestamps implicitTimestamps = new ImplicitTimestamps(
+        length > 0 ? epochNanos[0] : 0, periodNanos, length);
+    long expectedNanos = implicitTimestamps.startNanos;
+    for (int i = 1; i < length; ++i) {
+      expectedNanos += periodNanos;
+      if (epochNanos[i] != expectedNanos) {
+        implicitTimestamps.addException(i, epochNanos[i] - expectedNanos);
+        expectedNanos = epochNanos[i];
+      }
+    }
+    return implicitTimestamps;
+  }
+
+  /**
+   * Sorts the first length timestamps and removes the ones that are closer than
+   * minTimeDifferenceMs to the previous one, without removing two in a row, as the same sample
+   * time can come from both earbuds. Sorting is skipped when they are already sorted.
+   *
+   * @return the number of timestamps left at the start of epochNanos
+   */
+  public static int sortAndDeduplicate(long[] epochNanos, int length, long minTimeDifferenceMs) {
+    boolean sorted = true;
+    for (int i = 1; i < length && sorted; ++i) {
+      sorted = epochNanos[i - 1] <= epochNanos[i];
+    }
+    if (!sorted) {
+      Arrays.sort(epochNanos, 0, length);
+    }
+    if (length == 0) {
+      return 0;
+    }
+    int kept = 1;
+    boolean skippedLast = false;
+    long previousNanos = epochNanos[0];
+    for (int i = 1; i < length; ++i) {
+      long currentNanos = epochNanos[i];
+      // The seconds and nanos differences are taken separately, like with the Timestamp fields.
+      long diffMs = Math.abs(currentNanos / NANOS_PER_SECOND - previousNanos / NANOS_PER_SECOND) *
+          1000 + Math.abs(currentNanos % NANOS_PER_SECOND - previousNanos % NANOS_PER_SECOND) /
+          NANOS_PER_MILLI;
+      previousNanos = currentNanos;
+      if (skippedLast) {
+        skippedLast = false;
+      } else if (diffMs < minTimeDifferenceMs) {
+        skippedLast = true;
+        continue;
+      }
+      epochNanos[kept++] = currentNanos;
+    }
+    return kept;
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  public long getPeriodNanos() {
+    return periodNanos;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public int getExceptionCount() {
+    return exceptionCount;
+  }
+
+  // Index of the timestamp of the exception, increasing with the exceptions.
+  public int getExceptionIndex(int exception) {
+    return exceptionIndexes[exception];
+  }
+
+  // Difference between the timestamp of the exception and one period after the previous one.
+  public long getExceptionOffsetNanos(int exception) {
+    return exceptionOffsetsNanos[exception];
+  }
+
+  /**
+   * Returns the timestamps that were encoded.
+   */
+  public long[] decode() {
+    long[] epochNanos = new long[count];
+    int exception = 0;
+    long timestampNanos = startNanos;
+    for (int i = 0; i < count; ++i) {
+      if (i > 0) {
+        timestampNanos += periodNanos;
+      }
+      if (exception < exceptionCount && exceptionIndexes[exception] == i) {
+        timestampNanos += exceptionOffsetsNanos[exception];
+        ++exception;
+      }
+      epochNanos[i] = timestampNanos;
+    }
+    return epochNanos;
+  }
+
+  private void addException(int index, long offsetNanos) {
+    if (exceptionCount == exceptionIndexes.length) {
+      exceptionIndexes = Arrays.copyOf(exceptionIndexes, exceptionCount * 2);
+      exceptionOffsetsNanos = Arrays.copyOf(exceptionOffsetsNanos, exceptionCount * 2);
+    }
+    exceptionIndexes[exceptionCount] = index;
+    exceptionOffsetsNanos[exceptionCount] = offsetNanos;
+    ++exceptionCount;
+  }
+}
@@ -75,6 +75,13 @@ public class LocalSession extends BaseRecord {
   @Nullable
   @Convert(converter = Converters.InstantConverter.class, dbType = Long.class)
   private Instant endTime;
+  // If the EEG data is stored as EegBlock records instead of EegSample records. Set when the
+  // session is created and never changed, so that a session does not mix both.
+  private boolean eegBlocks;
+  // Id of the last EegSample and Acceleration records that were uploaded, 0 if none were uploaded
+  // or if the session was uploaded before they were tracked.
+  private long lastUploadedEegSampleId;
+  private long lastUploadedAccelerationId;
 
   private LocalSession(@Nullable String userBigTableKey, @Nullable String cloudDataSessionId,
                        @Nullable String earbudsConfig, Status status, boolean uploadNeeded,
@@ -117,12 +124,14 @@ public class LocalSession extends BaseRecord {
       @Nullable String userBigTableKey, @Nullable String cloudDataSessionId,
       @Nullable String earbudsConfig, boolean uploadNeeded, boolean receivedData,
       float eegSampleRate, float accelerationSampleRate, Instant startTime) {
-    return new LocalSession(userBigTableKey, cloudDataSessionId, earbudsConfig, Status.RECORDING,
-        uploadNeeded, receivedData, /*firstRelativeTimestamp=*/ 0L, /*recordsUploaded=*/0, /*eegSamplesUploadedUntilRelative=*/0L, startTime,
+    LocalSession localSession = new LocalSession(userBigTableKey, cloudDataSessionId, earbudsConfig,
+        Status.RECORDING, uploadNeeded, receivedData, /*firstRelativeTimestamp=*/ 0L, /*recordsUploaded=*/0, /*eegSamplesUploadedUntilRelative=*/0L, startTime,
         /*eegSamplesDeleted=*/0L, /*eegSamplesDeletedUntilRelative=*/0L, startTime, eegSampleRate,
         /*accelerationsUploaded=*/0, /*accelerationsUploadedUntilRelative=*/0, startTime,
         /*accelerationsDeleted=*/0L, /*accelerationsDeletedUntilRelative=*/0L, startTime, accelerationSampleRate,
         /*deviceInternalStateUploaded=*/0, /*deviceInternalStateUploadedUntil=*/0, startTime, /*endTime=*/null);
+    localSession.setEegBlocks(true);
+    return localSession;
   }
 
   // Need to be public for ObjectBox performance.
@@ -384,6 +393,30 @@ public class LocalSession extends BaseRecord {
     this.endTime = endTime;
   }
 
+  public boolean isEegBlocks() {
+    return eegBlocks;
+  }
+
+  public void setEegBlocks(boolean eegBlocks) {
+    this.eegBlocks = eegBlocks;
+  }
+
+  public long getLastUploadedEegSampleId() {
+    return lastUploadedEegSampleId;
+  }
+
+  public void setLastUploadedEegSampleId(long lastUploadedEegSampleId) {
+    this.lastUploadedEegSampleId = lastUploadedEegSampleId;
+  }
+
+  public long getLastUploadedAccelerationId() {
+    return lastUploadedAccelerationId;
+  }
+
+  public void setLastUploadedAccelerationId(long lastUploadedAccelerationId) {
+    this.lastUploadedAccelerationId = lastUploadedAccelerationId;
+  }
+
   public static class StatusConverter implements PropertyConverter<Status, Integer> {
     @Override
     public LocalSession.Status convertToEntityProperty(Integer databaseValue) {
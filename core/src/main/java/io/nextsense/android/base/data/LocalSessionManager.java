@@ -4,6 +4,8 @@ import androidx.annotation.Nullable;
 
 import com.google.common.collect.Sets;
 
+import org.greenrobot.eventbus.EventBus;
+
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -14,6 +16,8 @@ import java.util.Optional;
 import java.util.Set;
 
 import io.nextsense.android.base.db.CsvSink;
+import io.nextsense.android.base.db.StoragePolicyEvent;
+import io.nextsense.android.base.db.StorageQuotaManager;
 import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 
@@ -29,6 +33,12 @@ public class LocalSessionManager {
     void onFirstDataReceived();
   }
 
+  // Interface to listen to when the active session is about to be stopped, to save the data of the
+  // session that is not saved yet.
+  public interface OnSessionStoppingListener {
+    void onSessionStopping();
+  }
+
   // There can be a delay between the time to send a stop command to the hardware device and that
   // device stopping plus the remaining of the in-memory buffer emptying where valid data will be
   // received after a session is stopped.
@@ -43,6 +53,8 @@ public class LocalSessionManager {
   private Instant lastActiveSessionEnd;
   private final Set<OnFirstDataReceivedListener> onFirstDataReceivedListeners =
       Sets.newConcurrentHashSet();
+  private final Set<OnSessionStoppingListener> onSessionStoppingListeners =
+      Sets.newConcurrentHashSet();
   private final DateTimeFormatter csvFileNameFormatter = DateTimeFormatter
       .ofPattern("yyyy-MM-dd_hh-mm-ss")
       .withZone(ZoneId.systemDefault());
@@ -95,6 +107,14 @@ public class LocalSessionManager {
       RotatingFileLogger.get().logw(TAG, "Trying to start a session, but one is already active.");
       return -1;
     }
+    StoragePolicyEvent storagePolicyEvent =
+        EventBus.getDefault().getStickyEvent(StoragePolicyEvent.class);
+    if (storagePolicyEvent != null &&
+        storagePolicyEvent.isAtLeast(StorageQuotaManager.Policy.REFUSE_NEW_SESSIONS)) {
+      RotatingFileLogger.get().logw(TAG, "Trying to start a session, but storage is low: " +
+          storagePolicyEvent);
+      return -1;
+    }
     activeLocalSession = LocalSession.create(userBigTableKey, cloudDataSessionId, earbudsConfig,
         uploadNeeded, /*receivedData=*/false, eegSampleRate, accelerationSampleRate, Instant.now());
     long sessionId = objectBoxDatabase.putLocalSession(activeLocalSession);
@@ -129,6 +149,7 @@ public class LocalSessionManager {
       RotatingFileLogger.get().logw(TAG, "Trying to stop the active session, but none is active.");
       return;
     }
+    onSessionStoppingListeners.forEach(OnSessionStoppingListener::onSessionStopping);
     objectBoxDatabase.runInTx(() -> {
       // There must be an active session at this point so no need to check.
       Optional<LocalSession> activeLocalSessionOptional = objectBoxDatabase.getActiveSession();
@@ -194,4 +215,12 @@ public class LocalSessionManager {
   public synchronized void removeOnFirstDataReceivedListener(OnFirstDataReceivedListener listener) {
     onFirstDataReceivedListeners.remove(listener);
   }
+
+  public void addOnSessionStoppingListener(OnSessionStoppingListener listener) {
+    onSessionStoppingListeners.add(listener);
+  }
+
+  public void removeOnSessionStoppingListener(OnSessionStoppingListener listener) {
+    onSessionStoppingListeners.remove(listener);
+  }
 }
@@ -0,0 +1,115 @@
+package io.nextsense.android.base.data;
+
+import androidx.annotation.Nullable;
+
+import java.util.Optional;
+
+import io.nextsense.android.base.devices.maui.MauiDataParser;
+import io.nextsense.android.base.devices.maui.MauiDevice;
+import io.nextsense.android.base.devices.xenon.XenonDataParser;
+
+/**
+ * Recovers the raw ADC counts of EEG samples from their values in microvolts, for the devices
+ * where the conversion to microvolts is known, so that they can be uploaded as small integer
+ * deltas instead of floats.
+ *
+ * The counts are only used when converting them again gives back exactly the same floats, so the
+ * encoding is lossless. Otherwise the floats need to be uploaded as they are.
+ */
+public class RawEegCounts {
+
+  // Converts a signed ADC count to microvolts, like the device data parser does.
+  interface CountConverter {
+    float toMicroVolts(int count);
+  }
+
+  private static final String XENON_B_CONFIG = "xenon_b_config";
+  private static final String XENON_P02_CONFIG = "xenon_p02_config";
+  private static final int MAUI_ADC_BITS = 22;
+  private static final int XENON_ADC_BITS = 24;
+
+  private final CountConverter countConverter;
+  private final int minCount;
+  private final int maxCount;
+  private final double scale;
+
+  RawEegCounts(CountConverter countConverter, int adcBits) {
+    this.countConverter = countConverter;
+    this.minCount = -(1 << (adcBits - 1));
+    this.maxCount = (1 << (adcBits - 1)) - 1;
+    // Taken at full scale where the float rounding of the conversion matters the least.
+    this.scale = countConverter.toMicroVolts(maxCount) / (double) maxCount;
+  }
+
+  /**
+   * Returns the raw counts of the device used with this earbuds config, empty if they can't be
+   * recovered from the microvolts.
+   */
+  public static Optional<RawEegCounts> forEarbudsConfig(@Nullable String earbudsConfig) {
+    if (earbudsConfig == null) {
+      return Optional.empty();
+    }
+    switch (earbudsConfig) {
+      case MauiDevice.EARBUD_CONFIG:
+        // The parser takes the 22 bits two's complement value.
+        return Optional.of(new RawEegCounts(count -> MauiDataParser.convertToMicroVolts(
+            count >= 0 ? count : count + (1 << MAUI_ADC_BITS)), MAUI_ADC_BITS));
+      case XENON_B_CONFIG:
+      case XENON_P02_CONFIG:
+        return Optional.of(
+            new RawEegCounts(XenonDataParser::convertToMicroVolts, XENON_ADC_BITS));
+      default:
+        return Optional.empty();
+    }
+  }
+
+  /**
+   * Returns the microvolts per ADC count.
+   */
+  public float getScale() {
+    return (float) scale;
+  }
+
+  /**
+   * Writes the differences between the consecutive counts of the first length microVolts values in
+   * deltas, the first one being the first count.
+   *
+   * @return false if a value is not the conversion of a count, in which case deltas is not valid
+   */
+  public boolean encodeDeltas(float[] microVolts, int length, int[] deltas) {
+    int previousCount = 0;
+    for (int i = 0; i < length; ++i) {
+      int count = toCount(microVolts[i]);
+      if (count < minCount || count > maxCount) {
+        return false;
+      }
+      deltas[i] = count - previousCount;
+      previousCount = count;
+    }
+    return true;
+  }
+
+  // Returns the count that converts to exactly that value, minCount - 1 if there is none.
+  private int toCount(float microVolts) {
+    double estimate = microVolts / scale;
+    if (Double.isNaN(estimate) || estimate < minCount - 1 || estimate > maxCount + 1) {
+      return minCount - 1;
+    }
+    int count = (int) Math.round(estimate);
+    // The scale is not exact, so the estimate can be off by one near full scale.
+    if (convertsTo(count, microVolts)) {
+      return count;
+    }
+    if (convertsTo(count - 1, microVolts)) {
+      return count - 1;
+    }
+    if (convertsTo(count + 1, microVolts)) {
+      return count + 1;
+    }
+    return minCount - 1;
+  }
+
+  private boolean convertsTo(int count, float microVolts) {
+    return Float.compare(countConverter.toMicroVolts(count), microVolts) == 0;
+  }
+}
@@ -0,0 +1,170 @@
+package io.nextsense.android.base.data;
+
+import androidx.annotation.Nullable;
+
+import java.time.Instant;
+
+import io.objectbox.annotation.Entity;
+import io.objectbox.annotation.Transient;
+import io.objectbox.annotation.Unique;
+
+/**
+ * Number of records of each type that were added to and deleted from the database for a session,
+ * so that the number of records it currently has can be known without counting them.
+ *
+ * Updated by {@link io.nextsense.android.base.db.objectbox.ObjectBoxDatabase} in the transactions
+ * that add and delete the records, and checked against the records from time to time in case they
+ * drifted, for example if a transaction failed after the counts were changed in memory.
+ */
+@Entity
+public class SessionRecordCounts extends BaseRecord {
+
+  @Unique
+  private long localSessionId;
+  // EEG samples are counted individually for sessions that store them as EegBlock records.
+  private long eegSamplesAdded;
+  private long eegSamplesDeleted;
+  private long accelerationsAdded;
+  private long accelerationsDeleted;
+  private long angularSpeedsAdded;
+  private long angularSpeedsDeleted;
+  // Device internal states are never deleted during a session.
+  private long deviceInternalStatesAdded;
+  // When the counts were last checked against the records, null if never checked since loaded.
+  @Transient
+  @Nullable
+  private Instant checkedAt;
+
+  private SessionRecordCounts(long localSessionId) {
+    this.localSessionId = localSessionId;
+  }
+
+  public static SessionRecordCounts create(long localSessionId) {
+    return new SessionRecordCounts(localSessionId);
+  }
+
+  // Needs to be public for ObjectBox performance.
+  public SessionRecordCounts(
+      long id, long localSessionId, long eegSamplesAdded, long eegSamplesDeleted,
+      long accelerationsAdded, long accelerationsDeleted, long angularSpeedsAdded,
+      long angularSpeedsDeleted, long deviceInternalStatesAdded) {
+    super(id);
+    this.localSessionId = localSessionId;
+    this.eegSamplesAdded = eegSamplesAdded;
+    this.eegSamplesDeleted = eegSamplesDeleted;
+    this.accelerationsAdded = accelerationsAdded;
+    this.accelerationsDeleted = accelerationsDeleted;
+    this.angularSpeedsAdded = angularSpeedsAdded;
+    this.angularSpeedsDeleted = angularSpeedsDeleted;
+    this.deviceInternalStatesAdded = deviceInternalStatesAdded;
+  }
+
+  public SessionRecordCounts() {}
+
+  public long getLocalSessionId() {
+    return localSessionId;
+  }
+
+  public long getEegSamplesAdded() {
+    return eegSamplesAdded;
+  }
+
+  public long getEegSamplesDeleted() {
+    return eegSamplesDeleted;
+  }
+
+  public long getAccelerationsAdded() {
+    return accelerationsAdded;
+  }
+
+  public long getAccelerationsDeleted() {
+    return accelerationsDeleted;
+  }
+
+  public long getAngularSpeedsAdded() {
+    return angularSpeedsAdded;
+  }
+
+  public long getAngularSpeedsDeleted() {
+    return angularSpeedsDeleted;
+  }
+
+  public long getDeviceInternalStatesAdded() {
+    return deviceInternalStatesAdded;
+  }
+
+  public long getEegSampleCount() {
+    return eegSamplesAdded - eegSamplesDeleted;
+  }
+
+  public long getAccelerationCount() {
+    return accelerationsAdded - accelerationsDeleted;
+  }
+
+  public long getAngularSpeedCount() {
+    return angularSpeedsAdded - angularSpeedsDeleted;
+  }
+
+  public long getDeviceInternalStateCount() {
+    return deviceInternalStatesAdded;
+  }
+
+  public void addEegSamples(long count) {
+    eegSamplesAdded += count;
+  }
+
+  public void deleteEegSamples(long count) {
+    eegSamplesDeleted += count;
+  }
+
+  public void addAccelerations(long count) {
+    accelerationsAdded += count;
+  }
+
+  public void deleteAccelerations(long count) {
+    accelerationsDeleted += count;
+  }
+
+  public void addAngularSpeeds(long count) {
+    angularSpeedsAdded += count;
+  }
+
+  public void deleteAngularSpeeds(long count) {
+    angularSpeedsDeleted += count;
+  }
+
+  public void addDeviceInternalStates(long count) {
+    deviceInternalStatesAdded += count;
+  }
+
+  @Nullable
+  public Instant getCheckedAt() {
+    return checkedAt;
+  }
+
+  /**
+   * Corrects the added counts so that the counts match the number of records in the database, and
+   * marks the counts as checked.
+   *
+   * @return true if the counts did not match.
+   */
+  public boolean check(long eegSampleCount, long accelerationCount, long angularSpeedCount,
+                       long deviceInternalStateCount, Instant now) {
+    boolean drifted = eegSampleCount != getEegSampleCount() ||
+        accelerationCount != getAccelerationCount() || angularSpeedCount != getAngularSpeedCount() ||
+        deviceInternalStateCount != getDeviceInternalStateCount();
+    eegSamplesAdded = eegSamplesDeleted + eegSampleCount;
+    accelerationsAdded = accelerationsDeleted + accelerationCount;
+    angularSpeedsAdded = angularSpeedsDeleted + angularSpeedCount;
+    deviceInternalStatesAdded = deviceInternalStateCount;
+    checkedAt = now;
+    return drifted;
+  }
+
+  @Override
+  public String toString() {
+    return "SessionRecordCounts{localSessionId=" + localSessionId + ", eegSamples=" +
+        getEegSampleCount() + ", accelerations=" + getAccelerationCount() + ", angularSpeeds=" +
+        getAngularSpeedCount() + ", deviceInternalStates=" + getDeviceInternalStateCount() + "}";
+  }
+}
@@ -0,0 +1,159 @@
+package io.nextsense.android.base.data;
+
+import java.time.Duration;
+
+/**
+ * Decides how many chunks of data the {@link Uploader} packs in one upload request.
+ *
+ * Each request costs a round trip on top of the time to send its bytes, so when there is a backlog
+ * it is faster to send many chunks per request. The duration of the uploads is modeled as
+ * {@code roundTripTime + bytes / bandwidth}, fitted on the recent uploads, and requests are sized
+ * so that sending their bytes takes {@link #TARGET_ROUND_TRIP_MULTIPLE} times as long as the round
+ * trip. Until there are enough uploads of different sizes to fit the model, the number of chunks
+ * doubles after each successful upload. It is halved when an upload fails or takes too long, and
+ * it is never more than fits in the maximum request size.
+ */
+public class UploadBatchSizer {
+
+  // Sending the bytes takes 4 times as long as the round trip, so the round trips cost at most 20%
+  // of the upload time.
+  private static final double TARGET_ROUND_TRIP_MULTIPLE = 4;
+  // Weight of the previous uploads in the model, about the last 10 uploads count.
+  private static final double DECAY = 0.9;
+  // The sizes of the uploads need to vary by at least that much to fit the model.
+  private static final double MIN_SIZE_VARIATION = 0.1;
+  // Weight of the last chunk in the average chunk size.
+  private static final double CHUNK_SIZE_WEIGHT = 0.2;
+  // Default maximum request size, under the 10MB limit of callable functions once Base64 encoded.
+  private static final int DEFAULT_MAX_REQUEST_BYTES = 4 * 1024 * 1024;
+  // The callable function times out after 10 seconds.
+  private static final Duration DEFAULT_MAX_REQUEST_DURATION = Duration.ofSeconds(5);
+
+  private final int maxChunksPerRequest;
+  private final int maxRequestBytes;
+  private final Duration maxRequestDuration;
+  private int chunksPerRequest = 1;
+  private double averageChunkBytes;
+  // Exponentially decayed sums of the request sizes in bytes (x) and durations in ms (y).
+  private double weight;
+  private double sumX;
+  private double sumY;
+  private double sumXX;
+  private double sumXY;
+  private double roundTripTimeMs;
+  private double bytesPerMs;
+
+  UploadBatchSizer(int maxChunksPerRequest, int maxRequestBytes, Duration maxRequestDuration) {
+    this.maxChunksPerRequest = maxChunksPerRequest;
+    this.maxRequestBytes = maxRequestBytes;
+    this.maxRequestDuration = maxRequestDuration;
+  }
+
+  public static UploadBatchSizer create(int maxChunksPerRequest) {
+    return new UploadBatchSizer(maxChunksPerRequest, DEFAULT_MAX_REQUEST_BYTES,
+        DEFAULT_MAX_REQUEST_DURATION);
+  }
+
+  /**
+   * Returns how many chunks to pack in the next request, if that many are available.
+   */
+  public synchronized int getChunksPerRequest() {
+    return Math.min(chunksPerRequest, getMaxChunksForSize());
+  }
+
+  public int getMaxRequestBytes() {
+    return maxRequestBytes;
+  }
+
+  // Round trip time of the model, 0 until it could be fitted.
+  public synchronized Duration getRoundTripTime() {
+    return Duration.ofMillis(Math.round(roundTripTimeMs));
+  }
+
+  // Bandwidth of the model in bytes per second, 0 until it could be fitted.
+  public synchronized long getBandwidth() {
+    return Math.round(bytesPerMs * 1000);
+  }
+
+  /**
+   * Adapts the number of chunks per request to a successful upload of a request.
+   */
+  public synchronized void onUploaded(int chunks, int requestBytes, Duration duration) {
+    if (chunks <= 0) {
+      return;
+    }
+    double chunkBytes = (double) requestBytes / chunks;
+    averageChunkBytes = averageChunkBytes == 0 ? chunkBytes :
+        averageChunkBytes + CHUNK_SIZE_WEIGHT * (chunkBytes - averageChunkBytes);
+    if (duration.compareTo(maxRequestDuration) > 0) {
+      chunksPerRequest = Math.max(1, chunks / 2);
+      return;
+    }
+    // Only requests that were as big as they could be tell how much bigger they could get.
+    boolean fullRequest = chunks >= getChunksPerRequest();
+    addToModel(requestBytes, duration.toMillis());
+    if (!fitModel()) {
+      if (fullRequest) {
+        chunksPerRequest = Math.min(chunks * 2, maxChunksPerRequest);
+      }
+      return;
+    }
+    long targetChunks = Math.max(1, Math.round(
+        TARGET_ROUND_TRIP_MULTIPLE * roundTripTimeMs * bytesPerMs / averageChunkBytes));
+    if (targetChunks > chunksPerRequest && !fullRequest) {
+      return;
+    }
+    // Move towards the target at most by a factor of 2 at a time, as the model can be noisy.
+    chunksPerRequest = (int) Math.max(Math.max(1, chunksPerRequest / 2),
+        Math.min(targetChunks, Math.min((long) chunksPerRequest * 2, maxChunksPerRequest)));
+  }
+
+  /**
+   * Makes the next requests smaller after one failed, in case it was too big to get through.
+   */
+  public synchronized void onUploadFailed(int chunks) {
+    chunksPerRequest = Math.max(1, Math.min(chunksPerRequest, chunks) / 2);
+  }
+
+  private int getMaxChunksForSize() {
+    if (averageChunkBytes == 0) {
+      return maxChunksPerRequest;
+    }
+    return (int) Math.max(1, Math.min(maxChunksPerRequest, maxRequestBytes / averageChunkBytes));
+  }
+
+  private void addToModel(double bytes, double durationMs) {
+    weight = weight * DECAY + 1;
+    sumX = sumX * DECAY + bytes;
+    sumY = sumY * DECAY + durationMs;
+    sumXX = sumXX * DECAY + bytes * bytes;
+    sumXY = sumXY * DECAY + bytes * durationMs;
+  }
+
+  // Fits the round trip time and the bandwidth on the recent uploads. Returns false if they cannot
+  // be told apart yet.
+  private boolean fitModel() {
+    double meanX = sumX / weight;
+    double varianceX = sumXX / weight - meanX * meanX;
+    if (weight < 2 || varianceX <= 0 ||
+        Math.sqrt(varianceX) < MIN_SIZE_VARIATION * meanX) {
+      return false;
+    }
+    double slope = (sumXY / weight - meanX * sumY / weight) / varianceX;
+    double intercept = sumY / weight - slope * meanX;
+    if (slope <= 0) {
+      // Bigger requests were not slower, the round trip is all that counts.
+      return false;
+    }
+    bytesPerMs = 1 / slope;
+    roundTripTimeMs = Math.max(0, intercept);
+    return true;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "UploadBatchSizer{chunksPerRequest=" + chunksPerRequest + ", averageChunkBytes=" +
+        Math.round(averageChunkBytes) + ", roundTripTime=" + Math.round(roundTripTimeMs) +
+        "ms, bandwidth=" + getBandwidth() + "B/s}";
+  }
+}
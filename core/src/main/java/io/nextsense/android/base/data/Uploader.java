@@ -12,17 +12,22 @@ import androidx.annotation.Nullable;
 import com.google.protobuf.Timestamp;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,8 +39,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
 
 import io.nextsense.android.ApplicationType;
 import io.nextsense.android.base.DataSamplesProto;
@@ -43,7 +48,12 @@ import io.nextsense.android.base.DataSamplesProto.ModalityDataSamples.Modality;
 import io.nextsense.android.base.SessionProto;
 import io.nextsense.android.base.communication.firebase.CloudFunctions;
 import io.nextsense.android.base.communication.internet.Connectivity;
+import io.nextsense.android.base.communication.upload.FallbackUploadTransport;
+import io.nextsense.android.base.communication.upload.UploadBuffer;
+import io.nextsense.android.base.communication.upload.UploadTransport;
 import io.nextsense.android.base.db.DatabaseSink;
+import io.nextsense.android.base.db.RetentionWorker;
+import io.nextsense.android.base.db.UploadOutbox;
 import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.objectbox.android.AndroidScheduler;
@@ -57,23 +67,94 @@ import io.objectbox.reactive.DataSubscription;
 public class Uploader {
   private static final String TAG = Uploader.class.getSimpleName();
   private static final Duration UPLOAD_SAFETY_MARGIN = Duration.ofSeconds(10);
+  private static final Acceleration.Channels[] ACCELERATION_CHANNELS =
+      Acceleration.Channels.values();
+  private static final AngularSpeed.Channels[] ANGULAR_SPEED_CHANNELS =
+      AngularSpeed.Channels.values();
+  // Enough to keep a mobile connection busy with 1 second chunks while catching up.
+  private static final int DEFAULT_MAX_UPLOADS_IN_FLIGHT = 4;
+  // 5 minutes of data when catching up with 1 second chunks.
+  private static final int MAX_CHUNKS_PER_REQUEST = 300;
+  // About 1 second of EEG and IMU data.
+  private static final int UPLOAD_BUFFER_INITIAL_CAPACITY = 32 * 1024;
+  private static final String OUTBOX_DIRECTORY = "upload_outbox";
+
+  // Chunk of data that was serialized in the outbox, with what it adds to the upload progress of
+  // its local session.
+  private static class UploadChunk {
+    final int eegSamplesCount;
+    final int accelerationsCount;
+    final int deviceInternalStatesCount;
+    final EegSample lastEegSample;
+    final long lastEegSampleId;
+    final long lastAccelerationId;
+
+    UploadChunk(int eegSamplesCount, int accelerationsCount, int deviceInternalStatesCount,
+                EegSample lastEegSample, long lastEegSampleId, long lastAccelerationId) {
+      this.eegSamplesCount = eegSamplesCount;
+      this.accelerationsCount = accelerationsCount;
+      this.deviceInternalStatesCount = deviceInternalStatesCount;
+      this.lastEegSample = lastEegSample;
+      this.lastEegSampleId = lastEegSampleId;
+      this.lastAccelerationId = lastAccelerationId;
+    }
+  }
+
+  // One or more outbox records of the same local session uploaded together. Each record is a
+  // complete serialized data samples message, so that it can be uploaded alone. In a request, the
+  // session header of the records after the first is skipped and the rest is concatenated, which
+  // the server parses as a single message with the user and session ids once and the modality data
+  // samples of each chunk following each other, so that it can split them again.
+  private static class UploadRequest {
+    final List<UploadOutbox.Entry> entries;
+    final int bytes;
+    Future<Boolean> upload;
+
+    UploadRequest(List<UploadOutbox.Entry> entries, int bytes) {
+      this.entries = entries;
+      this.bytes = bytes;
+    }
+  }
 
-  // Should be 1 second of data to be simple to import in BigTable.
+  // Should be 1 second of data to be simple to import in BigTable. When the upload is behind,
+  // several chunks are packed in a request and the server splits them again.
   private final Duration uploadChunkSize;
   private final Context context;
   private final ApplicationType applicationType;
   private final ObjectBoxDatabase objectBoxDatabase;
   private final DatabaseSink databaseSink;
   private final CloudFunctions firebaseFunctions;
+  // Buffer of each upload thread to read the requests into.
+  private final ThreadLocal<UploadBuffer> uploadBuffers =
+      ThreadLocal.withInitial(() -> new UploadBuffer(UPLOAD_BUFFER_INITIAL_CAPACITY));
+  // Serializes the chunks, with the columns of each modality. Only used by the executor thread.
+  private final DataSamplesWriter dataSamplesWriter = new DataSamplesWriter();
+  private final Map<Modality, DataSamplesWriter.ModalityColumns> modalityColumns =
+      new EnumMap<>(Modality.class);
+  private volatile UploadTransport uploadTransport;
   private final Connectivity connectivity;
+  // Serialized chunks waiting to be uploaded, kept on disk until the server acknowledges them.
+  private final UploadOutbox uploadOutbox;
+  // Deletes the records that were uploaded and are older than minDurationToKeep.
+  private final RetentionWorker retentionWorker;
+  // Decides how many chunks are packed in each request.
+  private final UploadBatchSizer uploadBatchSizer;
   private final AtomicBoolean running = new AtomicBoolean(false);
   // Minimum retention time for records, used to match timestamps in database.
   private final Duration minDurationToKeep;
   private final AtomicBoolean recordsToUpload = new AtomicBoolean(false);
   private final Object syncToken = new Object();
   private ExecutorService executor;
+  // Runs the uploads in flight, while the executor reads and serializes the next chunks.
+  private ExecutorService uploadExecutor;
   private Future<?> uploadTask;
+  private volatile int maxUploadsInFlight = DEFAULT_MAX_UPLOADS_IN_FLIGHT;
+  // Uploads the EEG as raw ADC counts when the device provides them.
+  private volatile boolean rawEegCountsEnabled = false;
+  // Uploads the sampling timestamps as ImplicitTimestamps instead of one Timestamp per sample.
+  private volatile boolean implicitTimestampsEnabled = false;
   private DataSubscription eegSampleSubscription;
+  private DataSubscription eegBlockSubscription;
   private DataSubscription activeSessionSubscription;
   private HandlerThread subscriptionsHandlerThread;
   private AndroidScheduler subscriptionsScheduler;
@@ -86,25 +167,33 @@ public class Uploader {
   // Used to generate test data manually, should always be false in production.
   private boolean saveTestProtoData = true;
 
-  private Uploader(Context context, ApplicationType applicationType,
-                   ObjectBoxDatabase objectBoxDatabase, DatabaseSink databaseSink,
-                   Connectivity connectivity, Duration uploadChunkSize, Duration minDurationToKeep) {
+  // The cloud functions are null in tests, where the sessions are not completed on the server.
+  Uploader(Context context, ApplicationType applicationType, ObjectBoxDatabase objectBoxDatabase,
+           DatabaseSink databaseSink, Connectivity connectivity, Duration uploadChunkSize,
+           Duration minDurationToKeep, @Nullable CloudFunctions firebaseFunctions,
+           UploadTransport uploadTransport, RetentionWorker retentionWorker) {
     this.context = context;
     this.objectBoxDatabase = objectBoxDatabase;
     this.databaseSink = databaseSink;
     this.connectivity = connectivity;
     this.uploadChunkSize = uploadChunkSize;
     this.minDurationToKeep = minDurationToKeep;
-    this.firebaseFunctions = CloudFunctions.create();
+    this.firebaseFunctions = firebaseFunctions;
+    this.uploadTransport = uploadTransport;
     this.applicationType = applicationType;
+    this.retentionWorker = retentionWorker;
+    this.uploadBatchSizer = UploadBatchSizer.create(MAX_CHUNKS_PER_REQUEST);
+    this.uploadOutbox = UploadOutbox.open(new File(context.getFilesDir(), OUTBOX_DIRECTORY));
   }
 
   public static Uploader create(
       Context context, ApplicationType applicationType, ObjectBoxDatabase objectBoxDatabase,
       DatabaseSink databaseSink, Connectivity connectivity, Duration uploadChunkSize,
       Duration minDurationToKeep) {
+    CloudFunctions firebaseFunctions = CloudFunctions.create();
     return new Uploader(context, applicationType, objectBoxDatabase, databaseSink, connectivity,
-        uploadChunkSize, minDurationToKeep);
+        uploadChunkSize, minDurationToKeep, firebaseFunctions,
+        /*uploadTransport=*/firebaseFunctions, RetentionWorker.create(objectBoxDatabase));
   }
 
   public void start() {
@@ -130,6 +219,51 @@ public class Uploader {
     onConnectivityStateChanged();
   }
 
+  /**
+   * Sets how many chunks can be uploading at the same time. Chunks are still committed to the
+   * local session in order. 1 uploads the chunks one after the other.
+   */
+  public void setMaxUploadsInFlight(int maxUploadsInFlight) {
+    if (maxUploadsInFlight < 1) {
+      throw new IllegalArgumentException("maxUploadsInFlight needs to be at least 1.");
+    }
+    this.maxUploadsInFlight = maxUploadsInFlight;
+    RotatingFileLogger.get().logi(TAG, "Max uploads in flight set to " + maxUploadsInFlight);
+  }
+
+  /**
+   * Sets whether EEG channels are uploaded as raw ADC counts instead of microvolts, when the
+   * session's device provides them. This needs an upload endpoint that decodes the raw counts.
+   */
+  public void setRawEegCountsEnabled(boolean rawEegCountsEnabled) {
+    this.rawEegCountsEnabled = rawEegCountsEnabled;
+    RotatingFileLogger.get().logi(TAG, "Raw EEG counts enabled set to " + rawEegCountsEnabled);
+  }
+
+  /**
+   * Sets whether the sampling timestamps are uploaded as a start, a period and the exceptions,
+   * instead of one timestamp per sample. This needs an upload endpoint that decodes them.
+   */
+  public void setImplicitTimestampsEnabled(boolean implicitTimestampsEnabled) {
+    this.implicitTimestampsEnabled = implicitTimestampsEnabled;
+    RotatingFileLogger.get().logi(TAG, "Implicit timestamps enabled set to " +
+        implicitTimestampsEnabled);
+  }
+
+  /**
+   * Sets the transport to upload the data samples with, like an
+   * {@link io.nextsense.android.base.communication.upload.HttpUploadTransport}. The
+   * callable function is used when it fails. Null uploads with the callable function only.
+   */
+  public void setUploadTransport(@Nullable UploadTransport primaryUploadTransport) {
+    uploadTransport = primaryUploadTransport != null ?
+        FallbackUploadTransport.create(primaryUploadTransport, firebaseFunctions) :
+        firebaseFunctions;
+    RotatingFileLogger.get().logi(TAG, "Upload transport set to " +
+        (primaryUploadTransport != null ?
+            primaryUploadTransport.getClass().getSimpleName() : "callable function") + ".");
+  }
+
   private void startRunning() {
     if (running.get()) {
       RotatingFileLogger.get().logw(TAG, "Already running, no-op.");
@@ -138,11 +272,13 @@ public class Uploader {
     RotatingFileLogger.get().logi(TAG, "Starting to run.");
     cleanActiveSessions();
     databaseSink.resetEegRecordsCounter();
+    retentionWorker.start();
     subscriptionsHandlerThread = new HandlerThread("UploaderSubscriptionsHandlerThread");
     subscriptionsHandlerThread.start();
     subscriptionsScheduler = new AndroidScheduler(subscriptionsHandlerThread.getLooper());
     running.set(true);
     executor = Executors.newSingleThreadExecutor();
+    uploadExecutor = Executors.newCachedThreadPool();
     uploadTask = executor.submit(this::uploadData);
     RotatingFileLogger.get().logi(TAG, "Started running.");
   }
@@ -158,6 +294,10 @@ public class Uploader {
       eegSampleSubscription.cancel();
       eegSampleSubscription = null;
     }
+    if (eegBlockSubscription != null) {
+      eegBlockSubscription.cancel();
+      eegBlockSubscription = null;
+    }
     if (activeSessionSubscription != null) {
       activeSessionSubscription.cancel();
       activeSessionSubscription = null;
@@ -187,24 +327,28 @@ public class Uploader {
     if (executor != null) {
       executor.shutdown();
     }
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdown();
+    }
+    retentionWorker.stop();
     RotatingFileLogger.get().logi(TAG, "Stopped running.");
   }
 
   // TODO(eric): Should query this by sampling timestamp instead of number of records to send
   //             records based on a time period, not a record count, which might not match if there
   //             are missing samples.
-  private Map<Modality, List<BaseRecord>> getSamplesToUpload(LocalSession localSession) {
+  // The session is only completed when there is nothing left to upload and no uploads pending, as
+  // they could fail and need to be read again.
+  private Map<Modality, List<BaseRecord>> getSamplesToUpload(
+      LocalSession localSession, boolean uploadsPending) {
     Map<Modality, List<BaseRecord>> samplesToUpload = new HashMap<>();
     List<BaseRecord> eegSamplesToUpload = new ArrayList<>();
-    long relativeEegStartOffset = localSession.getEegSamplesUploaded() -
-        localSession.getEegSamplesDeleted();
     long sessionEegSamplesCount = objectBoxDatabase.getEegSamplesCount(localSession.id) +
         localSession.getEegSamplesDeleted();
     // TODO(eric): Fix for Xenon not *2.
     if (sessionEegSamplesCount - localSession.getEegSamplesUploaded() >=
         localSession.getEegSampleRate() * uploadChunkSize.getSeconds() * 2) {
-      List<EegSample> eegSamples = objectBoxDatabase.getEegSamples(
-          localSession.id, relativeEegStartOffset,
+      List<EegSample> eegSamples = getEegSamplesToUpload(localSession,
           (long)localSession.getEegSampleRate() * uploadChunkSize.getSeconds());
       if (eegSamples != null && !eegSamples.isEmpty()) {
         eegSamplesToUpload.addAll(eegSamples);
@@ -220,10 +364,9 @@ public class Uploader {
         if (!eegSamples.isEmpty() && Instant.now().isAfter(
                   eegSamples.get(0).getReceptionTimestamp().plus(Duration.ofSeconds(1)))) {
           RotatingFileLogger.get().logv(TAG, "Session finished, adding samples to upload.");
-          eegSamplesToUpload.addAll(objectBoxDatabase.getEegSamples(localSession.id,
-                  relativeEegStartOffset,
+          eegSamplesToUpload.addAll(getEegSamplesToUpload(localSession,
                   sessionEegSamplesCount - localSession.getEegSamplesUploaded()));
-          if (eegSamplesToUpload.isEmpty()) {
+          if (eegSamplesToUpload.isEmpty() && !uploadsPending) {
             // Nothing to upload, marking it as UPLOADED.
             RotatingFileLogger.get().logd(TAG, "Session " + localSession.id +
                 " upload is completed.");
@@ -232,6 +375,7 @@ public class Uploader {
             // This could be deleted at a later time in case the data needs to be analyzed or
             // displayed in the app.
             objectBoxDatabase.deleteLocalSession(localSession.id);
+            retentionWorker.forgetSession(localSession.id);
           }
         }
       }
@@ -239,28 +383,25 @@ public class Uploader {
     samplesToUpload.put(Modality.EAR_EEG, eegSamplesToUpload);
 
     List<BaseRecord> accelerationsToUpload = new ArrayList<>();
-    long relativeAccStartOffset = localSession.getAccelerationsUploaded() -
-        localSession.getAccelerationsDeleted();
     long sessionAccSamplesCount = objectBoxDatabase.getAccelerationCount(localSession.id) +
         localSession.getAccelerationsDeleted();
     if (sessionAccSamplesCount - localSession.getAccelerationsUploaded() >=
         localSession.getAccelerationSampleRate() * uploadChunkSize.getSeconds()) {
-      accelerationsToUpload.addAll(objectBoxDatabase.getAccelerations(
-          localSession.id, relativeAccStartOffset,
+      accelerationsToUpload.addAll(getAccelerationsToUpload(localSession,
           (long) localSession.getAccelerationSampleRate() * uploadChunkSize.getSeconds()));
     } else {
       LocalSession refreshedLocalSession = objectBoxDatabase.getLocalSession(localSession.id);
       if (refreshedLocalSession != null && (
           refreshedLocalSession.getStatus() == LocalSession.Status.FINISHED ||
           refreshedLocalSession.getStatus() == LocalSession.Status.ALL_DATA_RECEIVED)) {
-        accelerationsToUpload.addAll(objectBoxDatabase.getAccelerations(localSession.id,
-                relativeAccStartOffset,
+        accelerationsToUpload.addAll(getAccelerationsToUpload(localSession,
                 sessionAccSamplesCount - localSession.getAccelerationsUploaded()));
       }
     }
     samplesToUpload.put(Modality.ACC, accelerationsToUpload);
 
-    long deviceInternalStatesToUploadCount = objectBoxDatabase.getDeviceInternalStateCount() -
+    long deviceInternalStatesToUploadCount =
+        objectBoxDatabase.getSessionDeviceInternalStateCount(localSession.id) -
             localSession.getDeviceInternalStateUploaded();
     if (deviceInternalStatesToUploadCount >= 1) {
       List<BaseRecord> deviceInternalStatesToUpload = new ArrayList<>(
@@ -276,7 +417,89 @@ public class Uploader {
     return samplesToUpload;
   }
 
-  private Map<Modality, List<BaseRecord>> getSamplesToUploadRelative(LocalSession localSession) {
+  // Reads the EEG samples after the last uploaded one. The samples of block sessions have no id
+  // and are read from their index, which is the number of samples uploaded. Sessions that started
+  // uploading before the id of the last uploaded sample was tracked are read from the number of
+  // samples uploaded instead.
+  private List<EegSample> getEegSamplesToUpload(LocalSession localSession, long count) {
+    if (localSession.isEegBlocks()) {
+      return objectBoxDatabase.getEegBlockSamplesFromIndex(
+          localSession.id, localSession.getEegSamplesUploaded(), count);
+    }
+    if (localSession.getLastUploadedEegSampleId() == 0 &&
+        localSession.getEegSamplesUploaded() > 0) {
+      return objectBoxDatabase.getEegSamples(localSession.id,
+          localSession.getEegSamplesUploaded() - localSession.getEegSamplesDeleted(), count);
+    }
+    return objectBoxDatabase.getEegSamplesAfterId(
+        localSession.id, localSession.getLastUploadedEegSampleId(), count);
+  }
+
+  private List<Acceleration> getAccelerationsToUpload(LocalSession localSession, long count) {
+    if (localSession.getLastUploadedAccelerationId() == 0 &&
+        localSession.getAccelerationsUploaded() > 0) {
+      return objectBoxDatabase.getAccelerations(localSession.id,
+          localSession.getAccelerationsUploaded() - localSession.getAccelerationsDeleted(), count);
+    }
+    return objectBoxDatabase.getAccelerationsAfterId(
+        localSession.id, localSession.getLastUploadedAccelerationId(), count);
+  }
+
+  private @Nullable EegSample getLastUploadedEegSample(LocalSession localSession) {
+    if (localSession.getLastUploadedEegSampleId() != 0) {
+      EegSample lastUploadedEegSample =
+          objectBoxDatabase.getEegSample(localSession.getLastUploadedEegSampleId());
+      if (lastUploadedEegSample != null) {
+        return lastUploadedEegSample;
+      }
+    }
+    if (localSession.getEegSamplesUploaded() == 0) {
+      return null;
+    }
+    if (localSession.isEegBlocks()) {
+      List<EegSample> lastUploadedEegSampleList = objectBoxDatabase.getEegBlockSamplesFromIndex(
+          localSession.id, localSession.getEegSamplesUploaded() - 1L, /*count=*/1);
+      return lastUploadedEegSampleList != null && !lastUploadedEegSampleList.isEmpty() ?
+          lastUploadedEegSampleList.get(0) : null;
+    }
+    List<EegSample> lastUploadedEegSampleList = objectBoxDatabase.getEegSamples(
+        localSession.id, localSession.getEegSamplesUploaded() -
+            localSession.getEegSamplesDeleted() - 1L, /*count=*/1);
+    return lastUploadedEegSampleList != null && !lastUploadedEegSampleList.isEmpty() ?
+        lastUploadedEegSampleList.get(0) : null;
+  }
+
+  private @Nullable Acceleration getLastUploadedAcceleration(LocalSession localSession) {
+    if (localSession.getLastUploadedAccelerationId() != 0) {
+      Acceleration lastUploadedAcceleration =
+          objectBoxDatabase.getAcceleration(localSession.getLastUploadedAccelerationId());
+      if (lastUploadedAcceleration != null) {
+        return lastUploadedAcceleration;
+      }
+    }
+    if (localSession.getAccelerationsUploaded() == 0) {
+      return null;
+    }
+    List<Acceleration> lastUploadedAccelerationList = objectBoxDatabase.getAccelerations(
+        localSession.id, localSession.getAccelerationsUploaded() -
+            localSession.getAccelerationsDeleted() - 1L, /*count=*/1);
+    return lastUploadedAccelerationList != null && !lastUploadedAccelerationList.isEmpty() ?
+        lastUploadedAccelerationList.get(0) : null;
+  }
+
+  // Returns the highest id of the records, 0 if none of them are stored in the database.
+  private static long getLastId(@Nullable List<BaseRecord> records) {
+    long lastId = 0;
+    if (records != null) {
+      for (BaseRecord record : records) {
+        lastId = Math.max(lastId, record.id);
+      }
+    }
+    return lastId;
+  }
+
+  private Map<Modality, List<BaseRecord>> getSamplesToUploadRelative(
+      LocalSession localSession, boolean uploadsPending) {
     Map<Modality, List<BaseRecord>> samplesToUpload = new HashMap<>();
     List<BaseRecord> eegSamplesToUpload = new ArrayList<>();
     List<BaseRecord> accelerationsToUpload = new ArrayList<>();
@@ -358,7 +581,7 @@ public class Uploader {
             localSession.id, relativeStartOffset, relativeEndOffset));
         angSpeedsToUpload.addAll(objectBoxDatabase.getAngularSpeedsBetweenRelative(
             localSession.id, relativeStartOffset, relativeEndOffset));
-        if (eegSamplesToUpload.isEmpty()) {
+        if (eegSamplesToUpload.isEmpty() && !uploadsPending) {
           // Nothing to upload, marking it as UPLOADED.
           RotatingFileLogger.get().logd(TAG, "Session " + localSession.id +
               " upload is completed.");
@@ -367,6 +590,7 @@ public class Uploader {
           // This could be deleted at a later time in case the data needs to be analyzed or
           // displayed in the app.
           objectBoxDatabase.deleteLocalSession(localSession.id);
+          retentionWorker.forgetSession(localSession.id);
         }
       }
     }
@@ -375,8 +599,9 @@ public class Uploader {
     samplesToUpload.put(Modality.GYRO, angSpeedsToUpload);
 
     // Upload device internal states for Xenon if any.
-    long deviceInternalStatesToUploadCount = objectBoxDatabase.getDeviceInternalStateCount() -
-        localSession.getDeviceInternalStateUploaded();
+    long deviceInternalStatesToUploadCount =
+        objectBoxDatabase.getSessionDeviceInternalStateCount(localSession.id) -
+            localSession.getDeviceInternalStateUploaded();
     if (deviceInternalStatesToUploadCount >= 1) {
       List<BaseRecord> deviceInternalStatesToUpload = new ArrayList<>(
           objectBoxDatabase.getSessionDeviceInternalStates(
@@ -395,24 +620,10 @@ public class Uploader {
       LocalSession localSession, TimestampedDataSample firstSampleToUpload, int samplingRate) {
     TimestampedDataSample lastUploadedSample = null;
     if (firstSampleToUpload instanceof EegSample) {
-      if (localSession.getEegSamplesUploaded() > 0) {
-        List<EegSample> lastUploadedSampleList = objectBoxDatabase.getEegSamples(
-                localSession.id, localSession.getEegSamplesUploaded() -
-                    localSession.getEegSamplesDeleted() - 1L, /*count=*/1);
-        if (lastUploadedSampleList != null && !lastUploadedSampleList.isEmpty()) {
-          lastUploadedSample = lastUploadedSampleList.get(0);
-        }
-      }
+      lastUploadedSample = getLastUploadedEegSample(localSession);
     } else if (firstSampleToUpload instanceof Acceleration ||
         firstSampleToUpload instanceof AngularSpeed) {
-      if (localSession.getAccelerationsUploaded() > 0) {
-        List<Acceleration> lastUploadedSampleList = objectBoxDatabase.getAccelerations(
-                localSession.id, localSession.getAccelerationsUploaded() -
-                    localSession.getAccelerationsDeleted() - 1L, /*count=*/1);
-        if (lastUploadedSampleList != null && !lastUploadedSampleList.isEmpty()) {
-          lastUploadedSample = lastUploadedSampleList.get(0);
-        }
-      }
+      lastUploadedSample = getLastUploadedAcceleration(localSession);
     }
 
     // Return the expected first timestamp based on the last uploaded sample, if any. If this is the
@@ -447,6 +658,330 @@ public class Uploader {
     }
   }
 
+  // Reads the next chunk to upload of the local session, serializes it in the outbox and moves the
+  // local session after it. Returns false if there is nothing to upload yet or the outbox could not
+  // store the chunk.
+  private boolean appendNextChunk(LocalSession localSession) {
+    // Count the records deleted since the last chunk first, as what is left to upload is computed
+    // from the records in the database and the deleted ones.
+    objectBoxDatabase.runInTx(() -> {
+      if (!takeDeletedRecords(localSession)) {
+        return;
+      }
+      LocalSession refreshedLocalSession = objectBoxDatabase.getLocalSession(localSession.id);
+      if (refreshedLocalSession != null) {
+        localSession.setStatus(refreshedLocalSession.getStatus());
+        objectBoxDatabase.putLocalSession(localSession);
+      }
+    });
+    Map<Modality, List<BaseRecord>> samplesToUpload;
+    // Records in the outbox are still to upload.
+    boolean uploadsPending = uploadOutbox.hasPending(localSession.id);
+    // TODO(eric): Implement xenon config support with absolute timestamps.
+    if (Objects.equals(localSession.getEarbudsConfig(), "maui_config")) {
+      samplesToUpload = getSamplesToUploadRelative(localSession, uploadsPending);
+    } else {
+      samplesToUpload = getSamplesToUpload(localSession, uploadsPending);
+    }
+    if (!dataToUpload(samplesToUpload)) {
+      return false;
+    }
+    List<BaseRecord> eegSamplesToUpload = samplesToUpload.get(Modality.EAR_EEG);
+    final int accelerationsToUploadSize = samplesToUpload.containsKey(Modality.ACC) &&
+        samplesToUpload.get(Modality.ACC) != null ? samplesToUpload.get(Modality.ACC).size() : 0;
+    final int deviceInternalStateToUploadSize =
+        samplesToUpload.get(Modality.INTERNAL_STATE) != null ?
+            samplesToUpload.get(Modality.INTERNAL_STATE).size() : 0;
+    RotatingFileLogger.get().logv(TAG, "Session " + localSession.id + " has " +
+        eegSamplesToUpload.size() + " eeg records and " + accelerationsToUploadSize +
+        " imu records to upload.");
+
+    boolean isLastPacket = eegSamplesToUpload.size() !=
+        uploadChunkSize.getSeconds() * localSession.getEegSampleRate();
+    serializeChunk(samplesToUpload, localSession, isLastPacket);
+    if (saveTestProtoData) {
+      saveData(dataSamplesWriter.getBuffer(), dataSamplesWriter.size());
+    }
+    if (!uploadOutbox.append(localSession.id, dataSamplesWriter.getBuffer(), /*offset=*/0,
+        dataSamplesWriter.size(), /*last=*/isLastPacket)) {
+      return false;
+    }
+    commitChunk(localSession, new UploadChunk(eegSamplesToUpload.size(),
+        accelerationsToUploadSize, deviceInternalStateToUploadSize,
+        (EegSample) eegSamplesToUpload.get(eegSamplesToUpload.size() - 1),
+        getLastId(eegSamplesToUpload), getLastId(samplesToUpload.get(Modality.ACC))));
+    return true;
+  }
+
+  // Reads the next records of the outbox after the given sequence, to upload in a single request.
+  // It has as many records of the same local session as the batch sizer decides, so more than one
+  // only when the upload is behind. The last, partial chunk of a session always ends its request.
+  private @Nullable UploadRequest readNextRequest(long afterSequence) {
+    List<UploadOutbox.Entry> entries = uploadOutbox.getPendingEntries(
+        afterSequence, uploadBatchSizer.getChunksPerRequest());
+    if (entries.isEmpty()) {
+      return null;
+    }
+    int count = 0;
+    int bytes = 0;
+    for (UploadOutbox.Entry entry : entries) {
+      int entryBytes = entry.getLength();
+      if (count > 0) {
+        entryBytes -= DataSamplesWriter.getSessionHeaderSize(uploadOutbox.getData(entry));
+        if (entry.getKey() != entries.get(0).getKey() ||
+            bytes + entryBytes > uploadBatchSizer.getMaxRequestBytes()) {
+          break;
+        }
+      }
+      ++count;
+      bytes += entryBytes;
+      if (entry.isLast()) {
+        break;
+      }
+    }
+    if (count > 1) {
+      RotatingFileLogger.get().logv(TAG, "Packed " + count + " chunks in a request of " + bytes +
+          " bytes. " + uploadBatchSizer);
+    }
+    return new UploadRequest(entries.subList(0, count), bytes);
+  }
+
+  // Uploads the records of the request from the outbox and tells the batch sizer how long it took.
+  private boolean uploadRequest(UploadRequest request) {
+    RotatingFileLogger.get().logi(TAG, "Starting upload.");
+    Instant startTime = Instant.now();
+    UploadBuffer uploadBuffer = uploadBuffers.get();
+    uploadBuffer.reset();
+    for (int i = 0; i < request.entries.size(); ++i) {
+      ByteBuffer data = uploadOutbox.getData(request.entries.get(i));
+      if (i > 0) {
+        data.position(DataSamplesWriter.getSessionHeaderSize(data));
+      }
+      uploadBuffer.write(data);
+    }
+    boolean uploaded =
+        uploadTransport.uploadDataSamples(uploadBuffer.getBuffer(), uploadBuffer.size());
+    if (uploaded) {
+      uploadBatchSizer.onUploaded(request.entries.size(), request.bytes,
+          Duration.between(startTime, Instant.now()));
+    } else {
+      uploadBatchSizer.onUploadFailed(request.entries.size());
+    }
+    return uploaded;
+  }
+
+  // Adds the records of the chunk to the ones uploaded in the session, and sets where to resume
+  // reading the records to upload.
+  private void addUploadProgress(LocalSession localSession, UploadChunk chunk) {
+    localSession.setEegSamplesUploaded(
+        localSession.getEegSamplesUploaded() + chunk.eegSamplesCount);
+    localSession.setAccelerationsUploaded(
+        localSession.getAccelerationsUploaded() + chunk.accelerationsCount);
+    localSession.setDeviceInternalStateUploaded(
+        localSession.getDeviceInternalStateUploaded() + chunk.deviceInternalStatesCount);
+    localSession.setLastUploadedEegSampleId(
+        Math.max(localSession.getLastUploadedEegSampleId(), chunk.lastEegSampleId));
+    localSession.setLastUploadedAccelerationId(
+        Math.max(localSession.getLastUploadedAccelerationId(), chunk.lastAccelerationId));
+
+    // Set until when records were uploaded.
+    if (chunk.lastEegSample.getAbsoluteSamplingTimestamp() != null) {
+      localSession.setUploadedUntil(chunk.lastEegSample.getAbsoluteSamplingTimestamp());
+    } else {
+      localSession.setUploadedUntil(getSamplingTimestamp(chunk.lastEegSample, localSession));
+      localSession.setUploadedUntilRelative(chunk.lastEegSample.getRelativeSamplingTimestamp());
+    }
+  }
+
+  // Returns true if the upload of the request succeeded.
+  private boolean waitForUpload(UploadRequest request) {
+    try {
+      return request.upload.get();
+    } catch (ExecutionException e) {
+      RotatingFileLogger.get().loge(TAG, "Error uploading request: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  // Serializes the chunks of the session that are in the database into the outbox and uploads the
+  // outbox. The local session is updated as soon as a chunk is in the outbox, which keeps it until
+  // the server acknowledges it, even if the app stops. Up to maxUploadsInFlight requests are
+  // uploading while the next chunks are serialized. A failed request is read again from the outbox,
+  // not from the database. A null local session only uploads the records already in the outbox.
+  //
+  // Records are acknowledged in order. When a request fails, the requests sent after it are not
+  // acknowledged even if they succeed, and they are sent again after it. The server already needs
+  // to accept a chunk more than once, as when the response of a request is lost, while a chunk
+  // acknowledged before an older one that fails would be missing if the app stopped then.
+  private void uploadSessionData(@Nullable LocalSession localSession) {
+    Deque<UploadRequest> uploadsInFlight = new ArrayDeque<>();
+    int recordsInFlight = 0;
+    long lastSequenceInFlight = -1;
+    boolean chunksToAppend = localSession != null;
+    while (running.get() || !uploadsInFlight.isEmpty()) {
+      if (running.get()) {
+        // Keep enough chunks in the outbox ahead of the uploads to fill the free upload slots, but
+        // not more, so that the outbox does not copy the whole database when the upload is behind.
+        int freeUploadSlots = maxUploadsInFlight - uploadsInFlight.size();
+        while (chunksToAppend && uploadOutbox.getPendingCount() - recordsInFlight <
+            uploadBatchSizer.getChunksPerRequest() * freeUploadSlots) {
+          chunksToAppend = appendNextChunk(localSession);
+        }
+        UploadRequest nextRequest;
+        while (uploadsInFlight.size() < maxUploadsInFlight &&
+            (nextRequest = readNextRequest(lastSequenceInFlight)) != null) {
+          final UploadRequest request = nextRequest;
+          request.upload = uploadExecutor.submit(() -> uploadRequest(request));
+          uploadsInFlight.add(request);
+          recordsInFlight += request.entries.size();
+          lastSequenceInFlight = request.entries.get(request.entries.size() - 1).getSequence();
+        }
+      }
+      UploadRequest request = uploadsInFlight.poll();
+      if (request == null) {
+        return;
+      }
+      recordsInFlight -= request.entries.size();
+      if (waitForUpload(request)) {
+        acknowledgeRequest(request);
+        continue;
+      }
+      // TODO(eric): Implement more error mitigation strategies:
+      //             - backoff retry.
+      //             - notifications to user/NextSense.
+      // Let the other requests finish without acknowledging them, then read again from the failed
+      // record.
+      RotatingFileLogger.get().logw(TAG, "Upload failed, " + uploadsInFlight.size() +
+          " uploads in flight will be sent again after it.");
+      for (UploadRequest uploadInFlight : uploadsInFlight) {
+        waitForUpload(uploadInFlight);
+      }
+      uploadsInFlight.clear();
+      recordsInFlight = 0;
+      lastSequenceInFlight = -1;
+    }
+  }
+
+  // Removes the records of the uploaded request from the outbox, and marks their local session as
+  // uploaded if that was the last of its data.
+  private void acknowledgeRequest(UploadRequest request) {
+    uploadOutbox.acknowledge(request.entries);
+    long localSessionId = request.entries.get(0).getKey();
+    if (!uploadOutbox.hasPending(localSessionId)) {
+      completeSessionIfUploaded(localSessionId);
+    }
+  }
+
+  // Updates the local database with the records of the chunk, which is in the outbox, and deletes
+  // the older records.
+  private void commitChunk(LocalSession localSession, UploadChunk chunk) {
+    objectBoxDatabase.runInTx(() -> {
+      takeDeletedRecords(localSession);
+      addUploadProgress(localSession, chunk);
+      RotatingFileLogger.get().logv(TAG, "Uploaded a total of " +
+          localSession.getEegSamplesUploaded() + " eeg samples and " +
+          localSession.getAccelerationsUploaded() + " imu samples from session " +
+          localSession.id + " to the outbox.");
+
+      // Need to check the status from the DB as it could get updated to finished in
+      // another thread.
+      LocalSession refreshedLocalSession =
+          objectBoxDatabase.getLocalSession(localSession.id);
+      if (refreshedLocalSession != null) {
+        localSession.setStatus(refreshedLocalSession.getStatus());
+      }
+      objectBoxDatabase.putLocalSession(localSession);
+    });
+
+    // Check if need to delete older records to keep the database size in check. They are in the
+    // outbox, so they can be deleted before they are uploaded.
+    if (localSession.getStatus() != LocalSession.Status.UPLOADED) {
+      LocalSession deletingLocalSession = objectBoxDatabase.getLocalSession(
+          localSession.id);
+      localSession.setStatus(deletingLocalSession.getStatus());
+      deleteEegOldRecords(localSession);
+      deleteAccelerationOldRecords(localSession);
+      RotatingFileLogger.get().logd(TAG, "Retention has " +
+          retentionWorker.getPendingRequestCount() + " pending requests and is " +
+          retentionWorker.getLag().toMillis() + "ms behind.");
+    }
+  }
+
+  // Adds the records deleted by the retention worker since the last call to the deleted counts of
+  // the local session. Needs to be called in a write transaction that stores the local session, so
+  // that the counts match the records in the database. Returns true if any record was deleted.
+  private boolean takeDeletedRecords(LocalSession localSession) {
+    long eegSamplesDeleted = retentionWorker.takeDeletedEegSamples(localSession.id);
+    long accelerationsDeleted = retentionWorker.takeDeletedAccelerations(localSession.id);
+    localSession.setEegSamplesDeleted(localSession.getEegSamplesDeleted() + eegSamplesDeleted);
+    localSession.setAccelerationsDeleted(
+        localSession.getAccelerationsDeleted() + accelerationsDeleted);
+    return eegSamplesDeleted > 0 || accelerationsDeleted > 0;
+  }
+
+  // Marks the local session as uploaded if it is finished and all its records went through the
+  // outbox.
+  private void completeSessionIfUploaded(long localSessionId) {
+    objectBoxDatabase.runInTx(() -> {
+      LocalSession localSession = objectBoxDatabase.getLocalSession(localSessionId);
+      if (localSession == null) {
+        return;
+      }
+      if (takeDeletedRecords(localSession)) {
+        objectBoxDatabase.putLocalSession(localSession);
+      }
+      if ((localSession.getStatus() == LocalSession.Status.FINISHED ||
+          localSession.getStatus() == LocalSession.Status.ALL_DATA_RECEIVED) &&
+          localSession.getEegSamplesUploaded() ==
+              objectBoxDatabase.getEegSamplesCount(localSession.id) +
+                  localSession.getEegSamplesDeleted()) {
+        // TODO(eric): Seems to have an issue where acceleration could be missing sometimes,
+        //             should not block completion.
+        // localSession.getAccelerationsUploaded() ==
+        //         objectBoxDatabase.getAccelerationCount(localSession.id) +
+        //                 localSession.getAccelerationsDeleted()
+        RotatingFileLogger.get().logd(TAG, "Session " + localSession.id +
+            " data all received and upload is completed.");
+        localSession.setStatus(LocalSession.Status.UPLOADED);
+        completeSession(localSession);
+        objectBoxDatabase.putLocalSession(localSession);
+      }
+    });
+  }
+
+  // Uploads what is in the outbox and the data of the local sessions that is ready to upload.
+  private void uploadSessions(List<LocalSession> localSessions) {
+    // Upload what is left in the outbox from before, like before the app restarted.
+    uploadSessionData(/*localSession=*/null);
+    for (LocalSession localSession : localSessions) {
+      if (!localSession.isUploadNeeded() || (
+          localSession.getStatus() != LocalSession.Status.RECORDING &&
+              localSession.getStatus() != LocalSession.Status.ALL_DATA_RECEIVED &&
+              localSession.getStatus() != LocalSession.Status.FINISHED)) {
+        continue;
+      }
+      RotatingFileLogger.get().logd(TAG, "Session " + localSession.id +
+          " uploaded eeg samples until " + localSession.getUploadedUntil() + ".");
+      uploadSessionData(localSession);
+    }
+  }
+
+  // Uploads the data that is ready to upload once, without waiting for new data. Used in tests
+  // instead of starting to run.
+  void uploadPendingData() {
+    running.set(true);
+    uploadExecutor = Executors.newCachedThreadPool();
+    try {
+      List<LocalSession> localSessions = objectBoxDatabase.getLocalSessions();
+      uploadSessions(localSessions != null ? localSessions : new ArrayList<>());
+    } finally {
+      running.set(false);
+      uploadExecutor.shutdown();
+    }
+  }
+
   private void uploadData() {
     while (running.get()) {
       try {
@@ -456,144 +991,15 @@ public class Uploader {
         }
         RotatingFileLogger.get().logd(TAG, "There are " + localSessions.size() +
             " local sessions in the DB.");
-        for (LocalSession localSession : localSessions) {
-          if (!localSession.isUploadNeeded() || (
-              localSession.getStatus() != LocalSession.Status.RECORDING &&
-                  localSession.getStatus() != LocalSession.Status.ALL_DATA_RECEIVED &&
-                  localSession.getStatus() != LocalSession.Status.FINISHED)) {
-            continue;
-          }
-          RotatingFileLogger.get().logd(TAG, "Session " + localSession.id +
-              " uploaded eeg samples until " + localSession.getUploadedUntil() + ".");
-          Map<Modality, List<BaseRecord>> samplesToUpload;
-          // TODO(eric): Implement xenon config support with absolute timestamps.
-          if (Objects.equals(localSession.getEarbudsConfig(), "maui_config")) {
-            samplesToUpload = getSamplesToUploadRelative(localSession);
-          } else {
-            samplesToUpload = getSamplesToUpload(localSession);
-          }
-
-          while (dataToUpload(samplesToUpload) && running.get()) {
-            final int eegSamplesToUploadSize = samplesToUpload.get(Modality.EAR_EEG).size();
-            final int accelerationsToUploadSize = samplesToUpload.containsKey(Modality.ACC) &&
-                samplesToUpload.get(Modality.ACC) != null ?
-                samplesToUpload.get(Modality.ACC).size() : 0;
-            final int deviceInternalStateToUploadSize =
-                samplesToUpload.get(Modality.INTERNAL_STATE) != null ?
-                    samplesToUpload.get(Modality.INTERNAL_STATE).size() : 0;
-            RotatingFileLogger.get().logv(TAG, "Session " + localSession.id + " has " +
-                eegSamplesToUploadSize + " eeg records and " + accelerationsToUploadSize +
-                " imu records to upload.");
-
-            // Serialize and upload the data.
-            boolean isLastPacket = samplesToUpload.get(Modality.EAR_EEG).size() !=
-                uploadChunkSize.getSeconds() * localSession.getEegSampleRate();
-            DataSamplesProto.DataSamples dataSamplesProto = serializeToProto(samplesToUpload,
-                localSession, isLastPacket);
-            if (dataSamplesProto.getModalityDataSamplesCount() == 1) {
-              Log.d(TAG, "No data to upload, skipping.");
-            }
-            if (saveTestProtoData) {
-              saveData(dataSamplesProto);
-            }
-            boolean uploaded = uploadDataSamplesProto(dataSamplesProto);
-
-            // Update the local database with the uploaded records size and mark the local session
-            // as uploaded if done.
-            if (uploaded) {
-              final EegSample lastEegSample = (EegSample) samplesToUpload.get(Modality.EAR_EEG).get(
-                  eegSamplesToUploadSize - 1);
-              objectBoxDatabase.runInTx(() -> {
-                // Set numbers of records uploaded.
-                localSession.setEegSamplesUploaded(
-                    localSession.getEegSamplesUploaded() + eegSamplesToUploadSize);
-                localSession.setAccelerationsUploaded(
-                    localSession.getAccelerationsUploaded() + accelerationsToUploadSize);
-                localSession.setDeviceInternalStateUploaded(
-                    localSession.getDeviceInternalStateUploaded() +
-                        deviceInternalStateToUploadSize);
-
-                // Set until when records were uploaded.
-                if (lastEegSample.getAbsoluteSamplingTimestamp() != null) {
-                  localSession.setUploadedUntil(lastEegSample.getAbsoluteSamplingTimestamp());
-                } else {
-                  localSession.setUploadedUntil(getSamplingTimestamp(lastEegSample, localSession));
-                  localSession.setUploadedUntilRelative(lastEegSample.getRelativeSamplingTimestamp());
-                }
-                RotatingFileLogger.get().logv(TAG, "Uploaded a total of " +
-                    localSession.getEegSamplesUploaded() + " eeg samples and " +
-                    localSession.getAccelerationsUploaded() + " imu samples from session " +
-                    localSession.id);
-
-                objectBoxDatabase.putLocalSession(localSession);
-
-                // Need to check the status from the DB as it could get updated to finished in
-                // another thread.
-                LocalSession refreshedLocalSession =
-                    objectBoxDatabase.getLocalSession(localSession.id);
-                if (refreshedLocalSession != null) {
-                  localSession.setStatus(refreshedLocalSession.getStatus());
-                }
-                if ((localSession.getStatus() == LocalSession.Status.FINISHED ||
-                    localSession.getStatus() == LocalSession.Status.ALL_DATA_RECEIVED) &&
-                    localSession.getEegSamplesUploaded() ==
-                        objectBoxDatabase.getEegSamplesCount(localSession.id) +
-                            localSession.getEegSamplesDeleted()) {
-                  // TODO(eric): Seems to have an issue where acceleration could be missing sometimes,
-                  //             should not block completion.
-                  // localSession.getAccelerationsUploaded() ==
-                  //         objectBoxDatabase.getAccelerationCount(localSession.id) +
-                  //                 localSession.getAccelerationsDeleted()
-                  RotatingFileLogger.get().logd(TAG, "Session " + localSession.id +
-                      " data all received and upload is completed.");
-                  localSession.setStatus(LocalSession.Status.UPLOADED);
-                  completeSession(localSession);
-                }
-                objectBoxDatabase.putLocalSession(localSession);
-              });
-
-              // Check if need to delete older records to keep the database size in check.
-              if (localSession.getStatus() != LocalSession.Status.UPLOADED) {
-                  LocalSession deletingLocalSession = objectBoxDatabase.getLocalSession(
-                      localSession.id);
-                  localSession.setStatus(deletingLocalSession.getStatus());
-                  long eegRecordsDeleted = deleteEegOldRecords(localSession);
-                  long accelerationRecordsDeleted = deleteAccelerationOldRecords(localSession);
-                  RotatingFileLogger.get().logd(TAG, "Deleted " + eegRecordsDeleted +
-                      " eeg records and " + accelerationRecordsDeleted + " imu records.");
-                  if (eegRecordsDeleted > 0 || accelerationRecordsDeleted > 0) {
-                    localSession.setEegSamplesDeleted(
-                        localSession.getEegSamplesDeleted() + eegRecordsDeleted);
-                    localSession.setAccelerationsDeleted(
-                        localSession.getAccelerationsDeleted() + accelerationRecordsDeleted);
-                    objectBoxDatabase.putLocalSession(localSession);
-                  }
-              }
-            }
-            // TODO(eric): Implement more error mitigation strategies:
-            //             - backoff retry.
-            //             - notifications to user/NextSense.
-            // If it did not work, it will try to upload again.
-            samplesToUpload = getSamplesToUploadRelative(localSession);
-          }
-        }
+        uploadSessions(localSessions);
         recordsToUpload.set(false);
         RotatingFileLogger.get().logd(TAG, "All upload done, waiting for new samples.");
-        // Wait until there are new samples to upload.
-        eegSampleSubscription =
-            objectBoxDatabase.subscribe(EegSample.class, eegSample -> {
-              // TODO(eric): Adjust for Xenon compatibility.
-              if (databaseSink.getEegRecordsCounter() > databaseSink.getLastSessionEegFrequency() *
-                  uploadChunkSize.getSeconds() * 2) {
-                RotatingFileLogger.get().logd(TAG, "waking up: " +
-                    databaseSink.getEegRecordsCounter() + " eeg records to upload.");
-                databaseSink.resetEegRecordsCounter();
-                recordsToUpload.set(true);
-                synchronized (syncToken) {
-                  syncToken.notifyAll();
-                }
-              }
-            }, subscriptionsScheduler);
+        // Wait until there are new samples to upload, stored in either format depending on the
+        // session.
+        eegSampleSubscription = objectBoxDatabase.subscribe(
+            EegSample.class, eegSample -> onEegDataChanged(), subscriptionsScheduler);
+        eegBlockSubscription = objectBoxDatabase.subscribe(
+            EegBlock.class, eegBlock -> onEegDataChanged(), subscriptionsScheduler);
         // If still recording, wait until the session finishes as an alternative, as it would usually
         // not reach a discrete uploadChunkSize.
         Optional<LocalSession> activeSessionOptional = objectBoxDatabase.getActiveSession();
@@ -627,6 +1033,10 @@ public class Uploader {
           eegSampleSubscription.cancel();
           eegSampleSubscription = null;
         }
+        if (eegBlockSubscription != null) {
+          eegBlockSubscription.cancel();
+          eegBlockSubscription = null;
+        }
         if (activeSessionSubscription != null) {
           activeSessionSubscription.cancel();
           activeSessionSubscription = null;
@@ -644,7 +1054,7 @@ public class Uploader {
     }
   }
 
-  private void saveData(DataSamplesProto.DataSamples dataSamplesProto) {
+  private void saveData(byte[] dataSamples, int length) {
     saveTestProtoData = false;
     try {
       String collection = "content://media/external/file";
@@ -657,7 +1067,7 @@ public class Uploader {
       contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME,
           "test_proto_" + System.currentTimeMillis() + ".txt");
       contentValues.put(MediaStore.MediaColumns.MIME_TYPE, "txt/plain");
-      contentValues.put(MediaStore.MediaColumns.SIZE, dataSamplesProto.getSerializedSize());
+      contentValues.put(MediaStore.MediaColumns.SIZE, length);
       contentValues.put(MediaStore.MediaColumns.DATE_MODIFIED, Instant.now().getEpochSecond());
       contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
       contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
@@ -666,7 +1076,7 @@ public class Uploader {
 
       OutputStream outputStream = context.getContentResolver().openOutputStream(fileUri);
       Log.w(TAG, "Writing to file: " + fileUri.getPath() + "/test_proto.txt");
-      dataSamplesProto.writeTo(outputStream);
+      outputStream.write(dataSamples, /*off=*/0, length);
       outputStream.close();
     } catch (FileNotFoundException e) {
       RotatingFileLogger.get().logw(TAG, "file not found: " + e.getMessage());
@@ -678,67 +1088,65 @@ public class Uploader {
   private final DateTimeFormatter formatter =
       DateTimeFormatter.ISO_LOCAL_DATE_TIME.withZone(ZoneId.from(ZoneOffset.UTC));
 
-  private long deleteEegOldRecords(LocalSession localSession) {
+  // Requests the deletion of the EEG samples that are older than minDurationToKeep before the last
+  // uploaded one.
+  private void deleteEegOldRecords(LocalSession localSession) {
     long recordsToKeep = minDurationToKeep.getSeconds() * (long) localSession.getEegSampleRate();
-    if (objectBoxDatabase.getEegSamplesCount(localSession.id) > recordsToKeep) {
-      RotatingFileLogger.get().logd(TAG, "Got " +
-          objectBoxDatabase.getEegSamplesCount(localSession.id) +
-          " eeg records in db, need to delete " +
-          (objectBoxDatabase.getEegSamplesCount(localSession.id) - recordsToKeep));
-      List<EegSample> lastEegSampleList = objectBoxDatabase.getEegSamples(
-              localSession.id, localSession.getEegSamplesUploaded() -
-                  localSession.getEegSamplesDeleted() - 1L, /*count=*/1);
-      if (lastEegSampleList == null && lastEegSampleList.isEmpty()) {
-        return 0;
-      }
-      if (lastEegSampleList.get(0).getAbsoluteSamplingTimestamp() != null) {
-        Instant cutOffTimestamp = lastEegSampleList.get(0).getAbsoluteSamplingTimestamp().minus(
-            minDurationToKeep);
-        RotatingFileLogger.get().logd(TAG, "EEG Cutoff time: " +
-            formatter.format(cutOffTimestamp));
-        return objectBoxDatabase.deleteFirstEegSamplesData(localSession.id,
-            cutOffTimestamp.toEpochMilli());
-      }
-      long cutOffRelativeTimestamp = lastEegSampleList.get(0).getRelativeSamplingTimestamp() -
-          minDurationToKeep.toMillis();
-      return objectBoxDatabase.deleteFirstRelativeEegSamplesData(localSession.id,
-          cutOffRelativeTimestamp);
+    long eegSamplesCount = objectBoxDatabase.getEegSamplesCount(localSession.id);
+    if (eegSamplesCount <= recordsToKeep) {
+      return;
     }
-    return 0;
+    RotatingFileLogger.get().logd(TAG, "Got " + eegSamplesCount +
+        " eeg records in db, need to delete " + (eegSamplesCount - recordsToKeep));
+    EegSample lastEegSample = getLastUploadedEegSample(localSession);
+    if (lastEegSample == null) {
+      return;
+    }
+    if (lastEegSample.getAbsoluteSamplingTimestamp() != null) {
+      Instant cutOffTimestamp = lastEegSample.getAbsoluteSamplingTimestamp().minus(
+          minDurationToKeep);
+      RotatingFileLogger.get().logd(TAG, "EEG Cutoff time: " +
+          formatter.format(cutOffTimestamp));
+      retentionWorker.deleteRecordsBefore(localSession.id, RetentionWorker.RecordType.EEG,
+          cutOffTimestamp.toEpochMilli(), /*relativeTimestamps=*/false);
+      return;
+    }
+    long cutOffRelativeTimestamp = lastEegSample.getRelativeSamplingTimestamp() -
+        minDurationToKeep.toMillis();
+    retentionWorker.deleteRecordsBefore(localSession.id, RetentionWorker.RecordType.EEG,
+        cutOffRelativeTimestamp, /*relativeTimestamps=*/true);
   }
 
-  private long deleteAccelerationOldRecords(LocalSession localSession) {
+  // Requests the deletion of the accelerations and angular speeds that are older than
+  // minDurationToKeep before the last uploaded acceleration.
+  private void deleteAccelerationOldRecords(LocalSession localSession) {
     long recordsToKeep = minDurationToKeep.getSeconds() *
         (long) localSession.getAccelerationSampleRate();
-    if (objectBoxDatabase.getAccelerationCount(localSession.id) > recordsToKeep) {
-      RotatingFileLogger.get().logd(TAG, "Got " +
-          objectBoxDatabase.getAccelerationCount(localSession.id) +
-          " acceleration records in db, need to delete " +
-          (objectBoxDatabase.getAccelerationCount(localSession.id) - recordsToKeep));
-      Acceleration lastAcc = objectBoxDatabase.getAccelerations(
-          localSession.id, localSession.getAccelerationsUploaded() -
-              localSession.getAccelerationsDeleted() - 1L, /*count=*/1)
-          .get(0);
-
-      // Angular speed, if present, should be deleted on the same basis as they are at the same
-      // sampling rate.
-      if (lastAcc.getAbsoluteSamplingTimestamp() != null) {
-        Instant cutOffTimestamp = lastAcc.getAbsoluteSamplingTimestamp().minus(minDurationToKeep);
-        RotatingFileLogger.get().logd(TAG, "Acceleration cutoff time: " +
-            formatter.format(cutOffTimestamp));
-        objectBoxDatabase.deleteFirstAngularSpeedData(localSession.id,
-            cutOffTimestamp.toEpochMilli());
-        return objectBoxDatabase.deleteFirstAccelerationsData(localSession.id,
-            cutOffTimestamp.toEpochMilli());
-      }
-      long cutOffRelativeTimestamp = lastAcc.getRelativeSamplingTimestamp() -
-            minDurationToKeep.toMillis();
-      objectBoxDatabase.deleteFirstRelativeAngularSpeedData(localSession.id,
-          cutOffRelativeTimestamp);
-      return objectBoxDatabase.deleteFirstRelativeAccelerationsData(localSession.id,
-          cutOffRelativeTimestamp);
-    }
-    return 0;
+    long accelerationCount = objectBoxDatabase.getAccelerationCount(localSession.id);
+    if (accelerationCount <= recordsToKeep) {
+      return;
+    }
+    RotatingFileLogger.get().logd(TAG, "Got " + accelerationCount +
+        " acceleration records in db, need to delete " + (accelerationCount - recordsToKeep));
+    Acceleration lastAcc = getLastUploadedAcceleration(localSession);
+    if (lastAcc == null) {
+      return;
+    }
+
+    // Angular speed, if present, is deleted on the same basis as they are at the same sampling
+    // rate.
+    if (lastAcc.getAbsoluteSamplingTimestamp() != null) {
+      Instant cutOffTimestamp = lastAcc.getAbsoluteSamplingTimestamp().minus(minDurationToKeep);
+      RotatingFileLogger.get().logd(TAG, "Acceleration cutoff time: " +
+          formatter.format(cutOffTimestamp));
+      retentionWorker.deleteRecordsBefore(localSession.id, RetentionWorker.RecordType.IMU,
+          cutOffTimestamp.toEpochMilli(), /*relativeTimestamps=*/false);
+      return;
+    }
+    long cutOffRelativeTimestamp = lastAcc.getRelativeSamplingTimestamp() -
+        minDurationToKeep.toMillis();
+    retentionWorker.deleteRecordsBefore(localSession.id, RetentionWorker.RecordType.IMU,
+        cutOffRelativeTimestamp, /*relativeTimestamps=*/true);
   }
 
   private DataSamplesProto.DeviceInternalState serializeToProto(
@@ -767,6 +1175,20 @@ public class Uploader {
     return builder.build();
   }
 
+  private void onEegDataChanged() {
+    // TODO(eric): Adjust for Xenon compatibility.
+    if (databaseSink.getEegRecordsCounter() > databaseSink.getLastSessionEegFrequency() *
+        uploadChunkSize.getSeconds() * 2) {
+      RotatingFileLogger.get().logd(TAG, "waking up: " +
+          databaseSink.getEegRecordsCounter() + " eeg records to upload.");
+      databaseSink.resetEegRecordsCounter();
+      recordsToUpload.set(true);
+      synchronized (syncToken) {
+        syncToken.notifyAll();
+      }
+    }
+  }
+
   private Instant getSamplingTimestamp(TimestampedDataSample dataSample, LocalSession localSession) {
     if (dataSample.getAbsoluteSamplingTimestamp() != null) {
       return dataSample.getAbsoluteSamplingTimestamp();
@@ -781,107 +1203,113 @@ public class Uploader {
     }
   }
 
-  private DataSamplesProto.ModalityDataSamples serializeModalityToProto(
+  // Same as getSamplingTimestamp, in nanoseconds since the epoch.
+  private static long getSamplingTimestampNanos(
+      TimestampedDataSample dataSample, LocalSession localSession) {
+    Instant absoluteSamplingTimestamp = dataSample.getAbsoluteSamplingTimestamp();
+    if (absoluteSamplingTimestamp != null) {
+      return toEpochNanos(absoluteSamplingTimestamp);
+    }
+    return toEpochNanos(localSession.getFirstDataTime()) + TimeUnit.MILLISECONDS.toNanos(
+        dataSample.getRelativeSamplingTimestamp() - localSession.getFirstRelativeTimestamp());
+  }
+
+  private static long toEpochNanos(Instant instant) {
+    return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+  }
+
+  private static String[] getChannelNames(Modality modality) {
+    if (modality == Modality.ACC) {
+      return Arrays.stream(ACCELERATION_CHANNELS).map(Acceleration.Channels::getName)
+          .toArray(String[]::new);
+    }
+    if (modality == Modality.GYRO) {
+      return Arrays.stream(ANGULAR_SPEED_CHANNELS).map(AngularSpeed.Channels::getName)
+          .toArray(String[]::new);
+    }
+    // EEG channels are named by their number.
+    return new String[0];
+  }
+
+  private DataSamplesWriter.ModalityColumns fillModalityColumns(
       List<BaseRecord> samples, Modality modality,
       LocalSession localSession, boolean isLastPacket) {
-    DataSamplesProto.ModalityDataSamples.Builder dataSamplesProtoBuilder =
-        DataSamplesProto.ModalityDataSamples.newBuilder();
+    DataSamplesWriter.ModalityColumns columns = modalityColumns.computeIfAbsent(
+        modality, key -> new DataSamplesWriter.ModalityColumns(getChannelNames(key)));
+    columns.clear(modality.getNumber());
     if (samples.isEmpty()) {
-      return dataSamplesProtoBuilder.build();
+      return columns;
     }
 
-    dataSamplesProtoBuilder.setModality(modality);
     if (modality == Modality.EAR_EEG) {
       if (localSession.getEarbudsConfig() != null) {
-        dataSamplesProtoBuilder.setEarbudsConfig(localSession.getEarbudsConfig());
+        columns.setEarbudsConfig(localSession.getEarbudsConfig());
       }
     }
 
-    // Add samples to the proto.
+    // Add samples to the columns, by channel number for EEG and by channel ordinal for IMU.
     int samplingRate = 0;
-    Map<String, DataSamplesProto.Channel.Builder> channelBuilders = new HashMap<>();
-    List<Timestamp> modalitySamplingTimestamps = new ArrayList<>();
     if (modality == Modality.EAR_EEG) {
       samplingRate = (int)localSession.getEegSampleRate();
-      for (int i = 0; i < samples.size(); ++i) {
-        EegSample eegSample = (EegSample) samples.get(i);
-        Instant samplingTimestamp = getSamplingTimestamp(eegSample, localSession);
-        Timestamp samplingTimestampProto = Timestamp.newBuilder()
-            .setSeconds(samplingTimestamp.getEpochSecond())
-            .setNanos(samplingTimestamp.getNano()).build();
-        modalitySamplingTimestamps.add(samplingTimestampProto);
-        for (Integer channel : eegSample.getEegSamples().keySet()) {
-          DataSamplesProto.Channel.Builder channelBuilder = channelBuilders.computeIfAbsent(
-              String.valueOf(channel), channelValue ->
-                  DataSamplesProto.Channel.newBuilder().setName(String.valueOf(channel)));
-          channelBuilder.addSample(eegSample.getEegSamples().get(channel));
+      for (BaseRecord sample : samples) {
+        EegSample eegSample = (EegSample) sample;
+        columns.addTimestamp(getSamplingTimestampNanos(eegSample, localSession));
+        for (Map.Entry<Integer, Float> channelSample : eegSample.getEegSamples().entrySet()) {
+          columns.addSample(channelSample.getKey(), channelSample.getValue());
         }
         if (eegSample.getSync() != null) {
-          dataSamplesProtoBuilder.addSync(eegSample.getSync());
+          columns.addFlag(DataSamplesWriter.ModalityColumns.SYNC, eegSample.getSync());
         }
         if (eegSample.getTrigIn() != null) {
-          dataSamplesProtoBuilder.addTrigIn(eegSample.getTrigIn());
+          columns.addFlag(DataSamplesWriter.ModalityColumns.TRIG_IN, eegSample.getTrigIn());
         }
         if (eegSample.getTrigOut() != null) {
-          dataSamplesProtoBuilder.addTrigOut(eegSample.getTrigOut());
+          columns.addFlag(DataSamplesWriter.ModalityColumns.TRIG_OUT, eegSample.getTrigOut());
         }
         if (eegSample.getZMod() != null) {
-          dataSamplesProtoBuilder.addZMod(eegSample.getZMod());
+          columns.addFlag(DataSamplesWriter.ModalityColumns.Z_MOD, eegSample.getZMod());
         }
         if (eegSample.getMarker() != null) {
-          dataSamplesProtoBuilder.addMarker(eegSample.getMarker());
+          columns.addFlag(DataSamplesWriter.ModalityColumns.MARKER, eegSample.getMarker());
         }
         if (eegSample.getButton() != null) {
-          dataSamplesProtoBuilder.addButton(eegSample.getButton());
+          columns.addFlag(DataSamplesWriter.ModalityColumns.BUTTON, eegSample.getButton());
         }
       }
     } else if (modality == Modality.ACC) {
       samplingRate = (int)localSession.getAccelerationSampleRate();
-      for (int i = 0; i < samples.size(); ++i) {
-        Acceleration acceleration = (Acceleration) samples.get(i);
-        Instant samplingTimestamp = getSamplingTimestamp(acceleration, localSession);
-        Timestamp samplingTimestampProto = Timestamp.newBuilder()
-            .setSeconds(samplingTimestamp.getEpochSecond())
-            .setNanos(samplingTimestamp.getNano()).build();
-        modalitySamplingTimestamps.add(samplingTimestampProto);
-        Acceleration.Channels.getForDeviceLocation(acceleration.getDeviceLocation()).forEach(
-            channel -> channelBuilders.computeIfAbsent(
-                channel.getName(), channelName ->
-                    DataSamplesProto.Channel.newBuilder().setName(channelName)));
-        acceleration.getChannels().forEach((channel, value) ->
-          Objects.requireNonNull(channelBuilders.get(channel.getName())).addSample(value)
-        );
+      for (BaseRecord sample : samples) {
+        Acceleration acceleration = (Acceleration) sample;
+        columns.addTimestamp(getSamplingTimestampNanos(acceleration, localSession));
+        for (Acceleration.Channels channel : ACCELERATION_CHANNELS) {
+          Integer value = acceleration.getValue(channel);
+          if (value != null) {
+            columns.addSample(channel.ordinal(), value);
+          }
+        }
       }
     } else if (modality == Modality.GYRO) {
       samplingRate = (int)localSession.getAccelerationSampleRate();
-      for (int i = 0; i < samples.size(); ++i) {
-        AngularSpeed angularSpeed = (AngularSpeed) samples.get(i);
-        Instant samplingTimestamp = getSamplingTimestamp(angularSpeed, localSession);
-        Timestamp samplingTimestampProto = Timestamp.newBuilder()
-            .setSeconds(samplingTimestamp.getEpochSecond())
-            .setNanos(samplingTimestamp.getNano()).build();
-        modalitySamplingTimestamps.add(samplingTimestampProto);
-        AngularSpeed.Channels.getForDeviceLocation(angularSpeed.getDeviceLocation()).forEach(
-            channel -> channelBuilders.computeIfAbsent(
-                channel.getName(), channelName ->
-                    DataSamplesProto.Channel.newBuilder().setName(channelName)));
-        angularSpeed.getChannels().forEach((channel, value) ->
-            Objects.requireNonNull(channelBuilders.get(channel.getName())).addSample(value)
-        );
+      for (BaseRecord sample : samples) {
+        AngularSpeed angularSpeed = (AngularSpeed) sample;
+        columns.addTimestamp(getSamplingTimestampNanos(angularSpeed, localSession));
+        for (AngularSpeed.Channels channel : ANGULAR_SPEED_CHANNELS) {
+          Integer value = angularSpeed.getValue(channel);
+          if (value != null) {
+            columns.addSample(channel.ordinal(), value);
+          }
+        }
       }
     }
-    channelBuilders.forEach((channel, channelBuilder) ->
-        dataSamplesProtoBuilder.addChannel(channelBuilder.build()));
+    if (modality == Modality.EAR_EEG && rawEegCountsEnabled) {
+      RawEegCounts.forEarbudsConfig(localSession.getEarbudsConfig())
+          .ifPresent(columns::encodeRawCounts);
+    }
 
-    dataSamplesProtoBuilder.setSamplingRate(samplingRate);
+    columns.setSamplingRate(samplingRate);
 
     // Sort and deduplicate the sampling timestamps. This is necessary as the timestamps could be
     // duplicated as they come from both ears.
-    modalitySamplingTimestamps = modalitySamplingTimestamps.stream()
-        .sorted(Comparator.comparing(Timestamp::getSeconds)
-            .thenComparing(Timestamp::getNanos))
-        .collect(Collectors.toList());
-
     // Verify that the timestamps are not duplicated in the same time range based on the modality
     // sampling rate. Don't skip more than one out of 2 as we have 2 devices.
     // This will have the effect of aligning the timestamps from both devices for the same modality,
@@ -889,37 +1317,17 @@ public class Uploader {
     // individual channels which would add a lot of size to transmissions and storage.
     // The best solution would be to make sure that the accelerometers start as close as possible.
     int minTimeDifference = 1000 / samplingRate;
-    boolean skippedLast = false;
-    List<Timestamp> modalitySamplingTimestampsDedup = new ArrayList<>();
-    for (int i = 0; i < modalitySamplingTimestamps.size(); ++i) {
-      if (i == 0) {
-        modalitySamplingTimestampsDedup.add(modalitySamplingTimestamps.get(i));
-        continue;
-      }
-      long diff = (Math.abs(modalitySamplingTimestamps.get(i).getSeconds() -
-          modalitySamplingTimestamps.get(i - 1).getSeconds()) * 1000) +
-          Math.abs(modalitySamplingTimestamps.get(i).getNanos() -
-              modalitySamplingTimestamps.get(i - 1).getNanos()) / 1000000;
-      if (skippedLast) {
-        skippedLast = false;
-      } else if (diff < minTimeDifference) {
-        skippedLast = true;
-        continue;
-      }
-      modalitySamplingTimestampsDedup.add(modalitySamplingTimestamps.get(i));
+    columns.deduplicateTimestamps(minTimeDifference);
+    if (implicitTimestampsEnabled) {
+      columns.encodeImplicitTimestamps(Duration.ofSeconds(1).toNanos() / samplingRate);
     }
-    dataSamplesProtoBuilder.addAllSamplingTimestamp(modalitySamplingTimestampsDedup);
 
     // Set the expected start timestamp and the expected samples count.
     Instant expectedStartInstant = getExpectedFirstTimestamp(
         localSession, (TimestampedDataSample) samples.get(0), samplingRate);
-    Timestamp expectedStartTimestamp = Timestamp.newBuilder()
-        .setSeconds(expectedStartInstant.getEpochSecond())
-        .setNanos(expectedStartInstant.getNano()).build();
-    dataSamplesProtoBuilder.setExpectedStartTimestamp(expectedStartTimestamp);
+    columns.setExpectedStartNanos(toEpochNanos(expectedStartInstant));
     if (!isLastPacket) {
-      dataSamplesProtoBuilder.setExpectedSamplesCount(
-          (int) (samplingRate * uploadChunkSize.getSeconds()));
+      columns.setExpectedSamplesCount((int) (samplingRate * uploadChunkSize.getSeconds()));
     } else {
       // If it is the last packet, calculate the expected samples count based on the last sample and
       // the expected first sample.
@@ -932,53 +1340,37 @@ public class Uploader {
         expectedSamplesCount = (getSamplingTimestamp(lastSample, localSession).toEpochMilli()
             - expectedStartInstant.toEpochMilli()) / (1000 / samplingRate);
       }
-      dataSamplesProtoBuilder.setExpectedSamplesCount((int) expectedSamplesCount);
+      columns.setExpectedSamplesCount((int) expectedSamplesCount);
     }
 
-    return dataSamplesProtoBuilder.build();
+    return columns;
   }
 
-  private DataSamplesProto.DataSamples serializeToProto(
+  // Writes the DataSamples message of the chunk with the data samples writer.
+  private void serializeChunk(
           Map<Modality, List<BaseRecord>> samples, LocalSession localSession,
           boolean isLastPacket) {
-    DataSamplesProto.DataSamples.Builder builder = DataSamplesProto.DataSamples.newBuilder();
-    if (localSession.getUserBigTableKey() != null) {
-      builder.setUserId(localSession.getUserBigTableKey());
-    }
-    if (localSession.getCloudDataSessionId() != null) {
-      builder.setDataSessionId(localSession.getCloudDataSessionId());
-    }
-    
+    List<DataSamplesWriter.ModalityColumns> modalities = new ArrayList<>();
+    List<DataSamplesProto.DeviceInternalState> deviceInternalStates = new ArrayList<>();
     for (Modality modality : samples.keySet()) {
       // Legacy type for Xenon internal state.
       if (modality == Modality.INTERNAL_STATE) {
         if (samples.get(modality) != null && !samples.get(modality).isEmpty()) {
           for (BaseRecord deviceInternalState : samples.get(modality)) {
-            builder.addDeviceInternalStates(
+            deviceInternalStates.add(
                 serializeToProto((DeviceInternalState) deviceInternalState));
           }
         }
         continue;
       }
-      builder.addModalityDataSamples(serializeModalityToProto(
+      modalities.add(fillModalityColumns(
           samples.get(modality), modality, localSession, isLastPacket));
     }
-   
-    return builder.build();
-  }
-
-  private boolean uploadDataSamplesProto(DataSamplesProto.DataSamples dataSamplesProto) {
-    // Create the arguments to the callable function.
-    RotatingFileLogger.get().logi(TAG, "Starting upload with callable function.");
-    ByteArrayOutputStream byteArrayOutputStream =
-            new ByteArrayOutputStream(dataSamplesProto.getSerializedSize());
-    try {
-      dataSamplesProto.writeTo(byteArrayOutputStream);
-    } catch (IOException e) {
-      RotatingFileLogger.get().loge(TAG, "Error serializing proto: " + e.getMessage());
-      return false;
+    if (modalities.size() == 1) {
+      Log.d(TAG, "No data to upload, skipping.");
     }
-    return firebaseFunctions.uploadDataSamples(byteArrayOutputStream);
+    dataSamplesWriter.write(localSession.getCloudDataSessionId(),
+        localSession.getUserBigTableKey(), modalities, deviceInternalStates);
   }
 
   private SessionProto.Session serializeSessionToProto(LocalSession localSession) {
@@ -1014,6 +1406,9 @@ public class Uploader {
       RotatingFileLogger.get().loge(TAG, "Error serializing proto: " + e.getMessage());
       return false;
     }
+    if (firebaseFunctions == null) {
+      return false;
+    }
     boolean completed = firebaseFunctions.completeSession(byteArrayOutputStream);
     // TODO(eric): Have a separate thread try to complete sessions in case there is a transient
     //             failure. That way it can retry until it passes.
@@ -1023,6 +1418,7 @@ public class Uploader {
       localSession.setStatus(LocalSession.Status.COMPLETED);
       objectBoxDatabase.putLocalSession(localSession);
       objectBoxDatabase.deleteLocalSession(localSession.id);
+      retentionWorker.forgetSession(localSession.id);
     }
     return completed;
   }
@@ -1,10 +1,6 @@
 package io.nextsense.android.base.db;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
-
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 import io.nextsense.android.base.data.Samples;
 import io.nextsense.android.base.db.memory.MemoryCache;
@@ -13,7 +9,7 @@ import io.nextsense.android.base.utils.RotatingFileLogger;
 /**
  * Listens for incoming data and saves it in the in-memory cache.
  */
-public class CacheSink {
+public class CacheSink implements IngestionPipeline.SamplesConsumer {
 
     private static final String TAG = CacheSink.class.getSimpleName();
 
@@ -28,25 +24,18 @@ public class CacheSink {
     }
 
     public void startListening() {
-        if (EventBus.getDefault().isRegistered(this)) {
-            RotatingFileLogger.get().logw(TAG, "Already registered to EventBus!");
-            return;
-        }
-        EventBus.getDefault().register(this);
-        RotatingFileLogger.get().logi(TAG, "Started listening to EventBus.");
+        IngestionPipeline.get().addConsumer(TAG, this);
     }
 
     public void stopListening() {
-        EventBus.getDefault().unregister(this);
-        RotatingFileLogger.get().logi(TAG, "Stopped listening to EventBus.");
+        IngestionPipeline.get().removeConsumer(this);
     }
 
-    @Subscribe(threadMode = ThreadMode.ASYNC)
-    @SuppressWarnings("unused")
-    public synchronized void onSamples(Samples samples) {
-        Instant saveStartTime = Instant.now();
+    @Override
+    public synchronized void onSamples(String device, Samples samples) {
+        long saveStartTime = System.nanoTime();
         memoryCache.addChannelData(samples);
-        long saveTime = Instant.now().toEpochMilli() - saveStartTime.toEpochMilli();
+        long saveTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - saveStartTime);
         if (saveTime > 20) {
             RotatingFileLogger.get().logd(TAG, "It took " + saveTime + " to cache device data.");
         }
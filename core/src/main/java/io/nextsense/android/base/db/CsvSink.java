@@ -27,7 +27,7 @@ import io.nextsense.android.base.utils.CsvWriter;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.objectbox.reactive.DataSubscription;
 
-public class CsvSink {
+public class CsvSink implements IngestionPipeline.SamplesConsumer {
 
   private static final String TAG = CsvSink.class.getSimpleName();
   private static final Duration RSSI_CHECK_INTERVAL = Duration.ofSeconds(5);
@@ -44,6 +44,11 @@ public class CsvSink {
   private Instant lastRssiCheck = Instant.now();
   private float eegSamplingRate;
   private float imuSamplingRate;
+  // Follows the sticky StoragePolicyEvent, which is received when registering to the EventBus.
+  private volatile boolean stoppedForStorage = false;
+  // Follows the sticky OverloadEvent, with the number of packets skipped while overloaded.
+  private volatile boolean skippedForOverload = false;
+  private long overloadSkippedPackets = 0;
 
   private CsvSink(Context context, ObjectBoxDatabase objectBoxDatabase,
                   BleCentralManagerProxy bleCentralManagerProxy) {
@@ -69,10 +74,12 @@ public class CsvSink {
       return;
     }
     EventBus.getDefault().register(this);
+    IngestionPipeline.get().addConsumer(TAG, this);
     RotatingFileLogger.get().logi(TAG, "Started listening to EventBus.");
   }
 
   public void stopListening() {
+    IngestionPipeline.get().removeConsumer(this);
     EventBus.getDefault().unregister(this);
     RotatingFileLogger.get().logi(TAG, "Stopped listening to EventBus.");
     if (uploadedSessionSubscription != null) {
@@ -111,8 +118,37 @@ public class CsvSink {
     rightCsvWriter.closeCsvFile();
   }
 
-  @Subscribe(threadMode = ThreadMode.ASYNC)
-  public synchronized void onSamples(Samples samples) {
+  @Subscribe(sticky = true, threadMode = ThreadMode.POSTING)
+  public void onStoragePolicy(StoragePolicyEvent storagePolicyEvent) {
+    boolean stop = storagePolicyEvent.isAtLeast(StorageQuotaManager.Policy.STOP_CSV);
+    if (stop != stoppedForStorage) {
+      RotatingFileLogger.get().logw(TAG, (stop ? "Stopped" : "Resumed") +
+          " writing to CSV for storage policy " + storagePolicyEvent.getPolicy());
+    }
+    stoppedForStorage = stop;
+  }
+
+  @Subscribe(sticky = true, threadMode = ThreadMode.POSTING)
+  public void onOverload(OverloadEvent overloadEvent) {
+    skippedForOverload = overloadEvent.isApplying(OverloadMonitor.Policy.DEGRADE_CSV);
+  }
+
+  @Override
+  public synchronized void onSamples(String device, Samples samples) {
+    if (stoppedForStorage) {
+      return;
+    }
+    if (skippedForOverload) {
+      if (overloadSkippedPackets++ == 0) {
+        RotatingFileLogger.get().logw(TAG, "Stopped writing to CSV while overloaded.");
+      }
+      return;
+    }
+    if (overloadSkippedPackets > 0) {
+      RotatingFileLogger.get().logw(TAG, "Resumed writing to CSV, skipped " +
+          overloadSkippedPackets + " packets while overloaded.");
+      overloadSkippedPackets = 0;
+    }
     if (blePeripheralCallbackProxy != null && currentPeripheral != null &&
         lastRssiCheck.plus(RSSI_CHECK_INTERVAL).isBefore(Instant.now())) {
       currentPeripheral.readRemoteRssi();
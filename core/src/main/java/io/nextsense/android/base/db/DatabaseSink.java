@@ -4,10 +4,25 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import io.nextsense.android.base.communication.internet.Connectivity;
+import io.nextsense.android.base.data.Acceleration;
+import io.nextsense.android.base.data.AngularSpeed;
 import io.nextsense.android.base.data.DeviceInternalState;
+import io.nextsense.android.base.data.EegBlock;
 import io.nextsense.android.base.data.EegSample;
 import io.nextsense.android.base.data.LocalSessionManager;
 import io.nextsense.android.base.data.Samples;
@@ -16,17 +31,87 @@ import io.nextsense.android.base.utils.RotatingFileLogger;
 
 /**
  * Listens for incoming data and saves it in the ObjectBox database.
+ *
+ * Packets are not written as they arrive, as each write transaction has a fixed cost that is larger
+ * than writing the few samples of a packet. They wait in a bounded queue and are written together
+ * in one transaction every {@link #FLUSH_INTERVAL}, or as soon as {@link #FLUSH_EEG_SAMPLES} EEG
+ * samples are waiting, whichever comes first. The queue is flushed when the active session stops
+ * so that the session has all its data when it is marked as finished. When the queue is full,
+ * receiving more packets waits until the next transaction has emptied it.
+ *
+ * When a transaction fails, its packets are written first in the next one, up to
+ * {@link #MAX_COMMIT_ATTEMPTS} times before they are dropped.
  */
-public class DatabaseSink {
+public class DatabaseSink implements IngestionPipeline.SamplesConsumer {
 
   private static final String TAG = DatabaseSink.class.getSimpleName();
+  private static final Duration FLUSH_INTERVAL = Duration.ofSeconds(1);
+  private static final int FLUSH_EEG_SAMPLES = 500;
+  // Packets waiting to be written, about 3 minutes of data at 250 Hz with 50 samples per packet.
+  private static final int MAX_PENDING_PACKETS = 1000;
+  private static final Duration METRICS_LOG_INTERVAL = Duration.ofMinutes(1);
+  // Transactions in which a packet is tried before it is dropped.
+  static final int MAX_COMMIT_ATTEMPTS = 3;
+
+  // Data of a packet waiting to be written.
+  static class PendingSamples {
+    final String device;
+    // When the packet was received from the device, before it was parsed.
+    final Instant receptionTime;
+    final long localSessionId;
+    final boolean eegBlocks;
+    final List<EegSample> eegSamples;
+    final List<Acceleration> accelerations;
+    final List<AngularSpeed> angularSpeeds;
+    // Number of failed transactions it was in, only changed in the executor thread.
+    int failedCommits = 0;
+
+    PendingSamples(String device, Instant receptionTime, long localSessionId, boolean eegBlocks,
+                   List<EegSample> eegSamples, List<Acceleration> accelerations,
+                   List<AngularSpeed> angularSpeeds) {
+      this.device = device;
+      this.receptionTime = receptionTime;
+      this.localSessionId = localSessionId;
+      this.eegBlocks = eegBlocks;
+      this.eegSamples = eegSamples;
+      this.accelerations = accelerations;
+      this.angularSpeeds = angularSpeeds;
+    }
+  }
 
   private final ObjectBoxDatabase boxDatabase;
   private final LocalSessionManager localSessionManager;
   private final Connectivity connectivity;
   private final AtomicInteger eegRecordsCounter = new AtomicInteger(0);
+  private final BlockingQueue<PendingSamples> pendingSamples =
+      new ArrayBlockingQueue<>(MAX_PENDING_PACKETS);
+  // Packets of the last failed transaction, which are ahead of the pending queue. Only used in the
+  // executor thread.
+  private final List<PendingSamples> failedSamples = new ArrayList<>();
+  private final AtomicInteger pendingEegSamples = new AtomicInteger(0);
+  private final AtomicBoolean commitScheduled = new AtomicBoolean(false);
+  private final OverloadMonitor overloadMonitor =
+      OverloadMonitor.create(OverloadMonitor.Policy.BLOCK_PARSER);
+  private final LocalSessionManager.OnSessionStoppingListener onSessionStoppingListener =
+      this::flush;
+  private volatile ScheduledExecutorService executor;
+  // Metrics of the write transactions, only changed in the executor thread.
+  private volatile long commitCount = 0;
+  private volatile long committedPackets = 0;
+  private volatile int lastBatchSize = 0;
+  private volatile double commitRate = 0;
+  private long commitCountAtLastLog = 0;
+  private long lastLogTime = System.nanoTime();
   private Samples previousSamples = null;
   private int lastEegFrequency = 0;
+  // Session index of the next EEG sample when the session stores EegBlock records, -1 until read
+  // from the database for the session. Only used in the executor thread.
+  private long eegBlockSessionId = -1;
+  private long nextEegBlockSampleIndex = -1;
+  // Follows the sticky StoragePolicyEvent, which is received when registering to the EventBus.
+  private volatile boolean downsampleImu = false;
+  // Index of the next IMU sample received, used to keep the same samples for all IMU types.
+  private long imuSampleIndex = 0;
 
   private DatabaseSink(ObjectBoxDatabase boxDatabase, LocalSessionManager localSessionManager,
                        Connectivity connectivity) {
@@ -46,15 +131,82 @@ public class DatabaseSink {
       RotatingFileLogger.get().logw(TAG, "Already registered to EventBus!");
       return;
     }
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    executor.scheduleWithFixedDelay(this::commitPendingSamples, FLUSH_INTERVAL.toMillis(),
+        FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    executor.scheduleWithFixedDelay(this::logMetrics, METRICS_LOG_INTERVAL.toMillis(),
+        METRICS_LOG_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    this.executor = executor;
+    localSessionManager.addOnSessionStoppingListener(onSessionStoppingListener);
     EventBus.getDefault().register(this);
+    IngestionPipeline.get().addConsumer(TAG, this);
     RotatingFileLogger.get().logi(TAG, "Started listening to EventBus.");
   }
 
   public void stopListening() {
+    IngestionPipeline.get().removeConsumer(this);
     EventBus.getDefault().unregister(this);
+    localSessionManager.removeOnSessionStoppingListener(onSessionStoppingListener);
+    flush();
+    ScheduledExecutorService executor = this.executor;
+    if (executor != null) {
+      executor.shutdown();
+      this.executor = null;
+    }
     RotatingFileLogger.get().logi(TAG, "Stopped listening to EventBus.");
   }
 
+  /**
+   * Writes the packets that are waiting to be written, and returns once they are committed or the
+   * transaction failed, in which case they are retried with the next one.
+   */
+  public void flush() {
+    ScheduledExecutorService executor = this.executor;
+    if (executor == null) {
+      return;
+    }
+    try {
+      executor.submit(this::commitPendingSamples).get();
+    } catch (ExecutionException | RejectedExecutionException e) {
+      RotatingFileLogger.get().loge(TAG, "Failed to flush the pending samples: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the monitor of the queue depth and lag of each device, which also sets the policy to
+   * apply when they are too high.
+   */
+  public OverloadMonitor getOverloadMonitor() {
+    return overloadMonitor;
+  }
+
+  // Number of packets waiting to be written.
+  public int getPendingPacketCount() {
+    return pendingSamples.size();
+  }
+
+  public long getCommitCount() {
+    return commitCount;
+  }
+
+  // Write transactions per second over the last metrics interval.
+  public double getCommitRate() {
+    return commitRate;
+  }
+
+  // Number of packets written in the last write transaction.
+  public int getLastBatchSize() {
+    return lastBatchSize;
+  }
+
+  // Average number of packets written per write transaction since started.
+  public double getAverageBatchSize() {
+    long commits = commitCount;
+    return commits > 0 ? (double) committedPackets / commits : 0;
+  }
+
   public int getEegRecordsCounter() {
     return eegRecordsCounter.get();
   }
@@ -67,8 +219,8 @@ public class DatabaseSink {
     eegRecordsCounter.set(0);
   }
 
-  @Subscribe(threadMode = ThreadMode.BACKGROUND)
-  public synchronized void onSamples(Samples samples) {
+  @Override
+  public synchronized void onSamples(String device, Samples samples) {
     if (localSessionManager.getActiveLocalSession().isEmpty()) {
       RotatingFileLogger.get().logw(TAG, "Received samples but no active session.");
       return;
@@ -128,17 +280,179 @@ public class DatabaseSink {
                   samples.getAccelerations().size() + " accelerations, " +
                   samples.getAngularSpeeds().size() + " angular speeds.");
         }
-        boxDatabase.runInTx(() -> {
-          boxDatabase.putEegSamples(samples.getEegSamples());
-          boxDatabase.putAccelerations(samples.getAccelerations());
-          boxDatabase.putAngularSpeeds(samples.getAngularSpeeds());
-        });
-        eegRecordsCounter.getAndAdd(samples.getEegSamples().size());
+        List<Acceleration> accelerations = samples.getAccelerations();
+        List<AngularSpeed> angularSpeeds = samples.getAngularSpeeds();
+        if (downsampleImu) {
+          accelerations = downsampleImu(accelerations);
+          angularSpeeds = downsampleImu(angularSpeeds);
+        }
+        imuSampleIndex += samples.getAccelerations().size();
+        // Packets of the device parsed and not saved yet, including this one.
+        int queueDepth =
+            (int) IngestionPipeline.get().getLag(device, this) + pendingSamples.size() + 1;
+        overloadMonitor.onQueued(device, queueDepth);
+        if (overloadMonitor.dropImuSamples(device, accelerations.size() + angularSpeeds.size())) {
+          accelerations = List.of();
+          angularSpeeds = List.of();
+        }
+        Instant receptionTime = samples.getEegSamples().isEmpty() ? Instant.now() :
+            samples.getEegSamples().get(0).getReceptionTimestamp();
+        enqueue(new PendingSamples(device, receptionTime, currentLocalSession.id,
+            currentLocalSession.isEegBlocks(), samples.getEegSamples(), accelerations,
+            angularSpeeds));
         previousSamples = samples;
       }
     });
   }
 
+  void enqueue(PendingSamples packet) {
+    if (!pendingSamples.offer(packet)) {
+      RotatingFileLogger.get().logw(TAG, "Pending samples queue is full, waiting for it to be " +
+          "written.");
+      scheduleCommit();
+      try {
+        pendingSamples.put(packet);
+      } catch (InterruptedException e) {
+        RotatingFileLogger.get().logw(TAG, "Interrupted while waiting to queue samples, dropping " +
+            "packet.");
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (pendingEegSamples.addAndGet(packet.eegSamples.size()) >= FLUSH_EEG_SAMPLES) {
+      scheduleCommit();
+    }
+  }
+
+  private void scheduleCommit() {
+    ScheduledExecutorService executor = this.executor;
+    if (executor != null && commitScheduled.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::commitPendingSamples);
+      } catch (RejectedExecutionException e) {
+        commitScheduled.set(false);
+      }
+    }
+  }
+
+  // Writes all the pending packets in a single transaction. Only runs in the executor thread.
+  void commitPendingSamples() {
+    commitScheduled.set(false);
+    List<PendingSamples> batch = new ArrayList<>(failedSamples.size() + pendingSamples.size());
+    // The packets of the failed transaction were received before the ones in the queue.
+    batch.addAll(failedSamples);
+    failedSamples.clear();
+    int drainedPackets = pendingSamples.drainTo(batch);
+    if (batch.isEmpty()) {
+      return;
+    }
+    int eegSampleCount = 0;
+    int drainedEegSampleCount = 0;
+    for (int i = 0; i < batch.size(); ++i) {
+      int packetEegSamples = batch.get(i).eegSamples.size();
+      eegSampleCount += packetEegSamples;
+      if (i >= batch.size() - drainedPackets) {
+        drainedEegSampleCount += packetEegSamples;
+      }
+    }
+    pendingEegSamples.addAndGet(-drainedEegSampleCount);
+    Boolean committed = boxDatabase.callInTx(() -> {
+      List<EegBlock> eegBlocks = new ArrayList<>();
+      List<EegSample> eegSamples = new ArrayList<>();
+      List<Acceleration> accelerations = new ArrayList<>();
+      List<AngularSpeed> angularSpeeds = new ArrayList<>();
+      for (PendingSamples packet : batch) {
+        if (packet.eegBlocks) {
+          addEegBlock(eegBlocks, packet.localSessionId, packet.eegSamples);
+        } else {
+          eegSamples.addAll(packet.eegSamples);
+        }
+        accelerations.addAll(packet.accelerations);
+        angularSpeeds.addAll(packet.angularSpeeds);
+      }
+      if (!eegBlocks.isEmpty()) {
+        boxDatabase.putEegBlocks(eegBlocks);
+      }
+      if (!eegSamples.isEmpty()) {
+        boxDatabase.putEegSamples(eegSamples);
+      }
+      if (!accelerations.isEmpty()) {
+        boxDatabase.putAccelerations(accelerations);
+      }
+      if (!angularSpeeds.isEmpty()) {
+        boxDatabase.putAngularSpeeds(angularSpeeds);
+      }
+      return true;
+    });
+    if (committed == null) {
+      // The EegBlock index was advanced for blocks that were not committed.
+      nextEegBlockSampleIndex = -1;
+      int droppedPackets = 0;
+      for (PendingSamples packet : batch) {
+        if (++packet.failedCommits < MAX_COMMIT_ATTEMPTS) {
+          failedSamples.add(packet);
+        } else {
+          ++droppedPackets;
+        }
+      }
+      RotatingFileLogger.get().loge(TAG, "Failed to write " + batch.size() + " packets, " +
+          failedSamples.size() + " will be retried and " + droppedPackets + " were dropped.");
+      return;
+    }
+    Instant commitTime = Instant.now();
+    for (PendingSamples packet : batch) {
+      overloadMonitor.onCommitted(packet.device, packet.receptionTime, commitTime);
+    }
+    eegRecordsCounter.getAndAdd(eegSampleCount);
+    commitCount++;
+    committedPackets += batch.size();
+    lastBatchSize = batch.size();
+  }
+
+  private void logMetrics() {
+    long now = System.nanoTime();
+    double elapsedSeconds = (now - lastLogTime) / 1e9;
+    commitRate = (commitCount - commitCountAtLastLog) / elapsedSeconds;
+    commitCountAtLastLog = commitCount;
+    lastLogTime = now;
+    RotatingFileLogger.get().logi(TAG, "Commits: " + commitCount + ", commit rate: " +
+        commitRate + "/s, last batch: " + lastBatchSize + " packets, average batch: " +
+        getAverageBatchSize() + " packets, pending: " + getPendingPacketCount() + " packets.");
+  }
+
+  // Adds the EEG samples of a packet to the blocks to put, in a single record.
+  private void addEegBlock(List<EegBlock> eegBlocks, long localSessionId,
+                           List<EegSample> eegSamples) {
+    if (eegSamples.isEmpty()) {
+      return;
+    }
+    if (eegBlockSessionId != localSessionId || nextEegBlockSampleIndex < 0) {
+      nextEegBlockSampleIndex = boxDatabase.getNextEegBlockSampleIndex(localSessionId);
+      eegBlockSessionId = localSessionId;
+    }
+    EegBlock eegBlock = EegBlock.create(localSessionId, nextEegBlockSampleIndex, eegSamples);
+    eegBlocks.add(eegBlock);
+    nextEegBlockSampleIndex = eegBlock.getEndSampleIndex();
+  }
+
+  // Keeps one in StorageQuotaManager.IMU_DOWNSAMPLING_FACTOR samples, counting from the first IMU
+  // sample received.
+  private <T> List<T> downsampleImu(List<T> imuSamples) {
+    List<T> keptSamples = new ArrayList<>(
+        imuSamples.size() / StorageQuotaManager.IMU_DOWNSAMPLING_FACTOR + 1);
+    for (int i = 0; i < imuSamples.size(); ++i) {
+      if ((imuSampleIndex + i) % StorageQuotaManager.IMU_DOWNSAMPLING_FACTOR == 0) {
+        keptSamples.add(imuSamples.get(i));
+      }
+    }
+    return keptSamples;
+  }
+
+  @Subscribe(sticky = true, threadMode = ThreadMode.POSTING)
+  public void onStoragePolicy(StoragePolicyEvent storagePolicyEvent) {
+    downsampleImu = storagePolicyEvent.isAtLeast(StorageQuotaManager.Policy.DOWNSAMPLE_IMU);
+  }
+
   @Subscribe(threadMode = ThreadMode.BACKGROUND)
   public void onDeviceInternalState(DeviceInternalState deviceInternalState) {
     boxDatabase.putDeviceInternalState(deviceInternalState);
@@ -0,0 +1,190 @@
+package io.nextsense.android.base.db;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Hands the packets parsed from the devices to the components that process them, like the
+ * {@link DatabaseSink}, the {@link CacheSink} and the {@link CsvSink}.
+ *
+ * Each device parser publishes its packets to its own {@link SamplesRing}, and each registered
+ * {@link SamplesConsumer} has a thread that reads all the rings. A consumer gets the packets of a
+ * device in the order they were published, in batches of everything that was published since it
+ * last looked, and a parser waits when the slowest consumer is a full ring behind instead of
+ * letting the packets pile up in memory. How far behind each consumer is can be read with
+ * {@link #getLag(SamplesConsumer)}.
+ *
+ * Each ring has a single producer, as it does not synchronize concurrent publishers: the parser of
+ * a device gets the ring named after the address of the device when it connects, and releases it
+ * when the device is disconnected. A released ring is removed once the consumers processed all its
+ * packets.
+ */
+public class IngestionPipeline {
+
+  // Interface to process the packets published by the parsers.
+  public interface SamplesConsumer {
+    /**
+     * @param device name of the ring the packet was published to, which identifies the device.
+     */
+    void onSamples(String device, Samples samples);
+  }
+
+  private static final String TAG = IngestionPipeline.class.getSimpleName();
+  // About 50 seconds of packets at 250 Hz with 50 samples per packet.
+  private static final int RING_CAPACITY = 256;
+  // A consumer checks the rings this often when it is not woken up by a parser.
+  private static final Duration CONSUMER_IDLE_WAIT = Duration.ofMillis(100);
+  private static final Duration CONSUMER_STOP_TIMEOUT = Duration.ofSeconds(1);
+  private static final IngestionPipeline INSTANCE = new IngestionPipeline(RING_CAPACITY);
+
+  // Thread that gives the packets of all the rings to a consumer.
+  private class ConsumerThread extends Thread {
+    final String consumerName;
+    final SamplesConsumer consumer;
+    volatile boolean running = true;
+
+    ConsumerThread(String consumerName, SamplesConsumer consumer) {
+      super("Ingestion-" + consumerName);
+      this.consumerName = consumerName;
+      this.consumer = consumer;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        int processed = 0;
+        for (SamplesRing ring : rings) {
+          processed += ring.drain(consumer);
+          if (ring.isReleasedAndDrained()) {
+            rings.remove(ring);
+          }
+        }
+        if (processed == 0) {
+          LockSupport.parkNanos(CONSUMER_IDLE_WAIT.toNanos());
+        }
+      }
+    }
+  }
+
+  private final int ringCapacity;
+  private final Map<String, SamplesRing> ringsByName = new ConcurrentHashMap<>();
+  private final List<SamplesRing> rings = new CopyOnWriteArrayList<>();
+  private final Map<SamplesConsumer, ConsumerThread> consumerThreads = new ConcurrentHashMap<>();
+  private final List<ConsumerThread> runningThreads = new CopyOnWriteArrayList<>();
+
+  IngestionPipeline(int ringCapacity) {
+    this.ringCapacity = ringCapacity;
+  }
+
+  public static IngestionPipeline get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the ring that a parser publishes its packets to, created the first time it is asked
+   * for or after it was released. There should only be one parser publishing to it at a time, so it
+   * is named after the device, like its address.
+   */
+  public synchronized SamplesRing getRing(String name) {
+    SamplesRing ring = ringsByName.get(name);
+    if (ring == null) {
+      ring = new SamplesRing(name, ringCapacity, this::wakeUpConsumers);
+      for (SamplesConsumer consumer : consumerThreads.keySet()) {
+        ring.addConsumer(consumer);
+      }
+      ringsByName.put(name, ring);
+      rings.add(ring);
+    }
+    return ring;
+  }
+
+  /**
+   * Releases the ring once its device went away. The consumers still get the packets that were
+   * published to it, then it is removed. Getting a ring with the same name returns a new one.
+   */
+  public synchronized void releaseRing(SamplesRing ring) {
+    ringsByName.remove(ring.getName(), ring);
+    ring.release();
+    if (ring.isReleasedAndDrained()) {
+      rings.remove(ring);
+    }
+  }
+
+  /**
+   * Starts giving the packets published from now on to the consumer, in a thread of its own.
+   */
+  public synchronized void addConsumer(String name, SamplesConsumer consumer) {
+    if (consumerThreads.containsKey(consumer)) {
+      RotatingFileLogger.get().logw(TAG, name + " is already consuming, no-op.");
+      return;
+    }
+    for (SamplesRing ring : rings) {
+      ring.addConsumer(consumer);
+    }
+    ConsumerThread consumerThread = new ConsumerThread(name, consumer);
+    consumerThreads.put(consumer, consumerThread);
+    runningThreads.add(consumerThread);
+    consumerThread.start();
+    RotatingFileLogger.get().logi(TAG, "Started consumer " + name + ".");
+  }
+
+  /**
+   * Stops giving packets to the consumer. Returns once it is done with the packet it is processing,
+   * unless that takes longer than {@link #CONSUMER_STOP_TIMEOUT}.
+   */
+  public synchronized void removeConsumer(SamplesConsumer consumer) {
+    ConsumerThread consumerThread = consumerThreads.remove(consumer);
+    if (consumerThread == null) {
+      return;
+    }
+    runningThreads.remove(consumerThread);
+    for (SamplesRing ring : rings) {
+      ring.removeConsumer(consumer);
+    }
+    consumerThread.running = false;
+    LockSupport.unpark(consumerThread);
+    if (Thread.currentThread() != consumerThread) {
+      try {
+        consumerThread.join(CONSUMER_STOP_TIMEOUT.toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    RotatingFileLogger.get().logi(TAG, "Stopped consumer " + consumerThread.consumerName + ".");
+  }
+
+  /**
+   * Returns the number of packets that were published to the ring and that the consumer did not
+   * process yet.
+   */
+  public long getLag(String ringName, SamplesConsumer consumer) {
+    SamplesRing ring = ringsByName.get(ringName);
+    return ring != null ? ring.getLag(consumer) : 0;
+  }
+
+  /**
+   * Returns the number of packets that were published to all the rings and that the consumer did
+   * not process yet.
+   */
+  public long getLag(SamplesConsumer consumer) {
+    long lag = 0;
+    for (SamplesRing ring : rings) {
+      lag += ring.getLag(consumer);
+    }
+    return lag;
+  }
+
+  private void wakeUpConsumers() {
+    for (ConsumerThread consumerThread : runningThreads) {
+      LockSupport.unpark(consumerThread);
+    }
+  }
+}
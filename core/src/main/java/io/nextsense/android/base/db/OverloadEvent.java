@@ -0,0 +1,48 @@
+package io.nextsense.android.base.db;
+
+/**
+ * Posted as a sticky event on the EventBus by {@link OverloadMonitor} when the data of a device
+ * starts or stops arriving faster than it can be saved.
+ */
+public class OverloadEvent {
+
+  private final String device;
+  private final boolean overloaded;
+  private final OverloadMonitor.Policy policy;
+
+  private OverloadEvent(String device, boolean overloaded, OverloadMonitor.Policy policy) {
+    this.device = device;
+    this.overloaded = overloaded;
+    this.policy = policy;
+  }
+
+  public static OverloadEvent create(String device, boolean overloaded,
+                                     OverloadMonitor.Policy policy) {
+    return new OverloadEvent(device, overloaded, policy);
+  }
+
+  public String getDevice() {
+    return device;
+  }
+
+  public boolean isOverloaded() {
+    return overloaded;
+  }
+
+  public OverloadMonitor.Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Returns true if the policy applies, which is while overloaded.
+   */
+  public boolean isApplying(OverloadMonitor.Policy otherPolicy) {
+    return overloaded && policy == otherPolicy;
+  }
+
+  @Override
+  public String toString() {
+    return "OverloadEvent{device=" + device + ", overloaded=" + overloaded + ", policy=" + policy +
+        "}";
+  }
+}
@@ -0,0 +1,237 @@
+package io.nextsense.android.base.db;
+
+import androidx.annotation.Nullable;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Tracks how far the {@link DatabaseSink} is behind the data of each device, and applies an
+ * overload policy while it is too far behind.
+ *
+ * The queue depth is the number of packets of the device that were parsed and not saved yet, and
+ * the lag is the time between the reception of a packet and the commit of the transaction that
+ * saved it. A device is overloaded when either of them reaches its start threshold, and stops
+ * being overloaded once both are below their end thresholds.
+ *
+ * An overload is logged once when it starts and once when it ends with what it cost, rather than
+ * for every packet, and is posted as a sticky {@link OverloadEvent} on the EventBus.
+ */
+public class OverloadMonitor {
+
+  public enum Policy {
+    // The parser waits for the sinks to catch up. Nothing is lost, but the device can drop data if
+    // its own buffer fills up while the parser is waiting.
+    BLOCK_PARSER,
+    // Accelerations and angular speeds are not saved while overloaded, EEG is.
+    DROP_IMU,
+    // Recordings are not mirrored to CSV files while overloaded, leaving the disk to the database.
+    DEGRADE_CSV
+  }
+
+  // Load of the pipeline for one device.
+  public static class DeviceLoad {
+    private final String device;
+    private int queueDepth;
+    private Duration lag = Duration.ZERO;
+    private boolean overloaded;
+    private long overloadCount;
+    private long droppedImuSamples;
+    // Values of the current overload, or of the last one if it ended.
+    @Nullable
+    private Policy overloadPolicy;
+    @Nullable
+    private Instant overloadStart;
+    private int overloadMaxQueueDepth;
+    private Duration overloadMaxLag = Duration.ZERO;
+    private long overloadDroppedImuSamples;
+
+    private DeviceLoad(String device) {
+      this.device = device;
+    }
+
+    private DeviceLoad(DeviceLoad other) {
+      this.device = other.device;
+      this.queueDepth = other.queueDepth;
+      this.lag = other.lag;
+      this.overloaded = other.overloaded;
+      this.overloadCount = other.overloadCount;
+      this.droppedImuSamples = other.droppedImuSamples;
+      this.overloadPolicy = other.overloadPolicy;
+      this.overloadStart = other.overloadStart;
+      this.overloadMaxQueueDepth = other.overloadMaxQueueDepth;
+      this.overloadMaxLag = other.overloadMaxLag;
+      this.overloadDroppedImuSamples = other.overloadDroppedImuSamples;
+    }
+
+    public String getDevice() {
+      return device;
+    }
+
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    // Lag of the last packet saved.
+    public Duration getLag() {
+      return lag;
+    }
+
+    public boolean isOverloaded() {
+      return overloaded;
+    }
+
+    // Number of times the device was overloaded.
+    public long getOverloadCount() {
+      return overloadCount;
+    }
+
+    public long getDroppedImuSamples() {
+      return droppedImuSamples;
+    }
+
+    @Override
+    public String toString() {
+      return "DeviceLoad{device=" + device + ", queueDepth=" + queueDepth + ", lag=" + lag +
+          ", overloaded=" + overloaded + ", overloadCount=" + overloadCount +
+          ", droppedImuSamples=" + droppedImuSamples + "}";
+    }
+  }
+
+  private static final String TAG = OverloadMonitor.class.getSimpleName();
+  private static final int DEFAULT_START_QUEUE_DEPTH = 300;
+  private static final int DEFAULT_END_QUEUE_DEPTH = 50;
+  private static final Duration DEFAULT_START_LAG = Duration.ofSeconds(10);
+  private static final Duration DEFAULT_END_LAG = Duration.ofSeconds(3);
+
+  private final Map<String, DeviceLoad> deviceLoads = new HashMap<>();
+  private final int startQueueDepth;
+  private final int endQueueDepth;
+  private final Duration startLag;
+  private final Duration endLag;
+  private Policy policy;
+
+  OverloadMonitor(Policy policy, int startQueueDepth, int endQueueDepth, Duration startLag,
+                  Duration endLag) {
+    this.policy = policy;
+    this.startQueueDepth = startQueueDepth;
+    this.endQueueDepth = endQueueDepth;
+    this.startLag = startLag;
+    this.endLag = endLag;
+  }
+
+  public static OverloadMonitor create(Policy policy) {
+    return new OverloadMonitor(policy, DEFAULT_START_QUEUE_DEPTH, DEFAULT_END_QUEUE_DEPTH,
+        DEFAULT_START_LAG, DEFAULT_END_LAG);
+  }
+
+  public synchronized Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Changes the policy. An overload that already started keeps the policy it started with.
+   */
+  public synchronized void setPolicy(Policy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Returns a copy of the load of the device, null if no data was received from it.
+   */
+  @Nullable
+  public synchronized DeviceLoad getDeviceLoad(String device) {
+    DeviceLoad deviceLoad = deviceLoads.get(device);
+    return deviceLoad != null ? new DeviceLoad(deviceLoad) : null;
+  }
+
+  /**
+   * Updates the queue depth of the device when one of its packets is received.
+   */
+  public synchronized void onQueued(String device, int queueDepth) {
+    DeviceLoad deviceLoad = getOrCreateDeviceLoad(device);
+    deviceLoad.queueDepth = queueDepth;
+    updateOverload(deviceLoad);
+  }
+
+  /**
+   * Updates the lag of the device when one of its packets is saved.
+   */
+  public synchronized void onCommitted(String device, Instant receptionTime, Instant commitTime) {
+    DeviceLoad deviceLoad = getOrCreateDeviceLoad(device);
+    deviceLoad.lag = Duration.between(receptionTime, commitTime);
+    updateOverload(deviceLoad);
+  }
+
+  /**
+   * Returns true if the IMU samples of the device should not be saved. Counts them as dropped.
+   */
+  public synchronized boolean dropImuSamples(String device, int imuSampleCount) {
+    DeviceLoad deviceLoad = getOrCreateDeviceLoad(device);
+    if (!deviceLoad.overloaded || deviceLoad.overloadPolicy != Policy.DROP_IMU) {
+      return false;
+    }
+    deviceLoad.droppedImuSamples += imuSampleCount;
+    deviceLoad.overloadDroppedImuSamples += imuSampleCount;
+    return true;
+  }
+
+  private DeviceLoad getOrCreateDeviceLoad(String device) {
+    DeviceLoad deviceLoad = deviceLoads.get(device);
+    if (deviceLoad == null) {
+      deviceLoad = new DeviceLoad(device);
+      deviceLoads.put(device, deviceLoad);
+    }
+    return deviceLoad;
+  }
+
+  private void updateOverload(DeviceLoad deviceLoad) {
+    if (!deviceLoad.overloaded) {
+      if (deviceLoad.queueDepth >= startQueueDepth || deviceLoad.lag.compareTo(startLag) >= 0) {
+        startOverload(deviceLoad);
+      }
+      return;
+    }
+    deviceLoad.overloadMaxQueueDepth =
+        Math.max(deviceLoad.overloadMaxQueueDepth, deviceLoad.queueDepth);
+    if (deviceLoad.lag.compareTo(deviceLoad.overloadMaxLag) > 0) {
+      deviceLoad.overloadMaxLag = deviceLoad.lag;
+    }
+    if (deviceLoad.queueDepth <= endQueueDepth && deviceLoad.lag.compareTo(endLag) <= 0) {
+      endOverload(deviceLoad);
+    }
+  }
+
+  private void startOverload(DeviceLoad deviceLoad) {
+    deviceLoad.overloaded = true;
+    deviceLoad.overloadCount++;
+    deviceLoad.overloadPolicy = policy;
+    deviceLoad.overloadStart = Instant.now();
+    deviceLoad.overloadMaxQueueDepth = deviceLoad.queueDepth;
+    deviceLoad.overloadMaxLag = deviceLoad.lag;
+    deviceLoad.overloadDroppedImuSamples = 0;
+    RotatingFileLogger.get().logw(TAG, "Saving the data of " + deviceLoad.device +
+        " is falling behind, applying " + policy + ". Queue depth: " + deviceLoad.queueDepth +
+        " packets, lag: " + deviceLoad.lag.toMillis() + " ms.");
+    EventBus.getDefault().postSticky(
+        OverloadEvent.create(deviceLoad.device, /*overloaded=*/true, policy));
+  }
+
+  private void endOverload(DeviceLoad deviceLoad) {
+    deviceLoad.overloaded = false;
+    RotatingFileLogger.get().logi(TAG, "Overload of " + deviceLoad.device + " ended after " +
+        Duration.between(deviceLoad.overloadStart, Instant.now()).getSeconds() + " seconds. " +
+        "Max queue depth: " + deviceLoad.overloadMaxQueueDepth + " packets, max lag: " +
+        deviceLoad.overloadMaxLag.toMillis() + " ms, IMU samples dropped: " +
+        deviceLoad.overloadDroppedImuSamples + ", overloads so far: " + deviceLoad.overloadCount +
+        ".");
+    EventBus.getDefault().postSticky(OverloadEvent.create(
+        deviceLoad.device, /*overloaded=*/false, deviceLoad.overloadPolicy));
+  }
+}
@@ -0,0 +1,251 @@
+package io.nextsense.android.base.db;
+
+import androidx.annotation.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Deletes the records of sessions that are older than a cutoff in a background thread.
+ *
+ * Records are deleted in small batches, each in its own write transaction. ObjectBox runs one write
+ * transaction at a time, so deleting a long backlog at once would block the {@link DatabaseSink}
+ * from saving incoming data until it is done. The size of the batches adapts so that a transaction
+ * takes about {@link #TRANSACTION_TIME_BUDGET}, and the worker pauses between them.
+ *
+ * The number of records deleted for each session is kept until taken with
+ * {@link #takeDeletedEegSamples(long)} and {@link #takeDeletedAccelerations(long)}, which should be
+ * called in the write transaction that stores them in the session so that they match the records
+ * in the database.
+ */
+public class RetentionWorker {
+
+  public enum RecordType {
+    EEG,
+    // Accelerations and angular speeds, which have the same sampling rate.
+    IMU
+  }
+
+  private static final String TAG = RetentionWorker.class.getSimpleName();
+  private static final int MIN_BATCH_SIZE = 100;
+  private static final int MAX_BATCH_SIZE = 10000;
+  // How long a deletion transaction should take at most.
+  private static final Duration TRANSACTION_TIME_BUDGET = Duration.ofMillis(20);
+  // Pause between transactions so that other writers are not delayed by more than one of them.
+  private static final Duration BATCH_PAUSE = Duration.ofMillis(5);
+
+  private static class Request {
+    final long localSessionId;
+    final RecordType recordType;
+    final long timestampCutoff;
+    final boolean relativeTimestamps;
+    // When the latest request that was merged in this one was made, as the records it covers
+    // were all requested to be deleted by then.
+    final Instant requestTime;
+
+    Request(long localSessionId, RecordType recordType, long timestampCutoff,
+            boolean relativeTimestamps, Instant requestTime) {
+      this.localSessionId = localSessionId;
+      this.recordType = recordType;
+      this.timestampCutoff = timestampCutoff;
+      this.relativeTimestamps = relativeTimestamps;
+      this.requestTime = requestTime;
+    }
+  }
+
+  private final ObjectBoxDatabase objectBoxDatabase;
+  // Pending requests by session id.
+  private final Map<Long, Request> eegRequests = new ConcurrentHashMap<>();
+  private final Map<Long, Request> imuRequests = new ConcurrentHashMap<>();
+  // Records deleted and not taken yet, by session id.
+  private final Map<Long, Long> deletedEegSamples = new ConcurrentHashMap<>();
+  private final Map<Long, Long> deletedAccelerations = new ConcurrentHashMap<>();
+  private final AtomicBoolean running = new AtomicBoolean(false);
+  private final AtomicBoolean deleting = new AtomicBoolean(false);
+  private ExecutorService executor;
+  // Only changed in the executor thread.
+  private int batchSize = MIN_BATCH_SIZE;
+
+  private RetentionWorker(ObjectBoxDatabase objectBoxDatabase) {
+    this.objectBoxDatabase = objectBoxDatabase;
+  }
+
+  public static RetentionWorker create(ObjectBoxDatabase objectBoxDatabase) {
+    return new RetentionWorker(objectBoxDatabase);
+  }
+
+  public synchronized void start() {
+    if (running.get()) {
+      RotatingFileLogger.get().logw(TAG, "Already started, no-op.");
+      return;
+    }
+    executor = Executors.newSingleThreadExecutor();
+    running.set(true);
+    scheduleDeletion();
+  }
+
+  /**
+   * Stops after the current batch. Pending requests are kept and resumed when started again.
+   */
+  public synchronized void stop() {
+    if (!running.get()) {
+      return;
+    }
+    running.set(false);
+    executor.shutdown();
+    executor = null;
+  }
+
+  /**
+   * Requests the deletion of the records of the session that are before the cutoff. Replaces a
+   * pending request for the same session and record type if the cutoff is later, in which case
+   * the lag is counted from this request.
+   *
+   * @param relativeTimestamps if the cutoff is a relative sampling timestamp, otherwise it is an
+   *     absolute sampling timestamp in milliseconds since the epoch.
+   */
+  public void deleteRecordsBefore(long localSessionId, RecordType recordType, long timestampCutoff,
+                                  boolean relativeTimestamps) {
+    Request request = new Request(localSessionId, recordType, timestampCutoff, relativeTimestamps,
+        Instant.now());
+    getRequests(recordType).merge(localSessionId, request, (pending, added) ->
+        added.timestampCutoff <= pending.timestampCutoff ? pending :
+            new Request(localSessionId, recordType, added.timestampCutoff,
+                added.relativeTimestamps, added.requestTime));
+    scheduleDeletion();
+  }
+
+  /**
+   * Returns how long the oldest pending request has been waiting, zero if there is none. Grows when
+   * records are requested to be deleted faster than they can be.
+   */
+  public Duration getLag() {
+    Request oldestRequest = getOldestRequest();
+    return oldestRequest == null ? Duration.ZERO :
+        Duration.between(oldestRequest.requestTime, Instant.now());
+  }
+
+  public int getPendingRequestCount() {
+    return eegRequests.size() + imuRequests.size();
+  }
+
+  /**
+   * Returns the number of EEG samples of the session deleted since the last call.
+   */
+  public long takeDeletedEegSamples(long localSessionId) {
+    Long deleted = deletedEegSamples.remove(localSessionId);
+    return deleted != null ? deleted : 0;
+  }
+
+  /**
+   * Returns the number of accelerations of the session deleted since the last call.
+   */
+  public long takeDeletedAccelerations(long localSessionId) {
+    Long deleted = deletedAccelerations.remove(localSessionId);
+    return deleted != null ? deleted : 0;
+  }
+
+  /**
+   * Drops the pending requests and the deleted record counts of a session that was deleted. Those
+   * of sessions found to be deleted when their requests are done are dropped as well.
+   */
+  public void forgetSession(long localSessionId) {
+    eegRequests.remove(localSessionId);
+    imuRequests.remove(localSessionId);
+    deletedEegSamples.remove(localSessionId);
+    deletedAccelerations.remove(localSessionId);
+  }
+
+  private Map<Long, Request> getRequests(RecordType recordType) {
+    return recordType == RecordType.EEG ? eegRequests : imuRequests;
+  }
+
+  private synchronized void scheduleDeletion() {
+    if (running.get() && getPendingRequestCount() > 0 && deleting.compareAndSet(false, true)) {
+      executor.execute(this::deleteRecords);
+    }
+  }
+
+  private void deleteRecords() {
+    try {
+      Request request;
+      while (running.get() && (request = getOldestRequest()) != null) {
+        Long deleted = deleteBatch(request);
+        if (deleted == null || deleted == 0) {
+          if (deleted == null) {
+            RotatingFileLogger.get().logw(TAG, "Failed to delete " + request.recordType +
+                " records of session " + request.localSessionId + ", dropping the request.");
+          }
+          // Only removed if it was not replaced by a request with a later cutoff in the meantime.
+          getRequests(request.recordType).remove(request.localSessionId, request);
+          if (objectBoxDatabase.getLocalSession(request.localSessionId) == null) {
+            forgetSession(request.localSessionId);
+          }
+          continue;
+        }
+        try {
+          Thread.sleep(BATCH_PAUSE.toMillis());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    } finally {
+      deleting.set(false);
+    }
+    // A request could have been added after the loop ended.
+    scheduleDeletion();
+  }
+
+  @Nullable
+  private Request getOldestRequest() {
+    Request oldestRequest = null;
+    for (Request request : eegRequests.values()) {
+      oldestRequest = getOlderRequest(oldestRequest, request);
+    }
+    for (Request request : imuRequests.values()) {
+      oldestRequest = getOlderRequest(oldestRequest, request);
+    }
+    return oldestRequest;
+  }
+
+  private static Request getOlderRequest(@Nullable Request request, Request otherRequest) {
+    return request == null || otherRequest.requestTime.isBefore(request.requestTime) ?
+        otherRequest : request;
+  }
+
+  // Deletes a batch of records and counts them in the same transaction. Returns null if it failed.
+  @Nullable
+  private Long deleteBatch(Request request) {
+    long startTime = System.nanoTime();
+    Long deleted = objectBoxDatabase.callInTx(() -> {
+      if (request.recordType == RecordType.EEG) {
+        long deletedSamples = objectBoxDatabase.deleteFirstEegSamplesBatch(request.localSessionId,
+            request.timestampCutoff, request.relativeTimestamps, batchSize);
+        deletedEegSamples.merge(request.localSessionId, deletedSamples, Long::sum);
+        return deletedSamples;
+      }
+      long deletedAccelerations = objectBoxDatabase.deleteFirstAccelerationsBatch(
+          request.localSessionId, request.timestampCutoff, request.relativeTimestamps, batchSize);
+      long deletedAngularSpeeds = objectBoxDatabase.deleteFirstAngularSpeedsBatch(
+          request.localSessionId, request.timestampCutoff, request.relativeTimestamps, batchSize);
+      this.deletedAccelerations.merge(request.localSessionId, deletedAccelerations, Long::sum);
+      return deletedAccelerations + deletedAngularSpeeds;
+    });
+    Duration transactionTime = Duration.ofNanos(System.nanoTime() - startTime);
+    if (transactionTime.compareTo(TRANSACTION_TIME_BUDGET) > 0) {
+      batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+    } else if (transactionTime.multipliedBy(2).compareTo(TRANSACTION_TIME_BUDGET) < 0) {
+      batchSize = Math.min(MAX_BATCH_SIZE, batchSize * 2);
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,184 @@
+package io.nextsense.android.base.db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Ring buffer of the packets of a device, written by a single producer, the parser of the device,
+ * and read by each of the {@link IngestionPipeline.SamplesConsumer}s of the
+ * {@link IngestionPipeline} at their own pace.
+ *
+ * Every consumer has its own sequence, the sequence of the last packet that it processed, and the
+ * producer waits when writing a packet would overwrite one that a consumer did not process yet.
+ * The slots are allocated once, so publishing a packet only stores a reference and a sequence. A
+ * slot is cleared once all the consumers processed its packet, so that the ring does not keep up to
+ * a full ring of packets from being garbage collected when the device stops sending.
+ */
+public class SamplesRing {
+
+  private static final String TAG = SamplesRing.class.getSimpleName();
+  // How long the producer waits before checking again if a slot is free.
+  private static final long PRODUCER_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // Sequence of the last packet processed by a consumer.
+  private static class Cursor {
+    final AtomicLong sequence;
+
+    Cursor(long sequence) {
+      this.sequence = new AtomicLong(sequence);
+    }
+  }
+
+  private final String name;
+  private final AtomicReferenceArray<Samples> slots;
+  private final int mask;
+  private final Runnable onPublished;
+  // Sequence of the last packet published, -1 before the first one.
+  private final AtomicLong publishedSequence = new AtomicLong(-1);
+  private final List<Cursor> cursors = new CopyOnWriteArrayList<>();
+  private final Map<IngestionPipeline.SamplesConsumer, Cursor> cursorsByConsumer =
+      new ConcurrentHashMap<>();
+  private volatile long producerWaits = 0;
+  // Set once the producer went away, so that the ring is removed once its packets are processed.
+  private volatile boolean released = false;
+
+  /**
+   * @param capacity number of packets that can wait for the slowest consumer, rounded up to a
+   *     power of 2.
+   * @param onPublished called after each packet is published, to wake up the consumers.
+   */
+  SamplesRing(String name, int capacity, Runnable onPublished) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity needs to be at least 1.");
+    }
+    this.name = name;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.onPublished = onPublished;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getCapacity() {
+    return slots.length();
+  }
+
+  /**
+   * Publishes a packet to all the consumers. Should only be called by one thread at a time. Waits
+   * while the ring is full, until the slowest consumer processed the oldest packet.
+   */
+  public void publish(Samples samples) {
+    long sequence = publishedSequence.get() + 1;
+    long wrapSequence = sequence - slots.length();
+    if (wrapSequence > getMinConsumerSequence(sequence - 1)) {
+      if (producerWaits++ == 0) {
+        RotatingFileLogger.get().logw(TAG, name + " is full, waiting for the consumers.");
+      }
+      do {
+        onPublished.run();
+        LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+      } while (wrapSequence > getMinConsumerSequence(sequence - 1));
+    }
+    slots.set((int) (sequence & mask), samples);
+    publishedSequence.set(sequence);
+    onPublished.run();
+  }
+
+  /**
+   * Returns the number of packets that were published and that the consumer did not process yet.
+   */
+  public long getLag(IngestionPipeline.SamplesConsumer consumer) {
+    Cursor cursor = cursorsByConsumer.get(consumer);
+    return cursor != null ? publishedSequence.get() - cursor.sequence.get() : 0;
+  }
+
+  // Number of times the producer had to wait for a consumer.
+  public long getProducerWaits() {
+    return producerWaits;
+  }
+
+  void release() {
+    released = true;
+  }
+
+  // Whether the ring was released and all its packets were processed by the consumers.
+  boolean isReleasedAndDrained() {
+    long lastSequence = publishedSequence.get();
+    return released && getMinConsumerSequence(lastSequence) >= lastSequence;
+  }
+
+  // Adds a consumer, which receives the packets published from now on.
+  void addConsumer(IngestionPipeline.SamplesConsumer consumer) {
+    Cursor cursor = new Cursor(publishedSequence.get());
+    if (cursorsByConsumer.putIfAbsent(consumer, cursor) == null) {
+      cursors.add(cursor);
+    }
+  }
+
+  void removeConsumer(IngestionPipeline.SamplesConsumer consumer) {
+    Cursor cursor = cursorsByConsumer.remove(consumer);
+    if (cursor != null) {
+      cursors.remove(cursor);
+    }
+  }
+
+  /**
+   * Gives the consumer all the packets published since the last call, in order, and marks each one
+   * as processed once it was. Only called by the thread of the consumer.
+   *
+   * @return the number of packets processed.
+   */
+  int drain(IngestionPipeline.SamplesConsumer consumer) {
+    Cursor cursor = cursorsByConsumer.get(consumer);
+    if (cursor == null) {
+      return 0;
+    }
+    long lastSequence = publishedSequence.get();
+    long firstSequence = cursor.sequence.get();
+    if (lastSequence <= firstSequence) {
+      return 0;
+    }
+    long sequence = firstSequence;
+    while (sequence < lastSequence) {
+      ++sequence;
+      int slot = (int) (sequence & mask);
+      Samples samples = slots.get(slot);
+      try {
+        consumer.onSamples(name, samples);
+      } catch (RuntimeException e) {
+        RotatingFileLogger.get().loge(TAG, "Consumer of " + name + " failed to process a " +
+            "packet: " + e.getMessage());
+      }
+      cursor.sequence.set(sequence);
+      // The last consumer to process the packet clears it. The producer can publish to the slot as
+      // soon as the cursors moved past it, so it is only cleared if it still has that packet.
+      if (getMinConsumerSequence(sequence) == sequence) {
+        slots.compareAndSet(slot, samples, null);
+      }
+    }
+    return (int) (lastSequence - firstSequence);
+  }
+
+  private long getMinConsumerSequence(long defaultSequence) {
+    long minSequence = defaultSequence;
+    for (Cursor cursor : cursors) {
+      minSequence = Math.min(minSequence, cursor.sequence.get());
+    }
+    return minSequence;
+  }
+}
@@ -0,0 +1,58 @@
+package io.nextsense.android.base.db;
+
+/**
+ * Posted as a sticky event on the EventBus by {@link StorageQuotaManager} when the storage policy
+ * changes, so that a component that registers later gets the current policy right away.
+ */
+public class StoragePolicyEvent {
+
+  private final StorageQuotaManager.Policy policy;
+  private final long storeBytes;
+  private final long maxStoreBytes;
+  private final long usableBytes;
+
+  private StoragePolicyEvent(StorageQuotaManager.Policy policy, long storeBytes, long maxStoreBytes,
+                             long usableBytes) {
+    this.policy = policy;
+    this.storeBytes = storeBytes;
+    this.maxStoreBytes = maxStoreBytes;
+    this.usableBytes = usableBytes;
+  }
+
+  public static StoragePolicyEvent create(StorageQuotaManager.Policy policy, long storeBytes,
+                                          long maxStoreBytes, long usableBytes) {
+    return new StoragePolicyEvent(policy, storeBytes, maxStoreBytes, usableBytes);
+  }
+
+  public StorageQuotaManager.Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Returns true if the policy is at least as restrictive as the other one, in which case the
+   * restrictions of the other one apply too.
+   */
+  public boolean isAtLeast(StorageQuotaManager.Policy otherPolicy) {
+    return policy.compareTo(otherPolicy) >= 0;
+  }
+
+  // Estimated space used by the records in the store.
+  public long getStoreBytes() {
+    return storeBytes;
+  }
+
+  public long getMaxStoreBytes() {
+    return maxStoreBytes;
+  }
+
+  // Free space on the data partition that the application can use.
+  public long getUsableBytes() {
+    return usableBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "StoragePolicyEvent{policy=" + policy + ", storeBytes=" + storeBytes +
+        ", maxStoreBytes=" + maxStoreBytes + ", usableBytes=" + usableBytes + "}";
+  }
+}
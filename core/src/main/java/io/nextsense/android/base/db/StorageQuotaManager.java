@@ -0,0 +1,205 @@
+package io.nextsense.android.base.db;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.collect.Sets;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Monitors the space used in the ObjectBox store and the free space on the data partition, and
+ * applies storage policies before the store reaches its maximum size or the disk fills up, for
+ * example when the device stays offline for days and nothing can be uploaded.
+ *
+ * The space used in the store is estimated from the number of records, as the store file never
+ * shrinks after records are deleted, and a policy based on its size would never end. Records are
+ * deleted once uploaded, so the pressure falls as the backlog is uploaded.
+ *
+ * The storage pressure is the highest of the fraction of the maximum store size that is used and
+ * of the free space reserve that is used, where the reserve is the free space that should always be
+ * left on the partition. Each policy starts when the pressure reaches its threshold and includes
+ * the restrictions of the policies before it. A policy only ends once the pressure is a margin
+ * below its threshold, so that it does not change at every check while the usage is close to it.
+ *
+ * Changes of policy are posted as a sticky {@link StoragePolicyEvent} on the EventBus, which the
+ * sinks and the {@link io.nextsense.android.base.data.LocalSessionManager} follow, and are sent to
+ * the {@link OnPolicyChangedListener}s so that the app can tell the user.
+ */
+public class StorageQuotaManager {
+
+  public enum Policy {
+    // No restrictions.
+    NONE,
+    // Only one in IMU_DOWNSAMPLING_FACTOR accelerations and angular speeds is saved.
+    DOWNSAMPLE_IMU,
+    // Recordings are not mirrored to CSV files anymore.
+    STOP_CSV,
+    // New sessions cannot be started.
+    REFUSE_NEW_SESSIONS
+  }
+
+  // Interface to listen to changes of the storage policy.
+  public interface OnPolicyChangedListener {
+    void onPolicyChanged(StoragePolicyEvent event);
+  }
+
+  public static final int IMU_DOWNSAMPLING_FACTOR = 2;
+
+  private static final String TAG = StorageQuotaManager.class.getSimpleName();
+  private static final Duration CHECK_INTERVAL = Duration.ofSeconds(30);
+  private static final long DEFAULT_MIN_USABLE_BYTES = 512L * 1024 * 1024;
+  // How far below its threshold the pressure needs to be for a policy to end.
+  private static final double POLICY_END_MARGIN = 0.05;
+
+  private final LongSupplier usedStoreBytesSupplier;
+  private final long maxStoreBytes;
+  private final LongSupplier usableSpaceSupplier;
+  private final Map<Policy, Double> thresholds = new EnumMap<>(Policy.class);
+  private final Set<OnPolicyChangedListener> onPolicyChangedListeners =
+      Sets.newConcurrentHashSet();
+  private long minUsableBytes = DEFAULT_MIN_USABLE_BYTES;
+  @Nullable
+  private StoragePolicyEvent lastEvent;
+  private ScheduledExecutorService executor;
+
+  StorageQuotaManager(LongSupplier usedStoreBytesSupplier, long maxStoreBytes,
+                      LongSupplier usableSpaceSupplier) {
+    this.usedStoreBytesSupplier = usedStoreBytesSupplier;
+    this.maxStoreBytes = maxStoreBytes;
+    this.usableSpaceSupplier = usableSpaceSupplier;
+    thresholds.put(Policy.DOWNSAMPLE_IMU, 0.7);
+    thresholds.put(Policy.STOP_CSV, 0.8);
+    thresholds.put(Policy.REFUSE_NEW_SESSIONS, 0.95);
+  }
+
+  /**
+   * @param dataDirectory directory on the partition where the ObjectBox store is saved.
+   */
+  public static StorageQuotaManager create(
+      ObjectBoxDatabase objectBoxDatabase, File dataDirectory) {
+    return new StorageQuotaManager(objectBoxDatabase::getUsedSizeEstimate,
+        objectBoxDatabase.getMaxSizeOnDisk(), dataDirectory::getUsableSpace);
+  }
+
+  public synchronized void start() {
+    if (executor != null) {
+      RotatingFileLogger.get().logw(TAG, "Already started, no-op.");
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor();
+    executor.scheduleWithFixedDelay(this::checkWithExceptionLog, /*initialDelay=*/0,
+        CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    RotatingFileLogger.get().logi(TAG, "Started.");
+  }
+
+  public synchronized void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    executor = null;
+    RotatingFileLogger.get().logi(TAG, "Stopped.");
+  }
+
+  /**
+   * Sets the storage pressure at which a policy starts, between 0 and 1 for it to start before the
+   * store is full or the free space reserve is used.
+   */
+  public synchronized void setThreshold(Policy policy, double pressure) {
+    if (policy == Policy.NONE) {
+      throw new IllegalArgumentException("NONE does not have a threshold.");
+    }
+    thresholds.put(policy, pressure);
+  }
+
+  /**
+   * Sets the free space that should be left on the data partition.
+   */
+  public synchronized void setMinUsableBytes(long minUsableBytes) {
+    this.minUsableBytes = minUsableBytes;
+  }
+
+  public synchronized Policy getPolicy() {
+    return lastEvent != null ? lastEvent.getPolicy() : Policy.NONE;
+  }
+
+  /**
+   * Returns the result of the last check, null if there was none yet.
+   */
+  @Nullable
+  public synchronized StoragePolicyEvent getLastEvent() {
+    return lastEvent;
+  }
+
+  public void addOnPolicyChangedListener(OnPolicyChangedListener listener) {
+    onPolicyChangedListeners.add(listener);
+  }
+
+  public void removeOnPolicyChangedListener(OnPolicyChangedListener listener) {
+    onPolicyChangedListeners.remove(listener);
+  }
+
+  /**
+   * Measures the storage and updates the policy. Runs periodically once started.
+   */
+  public StoragePolicyEvent check() {
+    StoragePolicyEvent event;
+    boolean changed;
+    synchronized (this) {
+      long storeBytes = usedStoreBytesSupplier.getAsLong();
+      long usableBytes = usableSpaceSupplier.getAsLong();
+      Policy policy = getPolicy(getPressure(storeBytes, usableBytes), getPolicy());
+      changed = policy != getPolicy() || lastEvent == null;
+      event = StoragePolicyEvent.create(policy, storeBytes, maxStoreBytes, usableBytes);
+      lastEvent = event;
+    }
+    if (changed) {
+      RotatingFileLogger.get().logi(TAG, "Storage policy changed: " + event);
+      EventBus.getDefault().postSticky(event);
+      for (OnPolicyChangedListener listener : onPolicyChangedListeners) {
+        listener.onPolicyChanged(event);
+      }
+    }
+    return event;
+  }
+
+  private void checkWithExceptionLog() {
+    // An exception would cancel the next checks.
+    try {
+      check();
+    } catch (RuntimeException e) {
+      RotatingFileLogger.get().loge(TAG, "Failed to check the storage: " + e.getMessage());
+    }
+  }
+
+  private double getPressure(long storeBytes, long usableBytes) {
+    double storePressure = maxStoreBytes > 0 ? (double) storeBytes / maxStoreBytes : 0;
+    double diskPressure = usableBytes > 0 ? (double) minUsableBytes / usableBytes : 1;
+    return Math.max(storePressure, diskPressure);
+  }
+
+  private Policy getPolicy(double pressure, Policy currentPolicy) {
+    Policy[] policies = Policy.values();
+    for (int i = policies.length - 1; i > 0; --i) {
+      double threshold = thresholds.get(policies[i]);
+      if (pressure >= threshold || (policies[i].compareTo(currentPolicy) <= 0 &&
+          pressure >= threshold - POLICY_END_MARGIN)) {
+        return policies[i];
+      }
+    }
+    return Policy.NONE;
+  }
+}
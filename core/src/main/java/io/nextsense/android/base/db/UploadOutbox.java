@@ -0,0 +1,370 @@
+package io.nextsense.android.base.db;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Durable queue of serialized upload chunks, kept in memory-mapped segment files so that the
+ * chunks waiting for an upload survive restarts and offline periods.
+ *
+ * Records are appended to the last segment file and are never modified, except for their
+ * acknowledged flag. Each record has a header: the data length, a CRC32 of the key and the data,
+ * the key as a little-endian long, the acknowledged flag and the last flag. The length is written
+ * last, so a record that was only partly written when the process died has a zero length or a
+ * wrong CRC and is dropped when the outbox is opened again, with the rest of its segment. A
+ * segment file is deleted once all its records are acknowledged.
+ *
+ * Once a chunk is appended, the Uploader moves its local session past it and the retention can
+ * delete its records from the database, so the outbox holds the only copy of the data until the
+ * server has it. Appended records and acknowledged flags are both written to disk before the call
+ * returns, so that a chunk is neither lost nor uploaded again after a restart.
+ *
+ * The methods are thread-safe. The data of a record can be read without a lock while other records
+ * are appended or acknowledged.
+ */
+public class UploadOutbox {
+  static final String FILE_EXTENSION = ".outbox";
+  static final int HEADER_BYTES = 20;
+
+  private static final String TAG = UploadOutbox.class.getSimpleName();
+  private static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+  private static final int LENGTH_OFFSET = 0;
+  private static final int CRC_OFFSET = 4;
+  private static final int KEY_OFFSET = 8;
+  private static final int ACKNOWLEDGED_OFFSET = 16;
+  private static final int LAST_OFFSET = 17;
+
+  private static class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int pendingRecords;
+
+    private Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Record of the outbox that was not acknowledged yet.
+   */
+  public static final class Entry {
+    private final Segment segment;
+    private final int position;
+    private final int length;
+    private final long key;
+    private final long sequence;
+    private final boolean last;
+
+    private Entry(Segment segment, int position, int length, long key, long sequence,
+                  boolean last) {
+      this.segment = segment;
+      this.position = position;
+      this.length = length;
+      this.key = key;
+      this.sequence = sequence;
+      this.last = last;
+    }
+
+    // Key given when appending the record, like the id of its local session.
+    public long getKey() {
+      return key;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    // Increases with the order in which the records were appended.
+    public long getSequence() {
+      return sequence;
+    }
+
+    // Whether the record was appended as the last one of its key, like the last chunk of a local
+    // session.
+    public boolean isLast() {
+      return last;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  // Oldest first, the last one is the one being appended to.
+  private final List<Segment> segments = new ArrayList<>();
+  private final TreeMap<Long, Entry> pendingEntries = new TreeMap<>();
+  private final Map<Long, Integer> pendingRecordsByKey = new HashMap<>();
+  private final CRC32 crc = new CRC32();
+  private final byte[] keyBytes = new byte[Long.BYTES];
+  private byte[] readBuffer = new byte[0];
+  private long nextSequence = 0;
+  private long nextSegmentNumber = 0;
+
+  private UploadOutbox(File directory, int segmentBytes) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+  }
+
+  /**
+   * Opens the outbox in the directory, with the records that were not acknowledged before.
+   *
+   * @param directory where to keep the segment files, should be in the app private storage.
+   */
+  public static UploadOutbox open(File directory) {
+    return open(directory, DEFAULT_SEGMENT_BYTES);
+  }
+
+  static UploadOutbox open(File directory, int segmentBytes) {
+    UploadOutbox uploadOutbox = new UploadOutbox(directory, segmentBytes);
+    uploadOutbox.load();
+    return uploadOutbox;
+  }
+
+  /**
+   * Appends a record and writes it to disk before returning.
+   *
+   * @param last whether no other record is expected with the same key.
+   * @return false if the record could not be written, in which case it is not in the outbox.
+   */
+  public synchronized boolean append(long key, byte[] data, int offset, int length,
+                                     boolean last) {
+    int recordBytes = HEADER_BYTES + length;
+    Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || segment.buffer.capacity() - segment.writePosition < recordBytes) {
+      if (segment != null && segment.pendingRecords == 0) {
+        deleteSegment(segment);
+      }
+      segment = createSegment(Math.max(segmentBytes, recordBytes));
+      if (segment == null) {
+        return false;
+      }
+    }
+    int position = segment.writePosition;
+    ByteBuffer record = segment.buffer.duplicate();
+    record.position(position + HEADER_BYTES);
+    record.put(data, offset, length);
+    segment.buffer.putLong(position + KEY_OFFSET, key);
+    segment.buffer.put(position + ACKNOWLEDGED_OFFSET, (byte) 0);
+    segment.buffer.put(position + LAST_OFFSET, (byte) (last ? 1 : 0));
+    segment.buffer.putInt(position + CRC_OFFSET, computeCrc(key, data, offset, length));
+    segment.buffer.putInt(position + LENGTH_OFFSET, length);
+    segment.buffer.force();
+    segment.writePosition += recordBytes;
+    addPendingEntry(new Entry(segment, position, length, key, nextSequence++, last));
+    return true;
+  }
+
+  /**
+   * Returns up to maxRecords records after the one with the given sequence, in the order they were
+   * appended. -1 starts from the oldest record.
+   */
+  public synchronized List<Entry> getPendingEntries(long afterSequence, int maxRecords) {
+    List<Entry> entries = new ArrayList<>();
+    for (Entry entry : pendingEntries.tailMap(afterSequence, /*inclusive=*/false).values()) {
+      if (entries.size() == maxRecords) {
+        break;
+      }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  public synchronized int getPendingCount() {
+    return pendingEntries.size();
+  }
+
+  /**
+   * Returns whether records with that key were not acknowledged yet.
+   */
+  public synchronized boolean hasPending(long key) {
+    return pendingRecordsByKey.containsKey(key);
+  }
+
+  /**
+   * Returns a read-only view of the data of the record. It stays valid after the record is
+   * acknowledged.
+   */
+  public ByteBuffer getData(Entry entry) {
+    ByteBuffer data = entry.segment.buffer.asReadOnlyBuffer();
+    data.position(entry.position + HEADER_BYTES);
+    data.limit(entry.position + HEADER_BYTES + entry.length);
+    return data.slice();
+  }
+
+  /**
+   * Marks the record as uploaded, so it is not returned anymore, and deletes its segment file if it
+   * has no other records to upload.
+   */
+  public synchronized void acknowledge(Entry entry) {
+    acknowledge(Collections.singletonList(entry));
+  }
+
+  /**
+   * Marks the records as uploaded, like {@link #acknowledge(Entry)}, writing each segment that
+   * keeps other records to disk once for all of them.
+   */
+  public synchronized void acknowledge(List<Entry> entries) {
+    List<Segment> acknowledgedSegments = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (pendingEntries.remove(entry.sequence) == null) {
+        continue;
+      }
+      entry.segment.buffer.put(entry.position + ACKNOWLEDGED_OFFSET, (byte) 1);
+      int keyRecords = pendingRecordsByKey.get(entry.key) - 1;
+      if (keyRecords == 0) {
+        pendingRecordsByKey.remove(entry.key);
+      } else {
+        pendingRecordsByKey.put(entry.key, keyRecords);
+      }
+      --entry.segment.pendingRecords;
+      if (!acknowledgedSegments.contains(entry.segment)) {
+        acknowledgedSegments.add(entry.segment);
+      }
+    }
+    for (Segment segment : acknowledgedSegments) {
+      // The last segment is kept while it has room to append.
+      if (segment.pendingRecords == 0 && segment != segments.get(segments.size() - 1)) {
+        deleteSegment(segment);
+      } else {
+        segment.buffer.force();
+      }
+    }
+  }
+
+  private void addPendingEntry(Entry entry) {
+    pendingEntries.put(entry.sequence, entry);
+    pendingRecordsByKey.merge(entry.key, 1, Integer::sum);
+    ++entry.segment.pendingRecords;
+  }
+
+  private int computeCrc(long key, byte[] data, int offset, int length) {
+    ByteBuffer.wrap(keyBytes).order(ByteOrder.LITTLE_ENDIAN).putLong(key);
+    crc.reset();
+    crc.update(keyBytes, 0, keyBytes.length);
+    crc.update(data, offset, length);
+    return (int) crc.getValue();
+  }
+
+  private void load() {
+    if (!directory.exists() && !directory.mkdirs()) {
+      RotatingFileLogger.get().loge(TAG, "Failed to create " + directory.getPath());
+      return;
+    }
+    File[] files = directory.listFiles((dir, fileName) -> fileName.endsWith(FILE_EXTENSION));
+    if (files == null) {
+      return;
+    }
+    long[] numbers = new long[files.length];
+    int segmentsCount = 0;
+    for (File file : files) {
+      try {
+        numbers[segmentsCount++] = Long.parseLong(
+            file.getName().substring(0, file.getName().length() - FILE_EXTENSION.length()));
+      } catch (NumberFormatException e) {
+        RotatingFileLogger.get().logw(TAG, "Ignoring " + file.getName());
+        --segmentsCount;
+      }
+    }
+    Arrays.sort(numbers, 0, segmentsCount);
+    for (int i = 0; i < segmentsCount; ++i) {
+      loadSegment(numbers[i]);
+    }
+    nextSegmentNumber = segmentsCount > 0 ? numbers[segmentsCount - 1] + 1 : 0;
+    if (!pendingEntries.isEmpty()) {
+      RotatingFileLogger.get().logi(TAG, "Loaded " + pendingEntries.size() +
+          " records to upload from " + segments.size() + " segments.");
+    }
+  }
+
+  private void loadSegment(long number) {
+    File file = getSegmentFile(number);
+    MappedByteBuffer buffer;
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+         FileChannel channel = randomAccessFile.getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+    } catch (IOException e) {
+      RotatingFileLogger.get().loge(TAG, "Failed to open outbox segment " + file.getName() +
+          ", its records are lost: " + e.getMessage());
+      return;
+    }
+    Segment segment = new Segment(file, buffer);
+    int position = 0;
+    while (position + HEADER_BYTES <= buffer.capacity()) {
+      int length = buffer.getInt(position + LENGTH_OFFSET);
+      if (length <= 0 || length > buffer.capacity() - position - HEADER_BYTES) {
+        break;
+      }
+      long key = buffer.getLong(position + KEY_OFFSET);
+      if (readBuffer.length < length) {
+        readBuffer = new byte[length];
+      }
+      ByteBuffer record = buffer.duplicate();
+      record.position(position + HEADER_BYTES);
+      record.get(readBuffer, 0, length);
+      if (buffer.getInt(position + CRC_OFFSET) != computeCrc(key, readBuffer, 0, length)) {
+        RotatingFileLogger.get().logw(TAG, "Corrupted record in " + file.getName() +
+            ", dropping the rest of the segment.");
+        break;
+      }
+      if (buffer.get(position + ACKNOWLEDGED_OFFSET) == 0) {
+        addPendingEntry(new Entry(segment, position, length, key, nextSequence++,
+            buffer.get(position + LAST_OFFSET) != 0));
+      }
+      position += HEADER_BYTES + length;
+    }
+    // Nothing can be appended after a corrupted record, so the segment is full.
+    segment.writePosition = buffer.capacity();
+    if (segment.pendingRecords == 0) {
+      deleteSegment(segment);
+      return;
+    }
+    segments.add(segment);
+  }
+
+  private File getSegmentFile(long number) {
+    return new File(directory, number + FILE_EXTENSION);
+  }
+
+  private @Nullable Segment createSegment(int bytes) {
+    long number = nextSegmentNumber++;
+    File file = getSegmentFile(number);
+    // The mapping stays valid after the file is closed.
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+         FileChannel channel = randomAccessFile.getChannel()) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      Segment segment = new Segment(file, buffer);
+      segments.add(segment);
+      return segment;
+    } catch (IOException e) {
+      RotatingFileLogger.get().loge(TAG, "Failed to create outbox segment " + file.getName() +
+          ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void deleteSegment(Segment segment) {
+    segments.remove(segment);
+    if (!segment.file.delete()) {
+      RotatingFileLogger.get().logw(TAG, "Failed to delete " + segment.file.getName());
+    }
+  }
+}
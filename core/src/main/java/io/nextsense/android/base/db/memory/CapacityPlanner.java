@@ -0,0 +1,55 @@
+package io.nextsense.android.base.db.memory;
+
+/**
+ * Splits a memory budget between the channels of a {@link MemoryCache} so that all of them keep
+ * the same duration of data, whatever their sampling rate.
+ */
+class CapacityPlanner {
+  // Each ring buffer needs at least 2 values for the window statistics.
+  private static final int MIN_CAPACITY = 2;
+
+  private final int eegCapacity;
+  private final int imuCapacity;
+
+  private CapacityPlanner(int eegCapacity, int imuCapacity) {
+    this.eegCapacity = eegCapacity;
+    this.imuCapacity = imuCapacity;
+  }
+
+  /**
+   * Plans the capacities for the budget. Sampling rates are in samples per second and need to be
+   * positive if there are channels of that modality.
+   */
+  static CapacityPlanner plan(long budgetBytes, int eegChannels, float eegSamplingRate,
+                              int imuChannels, float imuSamplingRate) {
+    if ((eegChannels > 0 && eegSamplingRate <= 0) || (imuChannels > 0 && imuSamplingRate <= 0)) {
+      throw new IllegalArgumentException("Sampling rates need to be positive, got " +
+          eegSamplingRate + " and " + imuSamplingRate);
+    }
+    double bytesPerSecond = 0;
+    if (eegChannels > 0) {
+      // The cache also keeps one timestamp per EEG sample for all the channels.
+      bytesPerSecond += eegSamplingRate *
+          (eegChannels * EegChannelBuffer.getBytesPerValue() + Long.BYTES);
+    }
+    bytesPerSecond += (double) imuChannels * imuSamplingRate * Integer.BYTES;
+    if (bytesPerSecond == 0) {
+      return new CapacityPlanner(MIN_CAPACITY, MIN_CAPACITY);
+    }
+    double retentionSeconds = budgetBytes / bytesPerSecond;
+    return new CapacityPlanner(toCapacity(retentionSeconds * eegSamplingRate),
+        toCapacity(retentionSeconds * imuSamplingRate));
+  }
+
+  int getEegCapacity() {
+    return eegCapacity;
+  }
+
+  int getImuCapacity() {
+    return imuCapacity;
+  }
+
+  private static int toCapacity(double samples) {
+    return (int) Math.max(MIN_CAPACITY, Math.min(Integer.MAX_VALUE - 8, samples));
+  }
+}
@@ -0,0 +1,80 @@
+package io.nextsense.android.base.db.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values of an EEG channel between two sampling timestamps, see
+ * {@link MemoryCache#getRange(String, long, long)}.
+ */
+public class ChannelRange {
+  private final float[] values;
+  private final long[] timestamps;
+  private int size;
+  private int gapCount;
+
+  public ChannelRange(int capacity) {
+    values = new float[capacity];
+    timestamps = new long[capacity];
+  }
+
+  public int getCapacity() {
+    return values.length;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Values in the range, oldest first. Only the first {@link #getSize()} values are valid.
+   */
+  public float[] getValues() {
+    return values;
+  }
+
+  public long[] getTimestamps() {
+    return timestamps;
+  }
+
+  /**
+   * Boxed copy of the values, for the APIs that take lists.
+   */
+  public List<Float> getValueList() {
+    List<Float> valueList = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      valueList.add(values[i]);
+    }
+    return valueList;
+  }
+
+  /**
+   * Number of places in the range where samples are missing, for example because packets were
+   * lost. The sampling period is estimated as the smallest interval between two timestamps in the
+   * range, and any interval more than 1.5 times longer is counted as a gap.
+   */
+  public int getGapCount() {
+    return gapCount;
+  }
+
+  void setSize(int size) {
+    this.size = size;
+    gapCount = 0;
+    long period = Long.MAX_VALUE;
+    for (int i = 1; i < size; ++i) {
+      long interval = timestamps[i] - timestamps[i - 1];
+      if (interval > 0 && interval < period) {
+        period = interval;
+      }
+    }
+    if (period == Long.MAX_VALUE) {
+      return;
+    }
+    for (int i = 1; i < size; ++i) {
+      // Same as interval > 1.5 * period without floating point.
+      if ((timestamps[i] - timestamps[i - 1]) * 2 > period * 3) {
+        ++gapCount;
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package io.nextsense.android.base.db.memory;
+
+/**
+ * Statistics of the values of an EEG channel in a recent time window, see
+ * {@link MemoryCache#getChannelStats(String, java.time.Duration, ChannelStats)}.
+ *
+ * Can be reused between calls to avoid allocations when polling.
+ */
+public class ChannelStats {
+  private int count;
+  private float mean;
+  private float variance;
+  private float rms;
+  private float min;
+  private float max;
+  private int clipCount;
+
+  public int getCount() {
+    return count;
+  }
+
+  public float getMean() {
+    return mean;
+  }
+
+  public float getVariance() {
+    return variance;
+  }
+
+  public float getStandardDeviation() {
+    return (float) Math.sqrt(variance);
+  }
+
+  public float getRms() {
+    return rms;
+  }
+
+  public float getMin() {
+    return min;
+  }
+
+  public float getMax() {
+    return max;
+  }
+
+  public float getRange() {
+    return max - min;
+  }
+
+  /**
+   * Number of values with an absolute value at or above the clip threshold of the cache.
+   */
+  public int getClipCount() {
+    return clipCount;
+  }
+
+  void set(int count, float mean, float variance, float rms, float min, float max, int clipCount) {
+    this.count = count;
+    this.mean = mean;
+    this.variance = variance;
+    this.rms = rms;
+    this.min = min;
+    this.max = max;
+    this.clipCount = clipCount;
+  }
+}
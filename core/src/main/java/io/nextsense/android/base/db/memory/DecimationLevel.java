@@ -0,0 +1,122 @@
+package io.nextsense.android.base.db.memory;
+
+import io.nextsense.android.base.utils.FloatRingBuffer;
+import io.nextsense.android.base.utils.LongRingBuffer;
+
+/**
+ * One level of the decimation pyramid of an {@link EegChannelBuffer}. Each bucket summarizes a
+ * fixed number of consecutive samples with their min, max and mean, and the timestamp of the first
+ * sample.
+ *
+ * Buckets are built from the buckets of the level below (or from raw samples for the first level),
+ * and the one being filled is kept in an accumulator until it is complete.
+ */
+class DecimationLevel {
+  static final int BUCKET_BYTES = 3 * Float.BYTES + Long.BYTES;
+
+  private final int factor;
+  private final FloatRingBuffer mins;
+  private final FloatRingBuffer maxs;
+  private final FloatRingBuffer means;
+  private final LongRingBuffer timestamps;
+
+  // Bucket being filled.
+  private float accumulatedMin;
+  private float accumulatedMax;
+  private double accumulatedSum;
+  private int accumulatedCount;
+  private long accumulatedTimestamp;
+
+  /**
+   * @param factor number of raw samples in each bucket.
+   * @param capacity number of buckets to keep.
+   */
+  DecimationLevel(int factor, int capacity) {
+    this.factor = factor;
+    mins = new FloatRingBuffer(capacity);
+    maxs = new FloatRingBuffer(capacity);
+    means = new FloatRingBuffer(capacity);
+    timestamps = new LongRingBuffer(capacity);
+  }
+
+  int getFactor() {
+    return factor;
+  }
+
+  int getSize() {
+    return mins.getSize();
+  }
+
+  /**
+   * Adds a summary of {@code count} consecutive samples to the bucket being filled.
+   *
+   * @return true if this completed a bucket, which can then be read with the getLast* methods at
+   *     offset 0 to feed the next level.
+   */
+  boolean add(float min, float max, double sum, int count, long timestamp) {
+    if (accumulatedCount == 0) {
+      accumulatedMin = min;
+      accumulatedMax = max;
+      accumulatedSum = sum;
+      accumulatedTimestamp = timestamp;
+    } else {
+      accumulatedMin = Math.min(accumulatedMin, min);
+      accumulatedMax = Math.max(accumulatedMax, max);
+      accumulatedSum += sum;
+    }
+    accumulatedCount += count;
+    if (accumulatedCount < factor) {
+      return false;
+    }
+    mins.addValue(accumulatedMin);
+    maxs.addValue(accumulatedMax);
+    means.addValue((float) (accumulatedSum / accumulatedCount));
+    timestamps.addValue(accumulatedTimestamp);
+    accumulatedCount = 0;
+    return true;
+  }
+
+  float getLastMin(int offset) {
+    return mins.getLastValue(offset);
+  }
+
+  float getLastMax(int offset) {
+    return maxs.getLastValue(offset);
+  }
+
+  float getLastMean(int offset) {
+    return means.getLastValue(offset);
+  }
+
+  long getLastTimestamp(int offset) {
+    return timestamps.getLastValue(offset);
+  }
+
+  float getAccumulatedMin() {
+    return accumulatedMin;
+  }
+
+  float getAccumulatedMax() {
+    return accumulatedMax;
+  }
+
+  double getAccumulatedSum() {
+    return accumulatedSum;
+  }
+
+  int getAccumulatedCount() {
+    return accumulatedCount;
+  }
+
+  long getAccumulatedTimestamp() {
+    return accumulatedTimestamp;
+  }
+
+  void clear() {
+    mins.clear();
+    maxs.clear();
+    means.clear();
+    timestamps.clear();
+    accumulatedCount = 0;
+  }
+}
@@ -0,0 +1,341 @@
+package io.nextsense.android.base.db.memory;
+
+import androidx.annotation.Nullable;
+
+import io.nextsense.android.base.utils.FloatRingBuffer;
+import io.nextsense.android.base.utils.LongRingBuffer;
+
+/**
+ * Recent values of a single EEG channel with the sampling timestamp of each value.
+ *
+ * Each channel keeps its own timestamps as devices like Maui send the channels of each earbud in
+ * separate samples, so the channels are not always aligned.
+ *
+ * A pyramid of decimated levels is maintained as values are added so that envelopes of long periods
+ * can be read without going through every sample. Each level covers the same period as the raw
+ * values, so it only needs the capacity divided by its factor.
+ *
+ * Statistics over sliding windows of the most recent values are also maintained, see
+ * {@link WindowStatistics}.
+ *
+ * With a {@link SpillTier}, values evicted from the ring buffer are moved to it and the getLast*
+ * methods can return more values than the capacity.
+ */
+class EegChannelBuffer {
+  // Number of raw samples per bucket in each level of the pyramid.
+  private static final int[] DECIMATION_FACTORS = {8, 64, 512};
+
+  private final FloatRingBuffer values;
+  private final LongRingBuffer timestamps;
+  private final DecimationLevel[] levels;
+  private final WindowStatistics[] windowStatistics;
+  @Nullable private final SpillTier spillTier;
+
+  EegChannelBuffer(int capacity) {
+    this(capacity, new WindowStatistics[0], /*spillTier=*/null);
+  }
+
+  EegChannelBuffer(int capacity, WindowStatistics[] windowStatistics,
+                   @Nullable SpillTier spillTier) {
+    this.windowStatistics = windowStatistics;
+    this.spillTier = spillTier;
+    values = new FloatRingBuffer(capacity);
+    timestamps = new LongRingBuffer(capacity);
+    levels = new DecimationLevel[DECIMATION_FACTORS.length];
+    for (int i = 0; i < levels.length; ++i) {
+      levels[i] = new DecimationLevel(
+          DECIMATION_FACTORS[i], Math.max(1, capacity / DECIMATION_FACTORS[i]));
+    }
+  }
+
+  /**
+   * Approximate memory used per value of capacity, including the decimated levels.
+   */
+  static double getBytesPerValue() {
+    double bytesPerValue = Float.BYTES + Long.BYTES;
+    for (int factor : DECIMATION_FACTORS) {
+      bytesPerValue += (double) DecimationLevel.BUCKET_BYTES / factor;
+    }
+    return bytesPerValue;
+  }
+
+  int getCapacity() {
+    return values.getCapacity();
+  }
+
+  int getSize() {
+    return values.getSize();
+  }
+
+  void addValue(float value, long timestamp) {
+    if (spillTier != null && values.getSize() == values.getCapacity()) {
+      int oldest = values.getCapacity() - 1;
+      spillTier.append(timestamps.getLastValue(oldest), values.getLastValue(oldest));
+    }
+    for (WindowStatistics statistics : windowStatistics) {
+      statistics.add(value, timestamp, values, timestamps);
+    }
+    values.addValue(value);
+    timestamps.addValue(timestamp);
+    // Each level only gets a bucket when the one below completes one, so this is O(1) amortized.
+    boolean completed = levels[0].add(value, value, value, 1, timestamp);
+    for (int i = 1; i < levels.length && completed; ++i) {
+      DecimationLevel below = levels[i - 1];
+      completed = levels[i].add(below.getLastMin(0), below.getLastMax(0),
+          (double) below.getLastMean(0) * below.getFactor(), below.getFactor(),
+          below.getLastTimestamp(0));
+    }
+  }
+
+  int getLastValues(int numberOfValues, float[] destination) {
+    return getLastValues(numberOfValues, destination, /*timestampsDestination=*/null);
+  }
+
+  /**
+   * Copies the last values, oldest first, reading the older ones from the spill tier if needed.
+   *
+   * @param timestampsDestination can be null if only the values are needed.
+   */
+  int getLastValues(int numberOfValues, float[] valuesDestination,
+                    @Nullable long[] timestampsDestination) {
+    return getValues(/*skippedValues=*/0, numberOfValues, valuesDestination,
+        timestampsDestination);
+  }
+
+  /**
+   * Copies the values that precede the {@code skippedValues} most recent ones, oldest first,
+   * reading the older ones from the spill tier if needed.
+   *
+   * @param timestampsDestination can be null if only the values are needed.
+   */
+  int getValues(int skippedValues, int numberOfValues, float[] valuesDestination,
+                @Nullable long[] timestampsDestination) {
+    int count = Math.min(numberOfValues, valuesDestination.length);
+    if (timestampsDestination != null) {
+      count = Math.min(count, timestampsDestination.length);
+    }
+    if (count <= 0) {
+      return 0;
+    }
+    int ringSize = values.getSize();
+    int ringCount = Math.min(count, Math.max(0, ringSize - skippedValues));
+    int spilledCount = 0;
+    if (spillTier != null && ringCount < count) {
+      long spilledSize = spillTier.getSize();
+      long spilledEnd = spilledSize - Math.max(0, skippedValues - ringSize);
+      spilledCount = (int) Math.max(0, Math.min(count - ringCount, spilledEnd));
+      spillTier.getRecords(spilledEnd - spilledCount, spilledCount, valuesDestination, 0,
+          timestampsDestination, 0);
+    }
+    values.getLastValues(ringCount, skippedValues, valuesDestination, spilledCount);
+    if (timestampsDestination != null) {
+      timestamps.getLastValues(ringCount, skippedValues, timestampsDestination, spilledCount);
+    }
+    return spilledCount + ringCount;
+  }
+
+  /**
+   * Fills the range with the values with a timestamp in {@code [fromTimestamp, toTimestamp)}. If
+   * there are more values than the range capacity, the most recent ones are kept.
+   */
+  void getRange(long fromTimestamp, long toTimestamp, ChannelRange range) {
+    int skippedValues = countValuesSince(toTimestamp);
+    int count = countValuesSince(fromTimestamp) - skippedValues;
+    range.setSize(count <= 0 ? 0 :
+        getValues(skippedValues, count, range.getValues(), range.getTimestamps()));
+  }
+
+  /**
+   * Returns the number of values with a timestamp in {@code [fromTimestamp, toTimestamp)}.
+   */
+  int countRange(long fromTimestamp, long toTimestamp) {
+    return Math.max(0, countValuesSince(fromTimestamp) - countValuesSince(toTimestamp));
+  }
+
+  /**
+   * Returns the timestamp of the last value, or {@code Long.MIN_VALUE} if there are none.
+   */
+  long getLastTimestamp() {
+    return getSize() == 0 ? Long.MIN_VALUE : timestamps.getLastValue(0);
+  }
+
+  /**
+   * Fills the statistics of the window with the given length.
+   *
+   * @return false if there are no statistics for this window length.
+   */
+  boolean getStats(long windowMillis, ChannelStats stats) {
+    for (WindowStatistics statistics : windowStatistics) {
+      if (statistics.getWindowMillis() == windowMillis) {
+        statistics.getStats(stats);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of most recent values with a timestamp greater or equal to the given one.
+   */
+  int countValuesSince(long timestamp) {
+    int low = 0;
+    int high = getSize();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (timestamps.getLastValue(middle) >= timestamp) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    if (spillTier != null && low == getSize()) {
+      return (int) Math.min(Integer.MAX_VALUE - low, spillTier.countRecordsSince(timestamp)) + low;
+    }
+    return low;
+  }
+
+  /**
+   * Fills the envelope with the values of the last {@code durationMillis}, based on the timestamp
+   * of the last value.
+   */
+  void getEnvelope(long durationMillis, EegEnvelope envelope) {
+    if (getSize() == 0) {
+      envelope.setSize(0, 0);
+      return;
+    }
+    getEnvelope(countValuesSince(timestamps.getLastValue(0) - durationMillis + 1), envelope);
+  }
+
+  /**
+   * Fills the envelope with the last values, reading them from the coarsest level that still gives
+   * at least {@code envelope.getMaxPoints() / 8} points, then merging buckets to fit in the
+   * envelope.
+   */
+  void getEnvelope(int numberOfValues, EegEnvelope envelope) {
+    int maxPoints = envelope.getMaxPoints();
+    int count = Math.min(numberOfValues, getSize());
+    if (count <= 0 || maxPoints <= 0) {
+      envelope.setSize(0, 0);
+      return;
+    }
+    int samplesPerPoint = (count + maxPoints - 1) / maxPoints;
+    int levelIndex = -1;
+    while (levelIndex + 1 < levels.length &&
+        levels[levelIndex + 1].getFactor() <= samplesPerPoint) {
+      ++levelIndex;
+    }
+    DecimationLevel level = levelIndex >= 0 ? levels[levelIndex] : null;
+    int factor = level != null ? level.getFactor() : 1;
+
+    // The values after the last complete bucket of the level are spread in the accumulators of the
+    // level and the ones below it, with the oldest ones in the highest level.
+    float partialMin = 0;
+    float partialMax = 0;
+    double partialSum = 0;
+    int partialCount = 0;
+    long partialTimestamp = 0;
+    for (int i = levelIndex; i >= 0; --i) {
+      DecimationLevel partialLevel = levels[i];
+      if (partialLevel.getAccumulatedCount() == 0) {
+        continue;
+      }
+      if (partialCount == 0) {
+        partialMin = partialLevel.getAccumulatedMin();
+        partialMax = partialLevel.getAccumulatedMax();
+        partialTimestamp = partialLevel.getAccumulatedTimestamp();
+      } else {
+        partialMin = Math.min(partialMin, partialLevel.getAccumulatedMin());
+        partialMax = Math.max(partialMax, partialLevel.getAccumulatedMax());
+      }
+      partialSum += partialLevel.getAccumulatedSum();
+      partialCount += partialLevel.getAccumulatedCount();
+    }
+    int buckets;
+    if (level == null) {
+      buckets = count;
+    } else if (partialCount >= count) {
+      buckets = 0;
+    } else {
+      buckets = Math.min(level.getSize(), (count - partialCount + factor - 1) / factor);
+    }
+    int items = buckets + (partialCount > 0 ? 1 : 0);
+    // Can happen when the buffer is cleared during an optimistic read, which is then retried.
+    if (items == 0) {
+      envelope.setSize(0, 0);
+      return;
+    }
+    int itemsPerPoint = (items + maxPoints - 1) / maxPoints;
+    int points = (items + itemsPerPoint - 1) / itemsPerPoint;
+
+    // The first point takes the remainder so that the last point ends with the last value.
+    int pointItems = items - (points - 1) * itemsPerPoint;
+    int itemsInPoint = 0;
+    int point = 0;
+    float pointMin = 0;
+    float pointMax = 0;
+    double pointSum = 0;
+    int pointCount = 0;
+    long pointTimestamp = 0;
+    for (int i = 0; i < items; ++i) {
+      float min;
+      float max;
+      double sum;
+      int itemCount;
+      long timestamp;
+      if (i < buckets) {
+        int offset = buckets - 1 - i;
+        if (level == null) {
+          min = values.getLastValue(offset);
+          max = min;
+          sum = min;
+          timestamp = timestamps.getLastValue(offset);
+        } else {
+          min = level.getLastMin(offset);
+          max = level.getLastMax(offset);
+          sum = (double) level.getLastMean(offset) * factor;
+          timestamp = level.getLastTimestamp(offset);
+        }
+        itemCount = factor;
+      } else {
+        min = partialMin;
+        max = partialMax;
+        sum = partialSum;
+        itemCount = partialCount;
+        timestamp = partialTimestamp;
+      }
+      if (itemsInPoint == 0) {
+        pointMin = min;
+        pointMax = max;
+        pointSum = sum;
+        pointCount = itemCount;
+        pointTimestamp = timestamp;
+      } else {
+        pointMin = Math.min(pointMin, min);
+        pointMax = Math.max(pointMax, max);
+        pointSum += sum;
+        pointCount += itemCount;
+      }
+      if (++itemsInPoint == pointItems) {
+        envelope.setPoint(
+            point++, pointTimestamp, pointMin, pointMax, (float) (pointSum / pointCount));
+        itemsInPoint = 0;
+        pointItems = itemsPerPoint;
+      }
+    }
+    envelope.setSize(point, itemsPerPoint * factor);
+  }
+
+  void clear() {
+    values.clear();
+    timestamps.clear();
+    for (DecimationLevel level : levels) {
+      level.clear();
+    }
+    for (WindowStatistics statistics : windowStatistics) {
+      statistics.clear();
+    }
+    if (spillTier != null) {
+      spillTier.clear();
+    }
+  }
+}
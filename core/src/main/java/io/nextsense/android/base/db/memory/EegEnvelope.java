@@ -0,0 +1,73 @@
+package io.nextsense.android.base.db.memory;
+
+/**
+ * Min, max and mean of consecutive groups of samples of an EEG channel, to draw a long period of
+ * signal with a limited number of points.
+ *
+ * Like {@link EegSnapshot}, the arrays are allocated once with the maximum number of points and
+ * reused by each call to {@link MemoryCache#getEnvelope(String, java.time.Duration, EegEnvelope)}.
+ */
+public class EegEnvelope {
+  private final float[] mins;
+  private final float[] maxs;
+  private final float[] means;
+  private final long[] timestamps;
+  private int size;
+  private int samplesPerPoint;
+
+  public EegEnvelope(int maxPoints) {
+    mins = new float[maxPoints];
+    maxs = new float[maxPoints];
+    means = new float[maxPoints];
+    timestamps = new long[maxPoints];
+  }
+
+  public int getMaxPoints() {
+    return mins.length;
+  }
+
+  /**
+   * Number of valid points, oldest first.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Number of samples summarized by each point. The first point can contain less.
+   */
+  public int getSamplesPerPoint() {
+    return samplesPerPoint;
+  }
+
+  public float[] getMins() {
+    return mins;
+  }
+
+  public float[] getMaxs() {
+    return maxs;
+  }
+
+  public float[] getMeans() {
+    return means;
+  }
+
+  /**
+   * Sampling timestamp of the first sample of each point.
+   */
+  public long[] getTimestamps() {
+    return timestamps;
+  }
+
+  void setPoint(int index, long timestamp, float min, float max, float mean) {
+    timestamps[index] = timestamp;
+    mins[index] = min;
+    maxs[index] = max;
+    means[index] = mean;
+  }
+
+  void setSize(int size, int samplesPerPoint) {
+    this.size = size;
+    this.samplesPerPoint = samplesPerPoint;
+  }
+}
@@ -0,0 +1,59 @@
+package io.nextsense.android.base.db.memory;
+
+import java.util.List;
+
+/**
+ * Consistent copy of the most recent values and timestamps of several EEG channels, as they were
+ * at a single point in the ingestion.
+ *
+ * The arrays are allocated once and reused by each call to
+ * {@link MemoryCache#getLastEegSnapshot(EegSnapshot, int)}, so a reader polling the cache does not
+ * allocate after the first call. It should not be shared between threads.
+ */
+public class EegSnapshot {
+  private final String[] channelNames;
+  private final float[][] values;
+  private final long[][] timestamps;
+  private final int[] sizes;
+
+  public EegSnapshot(List<String> channelNames, int capacity) {
+    this.channelNames = channelNames.toArray(new String[0]);
+    values = new float[this.channelNames.length][capacity];
+    timestamps = new long[this.channelNames.length][capacity];
+    sizes = new int[this.channelNames.length];
+  }
+
+  public int getCapacity() {
+    return values.length == 0 ? 0 : values[0].length;
+  }
+
+  public int getChannelCount() {
+    return channelNames.length;
+  }
+
+  public String getChannelName(int channelIndex) {
+    return channelNames[channelIndex];
+  }
+
+  /**
+   * Values of the channel, oldest first. Only the first {@link #getSize(int)} values are valid.
+   */
+  public float[] getValues(int channelIndex) {
+    return values[channelIndex];
+  }
+
+  /**
+   * Sampling timestamp of each value of the channel.
+   */
+  public long[] getTimestamps(int channelIndex) {
+    return timestamps[channelIndex];
+  }
+
+  public int getSize(int channelIndex) {
+    return sizes[channelIndex];
+  }
+
+  void setSize(int channelIndex, int size) {
+    sizes[channelIndex] = size;
+  }
+}
@@ -1,205 +1,588 @@
 package io.nextsense.android.base.db.memory;
 
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
 
 import io.nextsense.android.base.data.Acceleration;
 import io.nextsense.android.base.data.AngularSpeed;
+import io.nextsense.android.base.data.ChannelLayout;
 import io.nextsense.android.base.data.EegSample;
 import io.nextsense.android.base.data.Samples;
-import io.nextsense.android.base.utils.EvictingArray;
+import io.nextsense.android.base.utils.IntRingBuffer;
+import io.nextsense.android.base.utils.LongRingBuffer;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 
 /**
  * Memory cache for recent data for performance.
+ *
+ * Values are kept in primitive ring buffers so that adding samples does not allocate or shift
+ * memory, and the getLast* variants that take a destination array can be used to read without
+ * per-sample allocations.
+ *
+ * There is a single writer at a time, the {@link io.nextsense.android.base.db.CacheSink}, and many
+ * readers polling for the UI. Readers never lock: they copy the data optimistically and retry if a
+ * packet was added during the copy, so a slow reader can't delay the ingestion.
+ *
+ * Buffers have a fixed number of samples by default. With a memory budget, the budget is split
+ * between the channels when the cache is initialized so that they all keep the same duration of
+ * data, see {@link #getRetention(String)}.
+ *
+ * Optionally, EEG values older than the ring buffers can be kept in memory-mapped files, see
+ * {@link #setSpillTier(File, Duration)}.
  */
 public class MemoryCache {
   private static final String TAG = MemoryCache.class.getSimpleName();
   // 250 samples per second times 60 seconds times 12 minutes.
   private static final int DEFAULT_RETENTION_SAMPLES = 250 * 60 * 12;
+  // Used when initialized without sampling rates.
+  private static final float DEFAULT_SAMPLING_RATE = 250;
+  // Number of failed optimistic reads after which a reader yields before retrying, to let the
+  // writer finish its packet.
+  private static final int OPTIMISTIC_READ_SPINS = 4;
+  private static final List<Duration> DEFAULT_STATS_WINDOWS =
+      Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(4), Duration.ofSeconds(30));
+  // Cached as values() copies the array on each call.
+  private static final Acceleration.Channels[] ACCELERATION_CHANNELS =
+      Acceleration.Channels.values();
+  private static final AngularSpeed.Channels[] ANGULAR_SPEED_CHANNELS =
+      AngularSpeed.Channels.values();
 
-  private final Map<String, EvictingArray<Float>> eegChannels = new HashMap<>();
-  private final Map<String, EvictingArray<Integer>> imuChannels = new HashMap<>();
-  private final EvictingArray<Long> timestamps;
-  private final Object eegLock = new Object();
-  private final Object imuLock = new Object();
+  // Only the write lock is ever acquired. Readers use optimistic stamps that don't block it.
+  private final StampedLock eegLock = new StampedLock();
+  private final StampedLock imuLock = new StampedLock();
+  private volatile LongRingBuffer timestamps = new LongRingBuffer(DEFAULT_RETENTION_SAMPLES);
+  // Channel maps are replaced, never modified, so readers can use them without locking.
+  private volatile Map<String, EegChannelBuffer> eegChannels = Collections.emptyMap();
+  private volatile Map<String, IntRingBuffer> imuChannels = Collections.emptyMap();
+  // Buffers at the index of their channel in the layout. Used when adding samples so that channels
+  // are not looked up by name or boxed channel number. Replaced while holding both write locks.
+  private volatile ChannelLayout channelLayout =
+      ChannelLayout.create(Collections.emptyList(), Collections.emptyList());
+  private EegChannelBuffer[] eegChannelBuffers = new EegChannelBuffer[0];
+  private IntRingBuffer[] imuChannelBuffers = new IntRingBuffer[0];
+  @Nullable private File spillDirectory;
+  private Duration spillRetention = Duration.ZERO;
+  private List<Duration> statsWindows = DEFAULT_STATS_WINDOWS;
+  private float clipThreshold = Float.POSITIVE_INFINITY;
+  // 0 when the buffers have a fixed number of samples.
+  private final long memoryBudgetBytes;
+  private volatile Map<String, Duration> retentions = Collections.emptyMap();
 
-  private MemoryCache() {
-    timestamps = new EvictingArray<>(DEFAULT_RETENTION_SAMPLES);
+  private MemoryCache(long memoryBudgetBytes) {
+    this.memoryBudgetBytes = memoryBudgetBytes;
   }
 
   private MemoryCache(List<String> eegChannelNames, List<String> imuChannelNames) {
-    for (String eegChannelName : eegChannelNames) {
-      eegChannels.put(eegChannelName, new EvictingArray<>(DEFAULT_RETENTION_SAMPLES));
-    }
-    for (String imuChannelName : imuChannelNames) {
-      imuChannels.put(imuChannelName, new EvictingArray<>(DEFAULT_RETENTION_SAMPLES));
-    }
-    timestamps = new EvictingArray<>(DEFAULT_RETENTION_SAMPLES);
+    this(/*memoryBudgetBytes=*/0);
+    init(eegChannelNames, imuChannelNames);
   }
 
   public static MemoryCache create() {
-    return new MemoryCache();
+    return new MemoryCache(/*memoryBudgetBytes=*/0);
+  }
+
+  /**
+   * Creates a cache that splits the memory budget between the channels given to
+   * {@link #init(List, List, float, float)}, based on their sampling rates.
+   */
+  public static MemoryCache create(long memoryBudgetBytes) {
+    if (memoryBudgetBytes <= 0) {
+      throw new IllegalArgumentException(
+          "memoryBudgetBytes needs to be positive, got " + memoryBudgetBytes);
+    }
+    return new MemoryCache(memoryBudgetBytes);
   }
 
   public static MemoryCache create(List<String> eegChannelNames, List<String> imuChannelNames) {
     return new MemoryCache(eegChannelNames, imuChannelNames);
   }
+
+  /**
+   * Keeps the EEG values evicted from the ring buffers in memory-mapped files in the directory, so
+   * that they can still be read with the getLast* methods. Each channel keeps about that duration
+   * of values at the EEG sampling rate given to {@link #init(List, List, float, float)}, with
+   * {@link SpillTier#RECORD_BYTES} per value on disk, and drops the oldest ones after. The files
+   * are deleted by {@link #init(List, List)} and {@link #clear()}.
+   *
+   * Takes effect on the next call to {@link #init(List, List)}.
+   *
+   * @param directory should be in the app private storage and only used by this cache.
+   */
+  public synchronized void setSpillTier(File directory, Duration retention) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      RotatingFileLogger.get().logw(TAG, "Failed to create the spill directory " + directory +
+          ", older values will not be kept.");
+      return;
+    }
+    spillDirectory = directory;
+    spillRetention = retention;
+  }
+
+  /**
+   * Sets the windows over which statistics are maintained for each EEG channel, see
+   * {@link #getChannelStats(String, Duration, ChannelStats)}. Defaults to 1, 4 and 30 seconds.
+   *
+   * Takes effect on the next call to {@link #init(List, List)}.
+   */
+  public synchronized void setStatsWindows(List<Duration> windows) {
+    statsWindows = new ArrayList<>(windows);
+  }
+
+  /**
+   * Sets the absolute value at or above which an EEG value is counted as clipped in the channel
+   * statistics. By default no value is counted.
+   *
+   * Takes effect on the next call to {@link #init(List, List)}.
+   */
+  public synchronized void setClipThreshold(float clipThreshold) {
+    this.clipThreshold = clipThreshold;
+  }
+
   public void init(List<String> eegChannelNames, List<String> imuChannelNames) {
-    eegChannels.clear();
-    for (String eegChannelName : eegChannelNames) {
-      eegChannels.put(eegChannelName, new EvictingArray<>(DEFAULT_RETENTION_SAMPLES));
+    init(eegChannelNames, imuChannelNames, DEFAULT_SAMPLING_RATE, DEFAULT_SAMPLING_RATE);
+  }
+
+  /**
+   * Replaces the channels with new empty ones, sized for the sampling rates in samples per second
+   * when the cache has a memory budget. The new buffers are allocated before taking the locks, so
+   * the writer and readers are only blocked while they are swapped.
+   */
+  public synchronized void init(List<String> eegChannelNames, List<String> imuChannelNames,
+                                float eegSamplingRate, float imuSamplingRate) {
+    int eegCapacity = DEFAULT_RETENTION_SAMPLES;
+    int imuCapacity = DEFAULT_RETENTION_SAMPLES;
+    if ((!eegChannelNames.isEmpty() && eegSamplingRate <= 0) ||
+        (!imuChannelNames.isEmpty() && imuSamplingRate <= 0)) {
+      RotatingFileLogger.get().logw(TAG, "Invalid sampling rates " + eegSamplingRate + " and " +
+          imuSamplingRate + ", using " + DEFAULT_SAMPLING_RATE + " instead.");
+      eegSamplingRate = eegSamplingRate > 0 ? eegSamplingRate : DEFAULT_SAMPLING_RATE;
+      imuSamplingRate = imuSamplingRate > 0 ? imuSamplingRate : DEFAULT_SAMPLING_RATE;
+    }
+    if (memoryBudgetBytes > 0) {
+      CapacityPlanner planner = CapacityPlanner.plan(memoryBudgetBytes, eegChannelNames.size(),
+          eegSamplingRate, imuChannelNames.size(), imuSamplingRate);
+      eegCapacity = planner.getEegCapacity();
+      imuCapacity = planner.getImuCapacity();
     }
-    imuChannels.clear();
-    for (String imuChannelName : imuChannelNames) {
-      imuChannels.put(imuChannelName, new EvictingArray<>(DEFAULT_RETENTION_SAMPLES));
+    ChannelLayout newChannelLayout = ChannelLayout.create(eegChannelNames, imuChannelNames);
+    Map<String, Duration> newRetentions = new HashMap<>();
+    Map<String, EegChannelBuffer> newEegChannels = new HashMap<>();
+    EegChannelBuffer[] newEegChannelBuffers =
+        new EegChannelBuffer[newChannelLayout.getEegChannelCount()];
+    long spillBytes = (long) Math.ceil(spillRetention.toMillis() * eegSamplingRate / 1000) *
+        SpillTier.RECORD_BYTES;
+    for (int i = 0; i < newEegChannelBuffers.length; ++i) {
+      String eegChannelName = newChannelLayout.getEegChannelName(i);
+      SpillTier spillTier = spillDirectory == null ? null :
+          new SpillTier(spillDirectory, "eeg_" + eegChannelName, spillBytes);
+      WindowStatistics[] windowStatistics = new WindowStatistics[statsWindows.size()];
+      for (int j = 0; j < windowStatistics.length; ++j) {
+        windowStatistics[j] = new WindowStatistics(statsWindows.get(j).toMillis(), clipThreshold);
+      }
+      newEegChannelBuffers[i] = new EegChannelBuffer(eegCapacity, windowStatistics, spillTier);
+      newEegChannels.put(eegChannelName, newEegChannelBuffers[i]);
+      newRetentions.put(eegChannelName, getRetention(eegCapacity, eegSamplingRate));
+      if (newChannelLayout.getEegChannelNumber(i) == ChannelLayout.NO_INDEX) {
+        RotatingFileLogger.get().logw(TAG, "EEG channel " + eegChannelName +
+            " is not a channel number, it will not receive samples.");
+      }
+    }
+    Map<String, IntRingBuffer> newImuChannels = new HashMap<>();
+    IntRingBuffer[] newImuChannelBuffers = new IntRingBuffer[newChannelLayout.getImuChannelCount()];
+    for (int i = 0; i < newImuChannelBuffers.length; ++i) {
+      String imuChannelName = newChannelLayout.getImuChannelName(i);
+      newImuChannelBuffers[i] = new IntRingBuffer(imuCapacity);
+      newImuChannels.put(imuChannelName, newImuChannelBuffers[i]);
+      newRetentions.put(imuChannelName, getRetention(imuCapacity, imuSamplingRate));
+    }
+    LongRingBuffer newTimestamps = new LongRingBuffer(eegCapacity);
+
+    long eegStamp = eegLock.writeLock();
+    long imuStamp = imuLock.writeLock();
+    try {
+      if (spillDirectory != null) {
+        // Delete the files of the previous channels, or of a previous process that did not clear
+        // them.
+        for (EegChannelBuffer buffer : eegChannels.values()) {
+          buffer.clear();
+        }
+        SpillTier.deleteFiles(spillDirectory);
+      }
+      eegChannels = newEegChannels;
+      eegChannelBuffers = newEegChannelBuffers;
+      imuChannels = newImuChannels;
+      imuChannelBuffers = newImuChannelBuffers;
+      channelLayout = newChannelLayout;
+      timestamps = newTimestamps;
+      retentions = newRetentions;
+    } finally {
+      imuLock.unlockWrite(imuStamp);
+      eegLock.unlockWrite(eegStamp);
     }
-    timestamps.clear();
+  }
+
+  /**
+   * Returns the layout of the channels given to the last {@link #init(List, List)}, with the same
+   * indexes as the buffers of the cache.
+   */
+  public ChannelLayout getChannelLayout() {
+    return channelLayout;
+  }
+
+  /**
+   * Returns the duration of data kept in memory for a channel, or null if the channel does not
+   * exist. Older EEG values can still be available if the spill tier is enabled.
+   */
+  @Nullable
+  public Duration getRetention(String channelName) {
+    return retentions.get(channelName);
   }
 
   public void addChannelData(Samples samples) {
-    synchronized (eegLock) {
+    long stamp = eegLock.writeLock();
+    try {
       for (EegSample eegSample : samples.getEegSamples()) {
         long timestamp = eegSample.getAbsoluteSamplingTimestamp() != null ?
             eegSample.getAbsoluteSamplingTimestamp().toEpochMilli() :
             eegSample.getRelativeSamplingTimestamp();
         timestamps.addValue(timestamp);
-        for (Integer eegChannelNumber : eegSample.getEegSamples().keySet()) {
-          String channelName = String.valueOf(eegChannelNumber);
-          eegChannels.get(channelName).addValue(
-              eegSample.getEegSamples().get(eegChannelNumber));
+        Map<Integer, Float> eegData = eegSample.getEegSamples();
+        for (int i = 0; i < eegChannelBuffers.length; ++i) {
+          int channelNumber = channelLayout.getEegChannelNumber(i);
+          if (channelNumber == ChannelLayout.NO_INDEX) {
+            continue;
+          }
+          // Channel numbers are small enough to use the Integer cache when boxed for the lookup.
+          Float value = eegData.get(channelNumber);
+          if (value != null) {
+            eegChannelBuffers[i].addValue(value, timestamp);
+          }
         }
       }
+    } finally {
+      eegLock.unlockWrite(stamp);
     }
-    synchronized (imuLock) {
+    stamp = imuLock.writeLock();
+    try {
       for (Acceleration acceleration : samples.getAccelerations()) {
-        switch (acceleration.getDeviceLocation()) {
-          case BOX:
-            imuChannels.get(Acceleration.Channels.ACC_X.getName()).addValue(acceleration.getX());
-            imuChannels.get(Acceleration.Channels.ACC_Y.getName()).addValue(acceleration.getY());
-            imuChannels.get(Acceleration.Channels.ACC_Z.getName()).addValue(acceleration.getZ());
-            break;
-          case LEFT_EARBUD:
-            imuChannels.get(Acceleration.Channels.ACC_L_X.getName()).addValue(
-                acceleration.getLeftX());
-            imuChannels.get(Acceleration.Channels.ACC_L_Y.getName()).addValue(
-                acceleration.getLeftY());
-            imuChannels.get(Acceleration.Channels.ACC_L_Z.getName()).addValue(
-                acceleration.getLeftZ());
-            break;
-          case RIGHT_EARBUD:
-            imuChannels.get(Acceleration.Channels.ACC_R_X.getName()).addValue(
-                acceleration.getRightX());
-            imuChannels.get(Acceleration.Channels.ACC_R_Y.getName()).addValue(
-                acceleration.getRightY());
-            imuChannels.get(Acceleration.Channels.ACC_R_Z.getName()).addValue(
-                acceleration.getRightZ());
-            break;
-          case BOTH_EARBUDS:
-            imuChannels.get(Acceleration.Channels.ACC_L_X.getName()).addValue(
-                acceleration.getLeftX());
-            imuChannels.get(Acceleration.Channels.ACC_L_Y.getName()).addValue(
-                acceleration.getLeftY());
-            imuChannels.get(Acceleration.Channels.ACC_L_Z.getName()).addValue(
-                acceleration.getLeftZ());
-            imuChannels.get(Acceleration.Channels.ACC_R_X.getName()).addValue(
-                acceleration.getRightX());
-            imuChannels.get(Acceleration.Channels.ACC_R_Y.getName()).addValue(
-                acceleration.getRightY());
-            imuChannels.get(Acceleration.Channels.ACC_R_Z.getName()).addValue(
-                acceleration.getRightZ());
-            break;
-          default:
-            throw new IllegalArgumentException("Unknown device location: " +
-                acceleration.getDeviceLocation());
+        for (Acceleration.Channels channel : ACCELERATION_CHANNELS) {
+          addImuValue(channelLayout.getImuIndex(channel), acceleration.getValue(channel));
         }
       }
       for (AngularSpeed angularSpeed : samples.getAngularSpeeds()) {
-        switch (angularSpeed.getDeviceLocation()) {
-          case BOX:
-            imuChannels.get(AngularSpeed.Channels.GYRO_X.getName()).addValue(angularSpeed.getX());
-            imuChannels.get(AngularSpeed.Channels.GYRO_Y.getName()).addValue(angularSpeed.getY());
-            imuChannels.get(AngularSpeed.Channels.GYRO_Z.getName()).addValue(angularSpeed.getZ());
-            break;
-          case LEFT_EARBUD:
-            imuChannels.get(AngularSpeed.Channels.GYRO_L_X.getName()).addValue(
-                angularSpeed.getLeftX());
-            imuChannels.get(AngularSpeed.Channels.GYRO_L_Y.getName()).addValue(
-                angularSpeed.getLeftY());
-            imuChannels.get(AngularSpeed.Channels.GYRO_L_Z.getName()).addValue(
-                angularSpeed.getLeftZ());
-            break;
-          case RIGHT_EARBUD:
-            imuChannels.get(AngularSpeed.Channels.GYRO_R_X.getName()).addValue(
-                angularSpeed.getRightX());
-            imuChannels.get(AngularSpeed.Channels.GYRO_R_Y.getName()).addValue(
-                angularSpeed.getRightY());
-            imuChannels.get(AngularSpeed.Channels.GYRO_R_Z.getName()).addValue(
-                angularSpeed.getRightZ());
-            break;
-          case BOTH_EARBUDS:
-            imuChannels.get(AngularSpeed.Channels.GYRO_L_X.getName()).addValue(
-                angularSpeed.getLeftX());
-            imuChannels.get(AngularSpeed.Channels.GYRO_L_Y.getName()).addValue(
-                angularSpeed.getLeftY());
-            imuChannels.get(AngularSpeed.Channels.GYRO_L_Z.getName()).addValue(
-                angularSpeed.getLeftZ());
-            imuChannels.get(AngularSpeed.Channels.GYRO_R_X.getName()).addValue(
-                angularSpeed.getRightX());
-            imuChannels.get(AngularSpeed.Channels.GYRO_R_Y.getName()).addValue(
-                angularSpeed.getRightY());
-            imuChannels.get(AngularSpeed.Channels.GYRO_R_Z.getName()).addValue(
-                angularSpeed.getRightZ());
-            break;
-          default:
-            throw new IllegalArgumentException("Unknown device location: " +
-                angularSpeed.getDeviceLocation());
+        for (AngularSpeed.Channels channel : ANGULAR_SPEED_CHANNELS) {
+          addImuValue(channelLayout.getImuIndex(channel), angularSpeed.getValue(channel));
         }
       }
+    } finally {
+      imuLock.unlockWrite(stamp);
+    }
+  }
+
+  // Values of channels that are not in the sample are null, and channels that are not in the
+  // layout have no index.
+  private void addImuValue(int index, @Nullable Integer value) {
+    if (index != ChannelLayout.NO_INDEX && value != null) {
+      imuChannelBuffers[index].addValue(value);
     }
   }
 
   public List<Float> getLastEegChannelData(String channelName, int numberOfSamples) {
-    if (!eegChannels.containsKey(channelName)) {
+    float[] values = new float[Math.max(0, numberOfSamples)];
+    int count = getLastEegChannelData(channelName, numberOfSamples, values);
+    List<Float> channelData = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      channelData.add(values[i]);
+    }
+    return channelData;
+  }
+
+  /**
+   * Copies the last samples of an EEG channel in the destination array, oldest first.
+   *
+   * @return the number of samples copied, can be less than requested if not enough are cached.
+   */
+  public int getLastEegChannelData(String channelName, int numberOfSamples, float[] destination) {
+    int attempts = 0;
+    while (true) {
+      long stamp = eegLock.tryOptimisticRead();
+      EegChannelBuffer buffer = eegChannels.get(channelName);
+      if (buffer == null) {
+        RotatingFileLogger.get().logw(TAG, "channel " + channelName + " does not exists.");
+        return 0;
+      }
+      int count = buffer.getLastValues(numberOfSamples, destination);
+      if (eegLock.validate(stamp)) {
+        return count;
+      }
+      attempts = backOff(attempts);
+    }
+  }
+
+  /**
+   * Copies the last values and timestamps of all the channels of the snapshot at the same point of
+   * the ingestion, so that the channels are consistent with each other. Channels that are not in
+   * the cache have a size of 0.
+   *
+   * @return the snapshot, to chain calls.
+   */
+  public EegSnapshot getLastEegSnapshot(EegSnapshot snapshot, int numberOfSamples) {
+    int attempts = 0;
+    while (true) {
+      long stamp = eegLock.tryOptimisticRead();
+      Map<String, EegChannelBuffer> channels = eegChannels;
+      for (int i = 0; i < snapshot.getChannelCount(); ++i) {
+        EegChannelBuffer buffer = channels.get(snapshot.getChannelName(i));
+        snapshot.setSize(i, buffer == null ? 0 : buffer.getLastValues(
+            numberOfSamples, snapshot.getValues(i), snapshot.getTimestamps(i)));
+      }
+      if (eegLock.validate(stamp)) {
+        return snapshot;
+      }
+      attempts = backOff(attempts);
+    }
+  }
+
+  public EegEnvelope getEnvelope(String channelName, Duration duration, int maxPoints) {
+    return getEnvelope(channelName, duration, new EegEnvelope(maxPoints));
+  }
+
+  /**
+   * Summarizes the last {@code duration} of an EEG channel in at most
+   * {@link EegEnvelope#getMaxPoints()} points. The cost depends on the number of points and not on
+   * the duration, as the points are read from the decimated levels of the channel.
+   *
+   * @return the envelope, to chain calls.
+   */
+  public EegEnvelope getEnvelope(String channelName, Duration duration, EegEnvelope envelope) {
+    int attempts = 0;
+    while (true) {
+      long stamp = eegLock.tryOptimisticRead();
+      EegChannelBuffer buffer = eegChannels.get(channelName);
+      if (buffer == null) {
+        RotatingFileLogger.get().logw(TAG, "channel " + channelName + " does not exists.");
+        envelope.setSize(0, 0);
+        return envelope;
+      }
+      buffer.getEnvelope(duration.toMillis(), envelope);
+      if (eegLock.validate(stamp)) {
+        return envelope;
+      }
+      attempts = backOff(attempts);
+    }
+  }
+
+  @Nullable
+  public ChannelStats getChannelStats(String channelName, Duration window) {
+    ChannelStats stats = new ChannelStats();
+    return getChannelStats(channelName, window, stats) ? stats : null;
+  }
+
+  /**
+   * Fills the statistics of the last {@code window} of an EEG channel. These are updated as samples
+   * are added, so this does not depend on the length of the window. The window needs to be one of
+   * the windows set with {@link #setStatsWindows(List)}.
+   *
+   * @return false if the channel does not exist or there are no statistics for this window.
+   */
+  public boolean getChannelStats(String channelName, Duration window, ChannelStats stats) {
+    int attempts = 0;
+    while (true) {
+      long stamp = eegLock.tryOptimisticRead();
+      EegChannelBuffer buffer = eegChannels.get(channelName);
+      if (buffer == null) {
+        RotatingFileLogger.get().logw(TAG, "channel " + channelName + " does not exists.");
+        return false;
+      }
+      boolean found = buffer.getStats(window.toMillis(), stats);
+      if (eegLock.validate(stamp)) {
+        if (!found) {
+          RotatingFileLogger.get().logw(TAG, "No statistics for a window of " + window + ".");
+        }
+        return found;
+      }
+      attempts = backOff(attempts);
+    }
+  }
+
+  public ChannelRange getRange(String channelName, long fromTimestamp, long toTimestamp) {
+    return getRange(channelName, fromTimestamp, toTimestamp, /*range=*/null, /*duration=*/null);
+  }
+
+  /**
+   * Copies the values of an EEG channel with a sampling timestamp in
+   * {@code [fromTimestamp, toTimestamp)}, found by binary search on the timestamps so that the
+   * result is exact even if some samples were lost. If there are more values than the range
+   * capacity, only the most recent ones are copied.
+   *
+   * @return the range, to chain calls.
+   */
+  public ChannelRange getRange(
+      String channelName, long fromTimestamp, long toTimestamp, ChannelRange range) {
+    return getRange(channelName, fromTimestamp, toTimestamp, range, /*duration=*/null);
+  }
+
+  /**
+   * Returns the values of the last {@code duration} of an EEG channel, based on the timestamp of
+   * its last value.
+   */
+  public ChannelRange getLastRange(String channelName, Duration duration) {
+    return getRange(channelName, /*fromTimestamp=*/0, /*toTimestamp=*/0, /*range=*/null, duration);
+  }
+
+  /**
+   * Returns the sampling timestamps of an EEG channel in {@code [fromTimestamp, toTimestamp)}.
+   */
+  public long[] getTimestampsRange(String channelName, long fromTimestamp, long toTimestamp) {
+    ChannelRange range = getRange(channelName, fromTimestamp, toTimestamp);
+    return range.getSize() == range.getCapacity() ? range.getTimestamps() :
+        Arrays.copyOf(range.getTimestamps(), range.getSize());
+  }
+
+  // Allocates a range of the exact size when range is null, and reads the last duration when it is
+  // not null.
+  private ChannelRange getRange(String channelName, long fromTimestamp, long toTimestamp,
+                                @Nullable ChannelRange range, @Nullable Duration duration) {
+    int attempts = 0;
+    while (true) {
+      long stamp = eegLock.tryOptimisticRead();
+      ChannelRange result = readRange(channelName, fromTimestamp, toTimestamp, range, duration);
+      if (eegLock.validate(stamp)) {
+        return result;
+      }
+      if (range == null) {
+        // Each retry would allocate and copy a new range, so read it under the lock instead.
+        stamp = eegLock.readLock();
+        try {
+          return readRange(channelName, fromTimestamp, toTimestamp, /*range=*/null, duration);
+        } finally {
+          eegLock.unlockRead(stamp);
+        }
+      }
+      attempts = backOff(attempts);
+    }
+  }
+
+  private ChannelRange readRange(String channelName, long fromTimestamp, long toTimestamp,
+                                 @Nullable ChannelRange range, @Nullable Duration duration) {
+    EegChannelBuffer buffer = eegChannels.get(channelName);
+    if (buffer == null) {
       RotatingFileLogger.get().logw(TAG, "channel " + channelName + " does not exists.");
-      return new ArrayList<>();
+      ChannelRange emptyRange = range != null ? range : new ChannelRange(0);
+      emptyRange.setSize(0);
+      return emptyRange;
     }
-    synchronized (eegLock) {
-      return eegChannels.get(channelName).getLastValues(numberOfSamples);
+    long from = fromTimestamp;
+    long to = toTimestamp;
+    if (duration != null) {
+      long lastTimestamp = buffer.getLastTimestamp();
+      from = lastTimestamp - duration.toMillis() + 1;
+      to = lastTimestamp == Long.MAX_VALUE ? lastTimestamp : lastTimestamp + 1;
     }
+    ChannelRange result = range != null ? range : new ChannelRange(buffer.countRange(from, to));
+    buffer.getRange(from, to, result);
+    return result;
   }
 
   public List<Integer> getLastImuChannelData(String channelName, int numberOfSamples) {
-    if (!imuChannels.containsKey(channelName)) {
-      RotatingFileLogger.get().logw(TAG, "channel " + channelName + " does not exists.");
-      return new ArrayList<>();
+    int[] values = new int[Math.max(0, numberOfSamples)];
+    int count = getLastImuChannelData(channelName, numberOfSamples, values);
+    List<Integer> channelData = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      channelData.add(values[i]);
     }
-    synchronized (imuLock) {
-      return imuChannels.get(channelName).getLastValues(numberOfSamples);
+    return channelData;
+  }
+
+  /**
+   * Copies the last samples of an IMU channel in the destination array, oldest first.
+   *
+   * @return the number of samples copied, can be less than requested if not enough are cached.
+   */
+  public int getLastImuChannelData(String channelName, int numberOfSamples, int[] destination) {
+    int attempts = 0;
+    while (true) {
+      long stamp = imuLock.tryOptimisticRead();
+      IntRingBuffer buffer = imuChannels.get(channelName);
+      if (buffer == null) {
+        RotatingFileLogger.get().logw(TAG, "channel " + channelName + " does not exists.");
+        return 0;
+      }
+      int count = buffer.getLastValues(numberOfSamples, destination);
+      if (imuLock.validate(stamp)) {
+        return count;
+      }
+      attempts = backOff(attempts);
     }
   }
 
   public List<Long> getLastTimestamps(int numberOfSamples) {
-    synchronized (eegLock) {
-      return timestamps.getLastValues(numberOfSamples);
+    long[] values = new long[Math.max(0, numberOfSamples)];
+    int count = getLastTimestamps(numberOfSamples, values);
+    List<Long> lastTimestamps = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      lastTimestamps.add(values[i]);
+    }
+    return lastTimestamps;
+  }
+
+  /**
+   * Copies the last EEG sampling timestamps in the destination array, oldest first.
+   *
+   * @return the number of timestamps copied.
+   */
+  public int getLastTimestamps(int numberOfSamples, long[] destination) {
+    int attempts = 0;
+    while (true) {
+      long stamp = eegLock.tryOptimisticRead();
+      int count = timestamps.getLastValues(numberOfSamples, destination);
+      if (eegLock.validate(stamp)) {
+        return count;
+      }
+      attempts = backOff(attempts);
     }
   }
 
   public void clear() {
-    synchronized (eegLock) {
-      for (EvictingArray<Float> array : eegChannels.values()) {
-        array.clear();
+    long stamp = eegLock.writeLock();
+    try {
+      for (EegChannelBuffer buffer : eegChannels.values()) {
+        buffer.clear();
       }
+      timestamps.clear();
+    } finally {
+      eegLock.unlockWrite(stamp);
     }
-    synchronized (imuLock) {
-      for (EvictingArray<Integer> array : imuChannels.values()) {
-        array.clear();
+    stamp = imuLock.writeLock();
+    try {
+      for (IntRingBuffer buffer : imuChannels.values()) {
+        buffer.clear();
       }
+    } finally {
+      imuLock.unlockWrite(stamp);
     }
-    synchronized (eegLock) {
-      timestamps.clear();
+  }
+
+  private static Duration getRetention(int capacity, float samplingRate) {
+    return samplingRate > 0 ?
+        Duration.ofMillis((long) (capacity * 1000.0 / samplingRate)) : Duration.ZERO;
+  }
+
+  // Called after a failed optimistic read. The writer only holds the lock for the duration of a
+  // packet, so retry right away a few times before giving up the CPU to let it finish.
+  private static int backOff(int attempts) {
+    if (attempts >= OPTIMISTIC_READ_SPINS) {
+      Thread.yield();
     }
+    return attempts + 1;
   }
 }
@@ -0,0 +1,202 @@
+package io.nextsense.android.base.db.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+/**
+ * Second tier of an {@link EegChannelBuffer} that keeps the values evicted from its ring buffer in
+ * memory-mapped files, so that hours of data can be read without going through the database.
+ *
+ * Values are appended to fixed size segment files of {@link #RECORD_BYTES} records: the timestamp
+ * as a little-endian long followed by the value as a little-endian float. When the byte budget is
+ * reached, the oldest segment is deleted. As records have a fixed size and are in timestamp order,
+ * a record can be found by index or by timestamp without an additional index.
+ *
+ * Like the ring buffers, this class is not thread-safe. The segment list is replaced instead of
+ * modified so that readers can read it optimistically and validate the result afterwards.
+ */
+class SpillTier {
+  static final String FILE_EXTENSION = ".spill";
+  static final int RECORD_BYTES = Long.BYTES + Float.BYTES;
+
+  private static final String TAG = SpillTier.class.getSimpleName();
+  private static final int MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+  private static class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int size;
+
+    private Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  private final File directory;
+  private final String name;
+  private final int segmentRecords;
+  private final int maxSegments;
+  // Oldest first. All the segments are full except the last one.
+  private volatile Segment[] segments = new Segment[0];
+  private long nextSegmentNumber;
+  private boolean failed;
+
+  /**
+   * @param directory where to write the segment files, should be in the app private storage.
+   * @param name prefix of the segment files, needs to be unique in the directory.
+   * @param maxBytes maximum size of the segment files on disk.
+   */
+  SpillTier(File directory, String name, long maxBytes) {
+    this.directory = directory;
+    this.name = name;
+    // Keep at least 4 segments so that deleting one only drops a small part of the data.
+    segmentRecords = (int) Math.max(1, Math.min(MAX_SEGMENT_BYTES, maxBytes / 4) / RECORD_BYTES);
+    maxSegments = (int) Math.max(1, maxBytes / ((long) segmentRecords * RECORD_BYTES));
+  }
+
+  /**
+   * Deletes the segment files left in the directory, for example by a previous process.
+   */
+  static void deleteFiles(File directory) {
+    File[] files = directory.listFiles((dir, fileName) -> fileName.endsWith(FILE_EXTENSION));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!file.delete()) {
+        RotatingFileLogger.get().logw(TAG, "Failed to delete " + file.getName());
+      }
+    }
+  }
+
+  /**
+   * Number of records that can be read.
+   */
+  long getSize() {
+    Segment[] current = segments;
+    if (current.length == 0) {
+      return 0;
+    }
+    return (long) (current.length - 1) * segmentRecords + current[current.length - 1].size;
+  }
+
+  void append(long timestamp, float value) {
+    if (failed) {
+      return;
+    }
+    Segment[] current = segments;
+    Segment last = current.length > 0 ? current[current.length - 1] : null;
+    if (last == null || last.size == segmentRecords) {
+      last = createSegment();
+      if (last == null) {
+        return;
+      }
+      int dropped = current.length >= maxSegments ? current.length - maxSegments + 1 : 0;
+      Segment[] updated = Arrays.copyOfRange(current, dropped, current.length + 1);
+      updated[updated.length - 1] = last;
+      segments = updated;
+      for (int i = 0; i < dropped; ++i) {
+        deleteSegment(current[i]);
+      }
+    }
+    int position = last.size * RECORD_BYTES;
+    last.buffer.putLong(position, timestamp);
+    last.buffer.putFloat(position + Long.BYTES, value);
+    ++last.size;
+  }
+
+  long getTimestamp(long index) {
+    Segment[] current = segments;
+    return current.length == 0 ? 0 : current[segmentIndex(current, index)].buffer.getLong(
+        recordPosition(index));
+  }
+
+  /**
+   * Copies {@code count} records starting at {@code index}, 0 being the oldest record.
+   *
+   * @param timestamps can be null if only the values are needed.
+   */
+  void getRecords(long index, int count, float[] values, int valuesOffset,
+                  long[] timestamps, int timestampsOffset) {
+    Segment[] current = segments;
+    if (current.length == 0) {
+      return;
+    }
+    for (int i = 0; i < count; ++i) {
+      MappedByteBuffer buffer = current[segmentIndex(current, index + i)].buffer;
+      int position = recordPosition(index + i);
+      if (timestamps != null) {
+        timestamps[timestampsOffset + i] = buffer.getLong(position);
+      }
+      values[valuesOffset + i] = buffer.getFloat(position + Long.BYTES);
+    }
+  }
+
+  /**
+   * Returns the number of most recent records with a timestamp greater or equal to the given one.
+   */
+  long countRecordsSince(long timestamp) {
+    long size = getSize();
+    long low = 0;
+    long high = size;
+    // Finds the index of the first record at or after the timestamp.
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      if (getTimestamp(middle) < timestamp) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return size - low;
+  }
+
+  void clear() {
+    Segment[] current = segments;
+    segments = new Segment[0];
+    for (Segment segment : current) {
+      deleteSegment(segment);
+    }
+    failed = false;
+  }
+
+  // Indexes are clamped so that a stale index from an optimistic read can't throw.
+  private int segmentIndex(Segment[] current, long index) {
+    return (int) Math.max(0, Math.min(current.length - 1, index / segmentRecords));
+  }
+
+  private int recordPosition(long index) {
+    return (int) Math.floorMod(index, (long) segmentRecords) * RECORD_BYTES;
+  }
+
+  private Segment createSegment() {
+    File file = new File(directory, name + "_" + nextSegmentNumber++ + FILE_EXTENSION);
+    // The mapping stays valid after the file is closed.
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+         FileChannel channel = randomAccessFile.getChannel()) {
+      MappedByteBuffer buffer = channel.map(
+          FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_BYTES);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return new Segment(file, buffer);
+    } catch (IOException e) {
+      RotatingFileLogger.get().loge(TAG, "Failed to create spill segment " + file.getName() +
+          ", older values will not be kept: " + e.getMessage());
+      failed = true;
+      return null;
+    }
+  }
+
+  private void deleteSegment(Segment segment) {
+    if (!segment.file.delete()) {
+      RotatingFileLogger.get().logw(TAG, "Failed to delete " + segment.file.getName());
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package io.nextsense.android.base.db.memory;
+
+import io.nextsense.android.base.utils.FloatRingBuffer;
+import io.nextsense.android.base.utils.LongRingBuffer;
+
+/**
+ * Statistics of the values of an {@link EegChannelBuffer} in a sliding time window, updated as
+ * values are added so that reading them does not depend on the window length.
+ *
+ * Mean and variance use Welford's algorithm, extended to remove the values leaving the window. Min
+ * and max use monotonic queues, so each value is added and removed at most once.
+ */
+class WindowStatistics {
+
+  // Queue of (index, value) where values are increasing (for the min) or decreasing (for the max)
+  // from head to tail, so the head is the extremum of the window.
+  private static class MonotonicQueue {
+    private final boolean keepsMin;
+    // Power of 2 sizes so that a stale head from an optimistic read is masked within bounds.
+    private long[] indexes = new long[16];
+    private float[] values = new float[16];
+    private int head;
+    private int size;
+
+    MonotonicQueue(boolean keepsMin) {
+      this.keepsMin = keepsMin;
+    }
+
+    void add(long index, float value) {
+      while (size > 0) {
+        float last = values[(head + size - 1) & (values.length - 1)];
+        if (keepsMin ? last < value : last > value) {
+          break;
+        }
+        --size;
+      }
+      if (size == values.length) {
+        grow();
+      }
+      int tail = (head + size) & (values.length - 1);
+      indexes[tail] = index;
+      values[tail] = value;
+      ++size;
+    }
+
+    void removeBefore(long index) {
+      while (size > 0 && indexes[head] < index) {
+        head = (head + 1) & (values.length - 1);
+        --size;
+      }
+    }
+
+    float getHead() {
+      float[] current = values;
+      return current[head & (current.length - 1)];
+    }
+
+    void clear() {
+      head = 0;
+      size = 0;
+    }
+
+    private void grow() {
+      long[] newIndexes = new long[indexes.length * 2];
+      float[] newValues = new float[values.length * 2];
+      for (int i = 0; i < size; ++i) {
+        newIndexes[i] = indexes[(head + i) & (indexes.length - 1)];
+        newValues[i] = values[(head + i) & (values.length - 1)];
+      }
+      indexes = newIndexes;
+      values = newValues;
+      head = 0;
+    }
+  }
+
+  private final long windowMillis;
+  private final float clipThreshold;
+  private final MonotonicQueue minQueue = new MonotonicQueue(/*keepsMin=*/true);
+  private final MonotonicQueue maxQueue = new MonotonicQueue(/*keepsMin=*/false);
+  private int count;
+  private double mean;
+  // Sum of the squared differences from the mean.
+  private double m2;
+  private double sumOfSquares;
+  private int clipCount;
+
+  /**
+   * @param clipThreshold absolute value at or above which a value is counted as clipped.
+   */
+  WindowStatistics(long windowMillis, float clipThreshold) {
+    this.windowMillis = windowMillis;
+    this.clipThreshold = clipThreshold;
+  }
+
+  long getWindowMillis() {
+    return windowMillis;
+  }
+
+  /**
+   * Adds a value before it is added to the ring buffers, which are used to find the values leaving
+   * the window. The window is limited to the capacity of the ring buffers minus one, so that the
+   * oldest value of the window is still in them.
+   */
+  void add(float value, long timestamp, FloatRingBuffer values, LongRingBuffer timestamps) {
+    long index = values.getWriteCount();
+    int maxCount = values.getCapacity() - 1;
+    while (count > 0 && (count >= maxCount ||
+        timestamps.getLastValue(count - 1) <= timestamp - windowMillis)) {
+      remove(values.getLastValue(count - 1));
+    }
+    ++count;
+    double delta = value - mean;
+    mean += delta / count;
+    m2 += delta * (value - mean);
+    sumOfSquares += (double) value * value;
+    if (Math.abs(value) >= clipThreshold) {
+      ++clipCount;
+    }
+    minQueue.add(index, value);
+    maxQueue.add(index, value);
+    long firstIndex = index - count + 1;
+    minQueue.removeBefore(firstIndex);
+    maxQueue.removeBefore(firstIndex);
+  }
+
+  void getStats(ChannelStats stats) {
+    if (count == 0) {
+      stats.set(0, 0, 0, 0, 0, 0, 0);
+      return;
+    }
+    stats.set(count, (float) mean, (float) Math.max(0, m2 / count),
+        (float) Math.sqrt(Math.max(0, sumOfSquares / count)), minQueue.getHead(),
+        maxQueue.getHead(), clipCount);
+  }
+
+  void clear() {
+    count = 0;
+    mean = 0;
+    m2 = 0;
+    sumOfSquares = 0;
+    clipCount = 0;
+    minQueue.clear();
+    maxQueue.clear();
+  }
+
+  private void remove(float value) {
+    if (Math.abs(value) >= clipThreshold) {
+      --clipCount;
+    }
+    sumOfSquares -= (double) value * value;
+    if (--count == 0) {
+      mean = 0;
+      m2 = 0;
+      sumOfSquares = 0;
+      return;
+    }
+    double delta = value - mean;
+    mean -= delta / count;
+    m2 -= delta * (value - mean);
+  }
+}
@@ -6,7 +6,11 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
 
 import io.objectbox.converter.PropertyConverter;
 
@@ -65,5 +69,89 @@ public class Converters {
     }
   }
 
+  /**
+   * Stores the EEG values of a sample, keyed by channel number, in a compact binary layout:
+   * a format version byte, the channel count as an unsigned byte, the channel numbers as little
+   * endian unsigned shorts and then the values as little endian floats, in the same order.
+   *
+   * Rows written by {@link SerializableConverter} are still read, they are recognized by the Java
+   * serialization stream header. Unlike that converter, null channel numbers and values are
+   * rejected with an IllegalArgumentException.
+   */
+  public static class EegChannelsConverter
+      implements PropertyConverter<HashMap<Integer, Float>, byte[]> {
+    static final byte FORMAT_VERSION_1 = 1;
+    private static final int HEADER_BYTES = 2;
+    private static final int MAX_CHANNELS = 0xFF;
+    private static final int MAX_CHANNEL_NUMBER = 0xFFFF;
+    // First bytes of a Java serialization stream, ObjectStreamConstants.STREAM_MAGIC.
+    private static final byte SERIALIZED_MAGIC_0 = (byte) 0xAC;
+    private static final byte SERIALIZED_MAGIC_1 = (byte) 0xED;
+
+    private final SerializableConverter legacyConverter = new SerializableConverter();
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public HashMap<Integer, Float> convertToEntityProperty(byte[] databaseValue) {
+      if (databaseValue == null || databaseValue.length < HEADER_BYTES) {
+        return null;
+      }
+      if (databaseValue[0] == SERIALIZED_MAGIC_0 && databaseValue[1] == SERIALIZED_MAGIC_1) {
+        return (HashMap<Integer, Float>) legacyConverter.convertToEntityProperty(databaseValue);
+      }
+      if (databaseValue[0] != FORMAT_VERSION_1) {
+        return null;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(databaseValue).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.position(1);
+      int channelCount = buffer.get() & 0xFF;
+      if (databaseValue.length != getSize(channelCount)) {
+        return null;
+      }
+      HashMap<Integer, Float> eegData = new HashMap<>(channelCount * 2);
+      int valuesPosition = HEADER_BYTES + channelCount * Short.BYTES;
+      for (int i = 0; i < channelCount; ++i) {
+        eegData.put(buffer.getShort(HEADER_BYTES + i * Short.BYTES) & 0xFFFF,
+            buffer.getFloat(valuesPosition + i * Float.BYTES));
+      }
+      return eegData;
+    }
+
+    @Override
+    public byte[] convertToDatabaseValue(HashMap<Integer, Float> entityProperty) {
+      if (entityProperty == null) {
+        return new byte[]{};
+      }
+      int channelCount = entityProperty.size();
+      if (channelCount > MAX_CHANNELS) {
+        throw new IllegalArgumentException("Too many channels: " + channelCount);
+      }
+      ByteBuffer buffer =
+          ByteBuffer.allocate(getSize(channelCount)).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put(FORMAT_VERSION_1);
+      buffer.put((byte) channelCount);
+      int valuesPosition = HEADER_BYTES + channelCount * Short.BYTES;
+      int i = 0;
+      for (Map.Entry<Integer, Float> channel : entityProperty.entrySet()) {
+        // The layout has no room for nulls, which the parsers never put in a sample.
+        if (channel.getKey() == null || channel.getValue() == null) {
+          throw new IllegalArgumentException("Null channel number or value: " + channel);
+        }
+        int channelNumber = channel.getKey();
+        if (channelNumber < 0 || channelNumber > MAX_CHANNEL_NUMBER) {
+          throw new IllegalArgumentException("Invalid channel number: " + channelNumber);
+        }
+        buffer.putShort(HEADER_BYTES + i * Short.BYTES, (short) channelNumber);
+        buffer.putFloat(valuesPosition + i * Float.BYTES, channel.getValue());
+        ++i;
+      }
+      return buffer.array();
+    }
+
+    private static int getSize(int channelCount) {
+      return HEADER_BYTES + channelCount * (Short.BYTES + Float.BYTES);
+    }
+  }
+
   private Converters() {}
 }
@@ -2,12 +2,21 @@ package io.nextsense.android.base.db.objectbox;
 
 import android.content.Context;
 
+import androidx.annotation.Nullable;
+
+import com.google.common.primitives.Floats;
+
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToLongFunction;
 
 import io.nextsense.android.base.data.Acceleration;
 import io.nextsense.android.base.data.Acceleration_;
@@ -16,16 +25,21 @@ import io.nextsense.android.base.data.AngularSpeed_;
 import io.nextsense.android.base.data.BaseRecord;
 import io.nextsense.android.base.data.DeviceInternalState;
 import io.nextsense.android.base.data.DeviceInternalState_;
+import io.nextsense.android.base.data.EegBlock;
+import io.nextsense.android.base.data.EegBlock_;
 import io.nextsense.android.base.data.EegSample;
 import io.nextsense.android.base.data.EegSample_;
 import io.nextsense.android.base.data.LocalSession;
 import io.nextsense.android.base.data.LocalSession_;
 import io.nextsense.android.base.data.MyObjectBox;
+import io.nextsense.android.base.data.SessionRecordCounts;
+import io.nextsense.android.base.data.SessionRecordCounts_;
 import io.nextsense.android.base.db.Database;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.objectbox.Box;
 import io.objectbox.BoxStore;
 import io.objectbox.query.Query;
+import io.objectbox.query.QueryBuilder;
 import io.objectbox.reactive.DataObserver;
 import io.objectbox.reactive.DataSubscription;
 import io.objectbox.reactive.Scheduler;
@@ -35,22 +49,47 @@ import io.objectbox.reactive.Scheduler;
  */
 public class ObjectBoxDatabase implements Database {
   private static final String TAG = ObjectBoxDatabase.class.getSimpleName();
+  // How often the record counts of a session are checked against the records in the database.
+  private static final Duration RECORD_COUNTS_CHECK_INTERVAL = Duration.ofMinutes(5);
+  // Writes fail once the store reaches this size, which is the ObjectBox default.
+  private static final long MAX_SIZE_IN_KBYTE = 1024 * 1024;
+  // Estimated bytes used in the store by each record including its indexes, with 8 EEG channels.
+  private static final long EEG_SAMPLE_BYTES = 200;
+  private static final long EEG_BLOCK_BYTES = 200;
+  private static final long EEG_BLOCK_SAMPLE_BYTES = 40;
+  private static final long ACCELERATION_BYTES = 150;
+  private static final long ANGULAR_SPEED_BYTES = 130;
 
   private BoxStore boxStore;
   private Box<LocalSession> localSessionBox;
   private Box<EegSample> eegSampleBox;
+  private Box<EegBlock> eegBlockBox;
   private Box<Acceleration> accelerationBox;
   private Box<AngularSpeed> angularSpeedBox;
   private Box<DeviceInternalState> deviceInternalStateBox;
+  private Box<SessionRecordCounts> sessionRecordCountsBox;
+  // Record counts of the sessions that were used since the database was opened, by session id.
+  private final Map<Long, SessionRecordCounts> sessionRecordCounts = new ConcurrentHashMap<>();
+  // Whether each session stores its EEG in EegBlock records, which is set when it is created.
+  private final Map<Long, Boolean> eegBlockSessions = new ConcurrentHashMap<>();
   private Query<LocalSession> activeSessionQuery;
   private Query<LocalSession> unfinishedSessionQuery;
   private Query<LocalSession> sessionFinishedQuery;
   private Query<LocalSession> sessionUploadedQuery;
   private Query<EegSample> eegSamplesQuery;
+  private Query<EegSample> eegSamplesAfterIdQuery;
   private Query<EegSample> eegSamplesTimestampIsLesserQuery;
+  private Query<EegSample> eegSamplesTimestampBetweenQuery;
   private Query<EegSample> eegSamplesRelativeTimestampIsLesserQuery;
   private Query<EegSample> eegSamplesRelativeTimestampBetweenQuery;
+  private Query<EegBlock> allEegBlocksQuery;
+  private Query<EegBlock> eegBlocksQuery;
+  private Query<EegBlock> lastEegBlockQuery;
+  private Query<EegBlock> eegBlocksSampleIndexBetweenQuery;
+  private Query<EegBlock> eegBlocksTimestampBetweenQuery;
+  private Query<EegBlock> eegBlocksTimestampIsLesserQuery;
   private Query<Acceleration> accelerationQuery;
+  private Query<Acceleration> accelerationsAfterIdQuery;
   private Query<Acceleration> accelerationTimestampIsLesserQuery;
   private Query<Acceleration> accelerationRelativeTimestampIsLesserQuery;
   private Query<Acceleration> accelerationRelativeTimestampBetweenQuery;
@@ -62,10 +101,20 @@ public class ObjectBoxDatabase implements Database {
   private Query<DeviceInternalState> recentDeviceInternalStateQuery;
   private Query<DeviceInternalState> lastDeviceInternalStateQuery;
   private Query<DeviceInternalState> deviceInternalStateQueryTimestampIsLesserQuery;
+  private Query<SessionRecordCounts> sessionRecordCountsQuery;
+  // Only used to count the records of a session in write transactions, which do not overlap, so
+  // that no other thread changes their parameters during the count.
+  private Query<EegSample> countEegSamplesQuery;
+  private Query<EegBlock> countFirstEegBlockQuery;
+  private Query<EegBlock> countLastEegBlockQuery;
+  private Query<Acceleration> countAccelerationsQuery;
+  private Query<AngularSpeed> countAngularSpeedsQuery;
+  private Query<DeviceInternalState> countDeviceInternalStatesQuery;
 
   @Override
   public void init(Context context) {
-    boxStore = MyObjectBox.builder().androidContext(context.getApplicationContext()).build();
+    boxStore = MyObjectBox.builder().androidContext(context.getApplicationContext())
+        .maxSizeInKByte(MAX_SIZE_IN_KBYTE).build();
     localSessionBox = boxStore.boxFor(LocalSession.class);
     unfinishedSessionQuery = localSessionBox.query().equal(
         LocalSession_.status, LocalSession.Status.RECORDING.id).or()
@@ -78,14 +127,37 @@ public class ObjectBoxDatabase implements Database {
         .equal(LocalSession_.status, LocalSession.Status.UPLOADED.id).build();
     eegSampleBox = boxStore.boxFor(EegSample.class);
     eegSamplesQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0).build();
+    eegSamplesAfterIdQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0)
+        .greater(EegSample_.id, 0).order(EegSample_.id).build();
     eegSamplesTimestampIsLesserQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0)
         .less(EegSample_.absoluteSamplingTimestamp, 0).build();
+    eegSamplesTimestampBetweenQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0)
+        .between(EegSample_.absoluteSamplingTimestamp, 0, 0).build();
     eegSamplesRelativeTimestampBetweenQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0)
         .between(EegSample_.relativeSamplingTimestamp, 0, 0).build();
     eegSamplesRelativeTimestampIsLesserQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0)
         .less(EegSample_.relativeSamplingTimestamp, 0).build();
+    eegBlockBox = boxStore.boxFor(EegBlock.class);
+    allEegBlocksQuery = eegBlockBox.query().build();
+    eegBlocksQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .order(EegBlock_.firstSampleIndex).build();
+    lastEegBlockQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .order(EegBlock_.firstSampleIndex, QueryBuilder.DESCENDING).build();
+    // Blocks that have samples in the range of sample indexes.
+    eegBlocksSampleIndexBetweenQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .less(EegBlock_.firstSampleIndex, 0).greater(EegBlock_.endSampleIndex, 0)
+        .order(EegBlock_.firstSampleIndex).build();
+    // Blocks that have samples in the range of timestamps.
+    eegBlocksTimestampBetweenQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .less(EegBlock_.startTimestamp, 0).greater(EegBlock_.endTimestamp, 0)
+        .order(EegBlock_.firstSampleIndex).build();
+    // Blocks that only have samples before the timestamp, oldest first.
+    eegBlocksTimestampIsLesserQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .less(EegBlock_.endTimestamp, 0).order(EegBlock_.firstSampleIndex).build();
     accelerationBox = boxStore.boxFor(Acceleration.class);
     accelerationQuery = accelerationBox.query().equal(Acceleration_.localSessionId, 0).build();
+    accelerationsAfterIdQuery = accelerationBox.query().equal(Acceleration_.localSessionId, 0)
+        .greater(Acceleration_.id, 0).order(Acceleration_.id).build();
     accelerationTimestampIsLesserQuery = accelerationBox.query().equal(
         Acceleration_.localSessionId, 0).less(Acceleration_.absoluteSamplingTimestamp, 0).build();
     accelerationRelativeTimestampIsLesserQuery = accelerationBox.query().equal(
@@ -110,6 +182,20 @@ public class ObjectBoxDatabase implements Database {
         .greater(DeviceInternalState_.timestamp, 0).build();
     deviceInternalStateQueryTimestampIsLesserQuery = deviceInternalStateBox.query().equal(
             DeviceInternalState_.localSessionId, 0).less(DeviceInternalState_.timestamp, 0).build();
+    sessionRecordCountsBox = boxStore.boxFor(SessionRecordCounts.class);
+    sessionRecordCountsQuery = sessionRecordCountsBox.query()
+        .equal(SessionRecordCounts_.localSessionId, 0).build();
+    countEegSamplesQuery = eegSampleBox.query().equal(EegSample_.localSessionId, 0).build();
+    countFirstEegBlockQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .order(EegBlock_.firstSampleIndex).build();
+    countLastEegBlockQuery = eegBlockBox.query().equal(EegBlock_.localSessionId, 0)
+        .order(EegBlock_.firstSampleIndex, QueryBuilder.DESCENDING).build();
+    countAccelerationsQuery =
+        accelerationBox.query().equal(Acceleration_.localSessionId, 0).build();
+    countAngularSpeedsQuery =
+        angularSpeedBox.query().equal(AngularSpeed_.localSessionId, 0).build();
+    countDeviceInternalStatesQuery = deviceInternalStateBox.query().equal(
+        DeviceInternalState_.localSessionId, 0).build();
     RotatingFileLogger.get().logd(TAG, "Size on disk: " + boxStore.sizeOnDisk());
     RotatingFileLogger.get().logd(TAG, boxStore.diagnose());
   }
@@ -123,6 +209,14 @@ public class ObjectBoxDatabase implements Database {
     boxStore.runInTx(runnable);
   }
 
+  /**
+   * Runs the callable in a write transaction and returns its result, or null if it threw, in which
+   * case nothing it did is committed.
+   */
+  public <T> T callInTx(Callable<T> callable) {
+    return runWithExceptionLog(() -> boxStore.callInTx(callable));
+  }
+
   public <T extends BaseRecord> DataSubscription subscribe(
       Class<T> type, DataObserver<Class<T>> dataObserver, Scheduler scheduler) {
     return runWithExceptionLog(() ->
@@ -144,31 +238,100 @@ public class ObjectBoxDatabase implements Database {
   }
 
   public long putEegSample(EegSample eegSample) {
-    return runWithExceptionLog(() -> eegSampleBox.put(eegSample));
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long id = eegSampleBox.put(eegSample);
+      updateSessionRecordCounts(eegSample.localSession.getTargetId(),
+          counts -> counts.addEegSamples(1));
+      return id;
+    }));
   }
 
   public void putEegSamples(List<EegSample> eegSamples) {
-    eegSampleBox.put(eegSamples);
+    boxStore.runInTx(() -> {
+      eegSampleBox.put(eegSamples);
+      countAddedRecords(eegSamples, eegSample -> eegSample.localSession.getTargetId(),
+          SessionRecordCounts::addEegSamples);
+    });
+  }
+
+  public long putEegBlock(EegBlock eegBlock) {
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long id = eegBlockBox.put(eegBlock);
+      updateSessionRecordCounts(eegBlock.localSession.getTargetId(),
+          counts -> counts.addEegSamples(eegBlock.getSampleCount()));
+      return id;
+    }));
+  }
+
+  /**
+   * Puts the EEG blocks in a single transaction. Throws if they cannot be put, so that a
+   * transaction that it runs in is not committed.
+   */
+  public void putEegBlocks(List<EegBlock> eegBlocks) {
+    boxStore.runInTx(() -> {
+      eegBlockBox.put(eegBlocks);
+      for (EegBlock eegBlock : eegBlocks) {
+        updateSessionRecordCounts(eegBlock.localSession.getTargetId(),
+            counts -> counts.addEegSamples(eegBlock.getSampleCount()));
+      }
+    });
+  }
+
+  /**
+   * Returns the session index of the next EEG sample of a session that stores its EEG data as
+   * {@link EegBlock} records, 0 if it has none. Throws if it cannot be read, so that a transaction
+   * that it runs in is not committed.
+   */
+  public long getNextEegBlockSampleIndex(long localSessionId) {
+    EegBlock lastEegBlock = lastEegBlockQuery.setParameter(
+        EegBlock_.localSessionId, localSessionId).findFirst();
+    return lastEegBlock != null ? lastEegBlock.getEndSampleIndex() : 0L;
   }
 
   public long putAcceleration(Acceleration acceleration) {
-    return runWithExceptionLog(() -> accelerationBox.put(acceleration));
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long id = accelerationBox.put(acceleration);
+      updateSessionRecordCounts(acceleration.localSession.getTargetId(),
+          counts -> counts.addAccelerations(1));
+      return id;
+    }));
   }
 
   public void putAccelerations(List<Acceleration> accelerations) {
-    accelerationBox.put(accelerations);
+    boxStore.runInTx(() -> {
+      accelerationBox.put(accelerations);
+      countAddedRecords(accelerations, acceleration -> acceleration.localSession.getTargetId(),
+          SessionRecordCounts::addAccelerations);
+    });
   }
 
   public long putAngularSpeed(AngularSpeed angularSpeed) {
-    return runWithExceptionLog(() -> angularSpeedBox.put(angularSpeed));
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long id = angularSpeedBox.put(angularSpeed);
+      updateSessionRecordCounts(angularSpeed.localSession.getTargetId(),
+          counts -> counts.addAngularSpeeds(1));
+      return id;
+    }));
   }
 
   public void putAngularSpeeds(List<AngularSpeed> angularSpeeds) {
-    angularSpeedBox.put(angularSpeeds);
+    boxStore.runInTx(() -> {
+      angularSpeedBox.put(angularSpeeds);
+      countAddedRecords(angularSpeeds, angularSpeed -> angularSpeed.localSession.getTargetId(),
+          SessionRecordCounts::addAngularSpeeds);
+    });
   }
 
   public long putDeviceInternalState(DeviceInternalState deviceInternalState) {
-    return runWithExceptionLog(() -> deviceInternalStateBox.put(deviceInternalState));
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long id = deviceInternalStateBox.put(deviceInternalState);
+      if (deviceInternalState.localSession != null &&
+          deviceInternalState.localSession.getTargetId() != 0) {
+        updateSessionRecordCounts(deviceInternalState.localSession.getTargetId(),
+            counts -> counts.addDeviceInternalStates(1));
+      }
+      return id;
+    }));
   }
 
   public LocalSession getLocalSession(long localSessionId) {
@@ -201,13 +364,39 @@ public class ObjectBoxDatabase implements Database {
     return runWithExceptionLog(() -> unfinishedSessionQuery.find());
   }
 
+  /**
+   * Estimates the bytes of the store that are used by the samples from their number. The size of
+   * the file does not tell how full the store is, as it never shrinks: the pages freed by deletions
+   * are reused for new records.
+   */
+  public long getUsedSizeEstimate() {
+    return runWithExceptionLog(() -> boxStore.callInReadTx(() -> {
+      long eegBlockSamples = allEegBlocksQuery.property(EegBlock_.endSampleIndex).sum() -
+          allEegBlocksQuery.property(EegBlock_.firstSampleIndex).sum();
+      return eegSampleBox.count() * EEG_SAMPLE_BYTES +
+          eegBlockBox.count() * EEG_BLOCK_BYTES + eegBlockSamples * EEG_BLOCK_SAMPLE_BYTES +
+          accelerationBox.count() * ACCELERATION_BYTES +
+          angularSpeedBox.count() * ANGULAR_SPEED_BYTES;
+    }));
+  }
+
+  public long getMaxSizeOnDisk() {
+    return MAX_SIZE_IN_KBYTE * 1024;
+  }
+
   public List<EegSample> getEegSamples(int localSessionId) {
+    if (isEegBlockSession(localSessionId)) {
+      return getEegBlockSamples(localSessionId, /*offset=*/0, /*count=*/Long.MAX_VALUE);
+    }
     return runWithExceptionLog(() ->
       eegSamplesQuery.setParameter(EegSample_.localSessionId, localSessionId).find());
   }
 
   public List<EegSample> getEegSamplesBetweenRelative(long localSessionId, long startTimestamp,
                                                       long endTimestamp) {
+    if (isEegBlockSession(localSessionId)) {
+      return getEegBlockSamplesBetween(localSessionId, startTimestamp, endTimestamp);
+    }
     return runWithExceptionLog(() ->
         eegSamplesRelativeTimestampBetweenQuery.setParameter(
             EegSample_.localSessionId, localSessionId)
@@ -223,15 +412,77 @@ public class ObjectBoxDatabase implements Database {
     });
   }
 
-  public List<Float> getChannelData(long localSessionId, String channelName, long offset,
-                                    long count) {
+  /**
+   * Returns the values of an EEG channel for the samples of the session that were sampled between
+   * the two times, start inclusive and end exclusive. Values are NaN for samples that do not have
+   * the channel.
+   *
+   * Only the values of the channel are copied for sessions that store {@link EegBlock} records.
+   * Older sessions still need to read each {@link EegSample}, as the channel values are in a
+   * converted property that a property query cannot read.
+   */
+  public float[] getChannelValues(long localSessionId, int channelNumber, Instant startTime,
+                                  Instant endTime) {
+    return runWithExceptionLog(() -> {
+      LocalSession localSession = getLocalSession(localSessionId);
+      if (localSession == null) {
+        return new float[0];
+      }
+      if (localSession.isEegBlocks()) {
+        return getEegBlockChannelValues(localSession, channelNumber, startTime, endTime);
+      }
+      EegSample firstEegSample = eegSamplesQuery.setParameter(
+          EegSample_.localSessionId, localSessionId).findFirst();
+      if (firstEegSample == null) {
+        return new float[0];
+      }
+      boolean absoluteTimestamps = firstEegSample.getAbsoluteSamplingTimestamp() != null;
+      long startTimestamp = getSamplingTimestamp(localSession, startTime, absoluteTimestamps);
+      long endTimestamp = getSamplingTimestamp(localSession, endTime, absoluteTimestamps);
+      Query<EegSample> query = absoluteTimestamps ?
+          eegSamplesTimestampBetweenQuery.setParameter(EegSample_.localSessionId, localSessionId)
+              .setParameters(EegSample_.absoluteSamplingTimestamp, startTimestamp,
+                  endTimestamp - 1) :
+          eegSamplesRelativeTimestampBetweenQuery.setParameter(
+              EegSample_.localSessionId, localSessionId)
+              .setParameters(EegSample_.relativeSamplingTimestamp, startTimestamp,
+                  endTimestamp - 1);
+      // Counted and read in the same transaction so that the count matches.
+      return boxStore.callInReadTx(() -> {
+        float[] values = new float[(int) query.count()];
+        int[] size = new int[1];
+        // Samples are read one at a time instead of in a list that holds them all.
+        query.forEach(eegSample -> {
+          Float value = eegSample.getEegSamples().get(channelNumber);
+          values[size[0]++] = value != null ? value : Float.NaN;
+        });
+        return values;
+      });
+    });
+  }
+
+  /**
+   * Returns the values of an EEG channel for the last count samples of the session. Values are NaN
+   * for samples that do not have the channel.
+   */
+  public float[] getLastChannelValues(long localSessionId, int channelNumber, long count) {
     return runWithExceptionLog(() -> {
-      List<EegSample> eegSamples = getEegSamples(localSessionId, Math.max(0, offset), count);
-      List<Float> channelSamples = new ArrayList<>(eegSamples.size());
-      for (EegSample eegSample : eegSamples) {
-        channelSamples.add(eegSample.getEegSamples().get(Integer.valueOf(channelName)));
+      if (isEegBlockSession(localSessionId)) {
+        long toSampleIndex = getNextEegBlockSampleIndex(localSessionId);
+        long fromSampleIndex = Math.max(0, toSampleIndex - count);
+        return getEegBlockChannelValues(eegBlocksSampleIndexBetweenQuery
+            .setParameter(EegBlock_.localSessionId, localSessionId)
+            .setParameter(EegBlock_.firstSampleIndex, toSampleIndex)
+            .setParameter(EegBlock_.endSampleIndex, fromSampleIndex).find(),
+            channelNumber, fromSampleIndex, toSampleIndex);
+      }
+      List<EegSample> eegSamples = getLastEegSamples(localSessionId, count);
+      float[] values = new float[eegSamples.size()];
+      for (int i = 0; i < values.length; ++i) {
+        Float value = eegSamples.get(i).getEegSamples().get(channelNumber);
+        values[i] = value != null ? value : Float.NaN;
       }
-      return channelSamples;
+      return values;
     });
   }
 
@@ -239,13 +490,8 @@ public class ObjectBoxDatabase implements Database {
     return runWithExceptionLog(() -> {
       LocalSession localSession = getLocalSession(localSessionId);
       float seconds = duration.toMillis() / 1000.0f;
-      List<EegSample> eegSamples = getLastEegSamples(localSessionId,
-          Math.round(Math.floor(seconds * localSession.getEegSampleRate())));
-      List<Float> channelSamples = new ArrayList<>(eegSamples.size());
-      for (EegSample eegSample : eegSamples) {
-        channelSamples.add(eegSample.getEegSamples().get(Integer.valueOf(channelName)));
-      }
-      return channelSamples;
+      return Floats.asList(getLastChannelValues(localSessionId, Integer.parseInt(channelName),
+          Math.round(Math.floor(seconds * localSession.getEegSampleRate()))));
     });
   }
 
@@ -269,8 +515,12 @@ public class ObjectBoxDatabase implements Database {
   }
 
   public long getEegSamplesCount(long localSessionId) {
-    return runWithExceptionLog(() ->
-      eegSamplesQuery.setParameter(EegSample_.localSessionId, localSessionId).count());
+    return runWithExceptionLog(() -> {
+      SessionRecordCounts counts = getSessionRecordCounts(localSessionId);
+      synchronized (counts) {
+        return counts.getEegSampleCount();
+      }
+    });
   }
 
   public List<Acceleration> getAccelerations(int localSessionId) {
@@ -304,23 +554,65 @@ public class ObjectBoxDatabase implements Database {
   }
 
   public List<EegSample> getEegSamples(long localSessionId, long offset, long count) {
+    if (isEegBlockSession(localSessionId)) {
+      return getEegBlockSamples(localSessionId, offset, count);
+    }
     return runWithExceptionLog(() ->
         eegSamplesQuery.setParameter(EegSample_.localSessionId, localSessionId).
             find(offset, count));
   }
 
+  /**
+   * Returns up to count samples of the session that were added after the sample with the id, in
+   * the order they were added. Unlike reading with an offset, the time it takes does not depend on
+   * how many samples come before the id.
+   *
+   * Not supported for sessions that store their EEG data as {@link EegBlock} records, as their
+   * samples have no id. Use {@link #getEegSamples(long, long, long)} which already reads them by
+   * sample index.
+   */
+  public List<EegSample> getEegSamplesAfterId(long localSessionId, long lastId, long count) {
+    return runWithExceptionLog(() -> eegSamplesAfterIdQuery
+        .setParameter(EegSample_.localSessionId, localSessionId)
+        .setParameter(EegSample_.id, lastId).find(/*offset=*/0, count));
+  }
+
+  @Nullable
+  public EegSample getEegSample(long id) {
+    return runWithExceptionLog(() -> eegSampleBox.get(id));
+  }
+
   public List<Acceleration> getAccelerations(long localSessionId, long offset, long count) {
     return runWithExceptionLog(() -> accelerationQuery.setParameter(
         Acceleration_.localSessionId, localSessionId).find(offset, count));
   }
 
+  /**
+   * Returns up to count accelerations of the session that were added after the acceleration with
+   * the id, in the order they were added.
+   */
+  public List<Acceleration> getAccelerationsAfterId(long localSessionId, long lastId, long count) {
+    return runWithExceptionLog(() -> accelerationsAfterIdQuery
+        .setParameter(Acceleration_.localSessionId, localSessionId)
+        .setParameter(Acceleration_.id, lastId).find(/*offset=*/0, count));
+  }
+
+  @Nullable
+  public Acceleration getAcceleration(long id) {
+    return runWithExceptionLog(() -> accelerationBox.get(id));
+  }
+
   public long getAccelerationCount() {
     return runWithExceptionLog(() -> accelerationBox.count());
   }
 
   public long getAccelerationCount(long localSessionId) {
-    return runWithExceptionLog(() ->
-        accelerationQuery.setParameter(Acceleration_.localSessionId, localSessionId).count());
+    return runWithExceptionLog(() -> {
+      SessionRecordCounts counts = getSessionRecordCounts(localSessionId);
+      synchronized (counts) {
+        return counts.getAccelerationCount();
+      }
+    });
   }
 
   public List<AngularSpeed> getAngularSpeeds(long localSessionId, long offset, long count) {
@@ -350,8 +642,12 @@ public class ObjectBoxDatabase implements Database {
   }
 
   public long getAngularSpeedCount(long localSessionId) {
-    return runWithExceptionLog(() ->
-        angularSpeedQuery.setParameter(AngularSpeed_.localSessionId, localSessionId).count());
+    return runWithExceptionLog(() -> {
+      SessionRecordCounts counts = getSessionRecordCounts(localSessionId);
+      synchronized (counts) {
+        return counts.getAngularSpeedCount();
+      }
+    });
   }
 
   public List<DeviceInternalState> getLastDeviceInternalStates(long count) {
@@ -367,74 +663,463 @@ public class ObjectBoxDatabase implements Database {
   }
 
   public long getSessionDeviceInternalStateCount(long localSessionId) {
-    return runWithExceptionLog(() -> sessionDeviceInternalStateQuery.setParameter(
-            DeviceInternalState_.localSessionId, localSessionId).count());
+    return runWithExceptionLog(() -> {
+      SessionRecordCounts counts = getSessionRecordCounts(localSessionId);
+      synchronized (counts) {
+        return counts.getDeviceInternalStateCount();
+      }
+    });
   }
 
   public boolean deleteLocalSession(long localSessionId) {
-    return runWithExceptionLog(() -> {
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
       deleteEegSamplesData(localSessionId);
       deleteAccelerationData(localSessionId);
       deleteAngularSpeedData(localSessionId);
+      sessionRecordCountsQuery.setParameter(SessionRecordCounts_.localSessionId, localSessionId)
+          .remove();
+      sessionRecordCounts.remove(localSessionId);
+      eegBlockSessions.remove(localSessionId);
       return localSessionBox.remove(localSessionId);
-    });
+    }));
   }
 
   public long deleteEegSamplesData(long localSessionId) {
-    return runWithExceptionLog(() ->
-        eegSamplesQuery.setParameter(EegSample_.localSessionId, localSessionId).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedSamples;
+      if (isEegBlockSession(localSessionId)) {
+        deletedSamples = countEegSamples(localSessionId);
+        eegBlocksQuery.setParameter(EegBlock_.localSessionId, localSessionId).remove();
+      } else {
+        deletedSamples =
+            eegSamplesQuery.setParameter(EegSample_.localSessionId, localSessionId).remove();
+      }
+      updateSessionRecordCounts(localSessionId, counts -> counts.deleteEegSamples(deletedSamples));
+      return deletedSamples;
+    }));
   }
 
   public long deleteFirstEegSamplesData(long localSessionId, long timestampCutoff) {
-    return runWithExceptionLog(() ->
-      eegSamplesTimestampIsLesserQuery.setParameter(EegSample_.localSessionId, localSessionId)
-          .setParameter(EegSample_.absoluteSamplingTimestamp, timestampCutoff).remove()
-    );
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedSamples;
+      if (isEegBlockSession(localSessionId)) {
+        deletedSamples = deleteFirstEegBlocks(localSessionId, timestampCutoff);
+      } else {
+        deletedSamples = eegSamplesTimestampIsLesserQuery
+            .setParameter(EegSample_.localSessionId, localSessionId)
+            .setParameter(EegSample_.absoluteSamplingTimestamp, timestampCutoff).remove();
+      }
+      updateSessionRecordCounts(localSessionId, counts -> counts.deleteEegSamples(deletedSamples));
+      return deletedSamples;
+    }));
   }
 
   public long deleteFirstRelativeEegSamplesData(long localSessionId, long timestampCutoff) {
-    return runWithExceptionLog(() ->
-        eegSamplesRelativeTimestampIsLesserQuery.setParameter(EegSample_.localSessionId, localSessionId)
-            .setParameter(EegSample_.relativeSamplingTimestamp, timestampCutoff).remove()
-    );
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedSamples;
+      if (isEegBlockSession(localSessionId)) {
+        deletedSamples = deleteFirstEegBlocks(localSessionId, timestampCutoff);
+      } else {
+        deletedSamples = eegSamplesRelativeTimestampIsLesserQuery
+            .setParameter(EegSample_.localSessionId, localSessionId)
+            .setParameter(EegSample_.relativeSamplingTimestamp, timestampCutoff).remove();
+      }
+      updateSessionRecordCounts(localSessionId, counts -> counts.deleteEegSamples(deletedSamples));
+      return deletedSamples;
+    }));
   }
 
   public long deleteFirstAccelerationsData(long localSessionId, long timestampCutoff) {
-    return runWithExceptionLog(() ->
-        accelerationTimestampIsLesserQuery
-            .setParameter(Acceleration_.localSessionId, localSessionId)
-            .setParameter(Acceleration_.absoluteSamplingTimestamp, timestampCutoff).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedAccelerations = accelerationTimestampIsLesserQuery
+          .setParameter(Acceleration_.localSessionId, localSessionId)
+          .setParameter(Acceleration_.absoluteSamplingTimestamp, timestampCutoff).remove();
+      updateSessionRecordCounts(localSessionId,
+          counts -> counts.deleteAccelerations(deletedAccelerations));
+      return deletedAccelerations;
+    }));
   }
 
   public long deleteFirstRelativeAccelerationsData(long localSessionId, long timestampCutoff) {
-    return runWithExceptionLog(() ->
-        accelerationRelativeTimestampIsLesserQuery
-            .setParameter(Acceleration_.localSessionId, localSessionId)
-            .setParameter(Acceleration_.relativeSamplingTimestamp, timestampCutoff).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedAccelerations = accelerationRelativeTimestampIsLesserQuery
+          .setParameter(Acceleration_.localSessionId, localSessionId)
+          .setParameter(Acceleration_.relativeSamplingTimestamp, timestampCutoff).remove();
+      updateSessionRecordCounts(localSessionId,
+          counts -> counts.deleteAccelerations(deletedAccelerations));
+      return deletedAccelerations;
+    }));
   }
 
   public long deleteAccelerationData(long localSessionId) {
-    return runWithExceptionLog(() ->
-        accelerationQuery.setParameter(Acceleration_.localSessionId, localSessionId).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedAccelerations =
+          accelerationQuery.setParameter(Acceleration_.localSessionId, localSessionId).remove();
+      updateSessionRecordCounts(localSessionId,
+          counts -> counts.deleteAccelerations(deletedAccelerations));
+      return deletedAccelerations;
+    }));
   }
 
   public long deleteFirstAngularSpeedData(long localSessionId, long timestampCutoff) {
-    return runWithExceptionLog(() ->
-        angularSpeedTimestampIsLesserQuery
-            .setParameter(AngularSpeed_.localSessionId, localSessionId)
-            .setParameter(AngularSpeed_.absoluteSamplingTimestamp, timestampCutoff).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedAngularSpeeds = angularSpeedTimestampIsLesserQuery
+          .setParameter(AngularSpeed_.localSessionId, localSessionId)
+          .setParameter(AngularSpeed_.absoluteSamplingTimestamp, timestampCutoff).remove();
+      updateSessionRecordCounts(localSessionId,
+          counts -> counts.deleteAngularSpeeds(deletedAngularSpeeds));
+      return deletedAngularSpeeds;
+    }));
   }
 
   public long deleteFirstRelativeAngularSpeedData(long localSessionId, long timestampCutoff) {
-    return runWithExceptionLog(() ->
-        angularSpeedRelativeTimestampIsLesserQuery
-            .setParameter(AngularSpeed_.localSessionId, localSessionId)
-            .setParameter(AngularSpeed_.relativeSamplingTimestamp, timestampCutoff).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedAngularSpeeds = angularSpeedRelativeTimestampIsLesserQuery
+          .setParameter(AngularSpeed_.localSessionId, localSessionId)
+          .setParameter(AngularSpeed_.relativeSamplingTimestamp, timestampCutoff).remove();
+      updateSessionRecordCounts(localSessionId,
+          counts -> counts.deleteAngularSpeeds(deletedAngularSpeeds));
+      return deletedAngularSpeeds;
+    }));
   }
 
   public long deleteAngularSpeedData(long localSessionId) {
-    return runWithExceptionLog(() ->
-        angularSpeedQuery.setParameter(AngularSpeed_.localSessionId, localSessionId).remove());
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long deletedAngularSpeeds =
+          angularSpeedQuery.setParameter(AngularSpeed_.localSessionId, localSessionId).remove();
+      updateSessionRecordCounts(localSessionId,
+          counts -> counts.deleteAngularSpeeds(deletedAngularSpeeds));
+      return deletedAngularSpeeds;
+    }));
+  }
+
+  /**
+   * Deletes the oldest EEG samples of the session that are before the cutoff, up to maxRecords
+   * records in a single transaction so that it does not block other writers for long. Only whole
+   * blocks are deleted for sessions that store EegBlock records, and maxRecords is then a number of
+   * blocks.
+   *
+   * @return the number of samples deleted, 0 once none are left before the cutoff.
+   */
+  public long deleteFirstEegSamplesBatch(long localSessionId, long timestampCutoff,
+                                         boolean relativeTimestamps, long maxRecords) {
+    if (isEegBlockSession(localSessionId)) {
+      return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+        List<EegBlock> eegBlocks = eegBlocksTimestampIsLesserQuery
+            .setParameter(EegBlock_.localSessionId, localSessionId)
+            .setParameter(EegBlock_.endTimestamp, timestampCutoff)
+            .find(/*offset=*/0, maxRecords);
+        long deletedSamples = 0;
+        for (EegBlock eegBlock : eegBlocks) {
+          deletedSamples += eegBlock.getSampleCount();
+        }
+        eegBlockBox.remove(eegBlocks);
+        final long deletedBlockSamples = deletedSamples;
+        updateSessionRecordCounts(localSessionId,
+            counts -> counts.deleteEegSamples(deletedBlockSamples));
+        return deletedBlockSamples;
+      }));
+    }
+    Query<EegSample> query = relativeTimestamps ?
+        eegSamplesRelativeTimestampIsLesserQuery
+            .setParameter(EegSample_.relativeSamplingTimestamp, timestampCutoff) :
+        eegSamplesTimestampIsLesserQuery
+            .setParameter(EegSample_.absoluteSamplingTimestamp, timestampCutoff);
+    return deleteFirstRecordsBatch(eegSampleBox,
+        query.setParameter(EegSample_.localSessionId, localSessionId), localSessionId, maxRecords,
+        SessionRecordCounts::deleteEegSamples);
+  }
+
+  /**
+   * Deletes the oldest accelerations of the session that are before the cutoff, up to maxRecords
+   * in a single transaction.
+   *
+   * @return the number of accelerations deleted, 0 once none are left before the cutoff.
+   */
+  public long deleteFirstAccelerationsBatch(long localSessionId, long timestampCutoff,
+                                            boolean relativeTimestamps, long maxRecords) {
+    Query<Acceleration> query = relativeTimestamps ?
+        accelerationRelativeTimestampIsLesserQuery
+            .setParameter(Acceleration_.relativeSamplingTimestamp, timestampCutoff) :
+        accelerationTimestampIsLesserQuery
+            .setParameter(Acceleration_.absoluteSamplingTimestamp, timestampCutoff);
+    return deleteFirstRecordsBatch(accelerationBox,
+        query.setParameter(Acceleration_.localSessionId, localSessionId), localSessionId,
+        maxRecords, SessionRecordCounts::deleteAccelerations);
+  }
+
+  /**
+   * Deletes the oldest angular speeds of the session that are before the cutoff, up to maxRecords
+   * in a single transaction.
+   *
+   * @return the number of angular speeds deleted, 0 once none are left before the cutoff.
+   */
+  public long deleteFirstAngularSpeedsBatch(long localSessionId, long timestampCutoff,
+                                            boolean relativeTimestamps, long maxRecords) {
+    Query<AngularSpeed> query = relativeTimestamps ?
+        angularSpeedRelativeTimestampIsLesserQuery
+            .setParameter(AngularSpeed_.relativeSamplingTimestamp, timestampCutoff) :
+        angularSpeedTimestampIsLesserQuery
+            .setParameter(AngularSpeed_.absoluteSamplingTimestamp, timestampCutoff);
+    return deleteFirstRecordsBatch(angularSpeedBox,
+        query.setParameter(AngularSpeed_.localSessionId, localSessionId), localSessionId,
+        maxRecords, SessionRecordCounts::deleteAngularSpeeds);
+  }
+
+  // Deletes the first maxRecords records found by the query, which has its parameters set, in id
+  // order, which is the order in which they were recorded.
+  private <T> long deleteFirstRecordsBatch(
+      Box<T> box, Query<T> query, long localSessionId, long maxRecords,
+      ObjLongConsumer<SessionRecordCounts> counter) {
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long[] ids = query.findIds(/*offset=*/0, maxRecords);
+      box.remove(ids);
+      updateSessionRecordCounts(localSessionId, counts -> counter.accept(counts, ids.length));
+      return (long) ids.length;
+    }));
+  }
+
+  // Returns the record counts of the session, checking them against the records in the database
+  // if they were not checked recently.
+  private SessionRecordCounts getSessionRecordCounts(long localSessionId) {
+    SessionRecordCounts counts = sessionRecordCounts.get(localSessionId);
+    if (counts != null) {
+      synchronized (counts) {
+        if (counts.getCheckedAt() != null && Instant.now().isBefore(
+            counts.getCheckedAt().plus(RECORD_COUNTS_CHECK_INTERVAL))) {
+          return counts;
+        }
+      }
+    }
+    return checkSessionRecordCounts(localSessionId);
+  }
+
+  private SessionRecordCounts checkSessionRecordCounts(long localSessionId) {
+    return boxStore.callInTx(() -> {
+      SessionRecordCounts counts = loadSessionRecordCounts(localSessionId);
+      long eegSampleCount = countEegSamples(localSessionId);
+      long accelerationCount = countAccelerationsQuery
+          .setParameter(Acceleration_.localSessionId, localSessionId).count();
+      long angularSpeedCount = countAngularSpeedsQuery
+          .setParameter(AngularSpeed_.localSessionId, localSessionId).count();
+      long deviceInternalStateCount = countDeviceInternalStatesQuery.setParameter(
+          DeviceInternalState_.localSessionId, localSessionId).count();
+      synchronized (counts) {
+        // Counts that were never stored are expected to be off.
+        if (counts.check(eegSampleCount, accelerationCount, angularSpeedCount,
+            deviceInternalStateCount, Instant.now()) && counts.id != 0) {
+          RotatingFileLogger.get().logw(TAG, "Record counts of session " + localSessionId +
+              " drifted, corrected to " + counts);
+        }
+        sessionRecordCountsBox.put(counts);
+      }
+      return counts;
+    });
+  }
+
+  // Returns the record counts of the session from memory, or from the database the first time the
+  // session is used. Needs to be called in a write transaction so that only one thread creates it.
+  private SessionRecordCounts loadSessionRecordCounts(long localSessionId) {
+    SessionRecordCounts counts = sessionRecordCounts.get(localSessionId);
+    if (counts == null) {
+      counts = sessionRecordCountsQuery
+          .setParameter(SessionRecordCounts_.localSessionId, localSessionId).findFirst();
+      if (counts == null) {
+        counts = SessionRecordCounts.create(localSessionId);
+      }
+      sessionRecordCounts.put(localSessionId, counts);
+    }
+    return counts;
+  }
+
+  // Changes the record counts of the session and stores them, needs to be called in the write
+  // transaction that adds or deletes the records.
+  private void updateSessionRecordCounts(long localSessionId,
+                                         Consumer<SessionRecordCounts> update) {
+    SessionRecordCounts counts = loadSessionRecordCounts(localSessionId);
+    synchronized (counts) {
+      update.accept(counts);
+      sessionRecordCountsBox.put(counts);
+    }
+  }
+
+  // Counts records added in the same write transaction, that usually all belong to one session.
+  private <T> void countAddedRecords(List<T> records, ToLongFunction<T> localSessionIdGetter,
+                                     ObjLongConsumer<SessionRecordCounts> counter) {
+    int start = 0;
+    while (start < records.size()) {
+      long localSessionId = localSessionIdGetter.applyAsLong(records.get(start));
+      int end = start + 1;
+      while (end < records.size() &&
+          localSessionIdGetter.applyAsLong(records.get(end)) == localSessionId) {
+        ++end;
+      }
+      final long addedRecords = end - start;
+      updateSessionRecordCounts(localSessionId, counts -> counter.accept(counts, addedRecords));
+      start = end;
+    }
+  }
+
+  // Counts the EEG samples of the session in the database, needs to be called in a write
+  // transaction.
+  private long countEegSamples(long localSessionId) {
+    if (isEegBlockSession(localSessionId)) {
+      EegBlock lastEegBlock = countLastEegBlockQuery
+          .setParameter(EegBlock_.localSessionId, localSessionId).findFirst();
+      if (lastEegBlock == null) {
+        return 0;
+      }
+      EegBlock firstEegBlock = countFirstEegBlockQuery
+          .setParameter(EegBlock_.localSessionId, localSessionId).findFirst();
+      return lastEegBlock.getEndSampleIndex() - firstEegBlock.getFirstSampleIndex();
+    }
+    return countEegSamplesQuery.setParameter(EegSample_.localSessionId, localSessionId).count();
+  }
+
+  private boolean isEegBlockSession(long localSessionId) {
+    Boolean eegBlocks = eegBlockSessions.get(localSessionId);
+    if (eegBlocks != null) {
+      return eegBlocks;
+    }
+    LocalSession localSession = getLocalSession(localSessionId);
+    if (localSession == null) {
+      return false;
+    }
+    eegBlockSessions.put(localSessionId, localSession.isEegBlocks());
+    return localSession.isEegBlocks();
+  }
+
+  private long getFirstEegBlockSampleIndex(long localSessionId) {
+    EegBlock firstEegBlock = eegBlocksQuery.setParameter(
+        EegBlock_.localSessionId, localSessionId).findFirst();
+    return firstEegBlock != null ? firstEegBlock.getFirstSampleIndex() : 0L;
+  }
+
+  // The offset is from the first sample that was not deleted, like for EegSample records.
+  private List<EegSample> getEegBlockSamples(long localSessionId, long offset, long count) {
+    return runWithExceptionLog(() -> getEegBlockSamplesFromIndex(localSessionId,
+        getFirstEegBlockSampleIndex(localSessionId) + Math.max(0, offset), count));
+  }
+
+  /**
+   * Returns up to count EEG samples of a session that stores its EEG data as {@link EegBlock}
+   * records, starting from the index of the sample in the session. Unlike an offset, the index of a
+   * sample does not change when the samples before it are deleted.
+   */
+  public List<EegSample> getEegBlockSamplesFromIndex(long localSessionId, long fromSampleIndex,
+                                                     long count) {
+    return runWithExceptionLog(() -> {
+      long toSampleIndex = count > Long.MAX_VALUE - fromSampleIndex ?
+          Long.MAX_VALUE : fromSampleIndex + count;
+      List<EegBlock> eegBlocks = eegBlocksSampleIndexBetweenQuery
+          .setParameter(EegBlock_.localSessionId, localSessionId)
+          .setParameter(EegBlock_.firstSampleIndex, toSampleIndex)
+          .setParameter(EegBlock_.endSampleIndex, fromSampleIndex).find();
+      List<EegSample> eegSamples = new ArrayList<>();
+      for (EegBlock eegBlock : eegBlocks) {
+        eegBlock.addEegSamples(fromSampleIndex, toSampleIndex, eegSamples);
+      }
+      return eegSamples;
+    });
+  }
+
+  // Timestamps are inclusive, like the between condition for EegSample records.
+  private List<EegSample> getEegBlockSamplesBetween(long localSessionId, long startTimestamp,
+                                                    long endTimestamp) {
+    return runWithExceptionLog(() -> {
+      List<EegBlock> eegBlocks = eegBlocksTimestampBetweenQuery
+          .setParameter(EegBlock_.localSessionId, localSessionId)
+          .setParameter(EegBlock_.startTimestamp, endTimestamp + 1)
+          .setParameter(EegBlock_.endTimestamp, startTimestamp - 1).find();
+      List<EegSample> eegSamples = new ArrayList<>();
+      for (EegBlock eegBlock : eegBlocks) {
+        // Find the samples of the block that are in the range.
+        int from = 0;
+        while (from < eegBlock.getSampleCount() &&
+            eegBlock.getSamplingTimestamp(from) < startTimestamp) {
+          ++from;
+        }
+        int to = from;
+        while (to < eegBlock.getSampleCount() && eegBlock.getSamplingTimestamp(to) <= endTimestamp) {
+          ++to;
+        }
+        eegBlock.addEegSamples(eegBlock.getFirstSampleIndex() + from,
+            eegBlock.getFirstSampleIndex() + to, eegSamples);
+      }
+      return eegSamples;
+    });
+  }
+
+  private float[] getEegBlockChannelValues(LocalSession localSession, int channelNumber,
+                                           Instant startTime, Instant endTime) {
+    EegBlock lastEegBlock = lastEegBlockQuery.setParameter(
+        EegBlock_.localSessionId, localSession.id).findFirst();
+    if (lastEegBlock == null) {
+      return new float[0];
+    }
+    long startTimestamp = getSamplingTimestamp(
+        localSession, startTime, lastEegBlock.isAbsoluteTimestamps());
+    long endTimestamp = getSamplingTimestamp(
+        localSession, endTime, lastEegBlock.isAbsoluteTimestamps());
+    List<EegBlock> eegBlocks = eegBlocksTimestampBetweenQuery
+        .setParameter(EegBlock_.localSessionId, localSession.id)
+        .setParameter(EegBlock_.startTimestamp, endTimestamp)
+        .setParameter(EegBlock_.endTimestamp, startTimestamp - 1).find();
+    if (eegBlocks.isEmpty()) {
+      return new float[0];
+    }
+    return getEegBlockChannelValues(eegBlocks, channelNumber,
+        eegBlocks.get(0).getSampleIndex(startTimestamp),
+        eegBlocks.get(eegBlocks.size() - 1).getSampleIndex(endTimestamp));
+  }
+
+  // The blocks need to be ordered by sample index.
+  private static float[] getEegBlockChannelValues(
+      List<EegBlock> eegBlocks, int channelNumber, long fromSampleIndex, long toSampleIndex) {
+    int size = 0;
+    for (EegBlock eegBlock : eegBlocks) {
+      size += eegBlock.getSampleCount(fromSampleIndex, toSampleIndex);
+    }
+    float[] values = new float[size];
+    int position = 0;
+    for (EegBlock eegBlock : eegBlocks) {
+      position += eegBlock.copyChannelValues(
+          channelNumber, fromSampleIndex, toSampleIndex, values, position);
+    }
+    return values;
+  }
+
+  // Sessions without absolute timestamps have sampling timestamps relative to the first one they
+  // received, at their first data time.
+  private static long getSamplingTimestamp(LocalSession localSession, Instant time,
+                                           boolean absoluteTimestamps) {
+    if (absoluteTimestamps) {
+      return time.toEpochMilli();
+    }
+    Instant firstDataTime = localSession.getFirstDataTime() != null ?
+        localSession.getFirstDataTime() : localSession.getStartTime();
+    return localSession.getFirstRelativeTimestamp() +
+        Duration.between(firstDataTime, time).toMillis();
+  }
+
+  // Only deletes whole blocks, so samples before the cutoff can remain in the first block. Returns
+  // the number of samples deleted.
+  private long deleteFirstEegBlocks(long localSessionId, long timestampCutoff) {
+    return runWithExceptionLog(() -> boxStore.callInTx(() -> {
+      long firstSampleIndex = getFirstEegBlockSampleIndex(localSessionId);
+      long nextSampleIndex = getNextEegBlockSampleIndex(localSessionId);
+      long deletedBlocks = eegBlocksTimestampIsLesserQuery
+          .setParameter(EegBlock_.localSessionId, localSessionId)
+          .setParameter(EegBlock_.endTimestamp, timestampCutoff).remove();
+      if (deletedBlocks == 0) {
+        return 0L;
+      }
+      EegBlock firstEegBlock = eegBlocksQuery.setParameter(
+          EegBlock_.localSessionId, localSessionId).findFirst();
+      long newFirstSampleIndex = firstEegBlock != null ?
+          firstEegBlock.getFirstSampleIndex() : nextSampleIndex;
+      return newFirstSampleIndex - firstSampleIndex;
+    }));
   }
 
   public static <T> T runWithExceptionLog(Callable<T> function) {
@@ -25,6 +25,8 @@ import io.nextsense.android.base.data.LocalSession;
 import io.nextsense.android.base.data.LocalSessionManager;
 import io.nextsense.android.base.data.Sample;
 import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.db.IngestionPipeline;
+import io.nextsense.android.base.db.SamplesRing;
 import io.nextsense.android.base.devices.FirmwareMessageParsingException;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.nextsense.android.base.utils.Util;
@@ -58,6 +60,8 @@ public class KauaiDataParser {
   private static final int INTERNAL_ERROR_FLAG_INDEX = 0;
 
   private final LocalSessionManager localSessionManager;
+  // Ring of the connected device, null while no device is connected.
+  private volatile SamplesRing samplesRing;
   boolean printedDataPackerWarning = false;
 
   private KauaiDataParser(LocalSessionManager localSessionManager) {
@@ -68,6 +72,26 @@ public class KauaiDataParser {
     return new KauaiDataParser(localSessionManager);
   }
 
+  /**
+   * Publishes the packets to the ring of the device with this address from now on. Each device
+   * has its own ring, so that it has a single producer.
+   */
+  public void connectSamplesRing(String deviceAddress) {
+    samplesRing = IngestionPipeline.get().getRing(deviceAddress);
+  }
+
+  /**
+   * Releases the ring of the device once it is disconnected. The packets that were already
+   * published are still processed.
+   */
+  public void releaseSamplesRing() {
+    SamplesRing ring = samplesRing;
+    samplesRing = null;
+    if (ring != null) {
+      IngestionPipeline.get().releaseRing(ring);
+    }
+  }
+
   public synchronized void parseDataBytes(byte[] values, int channelsCount) throws
       FirmwareMessageParsingException {
     Instant receptionTimestamp = Instant.now();
@@ -107,7 +131,7 @@ public class KauaiDataParser {
       }
       canParsePacket = sampleOptional.isPresent();
     }
-    EventBus.getDefault().post(samples);
+    publish(samples);
     Instant parseEndTime = Instant.now();
     long parseTime = parseEndTime.toEpochMilli() - receptionTimestamp.toEpochMilli();
     if (parseTime > 30) {
@@ -231,4 +255,13 @@ public class KauaiDataParser {
         bleRssi, leadsOffPositive);
     EventBus.getDefault().post(deviceInternalState);
   }
+
+  private void publish(Samples samples) {
+    SamplesRing ring = samplesRing;
+    if (ring == null) {
+      RotatingFileLogger.get().logw(TAG, "No device connected, dropping a packet.");
+      return;
+    }
+    ring.publish(samples);
+  }
 }
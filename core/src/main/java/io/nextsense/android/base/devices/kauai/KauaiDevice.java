@@ -123,6 +123,7 @@ public class KauaiDevice extends BaseNextSenseDevice implements NextSenseDevice
   @Override
   public ListenableFuture<Boolean> connect(BluetoothPeripheral peripheral, boolean reconnecting) {
     this.peripheral = peripheral;
+    kauaiDataParser.connectSamplesRing(peripheral.getAddress());
     initializeCharacteristics();
     if (reconnecting) {
       // Cannot know if this was due to device powering off, so need to re-apply settings.
@@ -155,6 +156,7 @@ public class KauaiDevice extends BaseNextSenseDevice implements NextSenseDevice
   @Override
   public void disconnect(BluetoothPeripheral peripheral) {
     this.peripheral = null;
+    kauaiDataParser.releaseSamplesRing();
     clearCharacteristics();
   }
 
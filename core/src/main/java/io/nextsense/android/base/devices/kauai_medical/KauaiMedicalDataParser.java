@@ -2,8 +2,6 @@ package io.nextsense.android.base.devices.kauai_medical;
 
 import static java.lang.Math.pow;
 
-import org.greenrobot.eventbus.EventBus;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.time.Instant;
@@ -20,6 +18,8 @@ import io.nextsense.android.base.data.LocalSession;
 import io.nextsense.android.base.data.LocalSessionManager;
 import io.nextsense.android.base.data.Sample;
 import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.db.IngestionPipeline;
+import io.nextsense.android.base.db.SamplesRing;
 import io.nextsense.android.base.devices.FirmwareMessageParsingException;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.nextsense.android.base.utils.Util;
@@ -38,6 +38,8 @@ public class KauaiMedicalDataParser {
   private static final float V_REF = 4.5f;
 
   private final LocalSessionManager localSessionManager;
+  // Ring of the connected device, null while no device is connected.
+  private volatile SamplesRing samplesRing;
   boolean printedDataPackerWarning = false;
 
   private KauaiMedicalDataParser(LocalSessionManager localSessionManager) {
@@ -48,6 +50,26 @@ public class KauaiMedicalDataParser {
     return new KauaiMedicalDataParser(localSessionManager);
   }
 
+  /**
+   * Publishes the packets to the ring of the device with this address from now on. Each device
+   * has its own ring, so that it has a single producer.
+   */
+  public void connectSamplesRing(String deviceAddress) {
+    samplesRing = IngestionPipeline.get().getRing(deviceAddress);
+  }
+
+  /**
+   * Releases the ring of the device once it is disconnected. The packets that were already
+   * published are still processed.
+   */
+  public void releaseSamplesRing() {
+    SamplesRing ring = samplesRing;
+    samplesRing = null;
+    if (ring != null) {
+      IngestionPipeline.get().releaseRing(ring);
+    }
+  }
+
   private Instant sessionStartTimestamp = null;
 
   public void setSessionStartTimestamp(Instant sessionStartTimestamp) {
@@ -98,7 +120,7 @@ public class KauaiMedicalDataParser {
       }
       canParsePacket = sampleOptional.isPresent();
     }
-    EventBus.getDefault().post(samples);
+    publish(samples);
     Instant parseEndTime = Instant.now();
     long parseTime = parseEndTime.toEpochMilli() - receptionTimestamp.toEpochMilli();
     if (parseTime > 30) {
@@ -151,4 +173,13 @@ public class KauaiMedicalDataParser {
     return activeChannelsSize * DATA_CHANNEL_SIZE_BYTES + DATA_ACCELERATION_SIZE_BYTES +
         DATA_TIMESTAMP_SIZE_BYTES + DATA_FLAGS_SIZE_BYTES + DATA_PADDING_SIZE_BYTES;
   }
+
+  private void publish(Samples samples) {
+    SamplesRing ring = samplesRing;
+    if (ring == null) {
+      RotatingFileLogger.get().logw(TAG, "No device connected, dropping a packet.");
+      return;
+    }
+    ring.publish(samples);
+  }
 }
@@ -151,6 +151,7 @@ public class KauaiMedicalDevice extends BaseNextSenseDevice implements NextSense
   @Override
   public ListenableFuture<Boolean> connect(BluetoothPeripheral peripheral, boolean reconnecting) {
     this.peripheral = peripheral;
+    kauaiMedicalDataParser.connectSamplesRing(peripheral.getAddress());
     initializeCharacteristics();
     if (reconnecting) {
       // If reconnecting, we do not want to reset the time and apply settings as there might be a
@@ -198,6 +199,7 @@ public class KauaiMedicalDevice extends BaseNextSenseDevice implements NextSense
   @Override
   public void disconnect(BluetoothPeripheral peripheral) {
     this.peripheral = null;
+    kauaiMedicalDataParser.releaseSamplesRing();
     this.deviceMode = DeviceMode.IDLE;
     clearCharacteristics();
   }
@@ -6,8 +6,6 @@ import android.util.Log;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
-import org.greenrobot.eventbus.EventBus;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.time.Duration;
@@ -26,6 +24,8 @@ import io.nextsense.android.base.data.LocalSession;
 import io.nextsense.android.base.data.LocalSessionManager;
 import io.nextsense.android.base.data.Samples;
 import io.nextsense.android.base.data.SleepStageRecord;
+import io.nextsense.android.base.db.IngestionPipeline;
+import io.nextsense.android.base.db.SamplesRing;
 import io.nextsense.android.base.devices.FirmwareMessageParsingException;
 import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.nextsense.android.base.utils.Util;
@@ -52,6 +52,8 @@ public class MauiDataParser {
   private static final boolean SEMI_VERBOSE_LOGGING = true;
 
   private final LocalSessionManager localSessionManager;
+  // Ring of the connected device, null while no device is connected.
+  private volatile SamplesRing samplesRing;
 
   private DataSynchronizer eegDataSynchronizer;
   private DataSynchronizer imuDataSynchronizer;
@@ -73,6 +75,26 @@ public class MauiDataParser {
     return new MauiDataParser(localSessionManager);
   }
 
+  /**
+   * Publishes the packets to the ring of the device with this address from now on. Each device
+   * has its own ring, so that it has a single producer.
+   */
+  public void connectSamplesRing(String deviceAddress) {
+    samplesRing = IngestionPipeline.get().getRing(deviceAddress);
+  }
+
+  /**
+   * Releases the ring of the device once it is disconnected. The packets that were already
+   * published are still processed.
+   */
+  public void releaseSamplesRing() {
+    SamplesRing ring = samplesRing;
+    samplesRing = null;
+    if (ring != null) {
+      IngestionPipeline.get().releaseRing(ring);
+    }
+  }
+
   public void setDataSynchronizers(DataSynchronizer eegDataSynchronizer,
                                    DataSynchronizer imuDataSynchronizer) {
     this.eegDataSynchronizer = eegDataSynchronizer;
@@ -390,7 +412,7 @@ public class MauiDataParser {
           samples.getAccelerations().size() + " accelerations and " +
           samples.getAngularSpeeds().size() + " angular speeds.");
     }
-    EventBus.getDefault().post(samples);
+    publish(samples);
   }
 
   private EegSample parseSingleEegPacket(
@@ -453,4 +475,13 @@ public class MauiDataParser {
       ++rightImuSamplesSinceKeyTimestamp;
     }
   }
+
+  private void publish(Samples samples) {
+    SamplesRing ring = samplesRing;
+    if (ring == null) {
+      RotatingFileLogger.get().logw(TAG, "No device connected, dropping a packet.");
+      return;
+    }
+    ring.publish(samples);
+  }
 }
@@ -134,6 +134,7 @@ public class MauiDevice extends BaseNextSenseDevice implements NextSenseDevice {
   @Override
   public ListenableFuture<Boolean> connect(BluetoothPeripheral peripheral, boolean reconnecting) {
     this.peripheral = peripheral;
+    mauiDataParser.connectSamplesRing(peripheral.getAddress());
     mauiDataParser.setDeviceName(peripheral.getName());
     initializeCharacteristics();
     return Futures.immediateFuture(true);
@@ -142,6 +143,7 @@ public class MauiDevice extends BaseNextSenseDevice implements NextSenseDevice {
   @Override
   public void disconnect(BluetoothPeripheral peripheral) {
     this.peripheral = null;
+    mauiDataParser.releaseSamplesRing();
     clearCharacteristics();
   }
 
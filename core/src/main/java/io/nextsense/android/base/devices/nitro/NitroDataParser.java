@@ -2,8 +2,6 @@ package io.nextsense.android.base.devices.nitro;
 
 import static java.lang.Math.pow;
 
-import org.greenrobot.eventbus.EventBus;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.time.Instant;
@@ -20,11 +18,15 @@ import io.nextsense.android.base.data.LocalSession;
 import io.nextsense.android.base.data.LocalSessionManager;
 import io.nextsense.android.base.data.Sample;
 import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.db.IngestionPipeline;
+import io.nextsense.android.base.db.SamplesRing;
 import io.nextsense.android.base.devices.FirmwareMessageParsingException;
+import io.nextsense.android.base.utils.RotatingFileLogger;
 import io.nextsense.android.base.utils.Util;
 
 public class NitroDataParser {
 
+  private static final String TAG = NitroDataParser.class.getSimpleName();
   private static final float V_REF = 2.048f;
   private static final int ADC_GAIN = 128;
   private static final int AFE_EXT_AMP = 1;
@@ -41,6 +43,8 @@ public class NitroDataParser {
   private static final int MID_VALUE_24_BITS = 8388608;
 
   private final LocalSessionManager localSessionManager;
+  // Ring of the connected device, null while no device is connected.
+  private volatile SamplesRing samplesRing;
 
   private Instant firstEegSampleTimestamp = null;
   private int eegSampleCounter = 0;
@@ -53,6 +57,26 @@ public class NitroDataParser {
     return new NitroDataParser(localSessionManager);
   }
 
+  /**
+   * Publishes the packets to the ring of the device with this address from now on. Each device
+   * has its own ring, so that it has a single producer.
+   */
+  public void connectSamplesRing(String deviceAddress) {
+    samplesRing = IngestionPipeline.get().getRing(deviceAddress);
+  }
+
+  /**
+   * Releases the ring of the device once it is disconnected. The packets that were already
+   * published are still processed.
+   */
+  public void releaseSamplesRing() {
+    SamplesRing ring = samplesRing;
+    samplesRing = null;
+    if (ring != null) {
+      IngestionPipeline.get().releaseRing(ring);
+    }
+  }
+
   private static float convertToMicroVolts(int data) {
     return (float)(data * ((V_REF * 1000000.0f) / (ADC_GAIN * AFE_EXT_AMP * (pow(2, 23) - 1))));
   }
@@ -102,7 +126,7 @@ public class NitroDataParser {
       }
       canParsePacket = sampleOptional.isPresent();
     }
-    EventBus.getDefault().post(samples);
+    publish(samples);
   }
 
   private Optional<Sample> parseDataPacket(ByteBuffer valuesBuffer, Instant receptionTimestamp)
@@ -146,6 +170,15 @@ public class NitroDataParser {
         receptionTimestamp, null, /*samplingTime=*/receptionTimestamp);
     Samples samples = Samples.create();
     samples.addAcceleration((Sample.create(null, acceleration).getAcceleration()));
-    EventBus.getDefault().post(samples);
+    publish(samples);
+  }
+
+  private void publish(Samples samples) {
+    SamplesRing ring = samplesRing;
+    if (ring == null) {
+      RotatingFileLogger.get().logw(TAG, "No device connected, dropping a packet.");
+      return;
+    }
+    ring.publish(samples);
   }
 }
@@ -118,6 +118,7 @@ public class NitroDevice extends BaseNextSenseDevice implements NextSenseDevice
   @Override
   public ListenableFuture<Boolean> connect(BluetoothPeripheral peripheral, boolean reconnecting) {
     this.peripheral = peripheral;
+    nitroDataParser.connectSamplesRing(peripheral.getAddress());
     initializeCharacteristics();
     return Futures.immediateFuture(true);
   }
@@ -125,6 +126,7 @@ public class NitroDevice extends BaseNextSenseDevice implements NextSenseDevice
   @Override
   public void disconnect(BluetoothPeripheral peripheral) {
     this.peripheral = null;
+    nitroDataParser.releaseSamplesRing();
     clearCharacteristics();
   }
 
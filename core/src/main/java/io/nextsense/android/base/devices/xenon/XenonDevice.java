@@ -122,6 +122,7 @@ public class XenonDevice extends BaseNextSenseDevice implements NextSenseDevice
   @Override
   public ListenableFuture<Boolean> connect(BluetoothPeripheral peripheral, boolean reconnecting) {
     this.peripheral = peripheral;
+    xenonDataParser.connectSamplesRing(peripheral.getAddress());
     initializeCharacteristics();
     if (reconnecting) {
       // Cannot know if this was due to device powering off, so need to re-apply settings.
@@ -154,6 +155,7 @@ public class XenonDevice extends BaseNextSenseDevice implements NextSenseDevice
   @Override
   public void disconnect(BluetoothPeripheral peripheral) {
     this.peripheral = null;
+    xenonDataParser.releaseSamplesRing();
     clearCharacteristics();
   }
 
@@ -0,0 +1,94 @@
+package io.nextsense.android.base.utils;
+
+/**
+ * Circular buffer of primitive floats with a fixed capacity. When it is full, new values overwrite
+ * the oldest ones, so adding a value is O(1) and never shifts elements or allocates.
+ *
+ * This class is not thread-safe. Writes need to be synchronized by the caller, reads can be done
+ * optimistically as long as they are validated afterwards, see {@link #getLastValues}.
+ */
+public class FloatRingBuffer {
+  private final float[] values;
+  // Total number of values added since the creation or the last clear. The next write position is
+  // this count modulo the capacity.
+  private long writeCount;
+
+  public FloatRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity needs to be positive, got " + capacity);
+    }
+    this.values = new float[capacity];
+  }
+
+  public int getCapacity() {
+    return values.length;
+  }
+
+  public int getSize() {
+    return (int) Math.min(writeCount, values.length);
+  }
+
+  public long getWriteCount() {
+    return writeCount;
+  }
+
+  public void addValue(float value) {
+    values[(int) (writeCount % values.length)] = value;
+    ++writeCount;
+  }
+
+  /**
+   * Returns a recent value, 0 being the last value added. The offset needs to be less than the
+   * size, but an out of range offset returns an unspecified value instead of throwing so that this
+   * can be used in optimistic reads.
+   */
+  public float getLastValue(int offset) {
+    return values[(int) Math.floorMod(writeCount - 1 - offset, (long) values.length)];
+  }
+
+  /**
+   * Copies the most recent values in the destination array, oldest first, starting at index 0.
+   *
+   * @return the number of values copied, which is the minimum of the requested number of values,
+   *     the number of values in the buffer and the destination length.
+   */
+  public int getLastValues(int numberOfValues, float[] destination) {
+    return getLastValues(numberOfValues, destination, /*destinationOffset=*/0);
+  }
+
+  /**
+   * Same as {@link #getLastValues(int, float[])}, but starts copying at the given index of the
+   * destination.
+   */
+  public int getLastValues(int numberOfValues, float[] destination, int destinationOffset) {
+    return getLastValues(numberOfValues, /*skippedValues=*/0, destination, destinationOffset);
+  }
+
+  /**
+   * Copies the values that precede the {@code skippedValues} most recent ones, oldest first.
+   */
+  public int getLastValues(int numberOfValues, int skippedValues, float[] destination,
+                           int destinationOffset) {
+    // Read the write count once so that the copy stays within bounds even if another thread
+    // modifies the buffer during an optimistic read.
+    long written = writeCount;
+    long available = Math.min(written, values.length) - skippedValues;
+    int count = (int) Math.min(Math.min(numberOfValues, available),
+        destination.length - destinationOffset);
+    if (count <= 0) {
+      return 0;
+    }
+    int start = (int) ((written - skippedValues - count) % values.length);
+    int firstChunk = Math.min(count, values.length - start);
+    System.arraycopy(values, start, destination, destinationOffset, firstChunk);
+    if (firstChunk < count) {
+      System.arraycopy(
+          values, 0, destination, destinationOffset + firstChunk, count - firstChunk);
+    }
+    return count;
+  }
+
+  public void clear() {
+    writeCount = 0;
+  }
+}
@@ -0,0 +1,55 @@
+package io.nextsense.android.base.utils;
+
+/**
+ * Circular buffer of primitive ints with a fixed capacity. See {@link FloatRingBuffer}.
+ *
+ * This class is not thread-safe, access needs to be synchronized by the caller.
+ */
+public class IntRingBuffer {
+  private final int[] values;
+  private long writeCount;
+
+  public IntRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity needs to be positive, got " + capacity);
+    }
+    this.values = new int[capacity];
+  }
+
+  public int getCapacity() {
+    return values.length;
+  }
+
+  public int getSize() {
+    return (int) Math.min(writeCount, values.length);
+  }
+
+  public long getWriteCount() {
+    return writeCount;
+  }
+
+  public void addValue(int value) {
+    values[(int) (writeCount % values.length)] = value;
+    ++writeCount;
+  }
+
+  public int getLastValues(int numberOfValues, int[] destination) {
+    long written = writeCount;
+    int count = (int) Math.min(Math.min(numberOfValues, Math.min(written, values.length)),
+        destination.length);
+    if (count <= 0) {
+      return 0;
+    }
+    int start = (int) ((written - count) % values.length);
+    int firstChunk = Math.min(count, values.length - start);
+    System.arraycopy(values, start, destination, 0, firstChunk);
+    if (firstChunk < count) {
+      System.arraycopy(values, 0, destination, firstChunk, count - firstChunk);
+    }
+    return count;
+  }
+
+  public void clear() {
+    writeCount = 0;
+  }
+}
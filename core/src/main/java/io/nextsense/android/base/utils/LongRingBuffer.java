@@ -0,0 +1,70 @@
+package io.nextsense.android.base.utils;
+
+/**
+ * Circular buffer of primitive longs with a fixed capacity. See {@link FloatRingBuffer}.
+ *
+ * This class is not thread-safe, access needs to be synchronized by the caller.
+ */
+public class LongRingBuffer {
+  private final long[] values;
+  private long writeCount;
+
+  public LongRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity needs to be positive, got " + capacity);
+    }
+    this.values = new long[capacity];
+  }
+
+  public int getCapacity() {
+    return values.length;
+  }
+
+  public int getSize() {
+    return (int) Math.min(writeCount, values.length);
+  }
+
+  public long getWriteCount() {
+    return writeCount;
+  }
+
+  public void addValue(long value) {
+    values[(int) (writeCount % values.length)] = value;
+    ++writeCount;
+  }
+
+  public long getLastValue(int offset) {
+    return values[(int) Math.floorMod(writeCount - 1 - offset, (long) values.length)];
+  }
+
+  public int getLastValues(int numberOfValues, long[] destination) {
+    return getLastValues(numberOfValues, destination, /*destinationOffset=*/0);
+  }
+
+  public int getLastValues(int numberOfValues, long[] destination, int destinationOffset) {
+    return getLastValues(numberOfValues, /*skippedValues=*/0, destination, destinationOffset);
+  }
+
+  public int getLastValues(int numberOfValues, int skippedValues, long[] destination,
+                           int destinationOffset) {
+    long written = writeCount;
+    long available = Math.min(written, values.length) - skippedValues;
+    int count = (int) Math.min(Math.min(numberOfValues, available),
+        destination.length - destinationOffset);
+    if (count <= 0) {
+      return 0;
+    }
+    int start = (int) ((written - skippedValues - count) % values.length);
+    int firstChunk = Math.min(count, values.length - start);
+    System.arraycopy(values, start, destination, destinationOffset, firstChunk);
+    if (firstChunk < count) {
+      System.arraycopy(
+          values, 0, destination, destinationOffset + firstChunk, count - firstChunk);
+    }
+    return count;
+  }
+
+  public void clear() {
+    writeCount = 0;
+  }
+}
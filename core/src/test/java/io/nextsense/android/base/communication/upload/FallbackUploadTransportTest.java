@@ -0,0 +1,80 @@
+package io.nextsense.android.base.communication.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.Duration;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class FallbackUploadTransportTest {
+
+  private static final byte[] DATA = new byte[]{1, 2, 3};
+
+  // Counts its uploads and succeeds when told to.
+  private static class FakeTransport implements UploadTransport {
+    boolean succeeds = true;
+    int uploads = 0;
+
+    @Override
+    public boolean uploadDataSamples(byte[] data, int length) {
+      uploads++;
+      return succeeds;
+    }
+  }
+
+  private final FakeTransport primary = new FakeTransport();
+  private final FakeTransport fallback = new FakeTransport();
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+  }
+
+  @Test
+  public void uploadDataSamples_primarySucceeds_fallbackNotUsed() {
+    FallbackUploadTransport transport = FallbackUploadTransport.create(primary, fallback);
+    assertTrue(transport.uploadDataSamples(DATA, DATA.length));
+    assertEquals(1, primary.uploads);
+    assertEquals(0, fallback.uploads);
+  }
+
+  @Test
+  public void uploadDataSamples_primaryFails_usesFallback() {
+    FallbackUploadTransport transport = FallbackUploadTransport.create(primary, fallback);
+    primary.succeeds = false;
+    assertTrue(transport.uploadDataSamples(DATA, DATA.length));
+    assertEquals(1, fallback.uploads);
+    fallback.succeeds = false;
+    assertFalse(transport.uploadDataSamples(DATA, DATA.length));
+  }
+
+  @Test
+  public void uploadDataSamples_primaryFailsRepeatedly_skipsPrimaryUntilRetryDelay() {
+    FallbackUploadTransport transport =
+        new FallbackUploadTransport(primary, fallback, /*primaryRetryDelay=*/Duration.ZERO);
+    primary.succeeds = false;
+    for (int i = 0; i < 3; ++i) {
+      transport.uploadDataSamples(DATA, DATA.length);
+    }
+    // With no delay the primary transport is tried again right away.
+    assertTrue(transport.isPrimaryEnabled());
+
+    transport = FallbackUploadTransport.create(primary, fallback);
+    primary.uploads = 0;
+    for (int i = 0; i < 5; ++i) {
+      assertTrue(transport.uploadDataSamples(DATA, DATA.length));
+    }
+    assertFalse(transport.isPrimaryEnabled());
+    assertEquals(3, primary.uploads);
+  }
+}
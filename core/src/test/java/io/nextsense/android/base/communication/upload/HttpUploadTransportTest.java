@@ -0,0 +1,130 @@
+package io.nextsense.android.base.communication.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.common.base.Strings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpUploadTransportTest {
+
+  // 1 second of 8 EEG channels at 250 Hz, stored like a packed float field.
+  private static final int CHANNELS = 8;
+  private static final int SAMPLES_PER_CHANNEL = 250;
+
+  private LocalUploadServer server;
+
+  // Bytes of a noisy sine wave in each channel, like EEG data in microvolts.
+  private static byte[] createPayload(int seed) {
+    ByteBuffer buffer = ByteBuffer.allocate(CHANNELS * SAMPLES_PER_CHANNEL * Float.BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    for (int channel = 0; channel < CHANNELS; ++channel) {
+      for (int i = 0; i < SAMPLES_PER_CHANNEL; ++i) {
+        int noise = ((seed + channel) * 31 + i * 17) % 7;
+        buffer.putFloat((float) (50 * Math.sin(i / 10.0 + channel)) + noise * 0.25f);
+      }
+    }
+    return buffer.array();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+    server = LocalUploadServer.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void uploadDataSamples_uncompressed_serverReceivesTheBytes() throws IOException {
+    HttpUploadTransport transport =
+        HttpUploadTransport.create(server.getUrl(), /*gzip=*/false, /*authTokenProvider=*/null);
+    byte[] payload = createPayload(/*seed=*/1);
+    // Only the first bytes of the buffer are data.
+    byte[] buffer = Arrays.copyOf(payload, payload.length + 100);
+    assertTrue(transport.uploadDataSamples(buffer, payload.length));
+    assertEquals(1, server.getReceivedBodies().size());
+    assertArrayEquals(payload, server.getReceivedBodies().get(0));
+    assertEquals(payload.length, server.getBytesOnWire());
+    assertEquals(payload.length, transport.getBytesSent());
+  }
+
+  @Test
+  public void uploadDataSamples_gzip_serverReceivesTheBytesCompressed() throws IOException {
+    HttpUploadTransport transport =
+        HttpUploadTransport.create(server.getUrl(), /*gzip=*/true, /*authTokenProvider=*/null);
+    byte[] payload = createPayload(/*seed=*/1);
+    assertTrue(transport.uploadDataSamples(payload, payload.length));
+    assertArrayEquals(payload, server.getReceivedBodies().get(0));
+    assertTrue(server.getBytesOnWire() < payload.length);
+    assertEquals(payload.length, transport.getBytesUploaded());
+  }
+
+  @Test
+  public void uploadDataSamples_serverError_returnsFalse() throws IOException {
+    HttpUploadTransport transport =
+        HttpUploadTransport.create(server.getUrl(), /*gzip=*/false, /*authTokenProvider=*/null);
+    server.failNextUploads(1);
+    byte[] payload = createPayload(/*seed=*/1);
+    assertFalse(transport.uploadDataSamples(payload, payload.length));
+    assertTrue(transport.uploadDataSamples(payload, payload.length));
+    assertEquals(1, transport.getUploads());
+  }
+
+  @Test
+  public void readErrorBody_longErrorBody_returnsItsStart() throws IOException {
+    String errorBody = Strings.repeat("Quota exceeded. ", HttpUploadTransport.MAX_ERROR_BODY_BYTES);
+    server.setErrorBody(errorBody);
+    server.failNextUploads(1);
+    HttpURLConnection connection = (HttpURLConnection) server.getUrl().openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.getOutputStream().close();
+    assertEquals(500, connection.getResponseCode());
+    assertEquals(errorBody.substring(0, HttpUploadTransport.MAX_ERROR_BODY_BYTES),
+        HttpUploadTransport.readErrorBody(connection));
+    connection.disconnect();
+  }
+
+  @Test
+  public void uploadDataSamples_manyUploads_gzipSendsFewerBytes() throws IOException {
+    int uploads = 200;
+    long[] bytesOnWire = new long[2];
+    boolean[] gzipModes = new boolean[]{false, true};
+    for (int mode = 0; mode < gzipModes.length; ++mode) {
+      HttpUploadTransport transport =
+          HttpUploadTransport.create(server.getUrl(), gzipModes[mode], /*authTokenProvider=*/null);
+      long startBytesOnWire = server.getBytesOnWire();
+      for (int i = 0; i < uploads; ++i) {
+        byte[] payload = createPayload(i);
+        assertTrue(transport.uploadDataSamples(payload, payload.length));
+      }
+      bytesOnWire[mode] = server.getBytesOnWire() - startBytesOnWire;
+      assertEquals(bytesOnWire[mode], transport.getBytesSent());
+    }
+    assertEquals(2 * uploads, server.getReceivedBodies().size());
+    assertEquals((long) uploads * createPayload(/*seed=*/0).length, bytesOnWire[0]);
+    assertTrue(bytesOnWire[1] < bytesOnWire[0]);
+  }
+}
@@ -0,0 +1,112 @@
+package io.nextsense.android.base.communication.upload;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process HTTP server that stands in for the upload endpoint in tests and benchmarks. It keeps
+ * the bodies it receives, after decompression, and counts the bytes that were sent on the wire.
+ */
+public class LocalUploadServer implements AutoCloseable {
+
+  private static final String PATH = "/upload";
+
+  private final HttpServer httpServer;
+  private final List<byte[]> receivedBodies = new ArrayList<>();
+  private final AtomicLong bytesOnWire = new AtomicLong(0);
+  private final AtomicInteger failuresToReturn = new AtomicInteger(0);
+  private volatile byte[] errorBody = new byte[0];
+  private volatile Duration responseDelay = Duration.ZERO;
+
+  private LocalUploadServer(HttpServer httpServer) {
+    this.httpServer = httpServer;
+  }
+
+  public static LocalUploadServer start() throws IOException {
+    HttpServer httpServer = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), /*port=*/0), /*backlog=*/0);
+    LocalUploadServer server = new LocalUploadServer(httpServer);
+    httpServer.createContext(PATH, server::handle);
+    httpServer.setExecutor(Executors.newCachedThreadPool());
+    httpServer.start();
+    return server;
+  }
+
+  public URL getUrl() throws MalformedURLException {
+    return new URL("http", httpServer.getAddress().getHostString(),
+        httpServer.getAddress().getPort(), PATH);
+  }
+
+  // Answers the next uploads with an HTTP 500.
+  public void failNextUploads(int count) {
+    failuresToReturn.set(count);
+  }
+
+  // Body of the HTTP 500 responses.
+  public void setErrorBody(String errorBody) {
+    this.errorBody = errorBody.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Waits before answering each upload, like the round trip of a slow connection.
+  public void setResponseDelay(Duration responseDelay) {
+    this.responseDelay = responseDelay;
+  }
+
+  public synchronized List<byte[]> getReceivedBodies() {
+    return new ArrayList<>(receivedBodies);
+  }
+
+  public long getBytesOnWire() {
+    return bytesOnWire.get();
+  }
+
+  @Override
+  public void close() {
+    httpServer.stop(/*delay=*/0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    CountingInputStream countingStream = new CountingInputStream(exchange.getRequestBody());
+    InputStream bodyStream = HttpUploadTransport.GZIP_ENCODING.equals(
+        exchange.getRequestHeaders().getFirst("Content-Encoding")) ?
+        new GZIPInputStream(countingStream) : countingStream;
+    byte[] body = ByteStreams.toByteArray(bodyStream);
+    // Read the end of the request, which gzip does not need, so that the connection can be reused.
+    ByteStreams.exhaust(countingStream);
+    bytesOnWire.addAndGet(countingStream.getCount());
+    try {
+      Thread.sleep(responseDelay.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (failuresToReturn.getAndUpdate(failures -> Math.max(0, failures - 1)) > 0) {
+      byte[] errorBody = this.errorBody;
+      exchange.sendResponseHeaders(/*rCode=*/500, errorBody.length > 0 ? errorBody.length : -1);
+      exchange.getResponseBody().write(errorBody);
+      exchange.close();
+      return;
+    }
+    synchronized (this) {
+      receivedBodies.add(body);
+    }
+    exchange.sendResponseHeaders(/*rCode=*/200, /*responseLength=*/-1);
+    exchange.close();
+  }
+}
@@ -0,0 +1,35 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ChannelLayoutTest {
+
+  @Test
+  public void getEegIndex_channelNumbers_indexInListOrder() {
+    ChannelLayout layout = ChannelLayout.create(Arrays.asList("8", "1", "name"),
+        Collections.emptyList());
+    assertEquals(3, layout.getEegChannelCount());
+    assertEquals(0, layout.getEegIndex(8));
+    assertEquals(1, layout.getEegIndex(1));
+    assertEquals(ChannelLayout.NO_INDEX, layout.getEegIndex(2));
+    assertEquals(ChannelLayout.NO_INDEX, layout.getEegIndex(100));
+    assertEquals(ChannelLayout.NO_INDEX, layout.getEegIndex(-1));
+    assertEquals(ChannelLayout.NO_INDEX, layout.getEegChannelNumber(2));
+    assertEquals("name", layout.getEegChannelName(2));
+  }
+
+  @Test
+  public void getImuIndex_channelNames_indexOfMatchingName() {
+    ChannelLayout layout = ChannelLayout.create(Collections.emptyList(), Arrays.asList(
+        AngularSpeed.Channels.GYRO_L_X.getName(), Acceleration.Channels.ACC_R_Z.getName()));
+    assertEquals(2, layout.getImuChannelCount());
+    assertEquals(0, layout.getImuIndex(AngularSpeed.Channels.GYRO_L_X));
+    assertEquals(1, layout.getImuIndex(Acceleration.Channels.ACC_R_Z));
+    assertEquals(ChannelLayout.NO_INDEX, layout.getImuIndex(Acceleration.Channels.ACC_X));
+  }
+}
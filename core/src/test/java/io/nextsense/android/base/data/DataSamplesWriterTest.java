@@ -0,0 +1,314 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.primitives.Ints;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.nextsense.android.base.DataSamplesProto;
+import io.nextsense.android.base.DataSamplesProto.ModalityDataSamples.Modality;
+import io.nextsense.android.base.devices.maui.MauiDataParser;
+import io.nextsense.android.base.devices.maui.MauiDevice;
+
+public class DataSamplesWriterTest {
+
+  private static final String[] ACCELERATION_CHANNEL_NAMES = {"x", "y", "z"};
+  private static final int EEG_CHANNELS = 8;
+  private static final int EEG_SAMPLING_RATE = 250;
+  private static final int ACCELERATION_SAMPLING_RATE = 100;
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long START_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Instant.parse("2024-01-01T00:00:00.998Z").toEpochMilli());
+  private static final String DATA_SESSION_ID = "data_session_id";
+  private static final String USER_ID = "user_id";
+
+  // One second of data as the Uploader reads it from the database.
+  private static class Chunk {
+    final float[][] eeg = new float[EEG_CHANNELS][EEG_SAMPLING_RATE];
+    final long[] eegTimestampsNanos = new long[EEG_SAMPLING_RATE];
+    final boolean[] sync = new boolean[EEG_SAMPLING_RATE];
+    final int[][] acceleration =
+        new int[ACCELERATION_CHANNEL_NAMES.length][ACCELERATION_SAMPLING_RATE];
+    final long[] accelerationTimestampsNanos = new long[ACCELERATION_SAMPLING_RATE];
+  }
+
+  // EEG converted from Maui counts, with a few lost samples, and accelerometer values.
+  private static Chunk createChunk(int seed) {
+    Random random = new Random(seed);
+    Chunk chunk = new Chunk();
+    long eegPeriodNanos = NANOS_PER_SECOND / EEG_SAMPLING_RATE;
+    long timestampNanos = START_NANOS + seed * NANOS_PER_SECOND;
+    for (int i = 0; i < EEG_SAMPLING_RATE; ++i) {
+      if (random.nextInt(50) == 0) {
+        timestampNanos += eegPeriodNanos;
+      }
+      chunk.eegTimestampsNanos[i] = timestampNanos;
+      timestampNanos += eegPeriodNanos;
+      chunk.sync[i] = i % 50 == 0;
+      for (int channel = 0; channel < EEG_CHANNELS; ++channel) {
+        int count = (int) Math.round(20 * Math.sin(2 * Math.PI * 10 * i / EEG_SAMPLING_RATE) /
+            0.02 + random.nextGaussian() * 100);
+        chunk.eeg[channel][i] =
+            MauiDataParser.convertToMicroVolts(count >= 0 ? count : count + (1 << 22));
+      }
+    }
+    long accelerationPeriodNanos = NANOS_PER_SECOND / ACCELERATION_SAMPLING_RATE;
+    for (int i = 0; i < ACCELERATION_SAMPLING_RATE; ++i) {
+      chunk.accelerationTimestampsNanos[i] =
+          START_NANOS + seed * NANOS_PER_SECOND + i * accelerationPeriodNanos;
+      for (int channel = 0; channel < ACCELERATION_CHANNEL_NAMES.length; ++channel) {
+        chunk.acceleration[channel][i] = random.nextInt(4096) - 2048;
+      }
+    }
+    return chunk;
+  }
+
+  private static Timestamp toTimestamp(long epochNanos) {
+    return Timestamp.newBuilder()
+        .setSeconds(epochNanos / NANOS_PER_SECOND)
+        .setNanos((int) (epochNanos % NANOS_PER_SECOND)).build();
+  }
+
+  private static void addTimestamps(DataSamplesProto.ModalityDataSamples.Builder builder,
+                                    long[] epochNanos, int samplingRate,
+                                    boolean implicitTimestamps) {
+    long[] timestampsNanos = Arrays.copyOf(epochNanos, epochNanos.length);
+    int count = ImplicitTimestamps.sortAndDeduplicate(
+        timestampsNanos, timestampsNanos.length, 1000 / samplingRate);
+    if (!implicitTimestamps) {
+      for (int i = 0; i < count; ++i) {
+        builder.addSamplingTimestamp(toTimestamp(timestampsNanos[i]));
+      }
+      return;
+    }
+    ImplicitTimestamps encoded =
+        ImplicitTimestamps.encode(timestampsNanos, count, NANOS_PER_SECOND / samplingRate);
+    DataSamplesProto.ImplicitTimestamps.Builder implicitBuilder =
+        DataSamplesProto.ImplicitTimestamps.newBuilder()
+            .setStart(toTimestamp(encoded.getStartNanos()))
+            .setPeriodNanos(encoded.getPeriodNanos())
+            .setCount(encoded.getCount());
+    for (int i = 0; i < encoded.getExceptionCount(); ++i) {
+      implicitBuilder.addExceptionIndex(encoded.getExceptionIndex(i));
+      implicitBuilder.addExceptionOffsetNanos(encoded.getExceptionOffsetNanos(i));
+    }
+    builder.setImplicitSamplingTimestamp(implicitBuilder);
+  }
+
+  // The chunk serialized with the builders, like the Uploader did before the writer.
+  private static DataSamplesProto.DataSamples buildChunk(
+      Chunk chunk, boolean rawCounts, boolean implicitTimestamps) {
+    DataSamplesProto.ModalityDataSamples.Builder eegBuilder =
+        DataSamplesProto.ModalityDataSamples.newBuilder()
+            .setModality(Modality.EAR_EEG)
+            .setEarbudsConfig(MauiDevice.EARBUD_CONFIG)
+            .setSamplingRate(EEG_SAMPLING_RATE)
+            .setExpectedStartTimestamp(toTimestamp(chunk.eegTimestampsNanos[0]))
+            .setExpectedSamplesCount(EEG_SAMPLING_RATE);
+    RawEegCounts rawEegCounts = RawEegCounts.forEarbudsConfig(MauiDevice.EARBUD_CONFIG).get();
+    for (int channel = 0; channel < EEG_CHANNELS; ++channel) {
+      DataSamplesProto.Channel.Builder channelBuilder =
+          DataSamplesProto.Channel.newBuilder().setName(String.valueOf(channel));
+      for (float sample : chunk.eeg[channel]) {
+        channelBuilder.addSample(sample);
+      }
+      int[] deltas = new int[EEG_SAMPLING_RATE];
+      if (rawCounts && rawEegCounts.encodeDeltas(chunk.eeg[channel], EEG_SAMPLING_RATE, deltas)) {
+        channelBuilder.clearSample()
+            .setScale(rawEegCounts.getScale())
+            .addAllRawDelta(Ints.asList(deltas));
+      }
+      eegBuilder.addChannel(channelBuilder);
+    }
+    for (boolean sync : chunk.sync) {
+      eegBuilder.addSync(sync);
+    }
+    addTimestamps(eegBuilder, chunk.eegTimestampsNanos, EEG_SAMPLING_RATE, implicitTimestamps);
+
+    DataSamplesProto.ModalityDataSamples.Builder accelerationBuilder =
+        DataSamplesProto.ModalityDataSamples.newBuilder()
+            .setModality(Modality.ACC)
+            .setSamplingRate(ACCELERATION_SAMPLING_RATE)
+            .setExpectedStartTimestamp(toTimestamp(chunk.accelerationTimestampsNanos[0]))
+            .setExpectedSamplesCount(ACCELERATION_SAMPLING_RATE);
+    for (int channel = 0; channel < ACCELERATION_CHANNEL_NAMES.length; ++channel) {
+      DataSamplesProto.Channel.Builder channelBuilder =
+          DataSamplesProto.Channel.newBuilder().setName(ACCELERATION_CHANNEL_NAMES[channel]);
+      for (int sample : chunk.acceleration[channel]) {
+        channelBuilder.addSample(sample);
+      }
+      accelerationBuilder.addChannel(channelBuilder);
+    }
+    addTimestamps(accelerationBuilder, chunk.accelerationTimestampsNanos,
+        ACCELERATION_SAMPLING_RATE, implicitTimestamps);
+
+    return DataSamplesProto.DataSamples.newBuilder()
+        .setDataSessionId(DATA_SESSION_ID)
+        .setUserId(USER_ID)
+        .addModalityDataSamples(eegBuilder)
+        .addModalityDataSamples(accelerationBuilder)
+        .build();
+  }
+
+  private static void fillColumns(DataSamplesWriter.ModalityColumns columns, int samplingRate,
+                                  long[] timestampsNanos, boolean implicitTimestamps) {
+    columns.setSamplingRate(samplingRate);
+    columns.setExpectedStartNanos(timestampsNanos[0]);
+    columns.setExpectedSamplesCount(samplingRate);
+    columns.deduplicateTimestamps(1000 / samplingRate);
+    if (implicitTimestamps) {
+      columns.encodeImplicitTimestamps(NANOS_PER_SECOND / samplingRate);
+    }
+  }
+
+  // The chunk serialized with the writer, like the Uploader does.
+  private static byte[] writeChunk(
+      DataSamplesWriter writer, DataSamplesWriter.ModalityColumns eegColumns,
+      DataSamplesWriter.ModalityColumns accelerationColumns, Chunk chunk, boolean rawCounts,
+      boolean implicitTimestamps) {
+    eegColumns.clear(Modality.EAR_EEG.getNumber());
+    eegColumns.setEarbudsConfig(MauiDevice.EARBUD_CONFIG);
+    for (int i = 0; i < EEG_SAMPLING_RATE; ++i) {
+      eegColumns.addTimestamp(chunk.eegTimestampsNanos[i]);
+      for (int channel = 0; channel < EEG_CHANNELS; ++channel) {
+        eegColumns.addSample(channel, chunk.eeg[channel][i]);
+      }
+      eegColumns.addFlag(DataSamplesWriter.ModalityColumns.SYNC, chunk.sync[i]);
+    }
+    if (rawCounts) {
+      eegColumns.encodeRawCounts(
+          RawEegCounts.forEarbudsConfig(MauiDevice.EARBUD_CONFIG).get());
+    }
+    fillColumns(eegColumns, EEG_SAMPLING_RATE, chunk.eegTimestampsNanos, implicitTimestamps);
+
+    accelerationColumns.clear(Modality.ACC.getNumber());
+    for (int i = 0; i < ACCELERATION_SAMPLING_RATE; ++i) {
+      accelerationColumns.addTimestamp(chunk.accelerationTimestampsNanos[i]);
+      for (int channel = 0; channel < ACCELERATION_CHANNEL_NAMES.length; ++channel) {
+        accelerationColumns.addSample(channel, chunk.acceleration[channel][i]);
+      }
+    }
+    fillColumns(accelerationColumns, ACCELERATION_SAMPLING_RATE,
+        chunk.accelerationTimestampsNanos, implicitTimestamps);
+
+    writer.write(DATA_SESSION_ID, USER_ID, Arrays.asList(eegColumns, accelerationColumns),
+        Collections.emptyList());
+    return Arrays.copyOf(writer.getBuffer(), writer.size());
+  }
+
+  private static void assertWrittenLikeBuilders(boolean rawCounts, boolean implicitTimestamps)
+      throws InvalidProtocolBufferException {
+    DataSamplesWriter writer = new DataSamplesWriter();
+    DataSamplesWriter.ModalityColumns eegColumns =
+        new DataSamplesWriter.ModalityColumns(new String[0]);
+    DataSamplesWriter.ModalityColumns accelerationColumns =
+        new DataSamplesWriter.ModalityColumns(ACCELERATION_CHANNEL_NAMES);
+    // The second chunk reuses the buffer and the columns of the first one.
+    for (int seed = 0; seed < 2; ++seed) {
+      Chunk chunk = createChunk(seed);
+      DataSamplesProto.DataSamples expected = buildChunk(chunk, rawCounts, implicitTimestamps);
+      byte[] written = writeChunk(
+          writer, eegColumns, accelerationColumns, chunk, rawCounts, implicitTimestamps);
+      assertEquals(expected, DataSamplesProto.DataSamples.parseFrom(written));
+      assertArrayEquals(expected.toByteArray(), written);
+    }
+  }
+
+  @Test
+  public void write_floatSamples_sameAsBuilders() throws InvalidProtocolBufferException {
+    assertWrittenLikeBuilders(/*rawCounts=*/false, /*implicitTimestamps=*/false);
+  }
+
+  @Test
+  public void write_rawCountsAndImplicitTimestamps_sameAsBuilders()
+      throws InvalidProtocolBufferException {
+    assertWrittenLikeBuilders(/*rawCounts=*/true, /*implicitTimestamps=*/true);
+  }
+
+  @Test
+  public void write_emptyModalityAndInternalState_sameAsBuilders()
+      throws InvalidProtocolBufferException {
+    DataSamplesProto.DeviceInternalState deviceInternalState =
+        DataSamplesProto.DeviceInternalState.newBuilder()
+            .setTimestamp(toTimestamp(START_NANOS))
+            .setBatteryMilliVolts(3900)
+            .addLeadsOffPositive(true)
+            .build();
+    DataSamplesProto.DataSamples expected = DataSamplesProto.DataSamples.newBuilder()
+        .setUserId(USER_ID)
+        .addModalityDataSamples(DataSamplesProto.ModalityDataSamples.getDefaultInstance())
+        .addDeviceInternalStates(deviceInternalState)
+        .build();
+    DataSamplesWriter writer = new DataSamplesWriter();
+    DataSamplesWriter.ModalityColumns accelerationColumns =
+        new DataSamplesWriter.ModalityColumns(ACCELERATION_CHANNEL_NAMES);
+    accelerationColumns.clear(Modality.ACC.getNumber());
+    writer.write(/*dataSessionId=*/null, USER_ID, Collections.singletonList(accelerationColumns),
+        Collections.singletonList(deviceInternalState));
+    byte[] written = Arrays.copyOf(writer.getBuffer(), writer.size());
+    assertEquals(expected, DataSamplesProto.DataSamples.parseFrom(written));
+    assertArrayEquals(expected.toByteArray(), written);
+  }
+
+  @Test
+  public void getSessionHeaderSize_concatenatedChunks_parsedAsOneMessage()
+      throws InvalidProtocolBufferException {
+    DataSamplesWriter writer = new DataSamplesWriter();
+    DataSamplesWriter.ModalityColumns eegColumns =
+        new DataSamplesWriter.ModalityColumns(new String[0]);
+    DataSamplesWriter.ModalityColumns accelerationColumns =
+        new DataSamplesWriter.ModalityColumns(ACCELERATION_CHANNEL_NAMES);
+    Chunk firstChunk = createChunk(0);
+    Chunk secondChunk = createChunk(1);
+    byte[] first = writeChunk(writer, eegColumns, accelerationColumns, firstChunk,
+        /*rawCounts=*/true, /*implicitTimestamps=*/true);
+    byte[] second = writeChunk(writer, eegColumns, accelerationColumns, secondChunk,
+        /*rawCounts=*/true, /*implicitTimestamps=*/true);
+    DataSamplesProto.DataSamples secondSamples =
+        buildChunk(secondChunk, /*rawCounts=*/true, /*implicitTimestamps=*/true);
+
+    int headerSize = DataSamplesWriter.getSessionHeaderSize(ByteBuffer.wrap(second));
+    assertEquals(second.length -
+        secondSamples.toBuilder().clearDataSessionId().clearUserId().build().getSerializedSize(),
+        headerSize);
+    byte[] concatenated = Arrays.copyOf(first, first.length + second.length - headerSize);
+    System.arraycopy(second, headerSize, concatenated, first.length, second.length - headerSize);
+    DataSamplesProto.DataSamples expected =
+        buildChunk(firstChunk, /*rawCounts=*/true, /*implicitTimestamps=*/true).toBuilder()
+            .addAllModalityDataSamples(secondSamples.getModalityDataSamplesList())
+            .build();
+    assertEquals(expected, DataSamplesProto.DataSamples.parseFrom(concatenated));
+  }
+
+  @Test
+  public void write_rawCountsAndImplicitTimestamps_lessThanHalfOfFloatSamples() {
+    DataSamplesWriter writer = new DataSamplesWriter();
+    DataSamplesWriter.ModalityColumns eegColumns =
+        new DataSamplesWriter.ModalityColumns(new String[0]);
+    DataSamplesWriter.ModalityColumns accelerationColumns =
+        new DataSamplesWriter.ModalityColumns(ACCELERATION_CHANNEL_NAMES);
+    long floatBytes = 0;
+    long rawBytes = 0;
+    for (int seed = 0; seed < 3; ++seed) {
+      Chunk chunk = createChunk(seed);
+      floatBytes += writeChunk(writer, eegColumns, accelerationColumns, chunk,
+          /*rawCounts=*/false, /*implicitTimestamps=*/false).length;
+      rawBytes += writeChunk(writer, eegColumns, accelerationColumns, chunk,
+          /*rawCounts=*/true, /*implicitTimestamps=*/true).length;
+    }
+    assertTrue("raw counts: " + rawBytes + " bytes, float samples: " + floatBytes + " bytes",
+        rawBytes * 2 < floatBytes);
+  }
+}
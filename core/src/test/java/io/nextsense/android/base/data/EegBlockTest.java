@@ -0,0 +1,110 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.nextsense.android.base.devices.xenon.XenonSampleFlags;
+
+public class EegBlockTest {
+
+  private static final Instant RECEPTION_TIMESTAMP = Instant.ofEpochMilli(1627633663376L);
+
+  private static EegSample createSample(long timestamp, @Nullable Float value,
+                                        @Nullable XenonSampleFlags flags) {
+    HashMap<Integer, Float> eegData = new HashMap<>();
+    eegData.put(1, (float) timestamp);
+    if (value != null) {
+      eegData.put(3, value);
+    }
+    return EegSample.create(/*localSessionId=*/1, eegData, RECEPTION_TIMESTAMP,
+        /*relativeSamplingTimestamp=*/null, Instant.ofEpochMilli(timestamp), flags);
+  }
+
+  @Test
+  public void create_evenlySpacedSamples_noTimestampOffsets() {
+    List<EegSample> eegSamples = new ArrayList<>();
+    for (int i = 0; i < 50; ++i) {
+      eegSamples.add(createSample(1000 + i * 4L, (float) i, /*flags=*/null));
+    }
+    EegBlock eegBlock = EegBlock.create(/*localSessionId=*/1, /*firstSampleIndex=*/100, eegSamples);
+    assertEquals(150, eegBlock.getEndSampleIndex());
+    assertArrayEquals(new int[]{1, 3}, eegBlock.getChannelNumbers());
+    assertEquals(4, eegBlock.getSamplePeriodMillis(), 0);
+    assertNull(eegBlock.getTimestampOffsets());
+    assertNull(eegBlock.getFlags());
+    assertEquals(1196, eegBlock.getSamplingTimestamp(49));
+    // Values of the second channel follow the values of the first one.
+    assertEquals(49, eegBlock.getValues()[99], 0);
+  }
+
+  @Test
+  public void addEegSamples_afterCreate_samplesRestored() {
+    List<EegSample> eegSamples = new ArrayList<>();
+    eegSamples.add(createSample(1000, 1f, XenonSampleFlags.create((byte) 0x01)));
+    // Not evenly spaced, and missing the second channel.
+    eegSamples.add(createSample(1003, /*value=*/null, XenonSampleFlags.create((byte) 0x80)));
+    eegSamples.add(createSample(1008, 3f, /*flags=*/null));
+    EegBlock eegBlock = EegBlock.create(/*localSessionId=*/1, /*firstSampleIndex=*/10, eegSamples);
+
+    List<EegSample> restored = new ArrayList<>();
+    eegBlock.addEegSamples(/*fromSampleIndex=*/0, /*toSampleIndex=*/100, restored);
+    assertEquals(3, restored.size());
+    for (int i = 0; i < restored.size(); ++i) {
+      assertEquals(eegSamples.get(i).getEegSamples(), restored.get(i).getEegSamples());
+      assertEquals(eegSamples.get(i).getAbsoluteSamplingTimestamp(),
+          restored.get(i).getAbsoluteSamplingTimestamp());
+      assertEquals(eegSamples.get(i).getSync(), restored.get(i).getSync());
+      assertEquals(eegSamples.get(i).getButton(), restored.get(i).getButton());
+      assertEquals(eegSamples.get(i).getHdmiPresent(), restored.get(i).getHdmiPresent());
+      assertEquals(RECEPTION_TIMESTAMP, restored.get(i).getReceptionTimestamp());
+    }
+
+    restored.clear();
+    eegBlock.addEegSamples(/*fromSampleIndex=*/11, /*toSampleIndex=*/12, restored);
+    assertEquals(1, restored.size());
+    assertEquals(Instant.ofEpochMilli(1003), restored.get(0).getAbsoluteSamplingTimestamp());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void create_mixedTimestampTypes_throws() {
+    List<EegSample> eegSamples = new ArrayList<>();
+    eegSamples.add(createSample(1000, 1f, /*flags=*/null));
+    HashMap<Integer, Float> eegData = new HashMap<>();
+    eegData.put(1, 1f);
+    eegSamples.add(EegSample.create(/*localSessionId=*/1, eegData, RECEPTION_TIMESTAMP,
+        /*relativeSamplingTimestamp=*/2, /*absoluteSamplingTimestamp=*/null));
+    EegBlock.create(/*localSessionId=*/1, /*firstSampleIndex=*/0, eegSamples);
+  }
+
+  @Test
+  public void copyChannelValues_sampleIndexRange_copiesChannelOnly() {
+    List<EegSample> eegSamples = new ArrayList<>();
+    for (int i = 0; i < 10; ++i) {
+      eegSamples.add(createSample(1000 + i * 4L, (float) -i, /*flags=*/null));
+    }
+    EegBlock eegBlock = EegBlock.create(/*localSessionId=*/1, /*firstSampleIndex=*/100, eegSamples);
+    assertEquals(102, eegBlock.getSampleIndex(/*samplingTimestamp=*/1005));
+    assertEquals(102, eegBlock.getSampleIndex(/*samplingTimestamp=*/1008));
+    assertEquals(110, eegBlock.getSampleIndex(/*samplingTimestamp=*/2000));
+    assertEquals(3, eegBlock.getSampleCount(/*fromSampleIndex=*/90, /*toSampleIndex=*/103));
+
+    float[] values = new float[5];
+    assertEquals(3, eegBlock.copyChannelValues(/*channelNumber=*/3, /*fromSampleIndex=*/107,
+        /*toSampleIndex=*/120, values, /*destinationPosition=*/1));
+    assertArrayEquals(new float[]{0, -7, -8, -9, 0}, values, 0);
+    assertEquals(2, eegBlock.copyChannelValues(/*channelNumber=*/2, /*fromSampleIndex=*/100,
+        /*toSampleIndex=*/102, values, /*destinationPosition=*/0));
+    assertTrue(Float.isNaN(values[0]) && Float.isNaN(values[1]));
+  }
+}
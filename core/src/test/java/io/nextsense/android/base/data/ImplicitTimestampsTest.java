@@ -0,0 +1,143 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.protobuf.Timestamp;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class ImplicitTimestampsTest {
+
+  private static final int SAMPLING_RATE = 250;
+  private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1) / SAMPLING_RATE;
+  private static final long START_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Instant.parse("2024-01-01T00:00:00.998Z").toEpochMilli());
+
+  // The sampling_timestamp field as the Uploader made it with one Timestamp per sample.
+  private static List<Timestamp> createSamplingTimestampField(long[] epochNanos) {
+    List<Timestamp> timestamps = new ArrayList<>();
+    for (long nanos : epochNanos) {
+      timestamps.add(Timestamp.newBuilder()
+          .setSeconds(nanos / 1_000_000_000L).setNanos((int) (nanos % 1_000_000_000L)).build());
+    }
+    timestamps = timestamps.stream()
+        .sorted(Comparator.comparing(Timestamp::getSeconds).thenComparing(Timestamp::getNanos))
+        .collect(Collectors.toList());
+    int minTimeDifference = 1000 / SAMPLING_RATE;
+    boolean skippedLast = false;
+    List<Timestamp> dedup = new ArrayList<>();
+    for (int i = 0; i < timestamps.size(); ++i) {
+      if (i == 0) {
+        dedup.add(timestamps.get(i));
+        continue;
+      }
+      long diff = (Math.abs(timestamps.get(i).getSeconds() -
+          timestamps.get(i - 1).getSeconds()) * 1000) +
+          Math.abs(timestamps.get(i).getNanos() - timestamps.get(i - 1).getNanos()) / 1000000;
+      if (skippedLast) {
+        skippedLast = false;
+      } else if (diff < minTimeDifference) {
+        skippedLast = true;
+        continue;
+      }
+      dedup.add(timestamps.get(i));
+    }
+    return dedup;
+  }
+
+  // Round trips the timestamps through the implicit encoding, like the Uploader and the server.
+  private static List<Timestamp> roundTrip(long[] epochNanos) {
+    long[] buffer = Arrays.copyOf(epochNanos, epochNanos.length);
+    int count = ImplicitTimestamps.sortAndDeduplicate(
+        buffer, buffer.length, /*minTimeDifferenceMs=*/1000 / SAMPLING_RATE);
+    List<Timestamp> timestamps = new ArrayList<>();
+    for (long nanos : ImplicitTimestamps.encode(buffer, count, PERIOD_NANOS).decode()) {
+      timestamps.add(Timestamp.newBuilder()
+          .setSeconds(nanos / 1_000_000_000L).setNanos((int) (nanos % 1_000_000_000L)).build());
+    }
+    return timestamps;
+  }
+
+  @Test
+  public void encode_regularTimestamps_noExceptions() {
+    long[] epochNanos = new long[SAMPLING_RATE];
+    for (int i = 0; i < epochNanos.length; ++i) {
+      epochNanos[i] = START_NANOS + i * PERIOD_NANOS;
+    }
+    ImplicitTimestamps implicitTimestamps =
+        ImplicitTimestamps.encode(epochNanos, epochNanos.length, PERIOD_NANOS);
+    assertEquals(0, implicitTimestamps.getExceptionCount());
+    assertEquals(START_NANOS, implicitTimestamps.getStartNanos());
+    assertArrayEquals(epochNanos, implicitTimestamps.decode());
+  }
+
+  @Test
+  public void encode_gapAndJitter_exceptionsOnlyWhereIrregular() {
+    long[] epochNanos = new long[SAMPLING_RATE];
+    for (int i = 0; i < epochNanos.length; ++i) {
+      epochNanos[i] = START_NANOS + i * PERIOD_NANOS;
+    }
+    // 10 samples lost after the 100th one.
+    for (int i = 100; i < epochNanos.length; ++i) {
+      epochNanos[i] += 10 * PERIOD_NANOS;
+    }
+    // One sample 1ms late.
+    epochNanos[200] += TimeUnit.MILLISECONDS.toNanos(1);
+    ImplicitTimestamps implicitTimestamps =
+        ImplicitTimestamps.encode(epochNanos, epochNanos.length, PERIOD_NANOS);
+    assertEquals(3, implicitTimestamps.getExceptionCount());
+    assertEquals(100, implicitTimestamps.getExceptionIndex(0));
+    assertEquals(10 * PERIOD_NANOS, implicitTimestamps.getExceptionOffsetNanos(0));
+    assertEquals(200, implicitTimestamps.getExceptionIndex(1));
+    assertEquals(201, implicitTimestamps.getExceptionIndex(2));
+    assertArrayEquals(epochNanos, implicitTimestamps.decode());
+  }
+
+  @Test
+  public void encode_empty_decodesToEmpty() {
+    assertEquals(0, ImplicitTimestamps.encode(new long[0], 0, PERIOD_NANOS).decode().length);
+  }
+
+  @Test
+  public void roundTrip_oneDevice_sameAsSamplingTimestampField() {
+    Random random = new Random(1);
+    long[] epochNanos = new long[5 * SAMPLING_RATE];
+    long nanos = START_NANOS;
+    for (int i = 0; i < epochNanos.length; ++i) {
+      epochNanos[i] = nanos;
+      nanos += PERIOD_NANOS;
+      if (random.nextInt(50) == 0) {
+        nanos += random.nextInt(20) * PERIOD_NANOS;
+      }
+    }
+    assertEquals(createSamplingTimestampField(epochNanos), roundTrip(epochNanos));
+  }
+
+  @Test
+  public void roundTrip_twoEarbuds_sameAsSamplingTimestampField() {
+    // Both earbuds sample at the same rate, the right one 1ms later and missing some samples.
+    Random random = new Random(2);
+    long[] epochNanos = new long[2 * 5 * SAMPLING_RATE];
+    int count = 0;
+    for (int i = 0; i < 5 * SAMPLING_RATE; ++i) {
+      epochNanos[count++] = START_NANOS + i * PERIOD_NANOS;
+      if (random.nextInt(20) != 0) {
+        epochNanos[count++] =
+            START_NANOS + i * PERIOD_NANOS + TimeUnit.MILLISECONDS.toNanos(1);
+      }
+    }
+    epochNanos = Arrays.copyOf(epochNanos, count);
+    List<Timestamp> samplingTimestampField = createSamplingTimestampField(epochNanos);
+    assertEquals(samplingTimestampField, roundTrip(epochNanos));
+  }
+}
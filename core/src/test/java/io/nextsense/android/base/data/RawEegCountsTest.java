@@ -0,0 +1,147 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.CodedOutputStream;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.nextsense.android.base.devices.maui.MauiDataParser;
+import io.nextsense.android.base.devices.maui.MauiDevice;
+import io.nextsense.android.base.devices.xenon.XenonDataParser;
+
+public class RawEegCountsTest {
+
+  private static final String XENON_CONFIG = "xenon_b_config";
+  // 1 second of EEG at 250 Hz, the size of an upload chunk.
+  private static final int SAMPLES = 250;
+  private static final int SAMPLING_RATE = 250;
+
+  // Counts of an EEG like signal: an alpha wave, a slow drift and noise, in microvolts.
+  private static int[] createCounts(double microVoltsPerCount, int seed) {
+    Random random = new Random(seed);
+    int[] counts = new int[SAMPLES];
+    double drift = 0;
+    for (int i = 0; i < SAMPLES; ++i) {
+      drift += random.nextGaussian() * 0.5;
+      double microVolts = 20 * Math.sin(2 * Math.PI * 10 * i / SAMPLING_RATE) + drift +
+          random.nextGaussian() * 2;
+      counts[i] = (int) Math.round(microVolts / microVoltsPerCount);
+    }
+    return counts;
+  }
+
+  private static float mauiMicroVolts(int count) {
+    return MauiDataParser.convertToMicroVolts(count >= 0 ? count : count + (1 << 22));
+  }
+
+  private static int[] decodeCounts(int[] deltas) {
+    int[] counts = new int[deltas.length];
+    int count = 0;
+    for (int i = 0; i < deltas.length; ++i) {
+      count += deltas[i];
+      counts[i] = count;
+    }
+    return counts;
+  }
+
+  private static int floatChannelBytes(int samples) {
+    return CodedOutputStream.computeTagSize(/*fieldNumber=*/2) +
+        CodedOutputStream.computeUInt32SizeNoTag(samples * Float.BYTES) + samples * Float.BYTES;
+  }
+
+  private static int rawChannelBytes(int[] deltas) {
+    int deltasBytes = 0;
+    for (int delta : deltas) {
+      deltasBytes += CodedOutputStream.computeSInt32SizeNoTag(delta);
+    }
+    return CodedOutputStream.computeFloatSize(/*fieldNumber=*/3, /*value=*/1) +
+        CodedOutputStream.computeTagSize(/*fieldNumber=*/4) +
+        CodedOutputStream.computeUInt32SizeNoTag(deltasBytes) + deltasBytes;
+  }
+
+  @Test
+  public void forEarbudsConfig_unknownConfig_empty() {
+    assertFalse(RawEegCounts.forEarbudsConfig(null).isPresent());
+    assertFalse(RawEegCounts.forEarbudsConfig("nitro_config").isPresent());
+    assertTrue(RawEegCounts.forEarbudsConfig(MauiDevice.EARBUD_CONFIG).isPresent());
+    assertTrue(RawEegCounts.forEarbudsConfig(XENON_CONFIG).isPresent());
+  }
+
+  @Test
+  public void encodeDeltas_mauiSamples_countsRoundTrip() {
+    RawEegCounts rawEegCounts = RawEegCounts.forEarbudsConfig(MauiDevice.EARBUD_CONFIG).get();
+    int[] counts = createCounts(rawEegCounts.getScale(), /*seed=*/1);
+    // Full scale values.
+    counts[0] = (1 << 21) - 1;
+    counts[1] = -(1 << 21);
+    float[] microVolts = new float[SAMPLES];
+    for (int i = 0; i < SAMPLES; ++i) {
+      microVolts[i] = mauiMicroVolts(counts[i]);
+    }
+    int[] deltas = new int[SAMPLES];
+    assertTrue(rawEegCounts.encodeDeltas(microVolts, SAMPLES, deltas));
+    int[] decodedCounts = decodeCounts(deltas);
+    for (int i = 0; i < SAMPLES; ++i) {
+      assertEquals(microVolts[i], mauiMicroVolts(decodedCounts[i]), /*delta=*/0);
+    }
+  }
+
+  @Test
+  public void encodeDeltas_xenonSamples_countsRoundTrip() {
+    RawEegCounts rawEegCounts = RawEegCounts.forEarbudsConfig(XENON_CONFIG).get();
+    int[] counts = createCounts(rawEegCounts.getScale(), /*seed=*/1);
+    counts[0] = (1 << 23) - 1;
+    counts[1] = -(1 << 23);
+    float[] microVolts = new float[SAMPLES];
+    for (int i = 0; i < SAMPLES; ++i) {
+      microVolts[i] = XenonDataParser.convertToMicroVolts(counts[i]);
+    }
+    int[] deltas = new int[SAMPLES];
+    assertTrue(rawEegCounts.encodeDeltas(microVolts, SAMPLES, deltas));
+    int[] decodedCounts = decodeCounts(deltas);
+    for (int i = 0; i < SAMPLES; ++i) {
+      assertEquals(microVolts[i], XenonDataParser.convertToMicroVolts(decodedCounts[i]),
+          /*delta=*/0);
+    }
+  }
+
+  @Test
+  public void encodeDeltas_notConvertedFromCounts_returnsFalse() {
+    RawEegCounts rawEegCounts = RawEegCounts.forEarbudsConfig(XENON_CONFIG).get();
+    int[] deltas = new int[3];
+    assertFalse(rawEegCounts.encodeDeltas(new float[]{0, 12.345678f, 0}, 3, deltas));
+    assertFalse(rawEegCounts.encodeDeltas(new float[]{0, Float.NaN, 0}, 3, deltas));
+    assertFalse(rawEegCounts.encodeDeltas(new float[]{0, 1e9f, 0}, 3, deltas));
+  }
+
+  @Test
+  public void encodeDeltas_eegLikeSignals_payloadLessThanHalfOfFloats() {
+    for (String earbudsConfig : new String[]{MauiDevice.EARBUD_CONFIG, XENON_CONFIG}) {
+      RawEegCounts rawEegCounts = RawEegCounts.forEarbudsConfig(earbudsConfig).get();
+      boolean maui = earbudsConfig.equals(MauiDevice.EARBUD_CONFIG);
+      int channels = maui ? 2 : 8;
+      long floatBytes = 0;
+      long rawBytes = 0;
+      for (int channel = 0; channel < channels; ++channel) {
+        int[] counts = createCounts(rawEegCounts.getScale(), channel);
+        float[] microVolts = new float[SAMPLES];
+        for (int i = 0; i < SAMPLES; ++i) {
+          microVolts[i] = maui ? mauiMicroVolts(counts[i]) :
+              XenonDataParser.convertToMicroVolts(counts[i]);
+        }
+        int[] deltas = new int[SAMPLES];
+        assertTrue(rawEegCounts.encodeDeltas(microVolts, SAMPLES, deltas));
+        floatBytes += floatChannelBytes(SAMPLES);
+        rawBytes += rawChannelBytes(deltas);
+      }
+      // About 60% smaller for Maui and 55% smaller for Xenon.
+      assertTrue(earbudsConfig + ": " + rawBytes + " bytes of raw counts instead of " +
+          floatBytes + " bytes of floats", rawBytes * 2 < floatBytes);
+    }
+  }
+}
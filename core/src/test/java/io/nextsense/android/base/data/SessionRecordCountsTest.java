@@ -0,0 +1,54 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+public class SessionRecordCountsTest {
+
+  private static final Instant NOW = Instant.ofEpochMilli(1627633663376L);
+
+  @Test
+  public void getCounts_addedAndDeleted_difference() {
+    SessionRecordCounts counts = SessionRecordCounts.create(/*localSessionId=*/1);
+    counts.addEegSamples(50);
+    counts.addEegSamples(50);
+    counts.deleteEegSamples(30);
+    counts.addAccelerations(5);
+    counts.deleteAccelerations(5);
+    counts.addAngularSpeeds(5);
+    counts.addDeviceInternalStates(1);
+    assertEquals(70, counts.getEegSampleCount());
+    assertEquals(0, counts.getAccelerationCount());
+    assertEquals(5, counts.getAngularSpeedCount());
+    assertEquals(1, counts.getDeviceInternalStateCount());
+    assertNull(counts.getCheckedAt());
+  }
+
+  @Test
+  public void check_matchingCounts_notDrifted() {
+    SessionRecordCounts counts = SessionRecordCounts.create(/*localSessionId=*/1);
+    counts.addEegSamples(100);
+    counts.deleteEegSamples(50);
+    assertFalse(counts.check(/*eegSampleCount=*/50, /*accelerationCount=*/0,
+        /*angularSpeedCount=*/0, /*deviceInternalStateCount=*/0, NOW));
+    assertEquals(NOW, counts.getCheckedAt());
+  }
+
+  @Test
+  public void check_driftedCounts_correctedKeepingDeleted() {
+    SessionRecordCounts counts = SessionRecordCounts.create(/*localSessionId=*/1);
+    counts.addEegSamples(100);
+    counts.deleteEegSamples(50);
+    assertTrue(counts.check(/*eegSampleCount=*/40, /*accelerationCount=*/3,
+        /*angularSpeedCount=*/0, /*deviceInternalStateCount=*/0, NOW));
+    assertEquals(40, counts.getEegSampleCount());
+    assertEquals(50, counts.getEegSamplesDeleted());
+    assertEquals(3, counts.getAccelerationCount());
+  }
+}
@@ -0,0 +1,70 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+public class UploadBatchSizerTest {
+
+  private static final int CHUNK_BYTES = 10_000;
+  private static final int MAX_CHUNKS = 1000;
+  private static final Duration MAX_REQUEST_DURATION = Duration.ofSeconds(5);
+
+  // Uploads as many chunks as the sizer asks for on a link with this round trip time and
+  // bandwidth, and returns the number of chunks it asks for after that.
+  private static int simulateUploads(UploadBatchSizer sizer, int uploads, long roundTripMs,
+                                     long bytesPerMs) {
+    for (int i = 0; i < uploads; ++i) {
+      int chunks = sizer.getChunksPerRequest();
+      int bytes = chunks * CHUNK_BYTES;
+      sizer.onUploaded(chunks, bytes, Duration.ofMillis(roundTripMs + bytes / bytesPerMs));
+    }
+    return sizer.getChunksPerRequest();
+  }
+
+  @Test
+  public void onUploaded_highRoundTripTime_packsManyChunks() {
+    UploadBatchSizer sizer =
+        new UploadBatchSizer(MAX_CHUNKS, /*maxRequestBytes=*/10_000_000, MAX_REQUEST_DURATION);
+    int chunks = simulateUploads(sizer, /*uploads=*/30, /*roundTripMs=*/500, /*bytesPerMs=*/1000);
+    // 4 round trips worth of bytes is 2MB, or 200 chunks.
+    assertTrue("chunks: " + chunks, chunks >= 100 && chunks <= 400);
+    assertEquals(500, sizer.getRoundTripTime().toMillis(), 50);
+  }
+
+  @Test
+  public void onUploaded_lowRoundTripTime_staysSmall() {
+    UploadBatchSizer sizer =
+        new UploadBatchSizer(MAX_CHUNKS, /*maxRequestBytes=*/10_000_000, MAX_REQUEST_DURATION);
+    int chunks = simulateUploads(sizer, /*uploads=*/30, /*roundTripMs=*/5, /*bytesPerMs=*/1000);
+    assertTrue("chunks: " + chunks, chunks <= 4);
+  }
+
+  @Test
+  public void getChunksPerRequest_maxRequestBytes_capsChunks() {
+    UploadBatchSizer sizer = new UploadBatchSizer(
+        MAX_CHUNKS, /*maxRequestBytes=*/5 * CHUNK_BYTES, MAX_REQUEST_DURATION);
+    int chunks = simulateUploads(sizer, /*uploads=*/30, /*roundTripMs=*/500, /*bytesPerMs=*/1000);
+    assertEquals(5, chunks);
+  }
+
+  @Test
+  public void onUploadFailed_halvesChunks() {
+    UploadBatchSizer sizer =
+        new UploadBatchSizer(MAX_CHUNKS, /*maxRequestBytes=*/10_000_000, MAX_REQUEST_DURATION);
+    int chunks = simulateUploads(sizer, /*uploads=*/5, /*roundTripMs=*/500, /*bytesPerMs=*/1000);
+    sizer.onUploadFailed(chunks);
+    assertEquals(chunks / 2, sizer.getChunksPerRequest());
+  }
+
+  @Test
+  public void onUploaded_tooLong_halvesChunks() {
+    UploadBatchSizer sizer =
+        new UploadBatchSizer(MAX_CHUNKS, /*maxRequestBytes=*/10_000_000, MAX_REQUEST_DURATION);
+    sizer.onUploaded(/*chunks=*/8, 8 * CHUNK_BYTES, Duration.ofSeconds(6));
+    assertEquals(4, sizer.getChunksPerRequest());
+  }
+}
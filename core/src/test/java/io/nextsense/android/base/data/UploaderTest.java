@@ -0,0 +1,225 @@
+package io.nextsense.android.base.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.nextsense.android.ApplicationType;
+import io.nextsense.android.base.DataSamplesProto;
+import io.nextsense.android.base.DataSamplesProto.ModalityDataSamples.Modality;
+import io.nextsense.android.base.communication.upload.UploadTransport;
+import io.nextsense.android.base.db.RetentionWorker;
+import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploaderTest {
+
+  private static final int SAMPLE_RATE = 100;
+  private static final int SAMPLES_PER_BLOCK = 10;
+  private static final HashMap<Integer, Float> SAMPLE_VALUES =
+      new HashMap<>(){{put(1, 10.0f); put(2, 15.0f);}};
+  private static final Instant START_TIME = Instant.ofEpochMilli(1627633663370L);
+  private static final Duration RETENTION_TIMEOUT = Duration.ofSeconds(10);
+  private static final Duration UPLOAD_TIMEOUT = Duration.ofSeconds(10);
+
+  // Records the EEG chunks uploaded. The first uploads wait until a number of them are in flight
+  // before returning, and the first upload of a chunk can fail.
+  private static class FakeUploadTransport implements UploadTransport {
+    // Number of EEG samples of each chunk uploaded, in the order they were received.
+    final List<Integer> eegChunkSizes = new ArrayList<>();
+    // Number of times each chunk was uploaded, by the index of its first sample.
+    final Map<Long, Integer> eegChunkUploads = new HashMap<>();
+    private final CountDownLatch uploadsInFlight;
+    // Index of the first sample of the chunk to fail once, -1 for none.
+    private final long failedChunkFirstSample;
+    private boolean failed = false;
+
+    FakeUploadTransport(int uploadsInFlight, long failedChunkFirstSample) {
+      this.uploadsInFlight = new CountDownLatch(uploadsInFlight);
+      this.failedChunkFirstSample = failedChunkFirstSample;
+    }
+
+    @Override
+    public boolean uploadDataSamples(byte[] data, int length) {
+      uploadsInFlight.countDown();
+      try {
+        uploadsInFlight.await(UPLOAD_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      DataSamplesProto.DataSamples dataSamples;
+      try {
+        dataSamples =
+            DataSamplesProto.DataSamples.parseFrom(ByteBuffer.wrap(data, /*offset=*/0, length));
+      } catch (InvalidProtocolBufferException e) {
+        return false;
+      }
+      List<DataSamplesProto.ModalityDataSamples> eegChunks = new ArrayList<>();
+      for (DataSamplesProto.ModalityDataSamples modalityDataSamples :
+          dataSamples.getModalityDataSamplesList()) {
+        if (modalityDataSamples.getModality() == Modality.EAR_EEG) {
+          eegChunks.add(modalityDataSamples);
+        }
+      }
+      synchronized (this) {
+        for (DataSamplesProto.ModalityDataSamples eegChunk : eegChunks) {
+          if (!failed && getFirstSampleIndex(eegChunk) == failedChunkFirstSample) {
+            failed = true;
+            return false;
+          }
+        }
+        for (DataSamplesProto.ModalityDataSamples eegChunk : eegChunks) {
+          eegChunkSizes.add(eegChunk.getSamplingTimestampCount());
+          eegChunkUploads.merge(getFirstSampleIndex(eegChunk), 1, Integer::sum);
+        }
+      }
+      return true;
+    }
+
+    private static long getFirstSampleIndex(DataSamplesProto.ModalityDataSamples eegChunk) {
+      Timestamp timestamp = eegChunk.getSamplingTimestamp(0);
+      long millis = timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1000000;
+      return (millis - START_TIME.toEpochMilli()) * SAMPLE_RATE / 1000;
+    }
+  }
+
+  private final Context context = ApplicationProvider.getApplicationContext();
+  private ObjectBoxDatabase objectBoxDatabase;
+  private RetentionWorker retentionWorker;
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(context);
+    objectBoxDatabase = new ObjectBoxDatabase();
+    objectBoxDatabase.init(context);
+    retentionWorker = RetentionWorker.create(objectBoxDatabase);
+    retentionWorker.start();
+  }
+
+  @After
+  public void tearDown() {
+    retentionWorker.stop();
+  }
+
+  // Puts a session with the samples in blocks, sampled 10 milliseconds apart and received a while
+  // ago. Returns the session id.
+  private long putEegBlockSession(int sampleCount) {
+    LocalSession localSession = LocalSession.create(
+        /*userBigTableKey=*/"user_key", /*cloudDataSessionId=*/"session_id",
+        /*earbudsConfig=*/null, /*uploadNeeded=*/true, /*receivedData=*/true,
+        /*eegSampleRate=*/SAMPLE_RATE, /*accelerationSampleRate=*/SAMPLE_RATE, START_TIME);
+    localSession.setFirstDataTime(START_TIME);
+    long localSessionId = objectBoxDatabase.putLocalSession(localSession);
+    Instant receptionTime = Instant.now().minus(Duration.ofMinutes(1));
+    for (int block = 0; block < sampleCount / SAMPLES_PER_BLOCK; ++block) {
+      List<EegSample> eegSamples = new ArrayList<>();
+      for (int i = 0; i < SAMPLES_PER_BLOCK; ++i) {
+        int sampleIndex = block * SAMPLES_PER_BLOCK + i;
+        eegSamples.add(EegSample.create(localSessionId, SAMPLE_VALUES, receptionTime,
+            /*relativeSamplingTimestamp=*/sampleIndex * 1000 / SAMPLE_RATE,
+            /*absoluteSamplingTimestamp=*/null));
+      }
+      objectBoxDatabase.putEegBlock(EegBlock.create(localSessionId,
+          objectBoxDatabase.getNextEegBlockSampleIndex(localSessionId), eegSamples));
+    }
+    return localSessionId;
+  }
+
+  private Uploader createUploader(UploadTransport uploadTransport) {
+    return new Uploader(context, ApplicationType.RESEARCH, objectBoxDatabase,
+        /*databaseSink=*/null, /*connectivity=*/null, /*uploadChunkSize=*/Duration.ofSeconds(1),
+        /*minDurationToKeep=*/Duration.ofSeconds(1), /*firebaseFunctions=*/null, uploadTransport,
+        retentionWorker);
+  }
+
+  private void setSessionStatus(long localSessionId, LocalSession.Status status) {
+    LocalSession localSession = objectBoxDatabase.getLocalSession(localSessionId);
+    localSession.setStatus(status);
+    objectBoxDatabase.putLocalSession(localSession);
+  }
+
+  private void waitForRetention() throws InterruptedException {
+    Instant timeout = Instant.now().plus(RETENTION_TIMEOUT);
+    while (retentionWorker.getPendingRequestCount() > 0) {
+      assertTrue("Retention did not finish.", Instant.now().isBefore(timeout));
+      Thread.sleep(/*millis=*/10);
+    }
+  }
+
+  @Test
+  public void uploadPendingData_deletionCompletesThenSessionFinishes_uploadsTail()
+      throws InterruptedException {
+    long localSessionId = putEegBlockSession(/*sampleCount=*/550);
+    FakeUploadTransport uploadTransport =
+        new FakeUploadTransport(/*uploadsInFlight=*/1, /*failedChunkFirstSample=*/-1);
+    Uploader uploader = createUploader(uploadTransport);
+
+    // While recording, full chunks are uploaded as long as 2 chunks are left, and the uploaded
+    // records older than minDurationToKeep are deleted after each chunk.
+    uploader.uploadPendingData();
+    waitForRetention();
+    assertEquals(Arrays.asList(100, 100, 100, 100), uploadTransport.eegChunkSizes);
+    assertTrue(objectBoxDatabase.getEegSamplesCount(localSessionId) < 550);
+
+    // The deletions completed after the last chunk was committed, and the session finishes.
+    setSessionStatus(localSessionId, LocalSession.Status.FINISHED);
+    uploader.uploadPendingData();
+
+    assertEquals(Arrays.asList(100, 100, 100, 100, 150), uploadTransport.eegChunkSizes);
+    LocalSession localSession = objectBoxDatabase.getLocalSession(localSessionId);
+    assertEquals(550, localSession.getEegSamplesUploaded());
+    assertEquals(LocalSession.Status.UPLOADED, localSession.getStatus());
+  }
+
+  @Test
+  public void uploadPendingData_requestFailsWithOthersInFlight_sendsThemAgainAfterIt() {
+    long localSessionId = putEegBlockSession(/*sampleCount=*/750);
+    setSessionStatus(localSessionId, LocalSession.Status.FINISHED);
+    // The first 4 chunks are uploading at the same time and the second one fails.
+    FakeUploadTransport uploadTransport =
+        new FakeUploadTransport(/*uploadsInFlight=*/4, /*failedChunkFirstSample=*/100);
+    Uploader uploader = createUploader(uploadTransport);
+    uploader.setMaxUploadsInFlight(4);
+
+    uploader.uploadPendingData();
+
+    // The chunks after the failed one were not acknowledged, so they were sent again after it.
+    Map<Long, Integer> expectedEegChunkUploads = new HashMap<>();
+    expectedEegChunkUploads.put(0L, 1);
+    expectedEegChunkUploads.put(100L, 1);
+    expectedEegChunkUploads.put(200L, 2);
+    expectedEegChunkUploads.put(300L, 2);
+    expectedEegChunkUploads.put(400L, 1);
+    expectedEegChunkUploads.put(500L, 1);
+    expectedEegChunkUploads.put(600L, 1);
+    assertEquals(expectedEegChunkUploads, uploadTransport.eegChunkUploads);
+    LocalSession localSession = objectBoxDatabase.getLocalSession(localSessionId);
+    assertEquals(750, localSession.getEegSamplesUploaded());
+    assertEquals(LocalSession.Status.UPLOADED, localSession.getStatus());
+  }
+}
@@ -0,0 +1,142 @@
+package io.nextsense.android.base.db;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import io.nextsense.android.base.data.EegBlock;
+import io.nextsense.android.base.data.EegSample;
+import io.nextsense.android.base.data.LocalSession;
+import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseSinkTest {
+
+  private static final String DEVICE = "device";
+  private static final Instant RECEPTION_TIME = Instant.ofEpochMilli(1627633663376L);
+  private static final HashMap<Integer, Float> SAMPLE_VALUES =
+      new HashMap<>(){{put(1, 10.0f); put(2, 15.0f);}};
+  private static final int PACKET_SAMPLES = 3;
+
+  // Fails the next write transactions, without running them.
+  private static class FailingObjectBoxDatabase extends ObjectBoxDatabase {
+    int failingTransactions = 0;
+    int failingPuts = 0;
+
+    @Override
+    public <T> T callInTx(Callable<T> callable) {
+      if (failingTransactions > 0) {
+        --failingTransactions;
+        return null;
+      }
+      return super.callInTx(callable);
+    }
+
+    @Override
+    public void putEegBlocks(List<EegBlock> eegBlocks) {
+      if (failingPuts > 0) {
+        --failingPuts;
+        throw new IllegalStateException("Failed to put the EEG blocks.");
+      }
+      super.putEegBlocks(eegBlocks);
+    }
+  }
+
+  private FailingObjectBoxDatabase objectBoxDatabase;
+  private DatabaseSink databaseSink;
+  private long localSessionId;
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+    objectBoxDatabase = new FailingObjectBoxDatabase();
+    objectBoxDatabase.init(ApplicationProvider.getApplicationContext());
+    localSessionId = objectBoxDatabase.putLocalSession(LocalSession.create(
+        /*userBigTableKey=*/null, /*cloudDataSessionId=*/null, /*earbudsConfig=*/null,
+        /*uploadNeeded=*/false, /*receivedData=*/true, /*eegSampleRate=*/1000,
+        /*accelerationSampleRate=*/100, RECEPTION_TIME));
+    // Not started, so the packets are only written when committing.
+    databaseSink = DatabaseSink.create(
+        objectBoxDatabase, /*localSessionManager=*/null, /*connectivity=*/null);
+  }
+
+  // Packet of samples with relative timestamps starting after the previous packets.
+  private DatabaseSink.PendingSamples createPacket(int packetIndex) {
+    List<EegSample> eegSamples = new ArrayList<>();
+    for (int i = 0; i < PACKET_SAMPLES; ++i) {
+      eegSamples.add(EegSample.create(localSessionId, SAMPLE_VALUES, RECEPTION_TIME,
+          packetIndex * PACKET_SAMPLES + i, /*absoluteSamplingTimestamp=*/null));
+    }
+    return new DatabaseSink.PendingSamples(DEVICE, Instant.now(), localSessionId,
+        /*eegBlocks=*/true, eegSamples, /*accelerations=*/List.of(), /*angularSpeeds=*/List.of());
+  }
+
+  private List<EegSample> getEegSamples() {
+    return objectBoxDatabase.getEegSamples((int) localSessionId);
+  }
+
+  @Test
+  public void commitPendingSamples_transactionFails_packetsWrittenFirstInNextCommit() {
+    objectBoxDatabase.failingTransactions = 1;
+    databaseSink.enqueue(createPacket(0));
+    databaseSink.commitPendingSamples();
+    assertEquals(0, getEegSamples().size());
+    assertEquals(0, databaseSink.getCommitCount());
+
+    databaseSink.enqueue(createPacket(1));
+    databaseSink.commitPendingSamples();
+    List<EegSample> eegSamples = getEegSamples();
+    assertEquals(2 * PACKET_SAMPLES, eegSamples.size());
+    for (int i = 0; i < eegSamples.size(); ++i) {
+      assertEquals(Integer.valueOf(i), eegSamples.get(i).getRelativeSamplingTimestamp());
+    }
+    assertEquals(1, databaseSink.getCommitCount());
+    assertEquals(2, databaseSink.getLastBatchSize());
+  }
+
+  @Test
+  public void commitPendingSamples_putFails_packetsWrittenFirstInNextCommit() {
+    objectBoxDatabase.failingPuts = 1;
+    databaseSink.enqueue(createPacket(0));
+    databaseSink.commitPendingSamples();
+    assertEquals(0, getEegSamples().size());
+    assertEquals(0, databaseSink.getCommitCount());
+
+    databaseSink.enqueue(createPacket(1));
+    databaseSink.commitPendingSamples();
+    List<EegSample> eegSamples = getEegSamples();
+    assertEquals(2 * PACKET_SAMPLES, eegSamples.size());
+    for (int i = 0; i < eegSamples.size(); ++i) {
+      assertEquals(Integer.valueOf(i), eegSamples.get(i).getRelativeSamplingTimestamp());
+    }
+    assertEquals(1, databaseSink.getCommitCount());
+  }
+
+  @Test
+  public void commitPendingSamples_transactionKeepsFailing_packetsDroppedAfterMaxAttempts() {
+    objectBoxDatabase.failingTransactions = DatabaseSink.MAX_COMMIT_ATTEMPTS;
+    databaseSink.enqueue(createPacket(0));
+    for (int i = 0; i < DatabaseSink.MAX_COMMIT_ATTEMPTS; ++i) {
+      databaseSink.commitPendingSamples();
+    }
+
+    databaseSink.enqueue(createPacket(1));
+    databaseSink.commitPendingSamples();
+    List<EegSample> eegSamples = getEegSamples();
+    assertEquals(PACKET_SAMPLES, eegSamples.size());
+    assertEquals(Integer.valueOf(PACKET_SAMPLES), eegSamples.get(0).getRelativeSamplingTimestamp());
+    assertEquals(1, databaseSink.getLastBatchSize());
+  }
+}
@@ -0,0 +1,150 @@
+package io.nextsense.android.base.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.nextsense.android.base.data.Samples;
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class IngestionPipelineTest {
+
+  private static final int RING_CAPACITY = 4;
+
+  // Keeps the packets it receives, and waits for the latch before processing each one.
+  private static class RecordingConsumer implements IngestionPipeline.SamplesConsumer {
+    final List<Samples> received = new ArrayList<>();
+    final CountDownLatch released;
+    final CountDownLatch done;
+
+    RecordingConsumer(int expectedPackets, boolean blocked) {
+      released = new CountDownLatch(blocked ? 1 : 0);
+      done = new CountDownLatch(expectedPackets);
+    }
+
+    @Override
+    public void onSamples(String device, Samples samples) {
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (received) {
+        received.add(samples);
+      }
+      done.countDown();
+    }
+  }
+
+  private static List<Samples> createPackets(int count) {
+    List<Samples> packets = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      packets.add(Samples.create());
+    }
+    return packets;
+  }
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+  }
+
+  @Test
+  public void publish_twoConsumers_eachReceivesAllPacketsInOrder() throws InterruptedException {
+    IngestionPipeline ingestionPipeline = new IngestionPipeline(RING_CAPACITY);
+    SamplesRing ring = ingestionPipeline.getRing("device");
+    List<Samples> packets = createPackets(20);
+    RecordingConsumer firstConsumer = new RecordingConsumer(packets.size(), /*blocked=*/false);
+    RecordingConsumer secondConsumer = new RecordingConsumer(packets.size(), /*blocked=*/false);
+    ingestionPipeline.addConsumer("first", firstConsumer);
+    ingestionPipeline.addConsumer("second", secondConsumer);
+    for (Samples packet : packets) {
+      ring.publish(packet);
+    }
+    assertTrue(firstConsumer.done.await(5, TimeUnit.SECONDS));
+    assertTrue(secondConsumer.done.await(5, TimeUnit.SECONDS));
+    assertEquals(packets, firstConsumer.received);
+    assertEquals(packets, secondConsumer.received);
+    ingestionPipeline.removeConsumer(firstConsumer);
+    ingestionPipeline.removeConsumer(secondConsumer);
+  }
+
+  @Test
+  public void publish_ringFull_waitsForSlowestConsumer() throws InterruptedException {
+    IngestionPipeline ingestionPipeline = new IngestionPipeline(RING_CAPACITY);
+    SamplesRing ring = ingestionPipeline.getRing("device");
+    List<Samples> packets = createPackets(RING_CAPACITY + 2);
+    RecordingConsumer consumer = new RecordingConsumer(packets.size(), /*blocked=*/true);
+    ingestionPipeline.addConsumer("slow", consumer);
+    CountDownLatch published = new CountDownLatch(1);
+    Thread producer = new Thread(() -> {
+      for (Samples packet : packets) {
+        ring.publish(packet);
+      }
+      published.countDown();
+    });
+    producer.start();
+    assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(RING_CAPACITY, ingestionPipeline.getLag(consumer));
+    assertTrue(ring.getProducerWaits() > 0);
+    consumer.released.countDown();
+    assertTrue(published.await(5, TimeUnit.SECONDS));
+    assertTrue(consumer.done.await(5, TimeUnit.SECONDS));
+    assertEquals(packets, consumer.received);
+    assertEquals(0, ingestionPipeline.getLag(consumer));
+    ingestionPipeline.removeConsumer(consumer);
+  }
+
+  @Test
+  public void removeConsumer_ringFull_producerContinues() throws InterruptedException {
+    IngestionPipeline ingestionPipeline = new IngestionPipeline(RING_CAPACITY);
+    SamplesRing ring = ingestionPipeline.getRing("device");
+    RecordingConsumer consumer = new RecordingConsumer(/*expectedPackets=*/0, /*blocked=*/true);
+    ingestionPipeline.addConsumer("stuck", consumer);
+    CountDownLatch published = new CountDownLatch(1);
+    Thread producer = new Thread(() -> {
+      for (Samples packet : createPackets(RING_CAPACITY * 2)) {
+        ring.publish(packet);
+      }
+      published.countDown();
+    });
+    producer.start();
+    assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+    ingestionPipeline.removeConsumer(consumer);
+    assertTrue(published.await(5, TimeUnit.SECONDS));
+    consumer.released.countDown();
+  }
+
+  @Test
+  public void releaseRing_packetsPending_consumerStillReceivesThem() throws InterruptedException {
+    IngestionPipeline ingestionPipeline = new IngestionPipeline(RING_CAPACITY);
+    SamplesRing ring = ingestionPipeline.getRing("device");
+    List<Samples> packets = createPackets(RING_CAPACITY);
+    RecordingConsumer consumer = new RecordingConsumer(packets.size(), /*blocked=*/true);
+    ingestionPipeline.addConsumer("slow", consumer);
+    for (Samples packet : packets) {
+      ring.publish(packet);
+    }
+    ingestionPipeline.releaseRing(ring);
+    assertNotSame(ring, ingestionPipeline.getRing("device"));
+    consumer.released.countDown();
+    assertTrue(consumer.done.await(5, TimeUnit.SECONDS));
+    assertEquals(packets, consumer.received);
+    assertEquals(0, ingestionPipeline.getLag(consumer));
+    ingestionPipeline.removeConsumer(consumer);
+  }
+}
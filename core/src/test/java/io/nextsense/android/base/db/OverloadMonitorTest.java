@@ -0,0 +1,88 @@
+package io.nextsense.android.base.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class OverloadMonitorTest {
+
+  private static final String DEVICE = "device";
+  private static final Instant RECEPTION_TIME = Instant.ofEpochMilli(1_000_000);
+
+  private static OverloadMonitor createMonitor(OverloadMonitor.Policy policy) {
+    return new OverloadMonitor(policy, /*startQueueDepth=*/100, /*endQueueDepth=*/10,
+        /*startLag=*/Duration.ofSeconds(10), /*endLag=*/Duration.ofSeconds(2));
+  }
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+  }
+
+  @Test
+  public void onQueued_queueDepthCrossesThresholds_overloadStartsAndEndsOnce() {
+    OverloadMonitor overloadMonitor = createMonitor(OverloadMonitor.Policy.BLOCK_PARSER);
+    assertNull(overloadMonitor.getDeviceLoad(DEVICE));
+    overloadMonitor.onQueued(DEVICE, 50);
+    assertFalse(overloadMonitor.getDeviceLoad(DEVICE).isOverloaded());
+    overloadMonitor.onQueued(DEVICE, 150);
+    assertTrue(overloadMonitor.getDeviceLoad(DEVICE).isOverloaded());
+    // Stays overloaded until the queue depth is at the end threshold.
+    overloadMonitor.onQueued(DEVICE, 20);
+    assertTrue(overloadMonitor.getDeviceLoad(DEVICE).isOverloaded());
+    overloadMonitor.onQueued(DEVICE, 10);
+    OverloadMonitor.DeviceLoad deviceLoad = overloadMonitor.getDeviceLoad(DEVICE);
+    assertFalse(deviceLoad.isOverloaded());
+    assertEquals(1, deviceLoad.getOverloadCount());
+    assertEquals(10, deviceLoad.getQueueDepth());
+  }
+
+  @Test
+  public void onCommitted_lagAboveStart_overloadedUntilLagBelowEnd() {
+    OverloadMonitor overloadMonitor = createMonitor(OverloadMonitor.Policy.BLOCK_PARSER);
+    overloadMonitor.onCommitted(DEVICE, RECEPTION_TIME, RECEPTION_TIME.plusSeconds(12));
+    assertTrue(overloadMonitor.getDeviceLoad(DEVICE).isOverloaded());
+    assertEquals(Duration.ofSeconds(12), overloadMonitor.getDeviceLoad(DEVICE).getLag());
+    overloadMonitor.onCommitted(DEVICE, RECEPTION_TIME, RECEPTION_TIME.plusSeconds(5));
+    assertTrue(overloadMonitor.getDeviceLoad(DEVICE).isOverloaded());
+    overloadMonitor.onCommitted(DEVICE, RECEPTION_TIME, RECEPTION_TIME.plusSeconds(1));
+    assertFalse(overloadMonitor.getDeviceLoad(DEVICE).isOverloaded());
+  }
+
+  @Test
+  public void dropImuSamples_dropImuPolicy_dropsOnlyWhileOverloaded() {
+    OverloadMonitor overloadMonitor = createMonitor(OverloadMonitor.Policy.DROP_IMU);
+    assertFalse(overloadMonitor.dropImuSamples(DEVICE, 10));
+    overloadMonitor.onQueued(DEVICE, 100);
+    assertTrue(overloadMonitor.dropImuSamples(DEVICE, 10));
+    assertTrue(overloadMonitor.dropImuSamples(DEVICE, 10));
+    overloadMonitor.onQueued(DEVICE, 0);
+    assertFalse(overloadMonitor.dropImuSamples(DEVICE, 10));
+    assertEquals(20, overloadMonitor.getDeviceLoad(DEVICE).getDroppedImuSamples());
+  }
+
+  @Test
+  public void dropImuSamples_policyChangedDuringOverload_keepsStartingPolicy() {
+    OverloadMonitor overloadMonitor = createMonitor(OverloadMonitor.Policy.BLOCK_PARSER);
+    overloadMonitor.onQueued(DEVICE, 100);
+    overloadMonitor.setPolicy(OverloadMonitor.Policy.DROP_IMU);
+    assertFalse(overloadMonitor.dropImuSamples(DEVICE, 10));
+    overloadMonitor.onQueued(DEVICE, 0);
+    overloadMonitor.onQueued(DEVICE, 100);
+    assertTrue(overloadMonitor.dropImuSamples(DEVICE, 10));
+  }
+}
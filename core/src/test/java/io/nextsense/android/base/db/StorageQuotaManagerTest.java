@@ -0,0 +1,95 @@
+package io.nextsense.android.base.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class StorageQuotaManagerTest {
+
+  private static final long MAX_STORE_BYTES = 1000;
+  private static final long MIN_USABLE_BYTES = 100;
+
+  private final AtomicLong storeBytes = new AtomicLong(0);
+  private final AtomicLong usableBytes = new AtomicLong(1_000_000);
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+  }
+
+  private StorageQuotaManager createManager() {
+    StorageQuotaManager storageQuotaManager = new StorageQuotaManager(storeBytes::get,
+        MAX_STORE_BYTES, usableBytes::get);
+    storageQuotaManager.setMinUsableBytes(MIN_USABLE_BYTES);
+    return storageQuotaManager;
+  }
+
+  @Test
+  public void check_storeGrows_policiesStartAtThresholds() {
+    StorageQuotaManager storageQuotaManager = createManager();
+    List<StorageQuotaManager.Policy> policies = new ArrayList<>();
+    storageQuotaManager.addOnPolicyChangedListener(event -> policies.add(event.getPolicy()));
+    for (long bytes : new long[]{100, 700, 750, 800, 900, 950}) {
+      storeBytes.set(bytes);
+      storageQuotaManager.check();
+    }
+    assertEquals(List.of(StorageQuotaManager.Policy.NONE,
+        StorageQuotaManager.Policy.DOWNSAMPLE_IMU, StorageQuotaManager.Policy.STOP_CSV,
+        StorageQuotaManager.Policy.REFUSE_NEW_SESSIONS), policies);
+  }
+
+  @Test
+  public void check_pressureFalls_policyEndsBelowMargin() {
+    StorageQuotaManager storageQuotaManager = createManager();
+    storeBytes.set(820);
+    assertEquals(StorageQuotaManager.Policy.STOP_CSV, storageQuotaManager.check().getPolicy());
+    storeBytes.set(760);
+    assertEquals(StorageQuotaManager.Policy.STOP_CSV, storageQuotaManager.check().getPolicy());
+    storeBytes.set(740);
+    assertEquals(StorageQuotaManager.Policy.DOWNSAMPLE_IMU,
+        storageQuotaManager.check().getPolicy());
+    storeBytes.set(0);
+    assertEquals(StorageQuotaManager.Policy.NONE, storageQuotaManager.check().getPolicy());
+  }
+
+  @Test
+  public void check_usedSpaceFreed_refusalEnds() {
+    StorageQuotaManager storageQuotaManager = createManager();
+    storeBytes.set(960);
+    assertEquals(StorageQuotaManager.Policy.REFUSE_NEW_SESSIONS,
+        storageQuotaManager.check().getPolicy());
+    // Uploaded records were deleted.
+    storeBytes.set(500);
+    StoragePolicyEvent event = storageQuotaManager.check();
+    assertEquals(StorageQuotaManager.Policy.NONE, event.getPolicy());
+    assertEquals(500, event.getStoreBytes());
+  }
+
+  @Test
+  public void check_lowFreeSpace_refusesNewSessions() {
+    StorageQuotaManager storageQuotaManager = createManager();
+    usableBytes.set(MIN_USABLE_BYTES + 1);
+    StoragePolicyEvent event = storageQuotaManager.check();
+    assertEquals(StorageQuotaManager.Policy.REFUSE_NEW_SESSIONS, event.getPolicy());
+    assertTrue(event.isAtLeast(StorageQuotaManager.Policy.DOWNSAMPLE_IMU));
+    assertEquals(MIN_USABLE_BYTES + 1, event.getUsableBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void setThreshold_none_throws() {
+    createManager().setThreshold(StorageQuotaManager.Policy.NONE, 0.5);
+  }
+}
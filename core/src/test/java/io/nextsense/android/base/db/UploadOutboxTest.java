@@ -0,0 +1,175 @@
+package io.nextsense.android.base.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.nextsense.android.base.utils.RotatingFileLogger;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploadOutboxTest {
+
+  // Room for 3 records of 10 bytes in a segment.
+  private static final int SEGMENT_BYTES = 3 * (UploadOutbox.HEADER_BYTES + 10);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+
+  private static byte[] createRecord(int value) {
+    byte[] record = new byte[10];
+    for (int i = 0; i < record.length; ++i) {
+      record[i] = (byte) (value + i);
+    }
+    return record;
+  }
+
+  private static byte[] getData(UploadOutbox uploadOutbox, UploadOutbox.Entry entry) {
+    ByteBuffer data = uploadOutbox.getData(entry);
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return bytes;
+  }
+
+  private UploadOutbox createOutbox(int numberOfRecords) {
+    UploadOutbox uploadOutbox = UploadOutbox.open(directory, SEGMENT_BYTES);
+    for (int i = 0; i < numberOfRecords; ++i) {
+      byte[] record = createRecord(i);
+      assertTrue(uploadOutbox.append(
+          /*key=*/i % 2, record, /*offset=*/0, record.length, /*last=*/false));
+    }
+    return uploadOutbox;
+  }
+
+  @Before
+  public void setUp() {
+    RotatingFileLogger.initialize(ApplicationProvider.getApplicationContext());
+    directory = new File(temporaryFolder.getRoot(), "outbox");
+  }
+
+  @Test
+  public void append_records_pendingInOrder() {
+    UploadOutbox uploadOutbox = createOutbox(5);
+    assertEquals(5, uploadOutbox.getPendingCount());
+    List<UploadOutbox.Entry> entries = uploadOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    assertEquals(5, entries.size());
+    for (int i = 0; i < entries.size(); ++i) {
+      assertEquals(i % 2, entries.get(i).getKey());
+      assertArrayEquals(createRecord(i), getData(uploadOutbox, entries.get(i)));
+    }
+    List<UploadOutbox.Entry> nextEntries =
+        uploadOutbox.getPendingEntries(entries.get(1).getSequence(), /*maxRecords=*/2);
+    assertEquals(2, nextEntries.size());
+    assertArrayEquals(createRecord(2), getData(uploadOutbox, nextEntries.get(0)));
+    // 2 segments of 3 records.
+    assertEquals(2, directory.list().length);
+  }
+
+  @Test
+  public void append_offsetAndLength_onlyThoseBytesStored() {
+    UploadOutbox uploadOutbox = createOutbox(0);
+    byte[] record = createRecord(0);
+    assertTrue(uploadOutbox.append(
+        /*key=*/1, record, /*offset=*/2, /*length=*/5, /*last=*/false));
+    UploadOutbox.Entry entry = uploadOutbox.getPendingEntries(-1, /*maxRecords=*/1).get(0);
+    assertArrayEquals(new byte[]{2, 3, 4, 5, 6}, getData(uploadOutbox, entry));
+  }
+
+  @Test
+  public void acknowledge_allRecordsOfKey_notPending() {
+    UploadOutbox uploadOutbox = createOutbox(4);
+    List<UploadOutbox.Entry> entries = uploadOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    uploadOutbox.acknowledge(entries.get(0));
+    assertTrue(uploadOutbox.hasPending(/*key=*/0));
+    uploadOutbox.acknowledge(entries.get(2));
+    assertFalse(uploadOutbox.hasPending(/*key=*/0));
+    assertTrue(uploadOutbox.hasPending(/*key=*/1));
+    assertEquals(2, uploadOutbox.getPendingCount());
+  }
+
+  @Test
+  public void acknowledge_allRecordsOfSegment_segmentDeleted() {
+    UploadOutbox uploadOutbox = createOutbox(4);
+    List<UploadOutbox.Entry> entries = uploadOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    for (int i = 0; i < 3; ++i) {
+      uploadOutbox.acknowledge(entries.get(i));
+    }
+    assertEquals(1, directory.list().length);
+    // Data that was read stays valid.
+    assertArrayEquals(createRecord(0), getData(uploadOutbox, entries.get(0)));
+  }
+
+  @Test
+  public void acknowledge_listOfRecords_notPendingAfterRestart() {
+    UploadOutbox uploadOutbox = createOutbox(5);
+    List<UploadOutbox.Entry> entries = uploadOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    uploadOutbox.acknowledge(entries.subList(0, 4));
+    assertEquals(1, uploadOutbox.getPendingCount());
+    // The first segment has no records left, the second one has the last record.
+    assertEquals(1, directory.list().length);
+
+    UploadOutbox reopenedOutbox = UploadOutbox.open(directory, SEGMENT_BYTES);
+    List<UploadOutbox.Entry> reopenedEntries =
+        reopenedOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    assertEquals(1, reopenedEntries.size());
+    assertArrayEquals(createRecord(4), getData(reopenedOutbox, reopenedEntries.get(0)));
+  }
+
+  @Test
+  public void open_afterRestart_unacknowledgedRecordsPending() {
+    UploadOutbox uploadOutbox = createOutbox(5);
+    List<UploadOutbox.Entry> entries = uploadOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    uploadOutbox.acknowledge(entries.get(0));
+    uploadOutbox.acknowledge(entries.get(3));
+
+    UploadOutbox reopenedOutbox = UploadOutbox.open(directory, SEGMENT_BYTES);
+    List<UploadOutbox.Entry> reopenedEntries =
+        reopenedOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    assertEquals(3, reopenedEntries.size());
+    assertArrayEquals(createRecord(1), getData(reopenedOutbox, reopenedEntries.get(0)));
+    assertArrayEquals(createRecord(2), getData(reopenedOutbox, reopenedEntries.get(1)));
+    assertArrayEquals(createRecord(4), getData(reopenedOutbox, reopenedEntries.get(2)));
+    // New records go after the ones that were loaded.
+    byte[] record = createRecord(5);
+    assertTrue(reopenedOutbox.append(
+        /*key=*/1, record, /*offset=*/0, record.length, /*last=*/true));
+    assertEquals(4, reopenedOutbox.getPendingCount());
+    List<UploadOutbox.Entry> lastEntries =
+        UploadOutbox.open(directory, SEGMENT_BYTES).getPendingEntries(-1, /*maxRecords=*/10);
+    assertEquals(4, lastEntries.size());
+    assertFalse(lastEntries.get(2).isLast());
+    assertTrue(lastEntries.get(3).isLast());
+  }
+
+  @Test
+  public void open_corruptedRecord_recordAndRestOfSegmentDropped() throws IOException {
+    createOutbox(3);
+    // Change a byte of the data of the second record, like a write that did not complete.
+    try (RandomAccessFile file = new RandomAccessFile(
+        new File(directory, "0" + UploadOutbox.FILE_EXTENSION), "rw")) {
+      file.seek(2 * UploadOutbox.HEADER_BYTES + 10 + 3);
+      file.write(0x7f);
+    }
+    UploadOutbox reopenedOutbox = UploadOutbox.open(directory, SEGMENT_BYTES);
+    List<UploadOutbox.Entry> entries = reopenedOutbox.getPendingEntries(-1, /*maxRecords=*/10);
+    assertEquals(1, entries.size());
+    assertArrayEquals(createRecord(0), getData(reopenedOutbox, entries.get(0)));
+  }
+}
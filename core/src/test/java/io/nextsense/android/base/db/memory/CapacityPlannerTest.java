@@ -0,0 +1,38 @@
+package io.nextsense.android.base.db.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CapacityPlannerTest {
+
+  @Test
+  public void plan_differentRates_sameRetentionPerChannel() {
+    CapacityPlanner planner = CapacityPlanner.plan(/*budgetBytes=*/16 * 1024 * 1024,
+        /*eegChannels=*/2, /*eegSamplingRate=*/1000, /*imuChannels=*/6, /*imuSamplingRate=*/100);
+    assertEquals(planner.getEegCapacity() / 1000.0, planner.getImuCapacity() / 100.0, 0.01);
+  }
+
+  @Test
+  public void plan_anyBudget_staysWithinBudget() {
+    long budgetBytes = 16 * 1024 * 1024;
+    CapacityPlanner planner = CapacityPlanner.plan(budgetBytes, 2, 1000, 6, 100);
+    double usedBytes = planner.getEegCapacity() * (2 * EegChannelBuffer.getBytesPerValue() +
+        Long.BYTES) + planner.getImuCapacity() * 6.0 * Integer.BYTES;
+    assertTrue(usedBytes <= budgetBytes);
+    assertTrue(usedBytes > budgetBytes * 0.99);
+  }
+
+  @Test
+  public void plan_higherRate_moreSamplesLessRetention() {
+    CapacityPlanner maui = CapacityPlanner.plan(16 * 1024 * 1024, 2, 1000, 0, 0);
+    CapacityPlanner nitro = CapacityPlanner.plan(16 * 1024 * 1024, 1, 250, 0, 0);
+    assertTrue(maui.getEegCapacity() / 1000.0 < nitro.getEegCapacity() / 250.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void plan_zeroRate_throws() {
+    CapacityPlanner.plan(16 * 1024 * 1024, 2, 0, 0, 0);
+  }
+}
@@ -0,0 +1,124 @@
+package io.nextsense.android.base.db.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EegChannelBufferTest {
+
+  // 4 milliseconds between samples, like at 250 Hz.
+  private static final long SAMPLE_INTERVAL = 4;
+
+  // Adds values equal to their index so that each point can be checked against its timestamp.
+  private static EegChannelBuffer createBuffer(int capacity, int numberOfValues) {
+    EegChannelBuffer buffer = new EegChannelBuffer(capacity);
+    for (int i = 0; i < numberOfValues; ++i) {
+      buffer.addValue(i, i * SAMPLE_INTERVAL);
+    }
+    return buffer;
+  }
+
+  @Test
+  public void countValuesSince_timestampInRange_countsRecentValues() {
+    EegChannelBuffer buffer = createBuffer(100, 150);
+    assertEquals(10, buffer.countValuesSince(140 * SAMPLE_INTERVAL));
+    assertEquals(100, buffer.countValuesSince(0));
+    assertEquals(0, buffer.countValuesSince(1000 * SAMPLE_INTERVAL));
+  }
+
+  @Test
+  public void getEnvelope_fewValues_rawValuesGrouped() {
+    EegChannelBuffer buffer = createBuffer(1000, 100);
+    EegEnvelope envelope = new EegEnvelope(10);
+    buffer.getEnvelope(25, envelope);
+    assertEquals(3, envelope.getSamplesPerPoint());
+    assertEquals(9, envelope.getSize());
+    // The first point only has the remaining value.
+    assertEquals(75, envelope.getMins()[0], 0);
+    assertEquals(75, envelope.getMaxs()[0], 0);
+    assertEquals(76, envelope.getMins()[1], 0);
+    assertEquals(78, envelope.getMaxs()[1], 0);
+    assertEquals(77, envelope.getMeans()[1], 0);
+    assertEquals(76 * SAMPLE_INTERVAL, envelope.getTimestamps()[1]);
+    assertEquals(99, envelope.getMaxs()[8], 0);
+  }
+
+  @Test
+  public void getEnvelope_manyValues_readsDecimatedLevels() {
+    int numberOfValues = 250 * 60 * 10 + 123;
+    EegChannelBuffer buffer = createBuffer(250 * 60 * 12, numberOfValues);
+    EegEnvelope envelope = new EegEnvelope(500);
+    buffer.getEnvelope(/*durationMillis=*/10 * 60 * 1000, envelope);
+    assertTrue(envelope.getSize() <= 500);
+    assertTrue(envelope.getSize() > 500 / 8);
+    assertEquals(0, envelope.getSamplesPerPoint() % 64);
+    for (int i = 0; i < envelope.getSize(); ++i) {
+      // Values are increasing, so the min of a point is its first value.
+      assertEquals(envelope.getTimestamps()[i] / SAMPLE_INTERVAL, envelope.getMins()[i], 0);
+      assertTrue(envelope.getMins()[i] <= envelope.getMeans()[i]);
+      assertTrue(envelope.getMeans()[i] <= envelope.getMaxs()[i]);
+      if (i > 0) {
+        assertEquals(envelope.getMaxs()[i - 1] + 1, envelope.getMins()[i], 0);
+      }
+    }
+    // The last point includes the values of the incomplete buckets.
+    assertEquals(numberOfValues - 1, envelope.getMaxs()[envelope.getSize() - 1], 0);
+  }
+
+  @Test
+  public void getEnvelope_afterClear_empty() {
+    EegChannelBuffer buffer = createBuffer(1000, 1000);
+    buffer.clear();
+    EegEnvelope envelope = new EegEnvelope(10);
+    buffer.getEnvelope(/*durationMillis=*/1000, envelope);
+    assertEquals(0, envelope.getSize());
+  }
+
+  @Test
+  public void getEnvelope_noPoints_empty() {
+    EegChannelBuffer buffer = createBuffer(1000, 100);
+    EegEnvelope envelope = new EegEnvelope(0);
+    buffer.getEnvelope(25, envelope);
+    assertEquals(0, envelope.getSize());
+  }
+
+  @Test
+  public void getRange_withGap_exactValuesAndGapCount() {
+    EegChannelBuffer buffer = new EegChannelBuffer(1000);
+    for (int i = 0; i < 100; ++i) {
+      // Samples 40 to 49 are missing.
+      if (i < 40 || i >= 50) {
+        buffer.addValue(i, i * SAMPLE_INTERVAL);
+      }
+    }
+    ChannelRange range = new ChannelRange(100);
+    buffer.getRange(30 * SAMPLE_INTERVAL, 60 * SAMPLE_INTERVAL, range);
+    assertEquals(20, range.getSize());
+    assertEquals(30, range.getValues()[0], 0);
+    assertEquals(39, range.getValues()[9], 0);
+    assertEquals(50, range.getValues()[10], 0);
+    assertEquals(59 * SAMPLE_INTERVAL, range.getTimestamps()[19]);
+    assertEquals(1, range.getGapCount());
+    assertEquals(20, buffer.countRange(30 * SAMPLE_INTERVAL, 60 * SAMPLE_INTERVAL));
+  }
+
+  @Test
+  public void getRange_moreValuesThanCapacity_mostRecentKept() {
+    EegChannelBuffer buffer = createBuffer(1000, 100);
+    ChannelRange range = new ChannelRange(5);
+    buffer.getRange(0, 50 * SAMPLE_INTERVAL, range);
+    assertEquals(5, range.getSize());
+    assertEquals(45, range.getValues()[0], 0);
+    assertEquals(49, range.getValues()[4], 0);
+    assertEquals(0, range.getGapCount());
+  }
+
+  @Test
+  public void getRange_outsideOfBuffer_empty() {
+    EegChannelBuffer buffer = createBuffer(1000, 100);
+    ChannelRange range = new ChannelRange(5);
+    buffer.getRange(200 * SAMPLE_INTERVAL, 300 * SAMPLE_INTERVAL, range);
+    assertEquals(0, range.getSize());
+  }
+}
@@ -0,0 +1,177 @@
+package io.nextsense.android.base.db.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.nextsense.android.base.data.Acceleration;
+import io.nextsense.android.base.data.EegSample;
+import io.nextsense.android.base.data.Samples;
+
+public class MemoryCacheTest {
+
+  private static final List<String> EEG_CHANNELS = Arrays.asList("1", "2");
+  private static final int SAMPLES_PER_PACKET = 10;
+  private static final int PACKETS = 20000;
+  private static final int READERS = 4;
+
+  private static Samples createPacket(long firstTimestamp) {
+    Samples samples = Samples.create();
+    for (int i = 0; i < SAMPLES_PER_PACKET; ++i) {
+      long timestamp = firstTimestamp + i;
+      HashMap<Integer, Float> eegData = new HashMap<>();
+      // The value is the timestamp so readers can check that they are consistent.
+      eegData.put(1, (float) timestamp);
+      eegData.put(2, (float) timestamp);
+      samples.addEegSample(EegSample.create(/*localSessionId=*/0, eegData, Instant.now(),
+          /*relativeSamplingTimestamp=*/null, Instant.ofEpochMilli(timestamp)));
+    }
+    return samples;
+  }
+
+  private static void writePackets(MemoryCache memoryCache) {
+    for (int i = 0; i < PACKETS; ++i) {
+      memoryCache.addChannelData(createPacket((long) i * SAMPLES_PER_PACKET));
+    }
+  }
+
+  @Test
+  public void getLastEegSnapshot_afterWrites_valuesMatchTimestamps() {
+    MemoryCache memoryCache = MemoryCache.create(EEG_CHANNELS, Collections.emptyList());
+    memoryCache.addChannelData(createPacket(100));
+    EegSnapshot snapshot = memoryCache.getLastEegSnapshot(new EegSnapshot(EEG_CHANNELS, 4), 4);
+    for (int channel = 0; channel < snapshot.getChannelCount(); ++channel) {
+      assertEquals(4, snapshot.getSize(channel));
+      assertEquals(106, snapshot.getTimestamps(channel)[0]);
+      assertEquals(109, snapshot.getValues(channel)[3], 0);
+    }
+  }
+
+  @Test
+  public void getLastEegSnapshot_unknownChannel_sizeZero() {
+    MemoryCache memoryCache = MemoryCache.create(EEG_CHANNELS, Collections.emptyList());
+    memoryCache.addChannelData(createPacket(0));
+    EegSnapshot snapshot = memoryCache.getLastEegSnapshot(
+        new EegSnapshot(Arrays.asList("1", "3"), 4), 4);
+    assertEquals(4, snapshot.getSize(0));
+    assertEquals(0, snapshot.getSize(1));
+  }
+
+  @Test
+  public void getLastRange_afterWrites_lastDurationOfChannel() {
+    MemoryCache memoryCache = MemoryCache.create(EEG_CHANNELS, Collections.emptyList());
+    memoryCache.addChannelData(createPacket(100));
+    ChannelRange range = memoryCache.getLastRange("2", Duration.ofMillis(3));
+    assertEquals(3, range.getSize());
+    assertEquals(107, range.getTimestamps()[0]);
+    assertEquals(109, range.getValues()[2], 0);
+    assertArrayEquals(new long[]{104, 105}, memoryCache.getTimestampsRange("1", 104, 106));
+  }
+
+  @Test
+  public void addChannelData_earbudsImu_valuesInLayoutChannels() {
+    MemoryCache memoryCache = MemoryCache.create(EEG_CHANNELS, Arrays.asList(
+        Acceleration.Channels.ACC_L_X.getName(), Acceleration.Channels.ACC_R_Z.getName()));
+    Samples samples = Samples.create();
+    samples.addAcceleration(Acceleration.create(/*localSessionId=*/0, /*leftX=*/1, /*leftY=*/2,
+        /*leftZ=*/3, /*rightX=*/4, /*rightY=*/5, /*rightZ=*/6, Instant.now(),
+        /*relativeSamplingTimestamp=*/null, Instant.ofEpochMilli(0)));
+    memoryCache.addChannelData(samples);
+    assertEquals(Collections.singletonList(1),
+        memoryCache.getLastImuChannelData(Acceleration.Channels.ACC_L_X.getName(), 10));
+    assertEquals(Collections.singletonList(6),
+        memoryCache.getLastImuChannelData(Acceleration.Channels.ACC_R_Z.getName(), 10));
+  }
+
+  @Test
+  public void init_withBudget_retentionFromSamplingRate() {
+    MemoryCache memoryCache = MemoryCache.create(/*memoryBudgetBytes=*/1024 * 1024);
+    memoryCache.init(EEG_CHANNELS, Collections.emptyList(), /*eegSamplingRate=*/1000,
+        /*imuSamplingRate=*/0);
+    Duration fastRetention = memoryCache.getRetention("1");
+    memoryCache.init(EEG_CHANNELS, Collections.emptyList(), /*eegSamplingRate=*/250,
+        /*imuSamplingRate=*/0);
+    assertEquals(fastRetention.toMillis() * 4, memoryCache.getRetention("1").toMillis(), 4);
+    memoryCache.addChannelData(createPacket(0));
+    assertEquals(10, memoryCache.getLastEegChannelData("2", 100).size());
+  }
+
+  // The readers never take the lock, so the writer can only be stopped by a deadlock, which the
+  // timeout catches.
+  @Test(timeout = 60000)
+  public void concurrentReads_duringWrites_consistentAndNoSampleLost() throws Exception {
+    MemoryCache memoryCache = MemoryCache.create(EEG_CHANNELS, Collections.emptyList());
+    AtomicBoolean writing = new AtomicBoolean(true);
+    AtomicInteger reads = new AtomicInteger();
+    AtomicReference<Throwable> readerError = new AtomicReference<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int r = 0; r < READERS; ++r) {
+      Thread reader = new Thread(() -> {
+        EegSnapshot snapshot = new EegSnapshot(EEG_CHANNELS, 1000);
+        try {
+          while (writing.get()) {
+            memoryCache.getLastEegSnapshot(snapshot, 1000);
+            assertEquals(snapshot.getSize(0), snapshot.getSize(1));
+            for (int channel = 0; channel < snapshot.getChannelCount(); ++channel) {
+              float[] values = snapshot.getValues(channel);
+              long[] timestamps = snapshot.getTimestamps(channel);
+              for (int i = 0; i < snapshot.getSize(channel); ++i) {
+                assertEquals(timestamps[i], (long) values[i]);
+                if (i > 0) {
+                  assertEquals(timestamps[i - 1] + 1, timestamps[i]);
+                }
+              }
+            }
+            if (snapshot.getSize(0) > 0) {
+              int last = snapshot.getSize(0) - 1;
+              assertEquals(snapshot.getTimestamps(0)[last], snapshot.getTimestamps(1)[last]);
+            }
+            reads.incrementAndGet();
+          }
+        } catch (Throwable e) {
+          // Any exception fails the test, like a read out of bounds of a torn snapshot.
+          readerError.compareAndSet(null, e);
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    try {
+      writePackets(memoryCache);
+    } finally {
+      writing.set(false);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+
+    if (readerError.get() != null) {
+      throw new AssertionError("A reader failed.", readerError.get());
+    }
+    assertTrue(reads.get() > 0);
+    // Every sample written is in the cache, up to the last one.
+    EegSnapshot snapshot =
+        memoryCache.getLastEegSnapshot(new EegSnapshot(EEG_CHANNELS, 1000), 1000);
+    long lastTimestamp = (long) PACKETS * SAMPLES_PER_PACKET - 1;
+    for (int channel = 0; channel < snapshot.getChannelCount(); ++channel) {
+      assertEquals(1000, snapshot.getSize(channel));
+      for (int i = 0; i < 1000; ++i) {
+        assertEquals(lastTimestamp - 999 + i, snapshot.getTimestamps(channel)[i]);
+        assertEquals(lastTimestamp - 999 + i, (long) snapshot.getValues(channel)[i]);
+      }
+    }
+  }
+}
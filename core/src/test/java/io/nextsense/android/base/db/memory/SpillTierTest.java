@@ -0,0 +1,92 @@
+package io.nextsense.android.base.db.memory;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class SpillTierTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static SpillTier createSpillTier(File directory, long maxBytes, int numberOfRecords) {
+    SpillTier spillTier = new SpillTier(directory, "eeg_1", maxBytes);
+    for (int i = 0; i < numberOfRecords; ++i) {
+      spillTier.append(/*timestamp=*/i * 4L, /*value=*/i);
+    }
+    return spillTier;
+  }
+
+  @Test
+  public void append_underBudget_allRecordsKept() {
+    SpillTier spillTier = createSpillTier(temporaryFolder.getRoot(), 1200, 50);
+    assertEquals(50, spillTier.getSize());
+    float[] values = new float[3];
+    long[] timestamps = new long[3];
+    spillTier.getRecords(20, 3, values, 0, timestamps, 0);
+    assertEquals(21, values[1], 0);
+    assertEquals(88, timestamps[2]);
+  }
+
+  @Test
+  public void append_overBudget_oldestSegmentDropped() {
+    // 4 segments of 25 records.
+    SpillTier spillTier = createSpillTier(temporaryFolder.getRoot(), 1200, 101);
+    assertEquals(76, spillTier.getSize());
+    assertEquals(4, temporaryFolder.getRoot().list().length);
+    float[] values = new float[1];
+    spillTier.getRecords(0, 1, values, 0, /*timestamps=*/null, 0);
+    assertEquals(25, values[0], 0);
+  }
+
+  @Test
+  public void append_records_fixedLittleEndianLayout() throws IOException {
+    createSpillTier(temporaryFolder.getRoot(), 1200, 2);
+    try (RandomAccessFile file =
+             new RandomAccessFile(new File(temporaryFolder.getRoot(), "eeg_1_0.spill"), "r")) {
+      file.seek(SpillTier.RECORD_BYTES);
+      // Timestamp 4 followed by 1.0f, little-endian.
+      assertEquals(Long.reverseBytes(4), file.readLong());
+      assertEquals(1, Float.intBitsToFloat(Integer.reverseBytes(file.readInt())), 0);
+    }
+  }
+
+  @Test
+  public void countRecordsSince_timestampInRange_countsRecentRecords() {
+    SpillTier spillTier = createSpillTier(temporaryFolder.getRoot(), 1200, 60);
+    assertEquals(10, spillTier.countRecordsSince(50 * 4));
+    assertEquals(9, spillTier.countRecordsSince(50 * 4 + 1));
+    assertEquals(60, spillTier.countRecordsSince(0));
+  }
+
+  @Test
+  public void clear_withSegments_filesDeleted() {
+    SpillTier spillTier = createSpillTier(temporaryFolder.getRoot(), 1200, 60);
+    spillTier.clear();
+    assertEquals(0, spillTier.getSize());
+    assertEquals(0, temporaryFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void getLastValues_moreThanCapacity_readsSpilledValues() {
+    SpillTier spillTier = new SpillTier(temporaryFolder.getRoot(), "eeg_1", 12000);
+    EegChannelBuffer buffer = new EegChannelBuffer(100, new WindowStatistics[0], spillTier);
+    for (int i = 0; i < 250; ++i) {
+      buffer.addValue(i, i * 4L);
+    }
+    float[] values = new float[200];
+    long[] timestamps = new long[200];
+    assertEquals(200, buffer.getLastValues(200, values, timestamps));
+    for (int i = 0; i < 200; ++i) {
+      assertEquals(50 + i, values[i], 0);
+      assertEquals((50 + i) * 4L, timestamps[i]);
+    }
+    assertEquals(250, buffer.countValuesSince(0));
+  }
+}
@@ -0,0 +1,126 @@
+package io.nextsense.android.base.db.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class WindowStatisticsTest {
+
+  private static final long WINDOW_MILLIS = 1000;
+  private static final float CLIP_THRESHOLD = 90;
+
+  private static EegChannelBuffer createBuffer(int capacity) {
+    return new EegChannelBuffer(capacity,
+        new WindowStatistics[]{new WindowStatistics(WINDOW_MILLIS, CLIP_THRESHOLD)},
+        /*spillTier=*/null);
+  }
+
+  // Computes the statistics of the values in the window by going through all of them.
+  private static void assertStatsMatch(float[] values, long[] timestamps, int size, int capacity,
+                                       ChannelStats stats) {
+    long lastTimestamp = timestamps[size - 1];
+    double sum = 0;
+    double sumOfSquares = 0;
+    float min = Float.MAX_VALUE;
+    float max = -Float.MAX_VALUE;
+    int count = 0;
+    int clipCount = 0;
+    for (int i = size - 1; i >= 0 && count < capacity - 1; --i) {
+      if (timestamps[i] <= lastTimestamp - WINDOW_MILLIS) {
+        break;
+      }
+      sum += values[i];
+      sumOfSquares += (double) values[i] * values[i];
+      min = Math.min(min, values[i]);
+      max = Math.max(max, values[i]);
+      if (Math.abs(values[i]) >= CLIP_THRESHOLD) {
+        ++clipCount;
+      }
+      ++count;
+    }
+    double mean = sum / count;
+    double variance = 0;
+    for (int i = size - count; i < size; ++i) {
+      variance += (values[i] - mean) * (values[i] - mean);
+    }
+    variance /= count;
+    assertEquals(count, stats.getCount());
+    assertEquals(mean, stats.getMean(), 1e-3);
+    assertEquals(variance, stats.getVariance(), 1e-2);
+    assertEquals(Math.sqrt(sumOfSquares / count), stats.getRms(), 1e-3);
+    assertEquals(min, stats.getMin(), 0);
+    assertEquals(max, stats.getMax(), 0);
+    assertEquals(clipCount, stats.getClipCount());
+  }
+
+  @Test
+  public void getStats_randomValues_matchesFullComputation() {
+    Random random = new Random(42);
+    int capacity = 1000;
+    int numberOfValues = 5000;
+    EegChannelBuffer buffer = createBuffer(capacity);
+    float[] values = new float[numberOfValues];
+    long[] timestamps = new long[numberOfValues];
+    long timestamp = 0;
+    ChannelStats stats = new ChannelStats();
+    for (int i = 0; i < numberOfValues; ++i) {
+      values[i] = (float) (random.nextGaussian() * 40);
+      // Mostly 4 ms between samples, with some gaps as when packets are lost.
+      timestamp += random.nextInt(50) == 0 ? 200 : 4;
+      timestamps[i] = timestamp;
+      buffer.addValue(values[i], timestamp);
+      if (i % 97 == 0) {
+        assertTrue(buffer.getStats(WINDOW_MILLIS, stats));
+        assertStatsMatch(values, timestamps, i + 1, capacity, stats);
+      }
+    }
+  }
+
+  @Test
+  public void getStats_windowLongerThanCapacity_limitedToCapacity() {
+    EegChannelBuffer buffer = createBuffer(100);
+    for (int i = 0; i < 300; ++i) {
+      buffer.addValue(i, i);
+    }
+    ChannelStats stats = new ChannelStats();
+    buffer.getStats(WINDOW_MILLIS, stats);
+    assertEquals(99, stats.getCount());
+    assertEquals(201, stats.getMin(), 0);
+    assertEquals(299, stats.getMax(), 0);
+  }
+
+  @Test
+  public void getStats_flatSignal_zeroVarianceAndRange() {
+    EegChannelBuffer buffer = createBuffer(1000);
+    for (int i = 0; i < 500; ++i) {
+      buffer.addValue(5, i * 4L);
+    }
+    ChannelStats stats = new ChannelStats();
+    buffer.getStats(WINDOW_MILLIS, stats);
+    assertEquals(250, stats.getCount());
+    assertEquals(0, stats.getVariance(), 1e-6);
+    assertEquals(0, stats.getRange(), 0);
+    assertEquals(5, stats.getRms(), 1e-6);
+  }
+
+  @Test
+  public void getStats_unknownWindow_returnsFalse() {
+    EegChannelBuffer buffer = createBuffer(1000);
+    assertFalse(buffer.getStats(4000, new ChannelStats()));
+  }
+
+  @Test
+  public void getStats_afterClear_empty() {
+    EegChannelBuffer buffer = createBuffer(1000);
+    buffer.addValue(100, 0);
+    buffer.clear();
+    ChannelStats stats = new ChannelStats();
+    buffer.getStats(WINDOW_MILLIS, stats);
+    assertEquals(0, stats.getCount());
+    assertEquals(0, stats.getClipCount());
+  }
+}
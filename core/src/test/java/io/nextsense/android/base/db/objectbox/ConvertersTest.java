@@ -0,0 +1,100 @@
+package io.nextsense.android.base.db.objectbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import io.objectbox.converter.PropertyConverter;
+
+public class ConvertersTest {
+
+  private static final int SAMPLES = 5000;
+
+  private final Converters.EegChannelsConverter converter = new Converters.EegChannelsConverter();
+  private final Converters.SerializableConverter legacyConverter =
+      new Converters.SerializableConverter();
+
+  // Maui samples have the left or right channel, Xenon samples have up to 8 channels.
+  private static List<HashMap<Integer, Float>> createSamples(int channelCount) {
+    Random random = new Random(/*seed=*/42);
+    List<HashMap<Integer, Float>> samples = new ArrayList<>(SAMPLES);
+    for (int i = 0; i < SAMPLES; ++i) {
+      HashMap<Integer, Float> eegData = new HashMap<>();
+      for (int channel = 1; channel <= channelCount; ++channel) {
+        eegData.put(channel, (float) (random.nextGaussian() * 50));
+      }
+      samples.add(eegData);
+    }
+    return samples;
+  }
+
+  private static <T> void assertRoundTrip(PropertyConverter<T, byte[]> converter,
+                                          List<? extends T> samples) {
+    for (T sample : samples) {
+      assertEquals(sample, converter.convertToEntityProperty(
+          converter.convertToDatabaseValue(sample)));
+    }
+  }
+
+  @Test
+  public void eegChannelsConverter_roundTrip_sameValues() {
+    HashMap<Integer, Float> eegData = new HashMap<>();
+    eegData.put(1, -12.5f);
+    eegData.put(8, Float.NaN);
+    eegData.put(300, 1e6f);
+    byte[] databaseValue = converter.convertToDatabaseValue(eegData);
+    assertEquals(Converters.EegChannelsConverter.FORMAT_VERSION_1, databaseValue[0]);
+    assertEquals(2 + 3 * 6, databaseValue.length);
+    assertEquals(eegData, converter.convertToEntityProperty(databaseValue));
+  }
+
+  @Test
+  public void eegChannelsConverter_legacyRow_readsSerializedMap() {
+    HashMap<Integer, Float> eegData = new HashMap<>();
+    eegData.put(1, 10.0f);
+    eegData.put(2, 15.0f);
+    assertEquals(eegData, converter.convertToEntityProperty(
+        legacyConverter.convertToDatabaseValue(eegData)));
+  }
+
+  @Test
+  public void eegChannelsConverter_emptyOrUnknownVersion_null() {
+    assertNull(converter.convertToEntityProperty(converter.convertToDatabaseValue(null)));
+    assertNull(converter.convertToEntityProperty(new byte[]{99, 0}));
+    assertNull(converter.convertToEntityProperty(new byte[]{1, 2, 0}));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void eegChannelsConverter_channelNumberTooLarge_throws() {
+    HashMap<Integer, Float> eegData = new HashMap<>();
+    eegData.put(70000, 1.0f);
+    converter.convertToDatabaseValue(eegData);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void eegChannelsConverter_nullValue_throws() {
+    HashMap<Integer, Float> eegData = new HashMap<>();
+    eegData.put(1, null);
+    converter.convertToDatabaseValue(eegData);
+  }
+
+  @Test
+  public void eegChannelsConverter_mauiAndXenonSamples_smallerThanSerialization() {
+    for (int channelCount : new int[]{1, 2, 8}) {
+      List<HashMap<Integer, Float>> samples = createSamples(channelCount);
+      assertRoundTrip(converter, samples);
+      assertRoundTrip(legacyConverter, samples);
+      int size = converter.convertToDatabaseValue(samples.get(0)).length;
+      int legacySize = legacyConverter.convertToDatabaseValue(samples.get(0)).length;
+      assertTrue(channelCount + " channels: " + size + " bytes, was " + legacySize,
+          size * 5 < legacySize);
+    }
+  }
+}
@@ -13,10 +13,13 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import io.nextsense.android.base.data.EegBlock;
 import io.nextsense.android.base.data.EegSample;
+import io.nextsense.android.base.data.LocalSession;
 
 @RunWith(RobolectricTestRunner.class)
 public class ObjectBoxDatabaseTest {
@@ -55,6 +58,34 @@ public class ObjectBoxDatabaseTest {
         null));
   }
 
+  private static LocalSession createEegBlockSession() {
+    return LocalSession.create(
+        /*userBigTableKey=*/null, /*cloudDataSessionId=*/null, /*earbudsConfig=*/null,
+        /*uploadNeeded=*/false, /*receivedData=*/true, /*eegSampleRate=*/1000,
+        /*accelerationSampleRate=*/100, RECEPTION_1_VALUE);
+  }
+
+  private long putEegBlockSession(ObjectBoxDatabase objectBoxDatabase, int numberOfBlocks) {
+    return putEegBlockSession(objectBoxDatabase, createEegBlockSession(), numberOfBlocks);
+  }
+
+  // Puts the session and blocks of 3 samples with relative timestamps starting at 1, returns the
+  // session id.
+  private long putEegBlockSession(ObjectBoxDatabase objectBoxDatabase, LocalSession localSession,
+                                  int numberOfBlocks) {
+    long sessionId = objectBoxDatabase.putLocalSession(localSession);
+    for (int block = 0; block < numberOfBlocks; ++block) {
+      List<EegSample> eegSamples = new ArrayList<>();
+      for (int i = 1; i <= 3; ++i) {
+        eegSamples.add(EegSample.create(sessionId, SAMPLE_1_VALUES, RECEPTION_1_VALUE,
+            block * 3 + i, null));
+      }
+      objectBoxDatabase.putEegBlock(EegBlock.create(sessionId,
+          objectBoxDatabase.getNextEegBlockSampleIndex(sessionId), eegSamples));
+    }
+    return sessionId;
+  }
+
   @Test
   public void putEegSample_nullAbsoluteTimestamp_canReadBack() {
     ObjectBoxDatabase objectBoxDatabase = getDb();
@@ -130,6 +161,30 @@ public class ObjectBoxDatabaseTest {
     assertEquals((Integer)6, results.get(2).getRelativeSamplingTimestamp());
   }
 
+  @Test
+  public void getEegSamplesAfterId_multipleSessions_resumesAfterId() {
+    ObjectBoxDatabase objectBoxDatabase = getDb();
+    putThreeEegSamples(objectBoxDatabase, SESSION_1_VALUE);
+    putThreeEegSamples(objectBoxDatabase, SESSION_2_VALUE);
+    putThreeEegSamples(objectBoxDatabase, SESSION_1_VALUE, /*relativeTimeOffset=*/3);
+    List<EegSample> results = objectBoxDatabase.getEegSamplesAfterId(
+        SESSION_1_VALUE, /*lastId=*/0, /*count=*/2);
+    assertEquals(2, results.size());
+    assertEquals(RELATIVE_1_VALUE, results.get(0).getRelativeSamplingTimestamp());
+    results = objectBoxDatabase.getEegSamplesAfterId(
+        SESSION_1_VALUE, results.get(1).id, /*count=*/3);
+    assertEquals(3, results.size());
+    assertEquals(RELATIVE_3_VALUE, results.get(0).getRelativeSamplingTimestamp());
+    assertEquals((Integer)5, results.get(2).getRelativeSamplingTimestamp());
+    assertEquals(results.get(2).getRelativeSamplingTimestamp(),
+        objectBoxDatabase.getEegSample(results.get(2).id).getRelativeSamplingTimestamp());
+    results = objectBoxDatabase.getEegSamplesAfterId(
+        SESSION_1_VALUE, results.get(2).id, /*count=*/3);
+    assertEquals(1, results.size());
+    assertTrue(objectBoxDatabase.getEegSamplesAfterId(
+        SESSION_1_VALUE, results.get(0).id, /*count=*/3).isEmpty());
+  }
+
   @Test
   public void getEegSamples_countOverSize_returnsUntilEnd() {
     ObjectBoxDatabase objectBoxDatabase = getDb();
@@ -188,4 +243,88 @@ public class ObjectBoxDatabaseTest {
     assertEquals(0, objectBoxDatabase.deleteEegSamplesData(SESSION_1_VALUE));
     assertEquals(3, objectBoxDatabase.getEegSamples(SESSION_2_VALUE).size());
   }
+
+  @Test
+  public void getEegSamplesCount_addedAndDeleted_countsSessionRecords() {
+    ObjectBoxDatabase objectBoxDatabase = getDb();
+    putThreeEegSamples(objectBoxDatabase, SESSION_1_VALUE);
+    assertEquals(3, objectBoxDatabase.getEegSamplesCount(SESSION_1_VALUE));
+    putThreeEegSamples(objectBoxDatabase, SESSION_1_VALUE, /*relativeTimeOffset=*/3);
+    putThreeEegSamples(objectBoxDatabase, SESSION_2_VALUE);
+    assertEquals(6, objectBoxDatabase.getEegSamplesCount(SESSION_1_VALUE));
+    assertEquals(3, objectBoxDatabase.getEegSamplesCount(SESSION_2_VALUE));
+    assertEquals(2, objectBoxDatabase.deleteFirstRelativeEegSamplesData(SESSION_1_VALUE, 3));
+    assertEquals(4, objectBoxDatabase.getEegSamplesCount(SESSION_1_VALUE));
+    assertEquals(3, objectBoxDatabase.deleteEegSamplesData(SESSION_2_VALUE));
+    assertEquals(0, objectBoxDatabase.getEegSamplesCount(SESSION_2_VALUE));
+  }
+
+  @Test
+  public void getEegSamples_eegBlockSession_readsAcrossBlocks() {
+    ObjectBoxDatabase objectBoxDatabase = getDb();
+    long sessionId = putEegBlockSession(objectBoxDatabase, /*numberOfBlocks=*/2);
+    assertEquals(6, objectBoxDatabase.getEegSamplesCount(sessionId));
+    List<EegSample> results = objectBoxDatabase.getEegSamples(sessionId, 2, 3);
+    assertEquals(3, results.size());
+    assertEquals(RELATIVE_3_VALUE, results.get(0).getRelativeSamplingTimestamp());
+    assertEquals((Integer)5, results.get(2).getRelativeSamplingTimestamp());
+    assertEquals(SAMPLE_1_VALUES, results.get(2).getEegSamples());
+    assertEquals(3, objectBoxDatabase.getEegSamplesBetweenRelative(sessionId, 2, 4).size());
+    assertEquals(3, objectBoxDatabase.deleteFirstRelativeEegSamplesData(sessionId, 4));
+    assertEquals(3, objectBoxDatabase.getEegSamplesCount(sessionId));
+    assertEquals((Integer)4,
+        objectBoxDatabase.getEegSamples(sessionId, 0, 1).get(0).getRelativeSamplingTimestamp());
+  }
+
+  @Test
+  public void deleteFirstEegSamplesBatch_maxRecords_deletesOldestInBatches() {
+    ObjectBoxDatabase objectBoxDatabase = getDb();
+    putThreeEegSamples(objectBoxDatabase, SESSION_1_VALUE);
+    putThreeEegSamples(objectBoxDatabase, SESSION_1_VALUE, /*relativeTimeOffset=*/3);
+    putThreeEegSamples(objectBoxDatabase, SESSION_2_VALUE);
+    assertEquals(2, objectBoxDatabase.deleteFirstEegSamplesBatch(SESSION_1_VALUE,
+        /*timestampCutoff=*/6, /*relativeTimestamps=*/true, /*maxRecords=*/2));
+    assertEquals(2, objectBoxDatabase.deleteFirstEegSamplesBatch(SESSION_1_VALUE,
+        /*timestampCutoff=*/6, /*relativeTimestamps=*/true, /*maxRecords=*/2));
+    assertEquals(1, objectBoxDatabase.deleteFirstEegSamplesBatch(SESSION_1_VALUE,
+        /*timestampCutoff=*/6, /*relativeTimestamps=*/true, /*maxRecords=*/2));
+    assertEquals(0, objectBoxDatabase.deleteFirstEegSamplesBatch(SESSION_1_VALUE,
+        /*timestampCutoff=*/6, /*relativeTimestamps=*/true, /*maxRecords=*/2));
+    assertEquals(1, objectBoxDatabase.getEegSamplesCount(SESSION_1_VALUE));
+    assertEquals((Integer)6, objectBoxDatabase.getEegSamples(SESSION_1_VALUE, 0, 1).get(0)
+        .getRelativeSamplingTimestamp());
+    assertEquals(3, objectBoxDatabase.getEegSamplesCount(SESSION_2_VALUE));
+  }
+
+  @Test
+  public void getEegBlockSamplesFromIndex_blocksDeleted_indexUnchanged() {
+    ObjectBoxDatabase objectBoxDatabase = getDb();
+    long sessionId = putEegBlockSession(objectBoxDatabase, /*numberOfBlocks=*/3);
+    // Only the blocks that end before the cutoff are deleted.
+    assertEquals(3, objectBoxDatabase.deleteFirstEegSamplesBatch(sessionId,
+        /*timestampCutoff=*/5, /*relativeTimestamps=*/true, /*maxRecords=*/10));
+    assertEquals(6, objectBoxDatabase.getEegSamplesCount(sessionId));
+    List<EegSample> results = objectBoxDatabase.getEegBlockSamplesFromIndex(sessionId, 4, 3);
+    assertEquals(3, results.size());
+    assertEquals((Integer)5, results.get(0).getRelativeSamplingTimestamp());
+    assertTrue(objectBoxDatabase.getEegBlockSamplesFromIndex(sessionId, 1, 2).isEmpty());
+  }
+
+  @Test
+  public void getChannelValues_eegBlockSession_readsChannelBetweenTimes() {
+    ObjectBoxDatabase objectBoxDatabase = getDb();
+    LocalSession localSession = createEegBlockSession();
+    localSession.setFirstRelativeTimestamp(RELATIVE_1_VALUE);
+    localSession.setFirstDataTime(RECEPTION_1_VALUE);
+    long sessionId = putEegBlockSession(objectBoxDatabase, localSession, /*numberOfBlocks=*/2);
+    // Relative timestamps 3 to 5, across both blocks.
+    float[] values = objectBoxDatabase.getChannelValues(sessionId, /*channelNumber=*/2,
+        RECEPTION_1_VALUE.plusMillis(2), RECEPTION_1_VALUE.plusMillis(5));
+    assertEquals(3, values.length);
+    assertEquals(15.0f, values[2], 0);
+    assertEquals(4, objectBoxDatabase.getLastChannelValues(
+        sessionId, /*channelNumber=*/1, /*count=*/4).length);
+    assertTrue(Float.isNaN(objectBoxDatabase.getLastChannelValues(
+        sessionId, /*channelNumber=*/3, /*count=*/1)[0]));
+  }
 }
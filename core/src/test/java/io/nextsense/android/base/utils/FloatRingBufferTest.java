@@ -0,0 +1,66 @@
+package io.nextsense.android.base.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FloatRingBufferTest {
+
+  @Test
+  public void addValues_underCapacity_allKept() {
+    FloatRingBuffer buffer = new FloatRingBuffer(3);
+    buffer.addValue(1);
+    buffer.addValue(2);
+    assertEquals(2, buffer.getSize());
+    float[] values = new float[3];
+    assertEquals(2, buffer.getLastValues(3, values));
+    assertEquals(1, values[0], 0);
+    assertEquals(2, values[1], 0);
+  }
+
+  @Test
+  public void addValues_overCapacity_oldestOverwritten() {
+    FloatRingBuffer buffer = new FloatRingBuffer(3);
+    for (int i = 1; i <= 5; ++i) {
+      buffer.addValue(i);
+    }
+    assertEquals(3, buffer.getSize());
+    assertEquals(5, buffer.getWriteCount());
+    float[] values = new float[3];
+    assertEquals(3, buffer.getLastValues(3, values));
+    assertArrayEquals(new float[]{3, 4, 5}, values, 0);
+  }
+
+  @Test
+  public void getLastValues_wrapsAround_returnsInOrder() {
+    FloatRingBuffer buffer = new FloatRingBuffer(4);
+    for (int i = 1; i <= 6; ++i) {
+      buffer.addValue(i);
+    }
+    float[] values = new float[2];
+    assertEquals(2, buffer.getLastValues(2, values));
+    assertArrayEquals(new float[]{5, 6}, values, 0);
+  }
+
+  @Test
+  public void getLastValues_destinationTooSmall_limitedToDestination() {
+    FloatRingBuffer buffer = new FloatRingBuffer(4);
+    for (int i = 1; i <= 4; ++i) {
+      buffer.addValue(i);
+    }
+    float[] values = new float[2];
+    assertEquals(2, buffer.getLastValues(4, values));
+    assertArrayEquals(new float[]{3, 4}, values, 0);
+  }
+
+  @Test
+  public void clear_whenNotEmpty_isEmpty() {
+    FloatRingBuffer buffer = new FloatRingBuffer(2);
+    buffer.addValue(1);
+    buffer.addValue(2);
+    buffer.clear();
+    assertEquals(0, buffer.getSize());
+    assertEquals(0, buffer.getLastValues(2, new float[2]));
+  }
+}
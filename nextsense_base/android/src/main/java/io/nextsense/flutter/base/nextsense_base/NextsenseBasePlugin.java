@@ -14,12 +14,15 @@ import android.os.StatFs;
 import androidx.annotation.NonNull;
 
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Floats;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -51,6 +54,9 @@ import io.nextsense.android.base.communication.internet.Connectivity;
 import io.nextsense.android.base.data.DeviceInternalState;
 import io.nextsense.android.base.data.LocalSession;
 import io.nextsense.android.base.data.LocalSessionManager;
+import io.nextsense.android.base.db.StoragePolicyEvent;
+import io.nextsense.android.base.db.StorageQuotaManager;
+import io.nextsense.android.base.db.memory.ChannelRange;
 import io.nextsense.android.base.devices.NextSenseDevice;
 import io.nextsense.android.base.emulated.EmulatedDeviceManager;
 import io.nextsense.android.base.utils.RotatingFileLogger;
@@ -143,6 +149,9 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
   private static final String CURRENT_SESSION_DATA_RECEIVED_CHANNEL_NAME =
       "io.nextsense.flutter.base.nextsense_base/current_session_data_received_channel";
 
+  private static final String STORAGE_POLICY_CHANNEL_NAME =
+      "io.nextsense.flutter.base.nextsense_base/storage_policy_channel";
+
   // Handler for the UI thread which is needed for running flutter JNI methods.
   private final Handler uiThreadHandler = new Handler(Looper.getMainLooper());
   private final Gson gson;
@@ -152,6 +161,7 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
   private final Map<String, NextSenseDevice.DeviceInternalStateChangeListener>
       deviceInternalStateListeners = Maps.newConcurrentMap();
   private LocalSessionManager.OnFirstDataReceivedListener onCurrentSessionDataReceivedListener;
+  private StorageQuotaManager.OnPolicyChangedListener onStoragePolicyChangedListener;
   /// The MethodChannel that will the communication between Flutter and native Android
   ///
   /// This local reference serves to register the plugin with the Flutter Engine and unregister it
@@ -162,6 +172,7 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
   private EventChannel deviceEventChannel;
   private EventChannel deviceInternalStateChannel;
   private EventChannel currentSessionDataReceivedChannel;
+  private EventChannel storagePolicyChannel;
   private Context applicationContext;
   private Intent foregroundServiceIntent;
   private ForegroundService nextSenseService;
@@ -274,6 +285,19 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
         stopListeningToCurrentSessionDataReceived();
       }
     });
+    storagePolicyChannel =
+        new EventChannel(flutterPluginBinding.getBinaryMessenger(), STORAGE_POLICY_CHANNEL_NAME);
+    storagePolicyChannel.setStreamHandler(new EventChannel.StreamHandler() {
+      @Override
+      public void onListen(Object arguments, EventChannel.EventSink eventSink) {
+        RotatingFileLogger.get().logi(TAG, "Starting to listen to the storage policy...");
+        startListeningToStoragePolicy(eventSink);
+      }
+      @Override
+      public void onCancel(Object arguments) {
+        stopListeningToStoragePolicy();
+      }
+    });
     RotatingFileLogger.get().logi(TAG, "Attached to engine.");
   }
 
@@ -289,6 +313,7 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
     deviceStateChannel.setStreamHandler(null);
     deviceInternalStateChannel.setStreamHandler(null);
     currentSessionDataReceivedChannel.setStreamHandler(null);
+    storagePolicyChannel.setStreamHandler(null);
     applicationContext = null;
     RotatingFileLogger.get().logi(TAG, "Detached from engine.");
   }
@@ -739,6 +764,40 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
     }
   }
 
+  // Sends the current policy, then every change.
+  private void startListeningToStoragePolicy(EventChannel.EventSink eventSink) {
+    if (nextSenseServiceBound) {
+      StorageQuotaManager storageQuotaManager = nextSenseService.getStorageQuotaManager();
+      onStoragePolicyChangedListener = storagePolicyEvent ->
+          uiThreadHandler.post(() -> eventSink.success(toMap(storagePolicyEvent)));
+      storageQuotaManager.addOnPolicyChangedListener(onStoragePolicyChangedListener);
+      StoragePolicyEvent lastEvent = storageQuotaManager.getLastEvent();
+      if (lastEvent != null) {
+        onStoragePolicyChangedListener.onPolicyChanged(lastEvent);
+      }
+    } else {
+      RotatingFileLogger.get().logw(TAG,
+          "Service not connected, cannot start monitoring the storage policy.");
+    }
+  }
+
+  private void stopListeningToStoragePolicy() {
+    if (nextSenseServiceBound && onStoragePolicyChangedListener != null) {
+      nextSenseService.getStorageQuotaManager().removeOnPolicyChangedListener(
+          onStoragePolicyChangedListener);
+      onStoragePolicyChangedListener = null;
+    }
+  }
+
+  private static Map<String, Object> toMap(StoragePolicyEvent storagePolicyEvent) {
+    Map<String, Object> storagePolicy = new HashMap<>();
+    storagePolicy.put("policy", storagePolicyEvent.getPolicy().name());
+    storagePolicy.put("store_bytes", storagePolicyEvent.getStoreBytes());
+    storagePolicy.put("max_store_bytes", storagePolicyEvent.getMaxStoreBytes());
+    storagePolicy.put("usable_bytes", storagePolicyEvent.getUsableBytes());
+    return storagePolicy;
+  }
+
   private void connectDevice(Result result, String macAddress) {
     Optional<Device> device = nextSenseService.getDeviceManager().getDevice(macAddress);
     if (!device.isPresent()) {
@@ -987,15 +1046,18 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
           /*errorDetails=*/null);
       return;
     }
+    int numberOfSamples = (int) Math.round(Math.ceil(
+        (float) durationMillis / Math.round(1000f /
+            device.get().getSettings().getEegStreamingRate())));
     if (fromDatabase != null && fromDatabase) {
-      result.success(nextSenseService.getObjectBoxDatabase().getLastChannelData(
-              localSessionId, channelName, Duration.ofMillis(durationMillis)));
+      result.success(nextSenseService.getObjectBoxDatabase().getLastChannelValues(
+          localSessionId, Integer.parseInt(channelName), numberOfSamples));
     } else {
-      int numberOfSamples = (int) Math.round(Math.ceil(
-          (float) durationMillis / Math.round(1000f /
-              device.get().getSettings().getEegStreamingRate())));
-      result.success(nextSenseService.getMemoryCache().getLastEegChannelData(
-              channelName, numberOfSamples));
+      // Primitive arrays are sent as typed data lists, which avoids boxing every sample.
+      float[] channelData = new float[numberOfSamples];
+      int count = nextSenseService.getMemoryCache().getLastEegChannelData(
+          channelName, numberOfSamples, channelData);
+      result.success(count == numberOfSamples ? channelData : Arrays.copyOf(channelData, count));
     }
   }
 
@@ -1015,8 +1077,10 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
       int numberOfSamples = (int) Math.round(Math.ceil(
           (float) durationMillis / Math.round(1000f /
               device.get().getSettings().getImuStreamingRate())));
-      result.success(nextSenseService.getMemoryCache().getLastImuChannelData(
-          channelName, numberOfSamples));
+      int[] channelData = new int[numberOfSamples];
+      int count = nextSenseService.getMemoryCache().getLastImuChannelData(
+          channelName, numberOfSamples, channelData);
+      result.success(count == numberOfSamples ? channelData : Arrays.copyOf(channelData, count));
     }
   }
 
@@ -1030,7 +1094,9 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
     int numberOfSamples = (int) Math.round(Math.ceil(
         (float) durationMillis / Math.round(1000f /
             device.get().getSettings().getEegStreamingRate())));
-    result.success(nextSenseService.getMemoryCache().getLastTimestamps(numberOfSamples));
+    long[] timestamps = new long[numberOfSamples];
+    int count = nextSenseService.getMemoryCache().getLastTimestamps(numberOfSamples, timestamps);
+    result.success(count == numberOfSamples ? timestamps : Arrays.copyOf(timestamps, count));
   }
 
   private void runSleepStaging(
@@ -1042,25 +1108,17 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
           /*errorDetails=*/null);
       return;
     }
-    List<Float> data;
-    float eegSamplingRate = device.get().getSettings().getEegStreamingRate();
+    float[] data;
     if (fromDatabase != null && fromDatabase) {
-      LocalSession localSession = nextSenseService.getObjectBoxDatabase().getLocalSession(
-          localSessionId);
-      int eegOffset = (int) Math.round(Math.ceil(
-          (float) (startDateTime.toEpochMilli() - localSession.getStartTime().toEpochMilli()) /
-              Math.round(1000f / eegSamplingRate)));
-      long relativeEegOffset = eegOffset - localSession.getEegSamplesDeleted();
-      data = nextSenseService.getObjectBoxDatabase().getChannelData(
-          localSessionId, channelName, relativeEegOffset,
-          durationMillis / Math.round(1000f / eegSamplingRate));
+      data = nextSenseService.getObjectBoxDatabase().getChannelValues(
+          localSessionId, Integer.parseInt(channelName), startDateTime,
+          startDateTime.plusMillis(durationMillis));
     } else {
-      int numberOfSamples = (int) Math.round(Math.ceil(
-          (float) durationMillis / Math.round(1000f / eegSamplingRate)));
-      data = nextSenseService.getMemoryCache().getLastEegChannelData(
-          channelName, numberOfSamples);
+      ChannelRange channelRange = nextSenseService.getMemoryCache().getLastRange(
+          channelName, Duration.ofMillis(durationMillis));
+      data = Arrays.copyOf(channelRange.getValues(), channelRange.getSize());
     }
-    if (data != null && !data.isEmpty()) {
+    if (data != null && data.length > 0) {
       Map<Integer, Object> results = nextSenseService.getSleepTransformerModel().doInference(data,
           device.get().getSettings().getEegStreamingRate());
       result.success(gson.toJson(results));
@@ -1082,20 +1140,12 @@ public class NextsenseBasePlugin implements FlutterPlugin, MethodCallHandler {
     List<Float> data;
     float eegSamplingRate = device.get().getSettings().getEegStreamingRate();
     if (fromDatabase != null && fromDatabase) {
-      LocalSession localSession = nextSenseService.getObjectBoxDatabase().getLocalSession(
-          localSessionId);
-      int eegOffset = (int) Math.round(Math.ceil(
-          (float) (startDateTime.toEpochMilli() - localSession.getStartTime().toEpochMilli()) /
-              Math.round(1000f / eegSamplingRate)));
-      long relativeEegOffset = eegOffset - localSession.getEegSamplesDeleted();
-      data = nextSenseService.getObjectBoxDatabase().getChannelData(
-          localSessionId, channelName, relativeEegOffset,
-          durationMillis / Math.round(1000f / eegSamplingRate));
+      data = Floats.asList(nextSenseService.getObjectBoxDatabase().getChannelValues(
+          localSessionId, Integer.parseInt(channelName), startDateTime,
+          startDateTime.plusMillis(durationMillis)));
     } else {
-      int numberOfSamples = (int) Math.round(Math.ceil(
-          (float) durationMillis / Math.round(1000f / eegSamplingRate)));
-      data = nextSenseService.getMemoryCache().getLastEegChannelData(
-          channelName, numberOfSamples);
+      data = nextSenseService.getMemoryCache().getLastRange(
+          channelName, Duration.ofMillis(durationMillis)).getValueList();
     }
     if (data != null && !data.isEmpty()) {
       double bandPower = BandPowerAnalysis.getBandPower(
@@ -99,6 +99,8 @@ class NextsenseBase {
       'io.nextsense.flutter.base.nextsense_base/device_internal_state_channel');
   static const EventChannel _currentSessionDataReceivedStream = const EventChannel(
       'io.nextsense.flutter.base.nextsense_base/current_session_data_received_channel');
+  static const EventChannel _storagePolicyStream = const EventChannel(
+      'io.nextsense.flutter.base.nextsense_base/storage_policy_channel');
   static const String _connectToServiceCommand = 'connect_to_service';
   static const String _changeNotificationContentCommand = 'change_notification_content';
   static const String _setFlutterActivityActiveCommand =
@@ -304,6 +306,17 @@ class NextsenseBase {
     };
   }
 
+  // The listener receives a map with the active storage policy as 'policy', one of NONE,
+  // DOWNSAMPLE_IMU, STOP_CSV and REFUSE_NEW_SESSIONS, and the 'store_bytes' used in the store,
+  // 'max_store_bytes' and 'usable_bytes' it is based on.
+  static CancelListening listenToStoragePolicy(Listener listener) {
+    var subscription = _storagePolicyStream.receiveBroadcastStream().listen(
+        listener, cancelOnError: true);
+    return () {
+      subscription.cancel();
+    };
+  }
+
   static Future<bool> canStartNewSession() async {
     return await _channel.invokeMethod(_canStartNewSessionCommand);
   }
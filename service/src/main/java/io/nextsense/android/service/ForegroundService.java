@@ -20,6 +20,7 @@ import androidx.core.app.ServiceCompat;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
+import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
 
@@ -39,6 +40,7 @@ import io.nextsense.android.base.data.Uploader;
 import io.nextsense.android.base.db.CacheSink;
 import io.nextsense.android.base.db.CsvSink;
 import io.nextsense.android.base.db.DatabaseSink;
+import io.nextsense.android.base.db.StorageQuotaManager;
 import io.nextsense.android.base.db.memory.MemoryCache;
 import io.nextsense.android.base.db.objectbox.ObjectBoxDatabase;
 import io.nextsense.android.base.devices.NextSenseDeviceManager;
@@ -67,6 +69,11 @@ public class ForegroundService extends Service {
   private static final String CHANNEL_NAME = "NextSense";
   private static final int UI_INTENT_REQUEST_CODE = 1;
   private static final int NOTIFICATION_ID = 1;
+  // Memory for the recent data of all the channels, split by sampling rate.
+  private static final long MEMORY_CACHE_BUDGET_BYTES = 32L * 1024 * 1024;
+  private static final String MEMORY_CACHE_SPILL_DIR = "memory_cache";
+  // Duration of EEG kept on disk, sized from the streaming rate, e.g. 346MB per channel at 1000Hz.
+  private static final Duration MEMORY_CACHE_SPILL_RETENTION = Duration.ofHours(8);
 
   // Binder given to clients.
   private final IBinder binder = new LocalBinder();
@@ -88,6 +95,7 @@ public class ForegroundService extends Service {
   private Connectivity connectivity;
   private CloudFunctions cloudFunctions;
   private Uploader uploader;
+  private StorageQuotaManager storageQuotaManager;
   private SampleRateCalculator sampleRateCalculator;
   private SleepTransformerModel sleepTransformerModel;
   private AirohaDeviceManager airohaDeviceManager;
@@ -166,6 +174,10 @@ public class ForegroundService extends Service {
   public Uploader getUploader() {
     return uploader;
   }
+
+  public StorageQuotaManager getStorageQuotaManager() {
+    return storageQuotaManager;
+  }
   public SleepTransformerModel getSleepTransformerModel() {
     return sleepTransformerModel;
   }
@@ -190,6 +202,9 @@ public class ForegroundService extends Service {
   private void initialize(boolean allowDataViaCellular) {
     objectBoxDatabase = new ObjectBoxDatabase();
     objectBoxDatabase.init(this);
+    // ObjectBox saves the store in the files directory.
+    storageQuotaManager = StorageQuotaManager.create(objectBoxDatabase, getFilesDir());
+    storageQuotaManager.start();
     bluetoothStateManager = BluetoothStateManager.create(getApplicationContext());
     centralManagerProxy = (!Config.USE_EMULATED_BLE) ?
             new BleCentralManagerProxy(getApplicationContext()) : null;
@@ -197,7 +212,9 @@ public class ForegroundService extends Service {
     csvSink = CsvSink.create(this, objectBoxDatabase, centralManagerProxy);
     localSessionManager = LocalSessionManager.create(objectBoxDatabase, csvSink);
     nextSenseDeviceManager = NextSenseDeviceManager.create(localSessionManager);
-    memoryCache = MemoryCache.create();
+    memoryCache = MemoryCache.create(MEMORY_CACHE_BUDGET_BYTES);
+    memoryCache.setSpillTier(
+        new File(getCacheDir(), MEMORY_CACHE_SPILL_DIR), MEMORY_CACHE_SPILL_RETENTION);
     deviceScanner = DeviceScanner.create(
         nextSenseDeviceManager, centralManagerProxy, bluetoothStateManager, memoryCache, csvSink);
     deviceManager = DeviceManager.create(
@@ -285,6 +302,9 @@ public class ForegroundService extends Service {
     if (uploader != null) {
       uploader.stop();
     }
+    if (storageQuotaManager != null) {
+      storageQuotaManager.stop();
+    }
     if (objectBoxDatabase != null) {
       objectBoxDatabase.stop();
     }